@@ -0,0 +1,132 @@
+/*
+ * Copyright 2004 - 2013 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.bench;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.dal33t.powerfolder.disk.dao.FileInfoDAO;
+import de.dal33t.powerfolder.disk.dao.FileInfoDAOHashMapImpl;
+import de.dal33t.powerfolder.disk.dao.FileInfoDAOOffHeapImpl;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FileInfoFactory;
+import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.light.MemberInfo;
+import de.dal33t.powerfolder.util.IdGenerator;
+
+/**
+ * Compares the heap usage of {@link FileInfoDAOHashMapImpl} and
+ * {@link FileInfoDAOOffHeapImpl} holding 100000 files of four members. The
+ * lookup latency of the newest versions is printed for each.
+ */
+public class FileInfoDAOBench extends Bench {
+
+    private static final int N_FILES = 100000;
+    private static final String[] DOMAINS = {null, "MEMBER-1", "MEMBER-2",
+        "MEMBER-3"};
+
+    private final FolderInfo foInfo = new FolderInfo("Bench",
+        IdGenerator.makeId());
+    private final MemberInfo mInfo = new MemberInfo("Bart",
+        IdGenerator.makeId(), null);
+
+    /**
+     * Main.
+     *
+     * @param args
+     */
+    public static void main(String[] args) {
+        FileInfoDAOBench bench = new FileInfoDAOBench();
+        bench.run();
+    }
+
+    /**
+     * The implementation using the least heap is the winner.
+     *
+     * @return
+     */
+    protected boolean winnerIsGreatest() {
+        return false;
+    }
+
+    /**
+     * Get the heap usage in KB of both implementations.
+     *
+     * @return
+     */
+    protected Map<String, Comparable> getResults() {
+        HashMap<String, Comparable> map = new HashMap<String, Comparable>();
+        map.put("HashMap heap KB", doRun(new FileInfoDAOHashMapImpl("ME",
+            null)));
+        map.put("Off-heap heap KB", doRun(new FileInfoDAOOffHeapImpl("ME",
+            null)));
+        return map;
+    }
+
+    /**
+     * Fills the DAO and looks up the newest version of every file.
+     *
+     * @return the heap used by the DAO in KB.
+     */
+    private Comparable doRun(FileInfoDAO dao) {
+        List<FileInfo> lookups = new ArrayList<FileInfo>(N_FILES);
+        for (int i = 0; i < N_FILES; i++) {
+            lookups.add(FileInfoFactory.lookupInstance(foInfo, name(i)));
+        }
+
+        long before = usedHeap();
+        for (String domain : DOMAINS) {
+            List<FileInfo> fInfos = new ArrayList<FileInfo>(N_FILES);
+            for (int i = 0; i < N_FILES; i++) {
+                fInfos.add(FileInfoFactory.unmarshallExistingFile(foInfo,
+                    name(i), i, mInfo, new Date(), 1, false));
+            }
+            dao.store(domain, fInfos);
+        }
+        long heap = usedHeap() - before;
+
+        Date start = new Date();
+        for (FileInfo lookup : lookups) {
+            if (dao.findNewestVersion(lookup, DOMAINS) == null) {
+                throw new IllegalStateException("Not found: " + lookup);
+            }
+        }
+        Date end = new Date();
+        System.out.println(dao.getClass().getSimpleName() + " lookup = "
+            + (end.getTime() - start.getTime()) + "ms");
+        dao.stop();
+        return heap / 1024;
+    }
+
+    private static String name(int i) {
+        return "dir-" + (i % 100) + "/file-" + i + ".txt";
+    }
+
+    private static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2004 - 2013 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Reads the identity of files on disk by the file attributes of Java 7. Used
+ * by the {@link ContentHashCache} by reflection.
+ */
+final class FileKeys {
+
+    private FileKeys() {
+        // No instance
+    }
+
+    /**
+     * @param diskFile
+     * @return the identity of the file on disk (device and inode) or "" if not
+     *         available.
+     */
+    static String get(File diskFile) {
+        try {
+            Object key = Files.readAttributes(
+                Paths.get(diskFile.getAbsolutePath()),
+                BasicFileAttributes.class).fileKey();
+            return key != null ? key.toString() : "";
+        } catch (IOException e) {
+            return "";
+        } catch (RuntimeException e) {
+            // Invalid path
+            return "";
+        }
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright 2004 - 2013 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.Map;
+
+import de.dal33t.powerfolder.Constants;
+import de.dal33t.powerfolder.Controller;
+import de.dal33t.powerfolder.util.Reject;
+import de.dal33t.powerfolder.util.Util;
+
+/**
+ * The {@link FolderWatchService} based on the {@link WatchService} of Java 7.
+ * Created by {@link FolderWatchService#create(Controller)}.
+ * <p>
+ * Each directory gets registered on its own. Directories created later are
+ * registered when their creation is reported. Their contents, which might have
+ * been created before the registration, are reported as changed then.
+ * <p>
+ * If the system refuses to watch more directories (Linux:
+ * fs.inotify.max_user_watches) the {@link FolderWatcher} is notified and
+ * falls back to scanning.
+ */
+class NioFolderWatchService extends FolderWatchService implements Runnable {
+
+    private WatchService service;
+    private Thread thread;
+    private volatile boolean stopped;
+
+    /** The registered directories */
+    private final Map<WatchKey, WatchedDirectory> keys = Util
+        .createConcurrentHashMap();
+
+    NioFolderWatchService(Controller controller) {
+        super(controller);
+    }
+
+    @Override
+    void watch(final FolderWatcher watcher) throws IOException {
+        Reject.ifNull(watcher, "Watcher");
+        start();
+        final Path base = Paths.get(watcher.getFolder().getLocalBase()
+            .getAbsolutePath());
+        getController().getIOProvider().startIO(new Runnable() {
+            public void run() {
+                long start = System.currentTimeMillis();
+                int n = register(watcher, base, base, false);
+                if (isFine()) {
+                    logFine("Watching " + n + " directories of "
+                        + watcher.getFolder() + ". Took "
+                        + (System.currentTimeMillis() - start) + "ms");
+                }
+            }
+        });
+    }
+
+    @Override
+    void unwatch(FolderWatcher watcher) {
+        for (Iterator<Map.Entry<WatchKey, WatchedDirectory>> it = keys
+            .entrySet().iterator(); it.hasNext();)
+        {
+            Map.Entry<WatchKey, WatchedDirectory> entry = it.next();
+            if (entry.getValue().watcher == watcher) {
+                entry.getKey().cancel();
+                it.remove();
+            }
+        }
+    }
+
+    @Override
+    synchronized void shutdown() {
+        stopped = true;
+        keys.clear();
+        if (service != null) {
+            try {
+                service.close();
+            } catch (IOException e) {
+                logFiner(e);
+            }
+            service = null;
+        }
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    // Internal ***************************************************************
+
+    private synchronized void start() throws IOException {
+        if (service != null) {
+            return;
+        }
+        stopped = false;
+        service = FileSystems.getDefault().newWatchService();
+        thread = new Thread(this, "FolderWatchService");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void run() {
+        WatchService watchService = service;
+        try {
+            while (!stopped) {
+                WatchKey key = watchService.take();
+                WatchedDirectory dir = keys.get(key);
+                if (dir == null) {
+                    key.cancel();
+                    continue;
+                }
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == OVERFLOW) {
+                        dir.watcher.eventsLost();
+                        continue;
+                    }
+                    Path child = dir.path.resolve((Path) event.context());
+                    dir.changed(child);
+                    if (event.kind() == ENTRY_CREATE
+                        && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS))
+                    {
+                        register(dir.watcher, dir.base, child, true);
+                    }
+                }
+                if (!key.reset()) {
+                    // Directory deleted
+                    keys.remove(key);
+                }
+            }
+        } catch (InterruptedException e) {
+            logFiner(e);
+        } catch (ClosedWatchServiceException e) {
+            logFiner(e);
+        } catch (RuntimeException e) {
+            logSevere("Filesystem watch crashed. " + e, e);
+        }
+    }
+
+    /**
+     * Registers the directory and all subdirectories.
+     *
+     * @param watcher
+     * @param base
+     *            the base directory of the folder
+     * @param start
+     *            the directory to start with
+     * @param reportContents
+     *            report the contents as changed.
+     * @return the number of registered directories
+     */
+    private int register(final FolderWatcher watcher, final Path base,
+        final Path start, final boolean reportContents)
+    {
+        final WatchService watchService = service;
+        final int[] count = new int[1];
+        if (watchService == null) {
+            return 0;
+        }
+        try {
+            Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir,
+                    BasicFileAttributes attrs) throws IOException
+                {
+                    if (stopped || watcher.isWatchLimitReached()) {
+                        return FileVisitResult.TERMINATE;
+                    }
+                    if (dir.getParent() != null
+                        && dir.getParent().equals(base)
+                        && dir.getFileName().toString()
+                            .equals(Constants.POWERFOLDER_SYSTEM_SUBDIR))
+                    {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    WatchKey key;
+                    try {
+                        key = dir.register(watchService, ENTRY_CREATE,
+                            ENTRY_DELETE, ENTRY_MODIFY);
+                    } catch (IOException e) {
+                        if (isLimitReached(e)) {
+                            watcher.watchLimitReached();
+                            return FileVisitResult.TERMINATE;
+                        }
+                        logFine("Unable to watch " + dir + ". " + e);
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    WatchedDirectory watched = new WatchedDirectory(watcher,
+                        base, dir);
+                    WatchedDirectory existing = keys.putIfAbsent(key, watched);
+                    if (existing != null && existing.watcher != watcher) {
+                        // Nested folders. Directory belongs to the other one.
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    count[0]++;
+                    if (reportContents && !dir.equals(start)) {
+                        watched.changed(dir);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file,
+                    BasicFileAttributes attrs)
+                {
+                    if (reportContents) {
+                        watcher.fileChanged(base.relativize(file).toString());
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file,
+                    IOException exc)
+                {
+                    logFiner("Unable to visit " + file + ". " + exc);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            logWarning("Unable to watch " + start + ". " + e);
+        }
+        return count[0];
+    }
+
+    /**
+     * Problems of the directory itself (e.g. deleted or access denied) are
+     * reported as {@link FileSystemException}s, which name the directory. If
+     * the system refuses to add a watch (inotify: ENOSPC, max_user_watches
+     * reached) the JDK throws a plain {@link IOException}.
+     *
+     * @param e
+     *            the exception of {@link Path#register}
+     * @return true if the system does not allow to watch more directories.
+     */
+    private static boolean isLimitReached(IOException e) {
+        return !(e instanceof FileSystemException);
+    }
+
+    private static class WatchedDirectory {
+        private final FolderWatcher watcher;
+        private final Path base;
+        private final Path path;
+
+        private WatchedDirectory(FolderWatcher watcher, Path base, Path path) {
+            this.watcher = watcher;
+            this.base = base;
+            this.path = path;
+        }
+
+        private void changed(Path child) {
+            watcher.fileChanged(base.relativize(child).toString());
+        }
+    }
+}
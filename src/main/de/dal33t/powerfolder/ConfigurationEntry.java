@@ -427,6 +427,26 @@ public enum ConfigurationEntry {
      */
     NET_USE_RELAY_TUNNEL_ON_LAN("net.relaytunnel.lan.enabled", false),
 
+    /**
+     * If TCP connections should be handled by non-blocking sockets, which are
+     * multiplexed on a few selector threads instead of one receiving thread
+     * per connection.
+     */
+    NET_NIO_ENABLED("net.nio.enabled", false),
+
+    /**
+     * The number of selector threads for non-blocking connections. 0 =
+     * Depending on the number of processors.
+     */
+    NET_NIO_SELECTOR_THREADS("net.nio.selector.threads", 0),
+
+    /**
+     * The time in ms a message may wait to be sent together with following
+     * messages in one write. 0 = Only messages already queued get sent
+     * together.
+     */
+    NET_SEND_COALESCE_DELAY("net.send.coalesce.delay", 0),
+
     /**
      * If the {@link RemoteCommandManager} should be started or not.
      */
@@ -538,6 +558,24 @@ public enum ConfigurationEntry {
      */
     USE_ZIP_ON_LAN("use_zip_on_lan", false),
 
+    /**
+     * Compress all messages of a connection by one deflate stream instead of
+     * each message on its own. Only used if the remote side supports it and
+     * the connection is compressed at all, so on LAN only with
+     * {@link #USE_ZIP_ON_LAN}.
+     * <p>
+     * Trade-off: A message broadcasted to many members is serialized once,
+     * but compressed again by every connection. Saves bytes on the wire at
+     * the cost of CPU per connection.
+     */
+    USE_STREAM_COMPRESSION("net.stream.compression", true),
+
+    /**
+     * Send the messages sent most in a compact binary format instead of
+     * serializing them. Only used if the remote side supports it.
+     */
+    USE_MESSAGE_CODECS("net.message.codecs", true),
+
     /**
      * Setting to enable/disable swarming in an LAN environment. If swarming
      * below is set to false, this is ignored!
@@ -551,6 +589,29 @@ public enum ConfigurationEntry {
 
     USE_DELTA_ON_LAN("deltasync.lan.enabled", true),
 
+    /**
+     * Delta-sync: The maximum MB of file parts records kept on disk to answer
+     * further requests for the same file version. 0 = compute the record on
+     * every request (default).
+     * <p>
+     * The records are stored in the system directory of each folder and take
+     * up to a few percent of the size of the files they are built from.
+     */
+    DELTA_RECORD_CACHE_MB("deltasync.record.cache.mb", 0),
+
+    /**
+     * Delta-sync: The number of threads matching the parts of a large file.
+     * 0 = one per processor.
+     */
+    DELTA_MATCH_THREADS("deltasync.match.threads", 0),
+
+    /**
+     * Delta-sync: Compare content defined chunks instead of matching rolling
+     * checksums against the local file. Only used if the remote side supports
+     * it.
+     */
+    USE_DELTA_CHUNKS("deltasync.chunks.enabled", true),
+
     /**
      * Setting to enable/disable swarming.
      */
@@ -788,6 +849,91 @@ public enum ConfigurationEntry {
      */
     FOLDER_DB_PERSIST_TIME("filedb.persist.seconds", 60),
 
+    /**
+     * The number of threads loading folders at startup. 0 = automatic
+     * (depending on the number of processors).
+     */
+    FOLDER_LOAD_THREADS("folder.load.threads", 0),
+
+    /**
+     * The maximum number of threads scanning the directories of one folder.
+     * The scanner uses less if the storage does not profit from parallel
+     * access. 0 = automatic (depending on the number of processors).
+     */
+    FOLDER_SCAN_THREADS("folder.scan.threads", 0),
+
+    /**
+     * The maximum number of folders scanned at the same time. One by default,
+     * same as a single scanner.
+     */
+    FOLDER_SCAN_CONCURRENT("folder.scan.concurrent", 1),
+
+    /**
+     * The maximum number of folders scanned at the same time on one device
+     * (drive, volume or mount).
+     */
+    FOLDER_SCAN_CONCURRENT_PER_DEVICE("folder.scan.concurrent.device", 2),
+
+    /**
+     * Incremental scans: Directories whose modification date did not change
+     * since the last scan are not listed again. Saves a lot of I/O on network
+     * shares. Changed contents of files in unchanged directories are only
+     * detected by the folder watcher or the next full scan. Can be overridden
+     * per folder by setting "f.[folder entry id].scan-incremental"
+     */
+    FOLDER_SCAN_INCREMENTAL("folder.scan.incremental", false),
+
+    /**
+     * The seconds between two full scans of a folder with incremental scans.
+     */
+    FOLDER_SCAN_FULL_INTERVAL("folder.scan.incremental.full.seconds", 86400),
+
+    /**
+     * Hash the contents of all files after a scan in the background. The
+     * hashes are kept and reused for movement detection, conflict checks and
+     * downloads. Can be overridden per folder by setting
+     * "f.[folder entry id].scan-hash"
+     */
+    FOLDER_SCAN_HASH("folder.scan.hash", false),
+
+    /**
+     * The maximum KB/s read from disk for hashing file contents. 0 = no limit.
+     */
+    FOLDER_SCAN_HASH_RATE_KB("folder.scan.hash.rate.kb", 10240),
+
+    /**
+     * Load folders in the background at startup. Startup (UI, connections)
+     * does not wait for all folders to be loaded. Folders join as soon as they
+     * are loaded.
+     */
+    FOLDER_LOAD_ASYNC("folder.load.async", false),
+
+    /**
+     * Append changes of the folder database to a journal instead of rewriting
+     * the whole database on every persist.
+     */
+    FOLDER_DB_JOURNAL_ENABLED("filedb.journal.enabled", true),
+
+    /**
+     * The size of the folder database journal in percent of the known items
+     * that triggers writing a new full database (compaction).
+     */
+    FOLDER_DB_JOURNAL_COMPACT_PERCENT("filedb.journal.compact.percent", 25),
+
+    /**
+     * Write the folder database in the compact binary format. Older versions
+     * are unable to read it.
+     */
+    FOLDER_DB_BINARY_ENABLED("filedb.binary.enabled", true),
+
+    /**
+     * The implementation to hold the file lists of folders in memory:
+     * "hashmap" (default) or "offheap" to keep the file metadata outside of the
+     * Java heap. Can be overridden per folder by setting "f.[folder entry
+     * id].dao"
+     */
+    FOLDER_DB_DAO("filedb.dao", "hashmap"),
+
     /**
      * #2637: Disabling can save OS resources.
      */
@@ -797,6 +943,13 @@ public enum ConfigurationEntry {
      */
     FOLDER_WATCHER_DELAY("folder.watcher.delay.seconds", 1),
 
+    /**
+     * The implementation to watch the filesystem: "jnotify" (native library),
+     * "nio" (Java 7 WatchService) or "auto": nio on Linux, jnotify elsewhere.
+     * Only JNotify by default.
+     */
+    FOLDER_WATCHER_BACKEND("folder.watcher.backend", "jnotify"),
+
     /**
      * The number of seconds between db maintenance (1 hour).
      */
@@ -1511,7 +1511,7 @@ public class Controller extends PFComponent {
         paused = newPausedValue;
 
         if (newPausedValue) {
-            folderRepository.getFolderScanner().abortScan();
+            folderRepository.getFolderScanScheduler().abortScans();
             transferManager.abortAllDownloads();
             transferManager.abortAllUploads();
         } else {
@@ -1837,7 +1837,9 @@ public class Member extends PFComponent implements Comparable<Member> {
                 ReplyFilePartsRecord rep = (ReplyFilePartsRecord) message;
                 Download dl = getController().getTransferManager()
                     .getActiveDownload(this, rep.getFile());
-                if (dl != null) {
+                if (dl != null && rep.getChunkRecord() != null) {
+                    dl.receivedChunkRecord(rep.getFile(), rep.getChunkRecord());
+                } else if (dl != null) {
                     dl.receivedFilePartsRecord(rep.getFile(), rep.getRecord());
                 } else if (downloadRecentlyCompleted(rep.getFile())) {
                     logInfo("Download not found: " + dl);
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2004 - 2013 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import de.dal33t.powerfolder.util.Reject;
+import de.dal33t.powerfolder.util.logging.Loggable;
+
+/**
+ * Data of a folder, which is stored in a file next to the folder database.
+ * The file starts with the version of the format. It is written to a temp file
+ * first, which then replaces the file.
+ */
+public abstract class AbstractFolderDBFile extends Loggable {
+
+    private final File file;
+    private final int version;
+    private final String description;
+
+    private volatile boolean dirty;
+
+    /**
+     * @param systemDir
+     *            the folder system directory where the folder database lives
+     * @param dbFilename
+     *            the filename of the folder database
+     * @param suffix
+     *            appended to the database filename
+     * @param version
+     *            the version of the file format
+     * @param description
+     *            what the file contains, for logging
+     */
+    protected AbstractFolderDBFile(File systemDir, String dbFilename,
+        String suffix, int version, String description)
+    {
+        Reject.ifNull(systemDir, "System dir");
+        Reject.ifBlank(dbFilename, "DB filename");
+        this.file = new File(systemDir, dbFilename + suffix);
+        this.version = version;
+        this.description = description;
+    }
+
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    /**
+     * Marks the data changed, to be written on the next {@link #store()}.
+     */
+    protected void setDirty() {
+        dirty = true;
+    }
+
+    // Persistence ************************************************************
+
+    /**
+     * Loads the data from disk. Missing, outdated or corrupt files leave the
+     * data empty.
+     */
+    public synchronized void load() {
+        reset();
+        if (!file.exists()) {
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+            if (in.readInt() != version) {
+                logFine("Unknown version of " + description + ": " + file);
+                return;
+            }
+            read(in);
+            dirty = false;
+        } catch (IOException e) {
+            logWarning("Unable to read " + description + " " + file + ". "
+                + e);
+            reset();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the data to disk if changed. Synchronized, because it may be
+     * called from several threads, which share the same temp file.
+     *
+     * @return true if succeeded.
+     */
+    public synchronized boolean store() {
+        if (!dirty) {
+            return true;
+        }
+        dirty = false;
+        File tempFile = new File(file.getParentFile(), file.getName()
+            + ".writing");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tempFile)));
+            out.writeInt(version);
+            write(out);
+            out.close();
+            out = null;
+            if (file.exists() && !file.delete()) {
+                throw new IOException("Unable to delete " + file);
+            }
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Unable to rename " + tempFile);
+            }
+            return true;
+        } catch (IOException e) {
+            dirty = true;
+            logWarning("Unable to write " + description + " " + file + ". "
+                + e);
+            return false;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops all data. Called before loading and if loading failed.
+     */
+    protected abstract void reset();
+
+    /**
+     * Reads the data following the version.
+     *
+     * @param in
+     * @throws IOException
+     */
+    protected abstract void read(DataInputStream in) throws IOException;
+
+    /**
+     * Writes the data following the version. The data may be changed by other
+     * threads meanwhile, so a copy should be written.
+     *
+     * @param out
+     * @throws IOException
+     */
+    protected abstract void write(DataOutputStream out) throws IOException;
+}
@@ -0,0 +1,509 @@
+/*
+ * Copyright 2004 - 2013 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FileInfoFactory;
+import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.light.MemberInfo;
+import de.dal33t.powerfolder.util.os.OSUtil;
+import de.dal33t.powerfolder.util.Reject;
+
+/**
+ * Compact binary format of the folder database (.PowerFolder.db).
+ * <p>
+ * Replaces the serialized <code>FileInfo[]</code> snapshot. All strings (path
+ * segments, member ids/nicks) go into a string table. Directories are stored
+ * as (parent, segment) pairs. Every {@link FileInfo} is a fixed-width record,
+ * so the records can be read directly from a memory-mapped file and
+ * instantiated one by one, without holding the whole array in memory.
+ * <p>
+ * Layout (big endian):
+ *
+ * <pre>
+ * int magic, int formatVersion, long lastScan
+ * int #strings, {int length, UTF-8 bytes}*
+ * int folderName, int folderId
+ * int #members, int length, {MemberInfo externalized}*
+ * int #folderMembers, {int member}*
+ * int #dirs, {int parentDir, int segment}*
+ * int #records, {int dir, int name, long size, long modified,
+ *                int version, int modifiedBy, byte flags}*
+ * </pre>
+ *
+ * The old serialized format is only read. Once written in this format a
+ * database can not be read by older versions.
+ */
+public class BinaryFolderDB {
+
+    /** "PFDB" */
+    public static final int MAGIC = 0x50464442;
+    public static final int FORMAT_VERSION = 2;
+
+    /**
+     * Members only stored by id, nick and network id.
+     */
+    private static final int FORMAT_VERSION_1 = 1;
+
+    static final int RECORD_SIZE = 4 + 4 + 8 + 8 + 4 + 4 + 1;
+
+    private static final byte FLAG_DELETED = 1;
+    private static final byte FLAG_DIRECTORY = 2;
+    private static final long NO_DATE = Long.MIN_VALUE;
+    private static final int NONE = -1;
+
+    private final ByteBuffer buffer;
+    private final String[] strings;
+    private final FolderInfo folderInfo;
+    private final MemberInfo[] members;
+    private final MemberInfo[] folderMembers;
+    private final int[] dirParents;
+    private final int[] dirSegments;
+    private final String[] dirPaths;
+    private final int recordCount;
+    private final int recordsOffset;
+    private final Date lastScan;
+
+    private BinaryFolderDB(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException("Not a binary folder database");
+        }
+        int version = buffer.getInt();
+        if (version != FORMAT_VERSION && version != FORMAT_VERSION_1) {
+            throw new IOException("Unsupported folder database version: "
+                + version);
+        }
+        long lastScanTime = buffer.getLong();
+        lastScan = lastScanTime != NO_DATE ? new Date(lastScanTime) : null;
+
+        strings = new String[buffer.getInt()];
+        for (int i = 0; i < strings.length; i++) {
+            byte[] b = new byte[buffer.getInt()];
+            buffer.get(b);
+            strings[i] = new String(b, "UTF-8");
+        }
+        folderInfo = new FolderInfo(string(buffer.getInt()),
+            string(buffer.getInt())).intern();
+
+        MemberInfo[] loaded = version == FORMAT_VERSION_1
+            ? readMembersV1()
+            : readMembers();
+        members = new MemberInfo[loaded.length];
+        for (int i = 0; i < members.length; i++) {
+            members[i] = loaded[i].intern();
+        }
+        // Like the serialized format: With connect address etc.
+        folderMembers = new MemberInfo[buffer.getInt()];
+        for (int i = 0; i < folderMembers.length; i++) {
+            folderMembers[i] = loaded[buffer.getInt()];
+        }
+
+        int dirCount = buffer.getInt();
+        dirParents = new int[dirCount];
+        dirSegments = new int[dirCount];
+        dirPaths = new String[dirCount];
+        for (int i = 0; i < dirCount; i++) {
+            dirParents[i] = buffer.getInt();
+            dirSegments[i] = buffer.getInt();
+        }
+
+        recordCount = buffer.getInt();
+        recordsOffset = buffer.position();
+        if (buffer.limit() < recordsOffset + (long) recordCount * RECORD_SIZE)
+        {
+            throw new IOException("Folder database truncated. Expected "
+                + recordCount + " records");
+        }
+    }
+
+    // Reading ****************************************************************
+
+    /**
+     * @param file
+     * @return true if the file is a folder database in binary format.
+     */
+    public static boolean isBinary(File file) {
+        if (!file.exists() || file.length() < 8) {
+            return false;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            return in.readInt() == MAGIC;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Opens the binary database. The file is memory-mapped, except on Windows
+     * where a mapped file could not be replaced until garbage collected. There
+     * it gets read into memory.
+     *
+     * @param file
+     * @return the opened database. Records are instantiated on access.
+     * @throws IOException
+     */
+    public static BinaryFolderDB open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer buffer;
+            if (OSUtil.isWindowsSystem()) {
+                buffer = ByteBuffer.allocate((int) channel.size());
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer) < 0) {
+                        break;
+                    }
+                }
+                buffer.flip();
+            } else {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+            }
+            return new BinaryFolderDB(buffer);
+        } catch (RuntimeException e) {
+            throw new IOException("Unable to read folder database " + file
+                + ". " + e);
+        } finally {
+            // Mapping stays valid after closing the channel.
+            raf.close();
+        }
+    }
+
+    /**
+     * Convenience method for tools.
+     *
+     * @param file
+     * @return all {@link FileInfo}s of the database.
+     * @throws IOException
+     */
+    public static FileInfo[] readFileInfos(File file) throws IOException {
+        BinaryFolderDB db = open(file);
+        FileInfo[] fInfos = new FileInfo[db.size()];
+        for (int i = 0; i < fInfos.length; i++) {
+            fInfos[i] = db.get(i);
+        }
+        return fInfos;
+    }
+
+    /**
+     * @return the number of {@link FileInfo} records.
+     */
+    public int size() {
+        return recordCount;
+    }
+
+    /**
+     * Instantiates a {@link FileInfo} from its record.
+     *
+     * @param index
+     * @return the {@link FileInfo} or {@link DirectoryInfo}
+     */
+    public FileInfo get(int index) {
+        if (index < 0 || index >= recordCount) {
+            throw new IndexOutOfBoundsException("Record " + index + " of "
+                + recordCount);
+        }
+        int pos = recordsOffset + index * RECORD_SIZE;
+        int dir = buffer.getInt(pos);
+        String name = strings[buffer.getInt(pos + 4)];
+        long size = buffer.getLong(pos + 8);
+        long modified = buffer.getLong(pos + 16);
+        int version = buffer.getInt(pos + 24);
+        int modifiedBy = buffer.getInt(pos + 28);
+        byte flags = buffer.get(pos + 32);
+
+        String relativeName = dir != NONE
+            ? getDirPath(dir) + '/' + name
+            : name;
+        MemberInfo mInfo = modifiedBy != NONE ? members[modifiedBy] : null;
+        Date modDate = modified != NO_DATE ? new Date(modified) : null;
+        boolean directory = (flags & FLAG_DIRECTORY) != 0;
+        if ((flags & FLAG_DELETED) != 0) {
+            return FileInfoFactory.unmarshallDeletedFile(folderInfo,
+                relativeName, mInfo, modDate, version, directory);
+        }
+        return FileInfoFactory.unmarshallExistingFile(folderInfo,
+            relativeName, size, mInfo, modDate, version, directory);
+    }
+
+    private String string(int index) {
+        return index != NONE ? strings[index] : null;
+    }
+
+    private MemberInfo[] readMembers() throws IOException {
+        MemberInfo[] loaded = new MemberInfo[buffer.getInt()];
+        byte[] b = new byte[buffer.getInt()];
+        buffer.get(b);
+        ObjectInputStream in = new ObjectInputStream(
+            new ByteArrayInputStream(b));
+        try {
+            for (int i = 0; i < loaded.length; i++) {
+                loaded[i] = MemberInfo.readExt(in);
+            }
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Unable to read members: " + e, e);
+        } finally {
+            in.close();
+        }
+        return loaded;
+    }
+
+    private MemberInfo[] readMembersV1() {
+        MemberInfo[] loaded = new MemberInfo[buffer.getInt()];
+        for (int i = 0; i < loaded.length; i++) {
+            String id = string(buffer.getInt());
+            String nick = string(buffer.getInt());
+            String networkId = string(buffer.getInt());
+            loaded[i] = new MemberInfo(nick, id, networkId);
+        }
+        return loaded;
+    }
+
+    private String getDirPath(int dir) {
+        String path = dirPaths[dir];
+        if (path == null) {
+            int parent = dirParents[dir];
+            String segment = strings[dirSegments[dir]];
+            path = parent != NONE ? getDirPath(parent) + '/' + segment : segment;
+            dirPaths[dir] = path;
+        }
+        return path;
+    }
+
+    public FolderInfo getFolderInfo() {
+        return folderInfo;
+    }
+
+    /**
+     * @return the members of the folder.
+     */
+    public MemberInfo[] getMembers() {
+        return folderMembers;
+    }
+
+    /**
+     * @return the date of the last scan or null if unknown.
+     */
+    public Date getLastScan() {
+        return lastScan;
+    }
+
+    // Writing ****************************************************************
+
+    /**
+     * Writes the database in binary format.
+     *
+     * @param file
+     * @param foInfo
+     * @param fInfos
+     *            the {@link FileInfo}s and {@link DirectoryInfo}s
+     * @param folderMembers
+     * @param lastScan
+     *            may be null
+     * @throws IOException
+     */
+    public static void write(File file, FolderInfo foInfo,
+        Collection<FileInfo> fInfos, MemberInfo[] folderMembers, Date lastScan)
+        throws IOException
+    {
+        Reject.ifNull(foInfo, "FolderInfo");
+        Reject.ifNull(fInfos, "FileInfos");
+        Tables tables = new Tables();
+        int folderName = tables.string(foInfo.getName());
+        int folderId = tables.string(foInfo.getId());
+        int[] memberRefs = new int[folderMembers.length];
+        for (int i = 0; i < folderMembers.length; i++) {
+            memberRefs[i] = tables.member(folderMembers[i]);
+        }
+        // Collect tables before records can be written
+        for (FileInfo fInfo : fInfos) {
+            tables.dir(getParentPath(fInfo.getRelativeName()));
+            tables.string(getName(fInfo.getRelativeName()));
+            tables.member(fInfo.getModifiedBy());
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(file), 64 * 1024));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(lastScan != null ? lastScan.getTime() : NO_DATE);
+
+            out.writeInt(tables.strings.size());
+            for (String str : tables.strings) {
+                byte[] b = str.getBytes("UTF-8");
+                out.writeInt(b.length);
+                out.write(b);
+            }
+            out.writeInt(folderName);
+            out.writeInt(folderId);
+
+            out.writeInt(tables.members.size());
+            byte[] members = writeMembers(tables.members);
+            out.writeInt(members.length);
+            out.write(members);
+            out.writeInt(memberRefs.length);
+            for (int memberRef : memberRefs) {
+                out.writeInt(memberRef);
+            }
+
+            out.writeInt(tables.dirParents.size());
+            for (int i = 0; i < tables.dirParents.size(); i++) {
+                out.writeInt(tables.dirParents.get(i));
+                out.writeInt(tables.dirSegments.get(i));
+            }
+
+            out.writeInt(fInfos.size());
+            for (FileInfo fInfo : fInfos) {
+                String relativeName = fInfo.getRelativeName();
+                out.writeInt(tables.dir(getParentPath(relativeName)));
+                out.writeInt(tables.string(getName(relativeName)));
+                out.writeLong(fInfo.getSize());
+                out.writeLong(fInfo.getModifiedDate() != null ? fInfo
+                    .getModifiedDate().getTime() : NO_DATE);
+                out.writeInt(fInfo.getVersion());
+                out.writeInt(tables.member(fInfo.getModifiedBy()));
+                byte flags = 0;
+                if (fInfo.isDeleted()) {
+                    flags |= FLAG_DELETED;
+                }
+                if (fInfo.isDiretory()) {
+                    flags |= FLAG_DIRECTORY;
+                }
+                out.writeByte(flags);
+            }
+            out.flush();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @return the members in their {@link java.io.Externalizable} form,
+     *         including connect address and last connect time.
+     */
+    private static byte[] writeMembers(List<MemberInfo> members)
+        throws IOException
+    {
+        ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+        ObjectOutputStream oOut = new ObjectOutputStream(bOut);
+        for (MemberInfo member : members) {
+            member.writeExternal(oOut);
+        }
+        oOut.close();
+        return bOut.toByteArray();
+    }
+
+    private static String getParentPath(String relativeName) {
+        int i = relativeName.lastIndexOf('/');
+        return i > 0 ? relativeName.substring(0, i) : null;
+    }
+
+    private static String getName(String relativeName) {
+        int i = relativeName.lastIndexOf('/');
+        return i >= 0 ? relativeName.substring(i + 1) : relativeName;
+    }
+
+    /**
+     * The string, member and directory tables built while writing.
+     */
+    private static class Tables {
+        private final List<String> strings = new ArrayList<String>();
+        private final Map<String, Integer> stringIndex = new HashMap<String, Integer>();
+        private final List<MemberInfo> members = new ArrayList<MemberInfo>();
+        private final Map<String, Integer> memberIndex = new HashMap<String, Integer>();
+        private final List<Integer> dirParents = new ArrayList<Integer>();
+        private final List<Integer> dirSegments = new ArrayList<Integer>();
+        private final Map<String, Integer> dirIndex = new HashMap<String, Integer>();
+
+        private int string(String str) {
+            if (str == null) {
+                return NONE;
+            }
+            Integer index = stringIndex.get(str);
+            if (index == null) {
+                index = strings.size();
+                strings.add(str);
+                stringIndex.put(str, index);
+            }
+            return index;
+        }
+
+        private int member(MemberInfo member) {
+            if (member == null) {
+                return NONE;
+            }
+            Integer index = memberIndex.get(member.getId());
+            if (index == null) {
+                index = members.size();
+                members.add(member);
+                memberIndex.put(member.getId(), index);
+            }
+            return index;
+        }
+
+        private int dir(String path) {
+            if (path == null) {
+                return NONE;
+            }
+            Integer index = dirIndex.get(path);
+            if (index == null) {
+                int parent = dir(getParentPath(path));
+                int segment = string(getName(path));
+                index = dirParents.size();
+                dirParents.add(parent);
+                dirSegments.add(segment);
+                dirIndex.put(path, index);
+            }
+            return index;
+        }
+    }
+}
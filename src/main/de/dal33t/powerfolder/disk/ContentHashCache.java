@@ -0,0 +1,326 @@
+/*
+ * Copyright 2004 - 2013 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.util.DateUtil;
+import de.dal33t.powerfolder.util.FileUtils;
+import de.dal33t.powerfolder.util.ProgressListener;
+import de.dal33t.powerfolder.util.Reject;
+import de.dal33t.powerfolder.util.Util;
+
+/**
+ * The MD5 hashes of the file contents of a folder. Each hash is stored with the
+ * size, modification date and inode (if available, Java 7+) of the file at the
+ * time it was hashed. A hash is only returned as long as these still match.
+ * Used to detect moves, identical files on conflicts and to skip verifying
+ * downloads again.
+ * <p>
+ * MD5 because this is the digest of the whole file in
+ * {@link de.dal33t.powerfolder.util.delta.FilePartsRecord} and
+ * {@link de.dal33t.powerfolder.light.HashedFileInfo}.
+ * <p>
+ * Populated in the background by the {@link ContentHasher} and by every other
+ * component which reads a complete file anyway. Stored next to the folder
+ * database (.PowerFolder.db.hashes). File format:
+ * <code>[int version][int count]([UTF name][long size][long modified][UTF inode][16 bytes MD5])*</code>
+ */
+public class ContentHashCache extends AbstractFolderDBFile {
+
+    public static final String HASHES_SUFFIX = ".hashes";
+
+    private static final int VERSION = 1;
+    private static final int MD5_LENGTH = 16;
+
+    /**
+     * Reads the inode by the file attributes of Java 7. Not compiled and not
+     * available on Java 6, hashes are then stored without inode.
+     */
+    private static final String FILE_KEYS_CLASS = "de.dal33t.powerfolder.disk.FileKeys";
+    private static final Method FILE_KEYS = getFileKeysMethod();
+
+    /** Relative filename -> hash */
+    private final Map<String, Entry> entries = Util.createConcurrentHashMap();
+
+    /**
+     * @param systemDir
+     *            the folder system directory where the folder database lives
+     * @param dbFilename
+     *            the filename of the folder database
+     */
+    public ContentHashCache(File systemDir, String dbFilename) {
+        super(systemDir, dbFilename, HASHES_SUFFIX, VERSION, "content hashes");
+    }
+
+    /**
+     * Does not access the disk. The file info might be outdated, e.g. a
+     * deleted file.
+     *
+     * @param fInfo
+     * @return the MD5 of the contents of the file in the state of the file
+     *         info or null if not known.
+     */
+    public byte[] getMD5(FileInfo fInfo) {
+        Entry entry = entries.get(fInfo.getRelativeName());
+        if (entry == null || entry.size != fInfo.getSize()) {
+            return null;
+        }
+        if (!DateUtil.equalsFileDateCrossPlattform(entry.modified, fInfo
+            .getModifiedDate().getTime()))
+        {
+            return null;
+        }
+        return entry.md5;
+    }
+
+    /**
+     * @param relativeName
+     * @param diskFile
+     *            the file on disk
+     * @return the MD5 of the current contents of the file or null if not
+     *         known.
+     */
+    public byte[] getMD5(String relativeName, File diskFile) {
+        Entry entry = entries.get(relativeName);
+        if (entry == null) {
+            return null;
+        }
+        Entry current = new Entry(diskFile, null);
+        return entry.isSameFile(current) ? entry.md5 : null;
+    }
+
+    /**
+     * Finds the hash of a file, which has been moved or renamed since it was
+     * hashed. Does not read the file.
+     *
+     * @param oldName
+     *            the relative name the file was hashed under
+     * @param diskFile
+     *            the file at its new location
+     * @return the MD5 if the file is the same (inode) and unchanged or null if
+     *         not known or inodes are not available.
+     */
+    public byte[] getMD5OfMoved(String oldName, File diskFile) {
+        Entry entry = entries.get(oldName);
+        if (entry == null || entry.inode.length() == 0) {
+            return null;
+        }
+        Entry current = new Entry(diskFile, null);
+        return entry.isSameFile(current) ? entry.md5 : null;
+    }
+
+    /**
+     * Reads and hashes the file if the hash is not known yet.
+     *
+     * @param relativeName
+     * @param diskFile
+     *            the file on disk
+     * @param listener
+     *            gets the progress in percent. May slow down reading. May be
+     *            null.
+     * @return the MD5 of the current contents or null if the file changed while
+     *         reading it.
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public byte[] computeMD5(String relativeName, File diskFile,
+        ProgressListener listener) throws IOException, InterruptedException
+    {
+        byte[] md5 = getMD5(relativeName, diskFile);
+        if (md5 != null) {
+            return md5;
+        }
+        Entry before = new Entry(diskFile, null);
+        try {
+            md5 = FileUtils.digest(diskFile, MessageDigest.getInstance("MD5"),
+                listener);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        Entry after = new Entry(diskFile, md5);
+        if (!before.isSameFile(after)) {
+            if (isFine()) {
+                logFine("File changed while hashing: " + diskFile);
+            }
+            return null;
+        }
+        entries.put(relativeName, after);
+        setDirty();
+        return md5;
+    }
+
+    /**
+     * Remembers the hash of a file, which has been read completely by some
+     * other component.
+     *
+     * @param relativeName
+     * @param diskFile
+     *            the file on disk. Has to be unchanged since hashing.
+     * @param md5
+     *            the MD5 of the contents
+     */
+    public void put(String relativeName, File diskFile, byte[] md5) {
+        Reject.ifNull(md5, "MD5");
+        Reject.ifTrue(md5.length != MD5_LENGTH, "Invalid MD5 of length: "
+            + md5.length);
+        if (!diskFile.isFile()) {
+            return;
+        }
+        entries.put(relativeName, new Entry(diskFile, md5.clone()));
+        setDirty();
+    }
+
+    /**
+     * Drops the hashes of all files that are not known or deleted.
+     *
+     * @param knownFiles
+     */
+    public void retain(Collection<FileInfo> knownFiles) {
+        Set<String> existing = new HashSet<String>(knownFiles.size());
+        for (FileInfo fInfo : knownFiles) {
+            if (!fInfo.isDeleted()) {
+                existing.add(fInfo.getRelativeName());
+            }
+        }
+        if (entries.keySet().retainAll(existing)) {
+            setDirty();
+        }
+    }
+
+    /**
+     * Forgets all hashes.
+     */
+    public void clear() {
+        entries.clear();
+        setDirty();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    // Persistence ************************************************************
+
+    @Override
+    protected void reset() {
+        entries.clear();
+    }
+
+    @Override
+    protected void read(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String name = in.readUTF();
+            long size = in.readLong();
+            long modified = in.readLong();
+            String inode = in.readUTF();
+            byte[] md5 = new byte[MD5_LENGTH];
+            in.readFully(md5);
+            entries.put(name, new Entry(size, modified, inode, md5));
+        }
+    }
+
+    @Override
+    protected void write(DataOutputStream out) throws IOException {
+        Map<String, Entry> copy = new HashMap<String, Entry>(entries);
+        out.writeInt(copy.size());
+        for (Map.Entry<String, Entry> entry : copy.entrySet()) {
+            Entry hash = entry.getValue();
+            out.writeUTF(entry.getKey());
+            out.writeLong(hash.size);
+            out.writeLong(hash.modified);
+            out.writeUTF(hash.inode);
+            out.write(hash.md5);
+        }
+    }
+
+    // Internal ***************************************************************
+
+    /**
+     * @return FileKeys.get(File) in src/java7 or null if not available (Java
+     *         6).
+     */
+    private static Method getFileKeysMethod() {
+        try {
+            Class.forName("java.nio.file.attribute.BasicFileAttributes");
+            Class<?> c = Class.forName(FILE_KEYS_CLASS);
+            Method m = c.getDeclaredMethod("get", File.class);
+            m.setAccessible(true);
+            return m;
+        } catch (Exception e) {
+            return null;
+        } catch (LinkageError e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param diskFile
+     * @return the identity of the file on disk (device and inode) or "" if not
+     *         available.
+     */
+    private static String getInode(File diskFile) {
+        if (FILE_KEYS == null) {
+            return "";
+        }
+        try {
+            return (String) FILE_KEYS.invoke(null, diskFile);
+        } catch (Exception e) {
+            return "";
+        }
+    }
+
+    private static class Entry {
+        private final long size;
+        private final long modified;
+        private final String inode;
+        private final byte[] md5;
+
+        private Entry(long size, long modified, String inode, byte[] md5) {
+            this.size = size;
+            this.modified = modified;
+            this.inode = inode;
+            this.md5 = md5;
+        }
+
+        private Entry(File diskFile, byte[] md5) {
+            this(diskFile.length(), diskFile.lastModified(),
+                getInode(diskFile), md5);
+        }
+
+        private boolean isSameFile(Entry other) {
+            return size == other.size && modified == other.modified
+                && inode.equals(other.inode);
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2004 - 2013 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import de.dal33t.powerfolder.ConfigurationEntry;
+import de.dal33t.powerfolder.Controller;
+import de.dal33t.powerfolder.PFComponent;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.util.ProgressListener;
+import de.dal33t.powerfolder.util.Reject;
+
+/**
+ * Fills the {@link ContentHashCache}s of the folders after their scans. Runs
+ * one folder after another in a single background thread. Reading is limited
+ * to {@link ConfigurationEntry#FOLDER_SCAN_HASH_RATE_KB} so hashing does not
+ * compete with transfers and scans for the disk.
+ */
+public class ContentHasher extends PFComponent implements Runnable {
+
+    /** The folders waiting to get hashed */
+    private final Set<Folder> pending = new LinkedHashSet<Folder>();
+    /** The folder being hashed */
+    private Folder current;
+    private Thread thread;
+    private volatile boolean stopped;
+
+    ContentHasher(Controller controller) {
+        super(controller);
+    }
+
+    /**
+     * Hashes all files of the folder, whose hashes are not known yet.
+     *
+     * @param folder
+     */
+    public synchronized void hash(Folder folder) {
+        Reject.ifNull(folder, "Folder");
+        if (stopped) {
+            return;
+        }
+        pending.add(folder);
+        if (thread == null) {
+            thread = new Thread(this, "ContentHasher");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            thread.start();
+        }
+    }
+
+    /**
+     * @param folder
+     * @return true if the folder is waiting to get hashed or being hashed.
+     */
+    public synchronized boolean isHashing(Folder folder) {
+        return pending.contains(folder) || current == folder;
+    }
+
+    /**
+     * Stops hashing.
+     */
+    synchronized void shutdown() {
+        stopped = true;
+        pending.clear();
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    // Internal ***************************************************************
+
+    public void run() {
+        while (!stopped) {
+            synchronized (this) {
+                Iterator<Folder> it = pending.iterator();
+                if (!it.hasNext()) {
+                    current = null;
+                    thread = null;
+                    return;
+                }
+                current = it.next();
+                it.remove();
+            }
+            try {
+                hashFolder(current);
+            } catch (InterruptedException e) {
+                logFiner(e);
+                return;
+            } catch (RuntimeException e) {
+                logSevere("Unable to hash files of " + current + ". " + e, e);
+            }
+        }
+    }
+
+    private void hashFolder(Folder folder) throws InterruptedException {
+        ContentHashCache hashes = folder.getContentHashes();
+        if (hashes == null || folder.isDeviceDisconnected()) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        int n = 0;
+        long bytes = 0;
+        FolderRepository repo = getController().getFolderRepository();
+        for (FileInfo fInfo : folder.getKnownFiles()) {
+            if (stopped || !repo.hasJoinedFolder(folder.getInfo())) {
+                return;
+            }
+            if (fInfo.isDeleted() || hashes.getMD5(fInfo) != null) {
+                continue;
+            }
+            File diskFile = fInfo.getDiskFile(repo);
+            if (diskFile == null || !fInfo.inSyncWithDisk(diskFile)) {
+                // Next scan will pick it up
+                continue;
+            }
+            try {
+                hashes.computeMD5(fInfo.getRelativeName(), diskFile,
+                    new Throttle(diskFile.length()));
+                n++;
+                bytes += diskFile.length();
+            } catch (IOException e) {
+                logFine("Unable to hash " + diskFile + ". " + e);
+            }
+        }
+        hashes.retain(folder.getKnownFiles());
+        hashes.store();
+        if (isFine() && n > 0) {
+            logFine("Hashed " + n + " files (" + bytes + " bytes) of "
+                + folder + ". Took " + (System.currentTimeMillis() - start)
+                + "ms");
+        }
+    }
+
+    /**
+     * Slows down reading to the configured rate.
+     */
+    private class Throttle implements ProgressListener {
+        private final long size;
+        private final long bytesPerSecond;
+        private final long start = System.currentTimeMillis();
+
+        private Throttle(long size) {
+            this.size = size;
+            this.bytesPerSecond = 1024L
+                * ConfigurationEntry.FOLDER_SCAN_HASH_RATE_KB
+                    .getValueInt(getController());
+        }
+
+        public void progressReached(double percentageReached) {
+            if (bytesPerSecond <= 0 || stopped) {
+                return;
+            }
+            long read = (long) (size * percentageReached / 100);
+            long due = start + 1000L * read / bytesPerSecond;
+            long wait = due - System.currentTimeMillis();
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait);
+                } catch (InterruptedException e) {
+                    // Stop reading on next chunk
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+}
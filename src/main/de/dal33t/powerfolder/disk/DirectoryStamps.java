@@ -0,0 +1,185 @@
+/*
+ * Copyright 2004 - 2013 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import de.dal33t.powerfolder.util.Util;
+
+/**
+ * The modification dates of the directories of a folder as seen by the last
+ * scan, which listed them completely. Used by the incremental scan of the
+ * {@link FolderScanner}: A directory whose modification date did not change
+ * since then has no added, removed or renamed entries and does not need to be
+ * listed again.
+ * <p>
+ * The modification date of a directory does not change if only the contents
+ * of a file inside change. These changes are detected by the
+ * {@link FolderWatcher}, which invalidates the stamps of affected directories,
+ * or by the periodic full scan.
+ * <p>
+ * Stored next to the folder database (.PowerFolder.db.dirstamps). File format:
+ * <code>[int version][long lastFullScan][int count]([UTF name][long stamp])*</code>
+ */
+public class DirectoryStamps extends AbstractFolderDBFile {
+
+    public static final String STAMPS_SUFFIX = ".dirstamps";
+
+    private static final int VERSION = 1;
+
+    /** Relative directory name ("" = base dir) -> last modification */
+    private final Map<String, Long> stamps = Util.createConcurrentHashMap();
+
+    /** Time of the last committed full scan. 0 = never */
+    private volatile long lastFullScan;
+
+    /** Next scan has to be a full scan */
+    private volatile boolean fullScanRequested;
+
+    /**
+     * @param systemDir
+     *            the folder system directory where the folder database lives
+     * @param dbFilename
+     *            the filename of the folder database
+     */
+    public DirectoryStamps(File systemDir, String dbFilename) {
+        super(systemDir, dbFilename, STAMPS_SUFFIX, VERSION,
+            "directory stamps");
+    }
+
+    /**
+     * @param dirName
+     *            the relative name of the directory. "" for the base
+     *            directory.
+     * @param lastModified
+     *            the modification date of the directory on disk
+     * @return true if the directory was completely listed by a previous scan
+     *         and did not change since then.
+     */
+    public boolean isUnchanged(String dirName, long lastModified) {
+        if (lastModified <= 0) {
+            // Not existing or unable to read
+            return false;
+        }
+        Long stamp = stamps.get(dirName);
+        return stamp != null && stamp.longValue() == lastModified;
+    }
+
+    /**
+     * Forces the directory and its parent to be listed again on the next
+     * incremental scan.
+     *
+     * @param relativeName
+     *            the relative name of the changed file or directory.
+     */
+    public void invalidate(String relativeName) {
+        if (stamps.remove(relativeName) != null) {
+            setDirty();
+        }
+        int i = relativeName.lastIndexOf('/');
+        String parent = i < 0 ? "" : relativeName.substring(0, i);
+        if (stamps.remove(parent) != null) {
+            setDirty();
+        }
+    }
+
+    /**
+     * The next scan will be a full scan.
+     */
+    public void requestFullScan() {
+        fullScanRequested = true;
+    }
+
+    /**
+     * @param intervalMillis
+     *            the interval between full scans.
+     * @return true if the next scan needs to list all directories.
+     */
+    public boolean isFullScanDue(long intervalMillis) {
+        return fullScanRequested || stamps.isEmpty()
+            || System.currentTimeMillis() - lastFullScan >= intervalMillis;
+    }
+
+    /**
+     * Takes over the stamps of a committed scan.
+     *
+     * @param scanned
+     *            the stamps of the directories listed by the scan.
+     * @param fullScan
+     *            if the scan listed all directories. Stamps of directories not
+     *            listed are dropped then.
+     */
+    public void committed(Map<String, Long> scanned, boolean fullScan) {
+        if (fullScan) {
+            stamps.clear();
+            lastFullScan = System.currentTimeMillis();
+            fullScanRequested = false;
+        }
+        stamps.putAll(scanned);
+        setDirty();
+    }
+
+    /**
+     * Forgets all stamps.
+     */
+    public void clear() {
+        stamps.clear();
+        lastFullScan = 0;
+        setDirty();
+    }
+
+    public int size() {
+        return stamps.size();
+    }
+
+    // Persistence ************************************************************
+
+    @Override
+    protected void reset() {
+        stamps.clear();
+        lastFullScan = 0;
+    }
+
+    @Override
+    protected void read(DataInputStream in) throws IOException {
+        lastFullScan = in.readLong();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String dirName = in.readUTF();
+            stamps.put(dirName, in.readLong());
+        }
+    }
+
+    @Override
+    protected void write(DataOutputStream out) throws IOException {
+        out.writeLong(lastFullScan);
+        Map<String, Long> copy = new HashMap<String, Long>(stamps);
+        out.writeInt(copy.size());
+        for (Map.Entry<String, Long> entry : copy.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeLong(entry.getValue());
+        }
+    }
+}
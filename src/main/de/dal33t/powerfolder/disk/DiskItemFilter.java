@@ -75,6 +75,11 @@ public class DiskItemFilter {
      */
     private boolean dirty;
 
+    /**
+     * Incremented on every change of the patterns.
+     */
+    private volatile int modCount;
+
     /**
      * Constructor
      */
@@ -158,6 +163,7 @@ public class DiskItemFilter {
                         newPattern.getPatternText(), true));
                 }
                 dirty = markDirtyIfChanged;
+                modCount++;
             } catch (IOException ioe) {
                 log.log(Level.SEVERE, "Problem loading pattern from " + file
                     + ". " + ioe);
@@ -250,6 +256,7 @@ public class DiskItemFilter {
         try {
             patterns.add(pattern);
             dirty = true;
+            modCount++;
             listenerSupport.patternAdded(new PatternChangedEvent(this, pattern
                 .getPatternText(), true));
         } catch (PatternSyntaxException e) {
@@ -262,6 +269,7 @@ public class DiskItemFilter {
         for (Pattern pattern : patterns) {
             patterns.remove(pattern);
             dirty = true;
+            modCount++;
             listenerSupport.patternRemoved(new PatternChangedEvent(this,
                 pattern.getPatternText(), false));
         }
@@ -278,6 +286,7 @@ public class DiskItemFilter {
             if (pattern.equals(targetPattern)) {
                 patterns.remove(pattern);
                 dirty = true;
+                modCount++;
                 listenerSupport.patternRemoved(new PatternChangedEvent(this,
                     pattern.getPatternText(), false));
             }
@@ -291,6 +300,14 @@ public class DiskItemFilter {
         return dirty;
     }
 
+    /**
+     * @return a number that changes whenever the patterns change. Allows to
+     *         detect if results cached by the caller are outdated.
+     */
+    public int getModCount() {
+        return modCount;
+    }
+
     /**
      * Pattern matches diskItem against patterns. Note that Directories have
      * "/*" appended for matching.
@@ -64,6 +64,7 @@ import de.dal33t.powerfolder.PreferencesEntry;
 import de.dal33t.powerfolder.disk.dao.FileInfoCriteria;
 import de.dal33t.powerfolder.disk.dao.FileInfoDAO;
 import de.dal33t.powerfolder.disk.dao.FileInfoDAOHashMapImpl;
+import de.dal33t.powerfolder.disk.dao.FileInfoDAOOffHeapImpl;
 import de.dal33t.powerfolder.disk.problem.DeviceDisconnectedProblem;
 import de.dal33t.powerfolder.disk.problem.FileConflictProblem;
 import de.dal33t.powerfolder.disk.problem.FilenameProblemHelper;
@@ -223,6 +224,29 @@ public class Folder extends PFComponent {
      */
     private volatile boolean dirty;
 
+    /**
+     * Journal of changes to the local domain since the last full write of the
+     * folder database. null if disabled.
+     */
+    private FolderDBJournal journal;
+
+    /**
+     * The modification dates of the directories as seen by the last scans.
+     * Used by incremental scans. null for encrypted folders.
+     */
+    private DirectoryStamps directoryStamps;
+
+    /**
+     * The hashes of the file contents. null for encrypted folders.
+     */
+    private ContentHashCache contentHashes;
+
+    /**
+     * Flag indicating that a change (e.g. the members) happened that is not
+     * covered by the journal. Requires a full write of the database.
+     */
+    private volatile boolean dbSnapshotRequired;
+
     /**
      * The FileInfos that have problems inlcuding the desciptions of the
      * problems. DISABLED
@@ -280,6 +304,12 @@ public class Folder extends PFComponent {
     private int syncWarnSeconds;
     private Persister persister;
 
+    /**
+     * Number of {@link FileInfo}s stored at once into the DAO while loading a
+     * {@link BinaryFolderDB}.
+     */
+    private static final int BINARY_DB_LOAD_CHUNK = 1000;
+
     /**
      * Constructor for folder.
      * 
@@ -399,6 +429,21 @@ public class Folder extends PFComponent {
         // Initialize the DAO
         initFileInfoDAO();
         checkIfDeviceDisconnected();
+        if (!encrypted
+            && ConfigurationEntry.FOLDER_DB_JOURNAL_ENABLED
+                .getValueBoolean(getController()))
+        {
+            journal = new FolderDBJournal(getSystemSubDir0(),
+                Constants.DB_FILENAME,
+                ConfigurationEntry.FOLDER_DB_JOURNAL_COMPACT_PERCENT
+                    .getValueInt(getController()));
+        }
+        if (!encrypted) {
+            directoryStamps = new DirectoryStamps(getSystemSubDir0(),
+                Constants.DB_FILENAME);
+            contentHashes = new ContentHashCache(getSystemSubDir0(),
+                Constants.DB_FILENAME);
+        }
 
         members = new ConcurrentHashMap<Member, Member>();
 
@@ -573,6 +618,62 @@ public class Folder extends PFComponent {
         return watcher;
     }
 
+    /**
+     * @return true if scans skip directories that did not change since the
+     *         last scan. See {@link DirectoryStamps}
+     */
+    public boolean isIncrementalScan() {
+        if (directoryStamps == null) {
+            return false;
+        }
+        if (watcher != null && watcher.isWatchLimitReached()) {
+            // Fallback for folders too large to watch
+            return true;
+        }
+        String incremental = getController().getConfig().getProperty(
+            FOLDER_SETTINGS_PREFIX_V4 + configEntryId
+                + FolderSettings.FOLDER_SETTINGS_SCAN_INCREMENTAL);
+        if (StringUtils.isBlank(incremental)) {
+            return ConfigurationEntry.FOLDER_SCAN_INCREMENTAL
+                .getValueBoolean(getController());
+        }
+        return Boolean.valueOf(incremental.trim());
+    }
+
+    /**
+     * @return the modification dates of the directories as seen by the last
+     *         scans or null if this folder does not use incremental scans.
+     */
+    public DirectoryStamps getDirectoryStamps() {
+        return isIncrementalScan() ? directoryStamps : null;
+    }
+
+    /**
+     * @return true if the contents of the files get hashed in the background
+     *         after each scan. See {@link ContentHasher}
+     */
+    public boolean isContentHashing() {
+        if (contentHashes == null) {
+            return false;
+        }
+        String hash = getController().getConfig().getProperty(
+            FOLDER_SETTINGS_PREFIX_V4 + configEntryId
+                + FolderSettings.FOLDER_SETTINGS_SCAN_HASH);
+        if (StringUtils.isBlank(hash)) {
+            return ConfigurationEntry.FOLDER_SCAN_HASH
+                .getValueBoolean(getController());
+        }
+        return Boolean.valueOf(hash.trim());
+    }
+
+    /**
+     * @return the known hashes of the file contents or null if this folder
+     *         does not hash file contents.
+     */
+    public ContentHashCache getContentHashes() {
+        return isContentHashing() ? contentHashes : null;
+    }
+
     /**
      * Commits the scan results into the internal file database. Changes get
      * broadcasted to other members if necessary.
@@ -581,8 +682,9 @@ public class Folder extends PFComponent {
      *            the scanresult to commit.
      * @param ignoreLocalMassDeletions
      *            bypass the local mass delete checks.
+     * @return true if committed, false if rejected as local mass deletion.
      */
-    private void commitScanResult(ScanResult scanResult,
+    private boolean commitScanResult(ScanResult scanResult,
         boolean ignoreLocalMassDeletions)
     {
 
@@ -600,7 +702,7 @@ public class Folder extends PFComponent {
             getController().localMassDeletionDetected(
                 new LocalMassDeletionEvent(this));
 
-            return;
+            return false;
 
         }
 
@@ -646,6 +748,7 @@ public class Folder extends PFComponent {
         if (isFiner()) {
             logFiner("commitScanResult DONE");
         }
+        return true;
     }
 
     public boolean hasOwnDatabase() {
@@ -753,19 +856,24 @@ public class Folder extends PFComponent {
      * 
      * @param fInfo
      * @param tempFile
+     * @param md5
+     *            the verified MD5 of the tempfile or null if not known.
      * @return true if the download could be completed and the file got scanned.
      *         false if any problem happend.
      */
-    public boolean scanDownloadFile(FileInfo fInfo, File tempFile) {
+    public boolean scanDownloadFile(FileInfo fInfo, File tempFile, byte[] md5)
+    {
         try {
             watcher.addIgnoreFile(fInfo);
-            return scanDownloadFile0(fInfo, tempFile);
+            return scanDownloadFile0(fInfo, tempFile, md5);
         } finally {
             watcher.removeIgnoreFile(fInfo);
         }
     }
 
-    private boolean scanDownloadFile0(FileInfo fInfo, File tempFile) {
+    private boolean scanDownloadFile0(FileInfo fInfo, File tempFile,
+        byte[] md5)
+    {
         // FIXME What happens if the file was locally modified before the
         // download finished? There should be a check here if the current local
         // version differs from the version when the download began. In that
@@ -819,7 +927,7 @@ public class Folder extends PFComponent {
                             {
                                 try {
                                     doSimpleConflictDetection(fInfo,
-                                        targetFile, oldLocalFileInfo);
+                                        targetFile, oldLocalFileInfo, md5);
                                 } catch (Exception e) {
                                     logSevere("Problem withe conflict detection. "
                                         + e);
@@ -875,6 +983,11 @@ public class Folder extends PFComponent {
                 }
             }
 
+            ContentHashCache hashes = getContentHashes();
+            if (md5 != null && hashes != null) {
+                hashes.put(fInfo.getRelativeName(), targetFile, md5);
+            }
+
             synchronized (dbAccessLock) {
                 // Update internal database
                 store(getController().getMySelf(), correctFolderInfo(fInfo));
@@ -885,7 +998,7 @@ public class Folder extends PFComponent {
     }
 
     private FileInfo doSimpleConflictDetection(FileInfo fInfo, File targetFile,
-        FileInfo oldLocalFileInfo)
+        FileInfo oldLocalFileInfo, byte[] md5)
     {
         boolean conflict = oldLocalFileInfo.getVersion() == fInfo.getVersion()
             && fInfo.isNewerThan(oldLocalFileInfo)
@@ -893,6 +1006,12 @@ public class Folder extends PFComponent {
         conflict |= oldLocalFileInfo.getVersion() <= fInfo.getVersion()
             && DateUtil.isNewerFileDateCrossPlattform(
                 oldLocalFileInfo.getModifiedDate(), fInfo.getModifiedDate());
+        ContentHashCache hashes = getContentHashes();
+        if (conflict && md5 != null && hashes != null) {
+            // Both sides changed the file the same way?
+            conflict = !Arrays.equals(md5,
+                hashes.getMD5(oldLocalFileInfo.getRelativeName(), targetFile));
+        }
         if (conflict) {
             logWarning("Conflict detected on file " + fInfo.toDetailString()
                 + ". old: " + oldLocalFileInfo.toDetailString());
@@ -954,8 +1073,8 @@ public class Folder extends PFComponent {
     public boolean scanLocalFiles(boolean ignoreLocalMassDeletion) {
         checkIfDeviceDisconnected();
         ScanResult result;
-        FolderScanner scanner = getController().getFolderRepository()
-            .getFolderScanner();
+        FolderScanScheduler scanner = getController().getFolderRepository()
+            .getFolderScanScheduler();
         // Acquire the folder wait
         boolean scannerBusy;
         do {
@@ -996,8 +1115,22 @@ public class Folder extends PFComponent {
                         addProblem(problem);
                     }
                 }
-                commitScanResult(result, ignoreLocalMassDeletion);
+                if (commitScanResult(result, ignoreLocalMassDeletion)) {
+                    DirectoryStamps stamps = getDirectoryStamps();
+                    if (stamps != null) {
+                        stamps.committed(result.getDirectoryStamps(),
+                            result.isFullScan());
+                        setDBDirty();
+                    }
+                    if (isContentHashing()) {
+                        getController().getFolderRepository()
+                            .getContentHasher().hash(this);
+                    }
+                }
                 lastScan = new Date();
+                if (journal != null) {
+                    journal.lastScan(lastScan);
+                }
                 return true;
             }
             // scan aborted, hardware broken, mass local delete?
@@ -1044,7 +1177,7 @@ public class Folder extends PFComponent {
             }
 
             // Max
-            if (watcher.isSupported()) {
+            if (watcher.isWatching()) {
                 if (!syncProfile.isCustom() && frequency > FIVE_MINUTES) {
                     frequency = FIVE_MINUTES;
                 }
@@ -1575,8 +1708,21 @@ public class Folder extends PFComponent {
             // Stop old DAO
             dao.stop();
         }
-        dao = new FileInfoDAOHashMapImpl(getController().getMySelf().getId(),
-            diskItemFilter);
+        String daoType = getController().getConfig().getProperty(
+            FOLDER_SETTINGS_PREFIX_V4 + configEntryId
+                + FolderSettings.FOLDER_SETTINGS_DAO);
+        if (StringUtils.isBlank(daoType)) {
+            daoType = ConfigurationEntry.FOLDER_DB_DAO
+                .getValue(getController());
+        }
+        if (FileInfoDAOOffHeapImpl.TYPE.equalsIgnoreCase(daoType)) {
+            logFine("Using off-heap file info storage");
+            dao = new FileInfoDAOOffHeapImpl(getController().getMySelf()
+                .getId(), diskItemFilter);
+        } else {
+            dao = new FileInfoDAOHashMapImpl(getController().getMySelf()
+                .getId(), diskItemFilter);
+        }
 
         // File daoDir = new File(getSystemSubDir(), "db/h2");
         // try {
@@ -1605,6 +1751,9 @@ public class Folder extends PFComponent {
                     + dbFile.getAbsolutePath());
                 return false;
             }
+            if (BinaryFolderDB.isBinary(dbFile)) {
+                return loadBinaryFolderDB(dbFile);
+            }
             InputStream fIn = null;
             ObjectInputStream in = null;
             try {
@@ -1621,35 +1770,22 @@ public class Folder extends PFComponent {
                         if (fInfo != files[i]) {
                             // Instance has changes.
                             setDBDirty();
+                            dbSnapshotRequired = true;
                         }
                     }
                     // Help with initial capacity info.
                     dao.deleteDomain(null, files.length);
                     dao.store(null, files);
                 }
+                if (useBinaryFolderDB()) {
+                    // Migrate to binary format on next persist.
+                    setDBDirty();
+                    dbSnapshotRequired = true;
+                }
 
                 // read them always ..
                 MemberInfo[] members1 = (MemberInfo[]) in.readObject();
-                // Do not load members
-                logFiner("Loading " + members1.length + " members");
-                for (MemberInfo memberInfo : members1) {
-                    Member member = memberInfo.getNode(getController(), true);
-                    if (member.isMySelf()) {
-                        continue;
-                    }
-                    join0(member, !getController().isStarted());
-                }
-
-                // Send filelist to connected members
-                for (Member member : getConnectedMembers()) {
-                    if (hasReadPermission(member)) {
-                        member.sendMessagesAsynchron(FileList.create(this,
-                            supportExternalizable(member)));
-                    } else {
-                        member.sendMessagesAsynchron(FileList.createEmpty(
-                            currentInfo, supportExternalizable(member)));
-                    }
-                }
+                loadedFolderDB(members1);
 
                 // Old blacklist explicit items.
                 // Now disused, but maintained for backward compatability.
@@ -1718,12 +1854,106 @@ public class Folder extends PFComponent {
         return true;
     }
 
+    /**
+     * Loads the folder database in {@link BinaryFolderDB} format. The
+     * {@link FileInfo}s are instantiated and stored in chunks directly from the
+     * mapped file.
+     * 
+     * @param dbFile
+     * @return true if succeeded
+     */
+    private boolean loadBinaryFolderDB(File dbFile) {
+        try {
+            BinaryFolderDB db = BinaryFolderDB.open(dbFile);
+            int n = db.size();
+            List<FileInfo> chunk = new ArrayList<FileInfo>(BINARY_DB_LOAD_CHUNK);
+            synchronized (dbAccessLock) {
+                // Help with initial capacity info.
+                dao.deleteDomain(null, n);
+                for (int i = 0; i < n; i++) {
+                    FileInfo fInfo = db.get(i);
+                    FileInfo corrected = correctFolderInfo(fInfo);
+                    if (fInfo != corrected) {
+                        // Instance has changes.
+                        setDBDirty();
+                        dbSnapshotRequired = true;
+                    }
+                    chunk.add(corrected);
+                    if (chunk.size() >= BINARY_DB_LOAD_CHUNK) {
+                        dao.store(null, chunk);
+                        chunk.clear();
+                    }
+                }
+                dao.store(null, chunk);
+            }
+            loadedFolderDB(db.getMembers());
+            if (db.getLastScan() != null) {
+                lastScan = db.getLastScan();
+            }
+            logFine("Loaded binary folder database (" + n + " files) from "
+                + dbFile.getAbsolutePath());
+        } catch (Exception e) {
+            logWarning(this + ": Unable to read database file: "
+                + dbFile.getAbsolutePath() + ". " + e);
+            logFiner(e);
+            return false;
+        }
+        // Ok has own database
+        hasOwnDatabase = true;
+        return true;
+    }
+
+    /**
+     * Joins the members read from the folder database and sends our filelist
+     * to the connected ones.
+     * 
+     * @param memberInfos
+     */
+    private void loadedFolderDB(MemberInfo[] memberInfos) {
+        // Do not load members
+        logFiner("Loading " + memberInfos.length + " members");
+        for (MemberInfo memberInfo : memberInfos) {
+            Member member = memberInfo.getNode(getController(), true);
+            if (member.isMySelf()) {
+                continue;
+            }
+            join0(member, !getController().isStarted());
+        }
+
+        // Send filelist to connected members
+        for (Member member : getConnectedMembers()) {
+            if (hasReadPermission(member)) {
+                member.sendMessagesAsynchron(FileList.create(this,
+                    supportExternalizable(member)));
+            } else {
+                member.sendMessagesAsynchron(FileList.createEmpty(currentInfo,
+                    supportExternalizable(member)));
+            }
+        }
+    }
+
+    /**
+     * @return true if the folder database should be written in the
+     *         {@link BinaryFolderDB} format.
+     */
+    private boolean useBinaryFolderDB() {
+        return !encrypted
+            && ConfigurationEntry.FOLDER_DB_BINARY_ENABLED
+                .getValueBoolean(getController());
+    }
+
     /**
      * Loads the metadata information of this folder. Folder database, ignore
      * patterns and last synchronized date.
      */
     private void loadMetadata() {
         loadFolderDB();
+        if (directoryStamps != null) {
+            directoryStamps.load();
+        }
+        if (contentHashes != null && isContentHashing()) {
+            contentHashes.load();
+        }
         loadLastSyncDate();
         diskItemFilter.loadPatternsFrom(new TFile(getSystemSubDir0(),
             DiskItemFilter.PATTERNS_FILENAME), false);
@@ -1736,6 +1966,7 @@ public class Folder extends PFComponent {
         if (loadFolderDB(new TFile(localBase,
             Constants.POWERFOLDER_SYSTEM_SUBDIR + '/' + Constants.DB_FILENAME)))
         {
+            replayFolderDBJournal();
             return;
         }
 
@@ -1743,12 +1974,49 @@ public class Folder extends PFComponent {
             Constants.POWERFOLDER_SYSTEM_SUBDIR + '/'
                 + Constants.DB_BACKUP_FILENAME)))
         {
+            replayFolderDBJournal();
             return;
         }
 
+        if (journal != null) {
+            // Changes without database are worthless.
+            journal.clear();
+        }
         logFine("Unable to read folder db, even from backup. Maybe new folder?");
     }
 
+    /**
+     * Applies the changes from the journal written since the folder database
+     * was last stored completely.
+     */
+    private void replayFolderDBJournal() {
+        if (journal == null) {
+            return;
+        }
+        synchronized (scanLock) {
+            synchronized (dbAccessLock) {
+                int changes = journal
+                    .replay(new FolderDBJournal.ReplayHandler() {
+                        public void stored(FileInfo fInfo) {
+                            dao.store(null, correctFolderInfo(fInfo));
+                        }
+
+                        public void deleted(FileInfo fInfo) {
+                            dao.delete(null, fInfo);
+                        }
+
+                        public void lastScan(Date date) {
+                            lastScan = date;
+                        }
+                    });
+                if (changes > 0) {
+                    logFine("Replayed " + changes
+                        + " changes from folder database journal");
+                }
+            }
+        }
+    }
+
     /**
      * Shuts down the folder
      */
@@ -1803,6 +2071,7 @@ public class Folder extends PFComponent {
             Constants.DB_BACKUP_FILENAME);
         OutputStream fOut = null;
         ObjectOutputStream oOut = null;
+        boolean rotated = false;
         try {
             FileInfo[] diskItems;
             synchronized (dbAccessLock) {
@@ -1818,6 +2087,8 @@ public class Folder extends PFComponent {
                     diskItems[i] = dirInfo;
                     i++;
                 }
+                // All changes up to now are part of the snapshot.
+                rotated = journal != null && journal.rotate();
             }
             if (dbTempFile.exists()) {
                 if (!dbTempFile.delete()) {
@@ -1830,32 +2101,33 @@ public class Folder extends PFComponent {
                 logSevere("Failed to create temp database file: " + dbTempFile);
                 return false;
             }
-            fOut = new BufferedOutputStream(new TFileOutputStream(dbTempFile));
-            oOut = new ObjectOutputStream(fOut);
-            // Store files
-            oOut.writeObject(diskItems);
-            // Store members
-            oOut.writeObject(Convert.asMemberInfos(getMembersAsCollection()
-                .toArray(new Member[getMembersAsCollection().size()])));
-            // Old blacklist. Maintained for backward serialization
-            // compatability. Do not remove.
-            oOut.writeObject(Collections.emptyList());
-
-            if (lastScan == null) {
-                if (isFiner()) {
-                    logFiner("write default time: " + new Date());
-                }
-                oOut.writeObject(new Date());
+            MemberInfo[] memberInfos = Convert
+                .asMemberInfos(getMembersAsCollection().toArray(
+                    new Member[getMembersAsCollection().size()]));
+            Date lastScanDate = lastScan != null ? lastScan : new Date();
+            if (isFiner()) {
+                logFiner("write lastScan: " + lastScanDate);
+            }
+            if (useBinaryFolderDB()) {
+                BinaryFolderDB.write(dbTempFile, currentInfo,
+                    Arrays.asList(diskItems), memberInfos, lastScanDate);
             } else {
-                if (isFiner()) {
-                    logFiner("write lastScan: " + lastScan);
-                }
-                oOut.writeObject(lastScan);
+                fOut = new BufferedOutputStream(new TFileOutputStream(
+                    dbTempFile));
+                oOut = new ObjectOutputStream(fOut);
+                // Store files
+                oOut.writeObject(diskItems);
+                // Store members
+                oOut.writeObject(memberInfos);
+                // Old blacklist. Maintained for backward serialization
+                // compatability. Do not remove.
+                oOut.writeObject(Collections.emptyList());
+                oOut.writeObject(lastScanDate);
+
+                oOut.close();
+                fOut.close();
             }
 
-            oOut.close();
-            fOut.close();
-
             if (isFine()) {
                 logFine("Successfully wrote folder database file ("
                     + diskItems.length + " disk items)");
@@ -1880,6 +2152,9 @@ public class Folder extends PFComponent {
             if (copy && !dbTempFile.delete()) {
                 logWarning("Failed to delete temp database file: " + dbTempFile);
             }
+            if (rotated) {
+                journal.compacted();
+            }
 
             // TODO Remove this in later version
             // Cleanup for older versions
@@ -1994,7 +2269,7 @@ public class Folder extends PFComponent {
                 }
                 expired++;
                 // Remove
-                dao.delete(null, file);
+                deleteLocal(file);
                 for (Member member : members.values()) {
                     dao.delete(member.getId(), file);
                 }
@@ -2124,7 +2399,7 @@ public class Folder extends PFComponent {
                         return false;
                     }
                 }
-                dao.delete(null, fileInfo);
+                deleteLocal(fileInfo);
             }
             return true;
         } finally {
@@ -2301,6 +2576,10 @@ public class Folder extends PFComponent {
             }
             scanForced = true;
             lastScan = null;
+            if (force && directoryStamps != null) {
+                // User wants to see everything
+                directoryStamps.requestFullScan();
+            }
         }
     }
 
@@ -2454,6 +2733,7 @@ public class Folder extends PFComponent {
                 updateMetaFolderMembers();
                 // Persist new members list
                 setDBDirty();
+                dbSnapshotRequired = true;
             }
         }
         return !wasMember;
@@ -2672,7 +2952,7 @@ public class Folder extends PFComponent {
     public void removeDeletedFileInfo(FileInfo fileInfo) {
         Reject.ifFalse(fileInfo.isDeleted(),
             "Should only be removing deleted infos.");
-        dao.delete(null, fileInfo);
+        deleteLocal(fileInfo);
         setDBDirty();
     }
 
@@ -2705,8 +2985,7 @@ public class Folder extends PFComponent {
     public boolean isSyncing() {
         return isScanning()
             || isTransferring()
-            || getController().getFolderRepository()
-                .getCurrentlyMaintainingFolder() == this;
+            || getController().getFolderRepository().isMaintaining(this);
     }
 
     /**
@@ -2722,8 +3001,8 @@ public class Folder extends PFComponent {
      * @return true if the folder get currently scanned
      */
     public boolean isScanning() {
-        return getController().getFolderRepository().getFolderScanner()
-            .getCurrentScanningFolder() == this;
+        return getController().getFolderRepository()
+            .getFolderScanScheduler().isScanning(this);
     }
 
     /**
@@ -3065,6 +3344,8 @@ public class Folder extends PFComponent {
      * @param message
      */
     public void broadcastMessages(Message... message) {
+        // Serialized once and shared by all members
+        Message.keepSerialized(message);
         for (Member member : getMembersAsCollection()) {
             // Connected?
             if (member.isCompletelyConnected()) {
@@ -3089,14 +3370,16 @@ public class Folder extends PFComponent {
             if (member.isCompletelyConnected()) {
                 if (supportExternalizable(member)) {
                     if (msgsExt == null) {
-                        msgsExt = msgProvider.getMessages(true);
+                        msgsExt = Message.keepSerialized(msgProvider
+                            .getMessages(true));
                     }
                     if (msgsExt != null && msgsExt.length > 0) {
                         member.sendMessagesAsynchron(msgsExt);
                     }
                 } else {
                     if (msgs == null) {
-                        msgs = msgProvider.getMessages(false);
+                        msgs = Message.keepSerialized(msgProvider
+                            .getMessages(false));
                     }
                     if (msgs != null && msgs.length > 0) {
                         member.sendMessagesAsynchron(msgs);
@@ -3393,8 +3676,28 @@ public class Folder extends PFComponent {
             String domainID = member.isMySelf() ? null : member.getId();
             if (newDomainSize > 0) {
                 dao.deleteDomain(domainID, newDomainSize);
+                if (domainID == null) {
+                    dbSnapshotRequired = true;
+                }
             }
             dao.store(domainID, fileInfos);
+            if (domainID == null && journal != null) {
+                journal.stored(fileInfos);
+            }
+        }
+    }
+
+    /**
+     * Removes a {@link FileInfo} from the local domain of the database.
+     * 
+     * @param fInfo
+     */
+    private void deleteLocal(FileInfo fInfo) {
+        synchronized (dbAccessLock) {
+            dao.delete(null, fInfo);
+            if (journal != null) {
+                journal.deleted(fInfo);
+            }
         }
     }
 
@@ -3669,7 +3972,17 @@ public class Folder extends PFComponent {
         }
 
         int tries = 1;
-        boolean success = storeFolderDB();
+        boolean useJournal = journal != null && !dbSnapshotRequired
+            && new TFile(getSystemSubDir0(), Constants.DB_FILENAME).exists()
+            && !journal.isCompactionRecommended(getKnownItemCount());
+        dbSnapshotRequired = false;
+        boolean success = useJournal ? journal.flush() : storeFolderDB();
+        if (directoryStamps != null && directoryStamps.isDirty()) {
+            directoryStamps.store();
+        }
+        if (contentHashes != null && contentHashes.isDirty()) {
+            contentHashes.store();
+        }
         while (!success && tries < 10) {
             try {
                 // Wait a bit and try again.
@@ -3678,7 +3991,10 @@ public class Folder extends PFComponent {
                 break;
             }
             tries += 1;
-            success = storeFolderDB();
+            success = useJournal ? journal.flush() : storeFolderDB();
+        }
+        if (!success) {
+            dbSnapshotRequired = true;
         }
         if (tries > 1) {
             if (success) {
@@ -0,0 +1,526 @@
+/*
+ * Copyright 2004 - 2013 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.util.ByteSerializer;
+import de.dal33t.powerfolder.util.Reject;
+import de.dal33t.powerfolder.util.logging.Loggable;
+
+/**
+ * Append-only write-ahead journal for the local domain of the folder database.
+ * <p>
+ * The full snapshot (.PowerFolder.db) only gets rewritten on compaction. In
+ * between only the changed {@link FileInfo}s are appended to the journal file
+ * next to the snapshot. On load the journal gets replayed on top of the
+ * snapshot.
+ * <p>
+ * File format: A sequence of records. Each record is
+ * <code>[byte op][int length][long crc32][payload]</code>. A truncated or
+ * corrupt tail (e.g. crash while appending) ends the replay and gets cut off.
+ * <p>
+ * Compaction is crash-safe: The journal is rotated into
+ * {@link #COMPACTING_SUFFIX} at the moment the snapshot copy is taken. Until
+ * the new snapshot has been written successfully the rotated journal is kept
+ * and replayed on the next load. Replaying it on top of a new snapshot is
+ * idempotent since it only contains changes already part of that snapshot.
+ */
+public class FolderDBJournal extends Loggable {
+
+    public static final String JOURNAL_SUFFIX = ".journal";
+    public static final String COMPACTING_SUFFIX = ".journal.compacting";
+
+    static final byte OP_STORE = 1;
+    static final byte OP_DELETE = 2;
+    static final byte OP_LAST_SCAN = 3;
+
+    /**
+     * Minimum number of records in the journal before a compaction is
+     * recommended.
+     */
+    private static final int MIN_RECORDS_BEFORE_COMPACTION = 5000;
+
+    /** Op, length and CRC32 in front of the payload */
+    private static final int HEADER_LENGTH = 1 + 4 + 8;
+
+    private final File journalFile;
+    private final File compactingFile;
+    private final int compactPercent;
+
+    /**
+     * Changes not yet written to disk. Access synchronized on this.
+     */
+    private final List<Entry> pending = new ArrayList<Entry>();
+
+    /**
+     * Number of changes in the journal file.
+     */
+    private int journalChanges;
+
+    /**
+     * Number of changes in the rotated journal file.
+     */
+    private int rotatedChanges;
+
+    /**
+     * @param systemDir
+     *            the folder system directory where the snapshot lives
+     * @param dbFilename
+     *            the filename of the snapshot
+     * @param compactPercent
+     *            the size of the journal in percent of the folder item count
+     *            that triggers a compaction.
+     */
+    public FolderDBJournal(File systemDir, String dbFilename, int compactPercent)
+    {
+        Reject.ifNull(systemDir, "System dir");
+        Reject.ifBlank(dbFilename, "DB filename");
+        this.journalFile = new File(systemDir, dbFilename + JOURNAL_SUFFIX);
+        this.compactingFile = new File(systemDir, dbFilename
+            + COMPACTING_SUFFIX);
+        this.compactPercent = Math.max(compactPercent, 1);
+    }
+
+    // Recording **************************************************************
+
+    /**
+     * Records changed/added {@link FileInfo}s of the local domain. Written to
+     * disk on next {@link #flush()}.
+     *
+     * @param fInfos
+     */
+    public synchronized void stored(Collection<FileInfo> fInfos) {
+        for (FileInfo fInfo : fInfos) {
+            pending.add(new Entry(OP_STORE, fInfo));
+        }
+    }
+
+    /**
+     * Records {@link FileInfo}s removed from the local domain. Written to disk
+     * on next {@link #flush()}.
+     *
+     * @param fInfo
+     */
+    public synchronized void deleted(FileInfo fInfo) {
+        pending.add(new Entry(OP_DELETE, fInfo));
+    }
+
+    /**
+     * Records the date of the last scan.
+     *
+     * @param lastScan
+     */
+    public synchronized void lastScan(Date lastScan) {
+        if (lastScan == null) {
+            return;
+        }
+        pending.add(new Entry(OP_LAST_SCAN, lastScan));
+    }
+
+    /**
+     * @param knownItems
+     *            the number of items currently in the local domain.
+     * @return true if the journal got so big that a new snapshot should be
+     *         written.
+     */
+    public synchronized boolean isCompactionRecommended(int knownItems) {
+        int records = journalChanges + rotatedChanges + pending.size();
+        if (records < MIN_RECORDS_BEFORE_COMPACTION) {
+            return false;
+        }
+        return records >= (long) knownItems * compactPercent / 100;
+    }
+
+    // Disk I/O ***************************************************************
+
+    /**
+     * Appends all pending changes to the journal file.
+     *
+     * @return true if succeeded.
+     */
+    public synchronized boolean flush() {
+        if (pending.isEmpty()) {
+            return true;
+        }
+        long validLength = journalFile.length();
+        FileOutputStream fOut = null;
+        try {
+            fOut = new FileOutputStream(journalFile, true);
+            DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(fOut));
+            int written = writeRecords(out, pending);
+            out.flush();
+            fOut.getFD().sync();
+            out.close();
+            if (isFine()) {
+                logFine("Appended " + pending.size() + " changes in "
+                    + written + " records to " + journalFile);
+            }
+            journalChanges += pending.size();
+            pending.clear();
+            return true;
+        } catch (IOException e) {
+            logWarning("Unable to write database journal " + journalFile
+                + ". " + e);
+            logFiner(e);
+            if (fOut != null) {
+                try {
+                    fOut.close();
+                } catch (IOException e2) {
+                }
+                // Don't leave a partial record behind. Retry on next flush.
+                truncate(journalFile, validLength);
+            }
+            return false;
+        } finally {
+            if (fOut != null) {
+                try {
+                    fOut.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Rotates the journal. To be called while the snapshot copy of the
+     * database is taken. All changes recorded so far will be part of the
+     * snapshot. Call {@link #compacted()} after the snapshot has been written
+     * successfully.
+     *
+     * @return true if succeeded.
+     */
+    public synchronized boolean rotate() {
+        if (!flush()) {
+            return false;
+        }
+        if (!journalFile.exists()) {
+            return true;
+        }
+        if (!compactingFile.exists() && journalFile.renameTo(compactingFile))
+        {
+            rotatedChanges += journalChanges;
+            journalChanges = 0;
+            return true;
+        }
+        // Previous compaction failed: Append to rotated journal
+        try {
+            FileInputStream in = new FileInputStream(journalFile);
+            FileOutputStream out = new FileOutputStream(compactingFile, true);
+            try {
+                byte[] buf = new byte[8192];
+                int read;
+                while ((read = in.read(buf)) > 0) {
+                    out.write(buf, 0, read);
+                }
+                out.getFD().sync();
+            } finally {
+                in.close();
+                out.close();
+            }
+            if (!journalFile.delete()) {
+                logWarning("Unable to delete database journal " + journalFile);
+                return false;
+            }
+            rotatedChanges += journalChanges;
+            journalChanges = 0;
+            return true;
+        } catch (IOException e) {
+            logWarning("Unable to rotate database journal " + journalFile
+                + ". " + e);
+            logFiner(e);
+            return false;
+        }
+    }
+
+    /**
+     * Removes the rotated journal after a new snapshot has been written.
+     */
+    public synchronized void compacted() {
+        if (compactingFile.exists() && !compactingFile.delete()) {
+            logWarning("Unable to delete rotated database journal "
+                + compactingFile);
+            return;
+        }
+        rotatedChanges = 0;
+    }
+
+    /**
+     * Discards journal files and pending changes. e.g. if no snapshot could be
+     * loaded they are useless.
+     */
+    public synchronized void clear() {
+        pending.clear();
+        journalChanges = 0;
+        rotatedChanges = 0;
+        if (compactingFile.exists() && !compactingFile.delete()) {
+            logWarning("Unable to delete rotated database journal "
+                + compactingFile);
+        }
+        if (journalFile.exists() && !journalFile.delete()) {
+            logWarning("Unable to delete database journal " + journalFile);
+        }
+    }
+
+    /**
+     * Replays the rotated journal (if any) and the journal.
+     *
+     * @param handler
+     *            receives the changes in the recorded order.
+     * @return the number of changes replayed.
+     */
+    public synchronized int replay(ReplayHandler handler) {
+        Reject.ifNull(handler, "Handler");
+        rotatedChanges = replay(compactingFile, handler);
+        journalChanges = replay(journalFile, handler);
+        return rotatedChanges + journalChanges;
+    }
+
+    private int replay(File file, ReplayHandler handler) {
+        if (!file.exists()) {
+            return 0;
+        }
+        int changes = 0;
+        long validLength = 0;
+        long fileLength = file.length();
+        InputStream fIn = null;
+        try {
+            fIn = new BufferedInputStream(new FileInputStream(file));
+            DataInputStream in = new DataInputStream(fIn);
+            while (true) {
+                Record record = readRecord(in, fileLength - validLength);
+                if (record == null) {
+                    break;
+                }
+                changes += apply(record, handler);
+                validLength += record.getLengthOnDisk();
+            }
+        } catch (Exception e) {
+            logWarning("Database journal " + file + " corrupt after "
+                + changes + " changes. " + e);
+            logFiner(e);
+        } finally {
+            if (fIn != null) {
+                try {
+                    fIn.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        if (fileLength > validLength) {
+            truncate(file, validLength);
+        }
+        if (isFine()) {
+            logFine("Replayed " + changes + " changes from " + file);
+        }
+        return changes;
+    }
+
+    private int apply(Record record, ReplayHandler handler)
+        throws IOException, ClassNotFoundException
+    {
+        if (record.op == OP_LAST_SCAN) {
+            DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(record.payload));
+            handler.lastScan(new Date(in.readLong()));
+            return 1;
+        }
+        FileInfo[] fInfos = (FileInfo[]) ByteSerializer.deserializeStatic(
+            record.payload, false);
+        for (FileInfo fInfo : fInfos) {
+            if (record.op == OP_STORE) {
+                handler.stored(fInfo);
+            } else if (record.op == OP_DELETE) {
+                handler.deleted(fInfo);
+            } else {
+                throw new IOException("Unknown journal operation: "
+                    + record.op);
+            }
+        }
+        return fInfos.length;
+    }
+
+    private void truncate(File file, long length) {
+        logWarning("Cutting off incomplete tail of database journal " + file
+            + " at " + length + " bytes");
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            raf.setLength(length);
+        } catch (IOException e) {
+            logWarning("Unable to truncate database journal " + file + ". "
+                + e);
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    // Record format **********************************************************
+
+    /**
+     * Writes the entries. Consecutive entries with the same operation are
+     * batched into a single record.
+     *
+     * @return the number of records written.
+     */
+    private static int writeRecords(DataOutputStream out, List<Entry> entries)
+        throws IOException
+    {
+        int records = 0;
+        int i = 0;
+        while (i < entries.size()) {
+            Entry first = entries.get(i);
+            if (first.op == OP_LAST_SCAN) {
+                ByteArrayOutputStream bOut = new ByteArrayOutputStream(8);
+                new DataOutputStream(bOut).writeLong(((Date) first.value)
+                    .getTime());
+                writeRecord(out, OP_LAST_SCAN, bOut.toByteArray());
+                records++;
+                i++;
+                continue;
+            }
+            List<FileInfo> batch = new ArrayList<FileInfo>();
+            while (i < entries.size() && entries.get(i).op == first.op) {
+                batch.add((FileInfo) entries.get(i).value);
+                i++;
+            }
+            byte[] payload = ByteSerializer.serializeStatic(
+                batch.toArray(new FileInfo[batch.size()]), false);
+            writeRecord(out, first.op, payload);
+            records++;
+        }
+        return records;
+    }
+
+    private static void writeRecord(DataOutputStream out, byte op,
+        byte[] payload) throws IOException
+    {
+        CRC32 crc = new CRC32();
+        crc.update(op);
+        crc.update(payload);
+        out.writeByte(op);
+        out.writeInt(payload.length);
+        out.writeLong(crc.getValue());
+        out.write(payload);
+    }
+
+    /**
+     * @param in
+     * @param remaining
+     *            the bytes left in the journal. A torn length field must not
+     *            allocate more.
+     * @return the next record or null if end of journal reached.
+     * @throws IOException
+     *             if the record is corrupt or incomplete.
+     */
+    private static Record readRecord(DataInputStream in, long remaining)
+        throws IOException
+    {
+        int op = in.read();
+        if (op < 0) {
+            return null;
+        }
+        try {
+            int length = in.readInt();
+            if (length < 0 || length > remaining - HEADER_LENGTH) {
+                throw new IOException("Illegal record length: " + length
+                    + ", " + remaining + " bytes left in journal");
+            }
+            long checksum = in.readLong();
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            CRC32 crc = new CRC32();
+            crc.update(op);
+            crc.update(payload);
+            if (crc.getValue() != checksum) {
+                throw new IOException("Checksum mismatch in record");
+            }
+            return new Record((byte) op, payload);
+        } catch (EOFException e) {
+            throw new IOException("Incomplete record. " + e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "FolderDBJournal " + journalFile;
+    }
+
+    // Inner classes **********************************************************
+
+    /**
+     * Receives the changes while replaying the journal.
+     */
+    public interface ReplayHandler {
+        void stored(FileInfo fInfo);
+
+        void deleted(FileInfo fInfo);
+
+        void lastScan(Date lastScan);
+    }
+
+    private static class Entry {
+        private final byte op;
+        private final Object value;
+
+        private Entry(byte op, Object value) {
+            this.op = op;
+            this.value = value;
+        }
+    }
+
+    private static class Record {
+        private final byte op;
+        private final byte[] payload;
+
+        private Record(byte op, byte[] payload) {
+            this.op = op;
+            this.payload = payload;
+        }
+
+        private long getLengthOnDisk() {
+            return HEADER_LENGTH + payload.length;
+        }
+    }
+}
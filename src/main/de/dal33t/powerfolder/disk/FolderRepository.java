@@ -29,6 +29,7 @@ import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -104,7 +105,12 @@ public class FolderRepository extends PFComponent implements Runnable {
     private final Map<FolderInfo, Folder> metaFolders;
     private Thread myThread;
     private final FileRequestor fileRequestor;
-    private Folder currentlyMaintainingFolder;
+    /** The folders currently being maintained */
+    private final Set<Folder> maintainingFolders = new CopyOnWriteArraySet<Folder>();
+    /** Limits the number of folders maintained at the same time */
+    private Semaphore maintenancePermits;
+    /** A folder has been skipped, because its device was busy */
+    private volatile boolean maintenanceDeferred;
     private final Set<String> onLoginFolderEntryIds;
     // Flag if the repo is started
     private boolean started;
@@ -117,8 +123,14 @@ public class FolderRepository extends PFComponent implements Runnable {
     /** folder repository listeners */
     private final FolderRepositoryListener folderRepositoryListenerSupport;
 
-    /** The disk scanner */
-    private final FolderScanner folderScanner;
+    /** Runs the disk scans */
+    private final FolderScanScheduler folderScanScheduler;
+
+    /** Watches the folders for changes. Created on demand */
+    private FolderWatchService folderWatchService;
+
+    /** Hashes the file contents. Created on demand */
+    private ContentHasher contentHasher;
 
     /**
      * The current synchronizater of all folder memberships
@@ -158,7 +170,7 @@ public class FolderRepository extends PFComponent implements Runnable {
         started = false;
         loadRemovedFolderDirectories();
 
-        folderScanner = new FolderScanner(getController());
+        folderScanScheduler = new FolderScanScheduler(getController());
 
         // Create listener support
         folderRepositoryListenerSupport = ListenerSupportFactory
@@ -201,9 +213,42 @@ public class FolderRepository extends PFComponent implements Runnable {
             listener);
     }
 
-    /** @return The folder scanner that performs the scanning of files on disk */
+    /**
+     * @return The scheduler that performs the scanning of files on disk
+     */
+    public FolderScanScheduler getFolderScanScheduler() {
+        return folderScanScheduler;
+    }
+
+    /**
+     * @return The folder scanner that performs the scanning of files on disk
+     * @deprecated Folders are scanned by several scanners. Use
+     *             {@link #getFolderScanScheduler()}.
+     */
+    @Deprecated
     public FolderScanner getFolderScanner() {
-        return folderScanner;
+        return folderScanScheduler.getFirstScanner();
+    }
+
+    /**
+     * @return the pure Java filesystem watch shared by all folders or null if
+     *         not {@link FolderWatchService#isSupported()}
+     */
+    public synchronized FolderWatchService getFolderWatchService() {
+        if (folderWatchService == null) {
+            folderWatchService = FolderWatchService.create(getController());
+        }
+        return folderWatchService;
+    }
+
+    /**
+     * @return the background hashing of file contents shared by all folders.
+     */
+    public synchronized ContentHasher getContentHasher() {
+        if (contentHasher == null) {
+            contentHasher = new ContentHasher(getController());
+        }
+        return contentHasher;
     }
 
     public void setSuspendFireEvents(boolean suspended) {
@@ -227,14 +272,35 @@ public class FolderRepository extends PFComponent implements Runnable {
 
         initFoldersBasedir();
 
-        processV4Format();
+        if (ConfigurationEntry.FOLDER_LOAD_ASYNC
+            .getValueBoolean(getController()))
+        {
+            // Don't let startup (UI, connections) wait for the folders
+            getController().getIOProvider().startIO(new Runnable() {
+                public void run() {
+                    processV4Format();
+                    tidyOldLinks();
+                    // Folders scheduled for login might have been missed.
+                    if (getController().getOSClient().isLoggedIn()) {
+                        updateFolders(getController().getOSClient()
+                            .getAccount());
+                    }
+                }
+            });
+        } else {
+            processV4Format();
+        }
 
         // Maintain link
         if (getController().isFirstStart()) {
             createShortcuts();
         }
 
-        tidyOldLinks();
+        if (!ConfigurationEntry.FOLDER_LOAD_ASYNC
+            .getValueBoolean(getController()))
+        {
+            tidyOldLinks();
+        }
     }
 
     public void createShortcuts() {
@@ -414,13 +480,19 @@ public class FolderRepository extends PFComponent implements Runnable {
         Set<String> entryIds = FolderSettings.loadEntryIds(config);
 
         // Load on many processors
-        int loaders = Math.min(Runtime.getRuntime().availableProcessors() - 2,
-            8);
+        int loaders = ConfigurationEntry.FOLDER_LOAD_THREADS
+            .getValueInt(getController());
+        if (loaders <= 0) {
+            loaders = Math.min(
+                Runtime.getRuntime().availableProcessors() - 2, 8);
+        }
         if (loaders <= 0) {
             loaders = 1;
         }
         final Semaphore loadPermit = new Semaphore(loaders);
         final AtomicInteger nCreated = new AtomicInteger();
+        final Map<String, Long> loadTimes = new ConcurrentHashMap<String, Long>();
+        long start = System.currentTimeMillis();
         // Scan config for all found folder MD5s.
         for (final String folderEntryId : entryIds) {
             try {
@@ -458,7 +530,9 @@ public class FolderRepository extends PFComponent implements Runnable {
                         {
                             logFine("Folder load scheduled after first login: "
                                 + folderName + '/' + folderEntryId);
-                            onLoginFolderEntryIds.add(folderEntryId);
+                            synchronized (FolderRepository.this) {
+                                onLoginFolderEntryIds.add(folderEntryId);
+                            }
                             return;
                         }
 
@@ -491,7 +565,15 @@ public class FolderRepository extends PFComponent implements Runnable {
                         if (!hasJoinedFolder(foInfo) && folderId != null
                             && folderSettings != null)
                         {
+                            long folderStart = System.currentTimeMillis();
                             createFolder0(foInfo, folderSettings, false);
+                            long took = System.currentTimeMillis()
+                                - folderStart;
+                            loadTimes.put(foInfo.getName(), took);
+                            if (isFine()) {
+                                logFine("Loaded folder " + foInfo.getName()
+                                    + " in " + took + "ms");
+                            }
                         }
 
                         if (spawned) {
@@ -526,7 +608,43 @@ public class FolderRepository extends PFComponent implements Runnable {
                 }
             }
         }
-        logInfo("Loaded " + getFoldersCount() + " folders");
+        logInfo("Loaded " + getFoldersCount() + " folders in "
+            + (System.currentTimeMillis() - start) + "ms using " + loaders
+            + " loaders");
+        logFolderLoadTimes(loadTimes);
+    }
+
+    /**
+     * Logs the folders that took longest to load at startup. All load times
+     * are logged on level FINE.
+     * 
+     * @param loadTimes
+     *            folder name -> milliseconds.
+     */
+    private void logFolderLoadTimes(Map<String, Long> loadTimes) {
+        List<Map.Entry<String, Long>> entries = new ArrayList<Map.Entry<String, Long>>(
+            loadTimes.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+            public int compare(Map.Entry<String, Long> o1,
+                Map.Entry<String, Long> o2)
+            {
+                return o2.getValue().compareTo(o1.getValue());
+            }
+        });
+        int n = isFine() ? entries.size() : Math.min(entries.size(), 5);
+        if (n == 0) {
+            return;
+        }
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            Map.Entry<String, Long> entry = entries.get(i);
+            if (i > 0) {
+                b.append(", ");
+            }
+            b.append(entry.getKey()).append(": ").append(entry.getValue())
+                .append("ms");
+        }
+        logInfo("Folder load times (slowest " + n + "): " + b);
     }
 
     /**
@@ -540,7 +658,10 @@ public class FolderRepository extends PFComponent implements Runnable {
             return;
         }
 
-        folderScanner.start();
+        folderScanScheduler.start();
+        maintenancePermits = new Semaphore(Math.max(1,
+            ConfigurationEntry.FOLDER_SCAN_CONCURRENT
+                .getValueInt(getController())));
 
         // Now start thread
         myThread = new Thread(this, getClass().getName());
@@ -569,7 +690,15 @@ public class FolderRepository extends PFComponent implements Runnable {
                 folderMembershipSynchronizer.canceled = true;
             }
         }
-        folderScanner.shutdown();
+        folderScanScheduler.shutdown();
+        synchronized (this) {
+            if (folderWatchService != null) {
+                folderWatchService.shutdown();
+            }
+            if (contentHasher != null) {
+                contentHasher.shutdown();
+            }
+        }
 
         if (myThread != null) {
             myThread.interrupt();
@@ -1065,11 +1194,7 @@ public class FolderRepository extends PFComponent implements Runnable {
             triggerSynchronizeAllFolderMemberships();
 
             // Abort scanning
-            boolean folderCurrentlyScannng = folder.equals(folderScanner
-                .getCurrentScanningFolder());
-            if (folderCurrentlyScannng) {
-                folderScanner.abortScan();
-            }
+            folderScanScheduler.abortScan(folder);
 
             // Delete the .PowerFolder dir and contents
             if (deleteSystemSubDir) {
@@ -1224,12 +1349,31 @@ public class FolderRepository extends PFComponent implements Runnable {
         }
     }
 
+    /**
+     * @return the folders that currently get maintainted.
+     */
+    public Collection<Folder> getMaintainingFolders() {
+        return Collections.unmodifiableCollection(maintainingFolders);
+    }
+
     /**
      * @return the folder that currently gets maintainted or null if not
      *         maintaining any folder.
+     * @deprecated Several folders may get maintained at the same time. Use
+     *             {@link #getMaintainingFolders()}.
      */
+    @Deprecated
     public Folder getCurrentlyMaintainingFolder() {
-        return currentlyMaintainingFolder;
+        Iterator<Folder> it = maintainingFolders.iterator();
+        return it.hasNext() ? it.next() : null;
+    }
+
+    /**
+     * @param folder
+     * @return true if the folder currently gets maintained.
+     */
+    public boolean isMaintaining(Folder folder) {
+        return maintainingFolders.contains(folder);
     }
 
     /**
@@ -1302,25 +1446,23 @@ public class FolderRepository extends PFComponent implements Runnable {
                         + " folders...");
                 }
                 for (Folder folder : scanningFolders) {
-                    currentlyMaintainingFolder = folder;
-                    // Fire event
-                    fireMaintanceStarted(currentlyMaintainingFolder);
-                    currentlyMaintainingFolder.maintain();
-                    Folder maintainedFolder = currentlyMaintainingFolder;
-                    currentlyMaintainingFolder = null;
-                    // Fire event
-                    fireMaintenanceFinished(maintainedFolder);
-
                     if (controller.isPaused() || myThread.isInterrupted()) {
                         break;
                     }
-
-                    // Wait a bit to give other waiting sync processes time...
-                    try {
-                        Thread.sleep(50);
-                    } catch (InterruptedException e) {
-                        break;
+                    if (maintainingFolders.contains(folder)) {
+                        continue;
                     }
+                    // Don't block a maintenance slot by waiting for a
+                    // device, which is busy scanning another folder.
+                    if (!folderScanScheduler.isDeviceAvailable(folder)
+                        || !maintenancePermits.tryAcquire())
+                    {
+                        maintenanceDeferred = true;
+                        continue;
+                    }
+                    maintainingFolders.add(folder);
+                    getController().getIOProvider().startIO(
+                        new FolderMaintainer(folder));
                 }
                 if (isFiner()) {
                     logFiner("Maintained " + scanningFolders.size()
@@ -1864,6 +2006,46 @@ public class FolderRepository extends PFComponent implements Runnable {
         return true;
     }
 
+    /**
+     * Maintains one folder. Several folders are maintained in parallel.
+     */
+    private class FolderMaintainer implements Runnable {
+        private final Folder folder;
+
+        private FolderMaintainer(Folder folder) {
+            this.folder = folder;
+        }
+
+        public void run() {
+            Thread thread = Thread.currentThread();
+            int priority = thread.getPriority();
+            thread.setPriority(Thread.MIN_PRIORITY);
+            try {
+                // Fire event
+                fireMaintanceStarted(folder);
+                folder.maintain();
+            } catch (RuntimeException e) {
+                logSevere("Problem while maintaining folder " + folder + ". "
+                    + e, e);
+            } finally {
+                thread.setPriority(priority);
+                maintainingFolders.remove(folder);
+                maintenancePermits.release();
+                // Fire event
+                fireMaintenanceFinished(folder);
+                if (maintenanceDeferred) {
+                    maintenanceDeferred = false;
+                    triggerMaintenance();
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "FolderMaintainer for " + folder;
+        }
+    }
+
     private class CheckSyncTask implements Runnable {
         public void run() {
             for (Folder folder : getController().getFolderRepository()
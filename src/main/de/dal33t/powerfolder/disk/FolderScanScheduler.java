@@ -0,0 +1,309 @@
+/*
+ * Copyright 2004 - 2013 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+import de.dal33t.powerfolder.ConfigurationEntry;
+import de.dal33t.powerfolder.Controller;
+import de.dal33t.powerfolder.PFComponent;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.util.Reject;
+import de.dal33t.powerfolder.util.os.OSUtil;
+
+/**
+ * Runs the scans of several folders at the same time. Each scan uses its own
+ * {@link FolderScanner}. The number of parallel scans is limited by
+ * {@link ConfigurationEntry#FOLDER_SCAN_CONCURRENT} and per device by
+ * {@link ConfigurationEntry#FOLDER_SCAN_CONCURRENT_PER_DEVICE}, to not thrash
+ * spinning disks.
+ * <p>
+ * If no scanner or device slot is available the result state is
+ * {@link ScanResult.ResultState#BUSY}, same as of a busy {@link FolderScanner}.
+ */
+public class FolderScanScheduler extends PFComponent {
+    /** All created scanners */
+    private final List<FolderScanner> scanners = new ArrayList<FolderScanner>();
+    /** The currently unused scanners */
+    private final LinkedList<FolderScanner> idleScanners = new LinkedList<FolderScanner>();
+    /** The scanners in use by folder */
+    private final Map<Folder, FolderScanner> scanning = new HashMap<Folder, FolderScanner>();
+    /** Device key -> Slots for scans on that device */
+    private final Map<String, Semaphore> devices = new HashMap<String, Semaphore>();
+    private volatile boolean started;
+    private boolean ignoreCase = FileInfo.IGNORE_CASE;
+
+    FolderScanScheduler(Controller controller) {
+        super(controller);
+    }
+
+    public void start() {
+        started = true;
+    }
+
+    /**
+     * Aborts all scans and shuts down the scanners.
+     */
+    public void shutdown() {
+        started = false;
+        synchronized (scanning) {
+            for (FolderScanner scanner : scanners) {
+                scanner.shutdown();
+            }
+            scanners.clear();
+            idleScanners.clear();
+        }
+    }
+
+    /**
+     * Scans a folder. See {@link FolderScanner#scanFolder(Folder)}.
+     *
+     * @param folder
+     *            The folder to scan.
+     * @return the scan result. State BUSY if the folder is already scanned or
+     *         no scanner is free for the device of the folder.
+     */
+    public ScanResult scanFolder(Folder folder) {
+        Reject.ifNull(folder, "folder cannot be null");
+        Semaphore device = getDevice(folder);
+        if (!device.tryAcquire()) {
+            return new ScanResult(ScanResult.ResultState.BUSY);
+        }
+        try {
+            FolderScanner scanner = acquireScanner(folder);
+            if (scanner == null) {
+                return new ScanResult(ScanResult.ResultState.BUSY);
+            }
+            try {
+                return scanner.scanFolder(folder);
+            } finally {
+                releaseScanner(folder, scanner);
+            }
+        } finally {
+            device.release();
+        }
+    }
+
+    /**
+     * @param folder
+     * @return true if a scan of that folder would not be rejected because of a
+     *         busy device. The device might still get busy until the scan is
+     *         started.
+     */
+    public boolean isDeviceAvailable(Folder folder) {
+        return getDevice(folder).availablePermits() > 0;
+    }
+
+    /**
+     * @param folder
+     * @return true if the folder is currently scanned.
+     */
+    public boolean isScanning(Folder folder) {
+        synchronized (scanning) {
+            return scanning.containsKey(folder);
+        }
+    }
+
+    /**
+     * @return the folders currently scanned.
+     */
+    public Collection<Folder> getScanningFolders() {
+        synchronized (scanning) {
+            return Collections.unmodifiableCollection(new ArrayList<Folder>(
+                scanning.keySet()));
+        }
+    }
+
+    /**
+     * Aborts the scan of the folder.
+     *
+     * @param folder
+     * @return true if abort has been initiated, false if not currently
+     *         scanning that folder.
+     */
+    public boolean abortScan(Folder folder) {
+        FolderScanner scanner;
+        synchronized (scanning) {
+            scanner = scanning.get(folder);
+        }
+        return scanner != null && scanner.abortScan();
+    }
+
+    /**
+     * Aborts all running scans.
+     *
+     * @return true if at least one abort has been initiated.
+     */
+    public boolean abortScans() {
+        boolean aborted = false;
+        synchronized (scanning) {
+            for (FolderScanner scanner : scanning.values()) {
+                aborted |= scanner.abortScan();
+            }
+        }
+        return aborted;
+    }
+
+    /**
+     * For TESTS only.
+     * 
+     * @param ignoreCase
+     *            if names differing only in case or unicode composition
+     *            denote the same file. Default is {@link FileInfo#IGNORE_CASE}
+     */
+    public void setIgnoreCase(boolean ignoreCase) {
+        synchronized (scanning) {
+            this.ignoreCase = ignoreCase;
+            for (FolderScanner scanner : scanners) {
+                scanner.setIgnoreCase(ignoreCase);
+            }
+        }
+    }
+
+    /**
+     * @return the first scanner, started if no scanner exists yet. Shared with
+     *         the scans of this scheduler.
+     */
+    FolderScanner getFirstScanner() {
+        synchronized (scanning) {
+            if (scanners.isEmpty()) {
+                idleScanners.add(newScanner());
+            }
+            return scanners.get(0);
+        }
+    }
+
+    // Internal ***************************************************************
+
+    private FolderScanner acquireScanner(Folder folder) {
+        synchronized (scanning) {
+            if (!started || scanning.containsKey(folder)) {
+                return null;
+            }
+            FolderScanner scanner = idleScanners.poll();
+            if (scanner == null) {
+                int max = Math.max(1,
+                    ConfigurationEntry.FOLDER_SCAN_CONCURRENT
+                        .getValueInt(getController()));
+                if (scanners.size() >= max) {
+                    return null;
+                }
+                scanner = newScanner();
+            }
+            scanning.put(folder, scanner);
+            return scanner;
+        }
+    }
+
+    private FolderScanner newScanner() {
+        FolderScanner scanner = new FolderScanner(getController());
+        scanner.setIgnoreCase(ignoreCase);
+        scanner.start();
+        scanners.add(scanner);
+        if (isFine()) {
+            logFine("Started folder scanner #" + scanners.size());
+        }
+        return scanner;
+    }
+
+    private void releaseScanner(Folder folder, FolderScanner scanner) {
+        synchronized (scanning) {
+            scanning.remove(folder);
+            if (scanners.contains(scanner)) {
+                idleScanners.add(scanner);
+            }
+        }
+    }
+
+    private Semaphore getDevice(Folder folder) {
+        String key = getDeviceKey(folder.getLocalBase());
+        synchronized (devices) {
+            Semaphore device = devices.get(key);
+            if (device == null) {
+                int permits = Math.max(1,
+                    ConfigurationEntry.FOLDER_SCAN_CONCURRENT_PER_DEVICE
+                        .getValueInt(getController()));
+                device = new Semaphore(permits);
+                devices.put(key, device);
+                if (isFine()) {
+                    logFine("Device " + key + " allows " + permits
+                        + " parallel scan(s)");
+                }
+            }
+            return device;
+        }
+    }
+
+    /**
+     * Guesses the device of a directory from its path. Drive or share on
+     * Windows, the volume on Mac OS and the mount directory of removable
+     * media on Linux. Everything else is considered to be on the root device.
+     *
+     * @param dir
+     * @return the key of the device the directory probably is on.
+     */
+    static String getDeviceKey(File dir) {
+        String path = dir.getAbsolutePath();
+        if (OSUtil.isWindowsSystem()) {
+            path = path.replace('\\', '/').toLowerCase();
+            if (path.startsWith("//")) {
+                // UNC: //server/share
+                return prefix(path, 4);
+            }
+            return prefix(path, 1);
+        }
+        if (OSUtil.isMacOS() && path.startsWith("/Volumes/")) {
+            return prefix(path, 3);
+        }
+        if (path.startsWith("/media/")) {
+            // /media/<user>/<label>
+            return prefix(path, 4);
+        }
+        if (path.startsWith("/run/media/")) {
+            return prefix(path, 5);
+        }
+        if (path.startsWith("/mnt/")) {
+            return prefix(path, 3);
+        }
+        return "/";
+    }
+
+    /**
+     * @return the path up to (excluding) the n-th slash.
+     */
+    private static String prefix(String path, int slashes) {
+        int i = -1;
+        for (int n = 0; n < slashes; n++) {
+            i = path.indexOf('/', i + 1);
+            if (i < 0) {
+                return path;
+            }
+        }
+        return path.substring(0, i);
+    }
+}
@@ -20,15 +20,25 @@
 package de.dal33t.powerfolder.disk;
 
 import java.io.File;
+import java.text.Normalizer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import de.dal33t.powerfolder.ConfigurationEntry;
 import de.dal33t.powerfolder.Controller;
 import de.dal33t.powerfolder.Feature;
 import de.dal33t.powerfolder.PFComponent;
@@ -39,14 +49,20 @@ import de.dal33t.powerfolder.disk.problem.Problem;
 import de.dal33t.powerfolder.light.FileInfo;
 import de.dal33t.powerfolder.light.FileInfoFactory;
 import de.dal33t.powerfolder.util.FileUtils;
+import de.dal33t.powerfolder.util.NamedThreadFactory;
 import de.dal33t.powerfolder.util.Reject;
 import de.dal33t.powerfolder.util.Util;
 
 /**
  * Disk Scanner for a folder. It compares the curent database of files agains
  * the ones availeble on disk and produces a ScanResult. MultiThreading is used,
- * for each subfolder of the root a DirectoryCrawler is used with a maximum of
- * MAX_CRAWLERS.<BR>
+ * the directories are split across DirectoryCrawlers. Each crawler works on the
+ * directories it found itself and steals from the others when idle. The number
+ * of crawlers is limited by {@link ConfigurationEntry#FOLDER_SCAN_THREADS} and
+ * adapted to the throughput of the storage during the scan.<BR>
+ * If the folder uses incremental scans (see {@link DirectoryStamps})
+ * directories, which did not change since the last scan, are not listed again,
+ * except on the periodic full scan.<BR>
  * On succes the resultState of ScanResult is ScanResult.ResultState.SCANNED.<BR>
  * If the user aborted the scan (by selecting paused mode) the resultState =
  * ScanResult.ResultState.USER_ABORT.<BR>
@@ -70,16 +86,60 @@ public class FolderScanner extends PFComponent {
      */
     private Map<String, FileInfo> remaining = Util.createConcurrentHashMap();
 
-    /** DirectoryCrawler threads that are idle */
-    private final List<DirectoryCrawler> directoryCrawlersPool = new CopyOnWriteArrayList<DirectoryCrawler>();
+    /**
+     * #1531 / #1804: If names differing only in case or unicode composition
+     * denote the same file. {@link FileInfo#IGNORE_CASE} by default.
+     */
+    private volatile boolean ignoreCase = FileInfo.IGNORE_CASE;
+
+    /**
+     * #1531 / #1804: Only if {@link #ignoreCase}. The known files by
+     * their case folded name (see {@link #foldCase(String)}). May still
+     * contain files already removed from {@link #remaining}.
+     */
+    private Map<String, List<FileInfo>> remainingFolded = Util
+        .createConcurrentHashMap();
+
+    /**
+     * The stamps to record the listed directories into. null if the folder does
+     * not use incremental scans.
+     */
+    private DirectoryStamps recordStamps;
+
+    /**
+     * Incremental scan only: The stamps of the directories listed by earlier
+     * scans. Unchanged directories are not listed again. null on full scan.
+     */
+    private DirectoryStamps skipStamps;
+
+    /**
+     * Incremental scan only: The known files and directories by the relative
+     * name of their parent directory.
+     */
+    private final Map<String, List<FileInfo>> knownByDirectory = new HashMap<String, List<FileInfo>>();
+
+    /**
+     * The known hashes of the file contents. Used to resolve ambiguous
+     * movements. null if the folder does not hash file contents.
+     */
+    private ContentHashCache contentHashes;
+
+    /** Runs the DirectoryCrawlers */
+    private ExecutorService crawlerPool;
 
     /** Where crawling DirectoryCrawlers are */
     private final List<DirectoryCrawler> activeDirectoryCrawlers = new CopyOnWriteArrayList<DirectoryCrawler>();
+
+    /**
+     * Upper limit of DirectoryCrawlers if not configured.
+     */
+    private static final int MAX_CRAWLERS = 8;
+
     /**
-     * Maximum number of DirectoryCrawlers after test of a big folder this seams
-     * the optimum number.
+     * After this number of scanned items the number of active crawlers is
+     * adapted.
      */
-    private static final int MAX_CRAWLERS = 1;
+    private static final int ADAPT_INTERVAL = 2048;
 
     /**
      * The files which could not be scanned
@@ -104,9 +164,9 @@ public class FolderScanner extends PFComponent {
     private Semaphore threadOwnership;
 
     /**
-     * Do not use this constructor, this should only be done by the Folder
-     * Repositoty, to get the folder scanner call:
-     * folderRepository.getFolderScanner()
+     * Do not use this constructor, this should only be done by the
+     * {@link FolderScanScheduler}, to scan a folder call:
+     * folderRepository.getFolderScanScheduler().scanFolder(folder)
      * 
      * @param controller
      *            the controller that holds this folder.
@@ -117,35 +177,40 @@ public class FolderScanner extends PFComponent {
     }
 
     /**
-     * Starts the folder scanner, creates MAX_CRAWLERS number of
-     * DirectoryCrawler
+     * Starts the folder scanner, creates the thread pool for the
+     * DirectoryCrawlers
      */
     public void start() {
-        // start directoryCrawlers
-        for (int i = 0; i < MAX_CRAWLERS; ++i) {
-            DirectoryCrawler directoryCrawler = new DirectoryCrawler();
-            Thread thread = new Thread(directoryCrawler,
-                "FolderScanner.DirectoryCrawler #" + i);
-            thread.setPriority(Thread.MIN_PRIORITY);
-            thread.start();
-            directoryCrawlersPool.add(directoryCrawler);
-        }
+        crawlerPool = Executors.newCachedThreadPool(new NamedThreadFactory(
+            "FolderScanner.DirectoryCrawler-")
+        {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = super.newThread(r);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
         currentScanResult = new ScanResult(true);
     }
 
+    /**
+     * @param ignoreCase
+     *            if names differing only in case or unicode composition
+     *            denote the same file.
+     */
+    void setIgnoreCase(boolean ignoreCase) {
+        this.ignoreCase = ignoreCase;
+    }
+
     /**
      * sets aborted to true (user probably closed the program), and shutsdown
      * the DirectoryCrawlers
      */
     public void shutdown() {
         abort = true;
-        synchronized (directoryCrawlersPool) {
-            for (DirectoryCrawler directoryCrawler : directoryCrawlersPool) {
-                directoryCrawler.shutdown();
-            }
-            for (DirectoryCrawler directoryCrawler : activeDirectoryCrawlers) {
-                directoryCrawler.shutdown();
-            }
+        if (crawlerPool != null) {
+            crawlerPool.shutdown();
         }
         // waitForCrawlersToStop();
     }
@@ -198,6 +263,41 @@ public class FolderScanner extends PFComponent {
             for (FileInfo fInfo : currentScanningFolder.getKnownDirectories()) {
                 remaining.put(fInfo.getRelativeName(), fInfo);
             }
+            remainingFolded.clear();
+            if (ignoreCase) {
+                for (FileInfo fInfo : remaining.values()) {
+                    String key = foldCase(fInfo.getRelativeName());
+                    List<FileInfo> sameName = remainingFolded.get(key);
+                    if (sameName == null) {
+                        sameName = new ArrayList<FileInfo>(1);
+                        remainingFolded.put(key, sameName);
+                    }
+                    sameName.add(fInfo);
+                }
+            }
+            recordStamps = folder.getDirectoryStamps();
+            contentHashes = folder.getContentHashes();
+            long fullScanInterval = 1000L * ConfigurationEntry.FOLDER_SCAN_FULL_INTERVAL
+                .getValueInt(getController());
+            if (recordStamps != null
+                && !recordStamps.isFullScanDue(fullScanInterval))
+            {
+                skipStamps = recordStamps;
+                for (FileInfo fInfo : remaining.values()) {
+                    String key = getDirectoryName(fInfo);
+                    List<FileInfo> inDir = knownByDirectory.get(key);
+                    if (inDir == null) {
+                        inDir = new ArrayList<FileInfo>();
+                        knownByDirectory.put(key, inDir);
+                    }
+                    inDir.add(fInfo);
+                }
+            }
+            currentScanResult.fullScan = skipStamps == null;
+            if (isFiner()) {
+                logFiner("Scan of folder: " + folder.getName() + " "
+                    + (skipStamps != null ? "incremental" : "full"));
+            }
             if (!scan(base) || failure) {
                 // if false there was an IOError
                 reset();
@@ -219,6 +319,11 @@ public class FolderScanner extends PFComponent {
                 FileInfo fInfo = FileInfoFactory.lookupInstance(
                     currentScanningFolder, file);
                 remaining.remove(fInfo.getRelativeName());
+                // Has to be listed again on next incremental scan
+                currentScanResult.directoryStamps.remove(fInfo
+                    .getRelativeName());
+                currentScanResult.directoryStamps
+                    .remove(getDirectoryName(fInfo));
                 // TRAC #523
                 if (file.isDirectory()) {
                     String dirPath = file.getAbsolutePath().replace(
@@ -323,23 +428,64 @@ public class FolderScanner extends PFComponent {
         // allFiles.clear();
         // restoredFiles.clear();
         unableToScanFiles.clear();
+        remainingFolded.clear();
+        knownByDirectory.clear();
+        recordStamps = null;
+        skipStamps = null;
+        contentHashes = null;
         // totalFilesCount = 0;
         currentScanResult = new ScanResult(true);
     }
 
+    /**
+     * @param crawler
+     * @return true if the crawler runs in the pool. false if the pool is not
+     *         available.
+     */
+    private boolean startCrawler(DirectoryCrawler crawler) {
+        activeDirectoryCrawlers.add(crawler);
+        try {
+            if (crawlerPool == null) {
+                throw new RejectedExecutionException("Not started");
+            }
+            crawlerPool.execute(crawler);
+            return true;
+        } catch (RejectedExecutionException e) {
+            activeDirectoryCrawlers.remove(crawler);
+            return false;
+        }
+    }
+
     private void waitForCrawlersToStop() {
-        while (!activeDirectoryCrawlers.isEmpty()) {
-            logFine("Waiting for " + activeDirectoryCrawlers.size()
-                + " crawlers to stop");
-            synchronized (this) {
+        synchronized (this) {
+            while (!activeDirectoryCrawlers.isEmpty()) {
+                if (isFiner()) {
+                    logFiner("Waiting for " + activeDirectoryCrawlers.size()
+                        + " crawlers to stop");
+                }
                 try {
                     wait();
                 } catch (InterruptedException e) {
+                    logFiner(e);
+                    abort = true;
                 }
             }
         }
     }
 
+    /**
+     * @return the maximum number of DirectoryCrawlers for one scan.
+     */
+    private int getMaxCrawlers() {
+        int max = ConfigurationEntry.FOLDER_SCAN_THREADS
+            .getValueInt(getController());
+        if (max <= 0) {
+            max = Math.min(Runtime.getRuntime().availableProcessors(),
+                MAX_CRAWLERS);
+        }
+        return Math.max(max, 1);
+    }
+
     /**
      * Produces a list of FilenameProblems per FileInfo that has problems.
      * Public for testing
@@ -382,7 +528,18 @@ public class FolderScanner extends PFComponent {
      * @returns true on success, false on failure (hardware not found?)
      */
     private boolean scan(File folderBase) {
-        File[] filelist = folderBase.listFiles();
+        long lastModified = recordStamps != null
+            ? folderBase.lastModified()
+            : 0;
+        File[] filelist;
+        List<File> subDirs;
+        if (skipStamps != null && skipStamps.isUnchanged("", lastModified)) {
+            filelist = new File[0];
+            subDirs = skipUnchangedDirectory("", currentScanResult);
+        } else {
+            filelist = folderBase.listFiles();
+            subDirs = new ArrayList<File>();
+        }
         if (filelist == null) { // if filelist is null there is probable an
             // hardware failure
             return false;
@@ -398,7 +555,7 @@ public class FolderScanner extends PFComponent {
                 if (FileUtils
                     .isScannable(file, currentScanningFolder.getInfo()))
                 {
-                    if (!scanFile(file, "")) {
+                    if (!scanFile(file, "", currentScanResult)) {
                         failure = true;
                         return false;
                     }
@@ -410,21 +567,7 @@ public class FolderScanner extends PFComponent {
                 {
                     continue;
                 }
-                while (directoryCrawlersPool.isEmpty()) {
-                    synchronized (this) {
-                        try {
-                            wait();
-                        } catch (InterruptedException e) {
-
-                        }
-                    }
-                }
-                synchronized (directoryCrawlersPool) {
-                    DirectoryCrawler crawler = directoryCrawlersPool.remove(0);
-                    activeDirectoryCrawlers.add(crawler);
-                    crawler.scan(file);
-                }
-
+                subDirs.add(file);
             } else {
                 boolean deviceDisconnected = currentScanningFolder
                     .checkIfDeviceDisconnected();
@@ -438,57 +581,292 @@ public class FolderScanner extends PFComponent {
                 unableToScanFiles.add(file);
             }
         }
+        if (recordStamps != null && lastModified > 0 && !abort) {
+            currentScanResult.directoryStamps.put("", lastModified);
+        }
+        if (subDirs.isEmpty() || abort) {
+            return true;
+        }
 
-        while (!isReady()) {
-            try {
-                synchronized (this) {
-                    wait();
+        Crawl crawl = new Crawl(getMaxCrawlers(), subDirs);
+        DirectoryCrawler inThisThread = null;
+        synchronized (crawl) {
+            // More get started when the throughput rises
+            for (int i = 0; i < crawl.parallelism; i++) {
+                DirectoryCrawler crawler = new DirectoryCrawler(crawl, i);
+                crawl.started++;
+                if (!startCrawler(crawler)) {
+                    // Not started or shut down. Crawl in this thread.
+                    if (i == 0) {
+                        inThisThread = crawler;
+                    }
+                    crawl.started = Math.max(i, 1);
+                    crawl.parallelism = crawl.started;
+                    break;
                 }
-            } catch (InterruptedException e) {
-                logFiner(e);
-                return false;
             }
         }
-        return true;
-    }
-
-    /** @return true if all directory Crawler are idle. */
-    private boolean isReady() {
-        boolean ready;
-        synchronized (directoryCrawlersPool) {
-            ready = activeDirectoryCrawlers.isEmpty()
-                && directoryCrawlersPool.size() == MAX_CRAWLERS;
+        if (inThisThread != null) {
+            inThisThread.run();
+        }
+        waitForCrawlersToStop();
+        if (isFine()) {
+            logFine("Crawled " + currentScanningFolder + " with up to "
+                + crawl.maxParallelism + " crawlers");
         }
-        return ready;
+        return !failure;
     }
 
     /**
      * if a file is in the knownFilesNotOnDisk list and in the newlyFoundFiles
      * list with the same size and modification date the file is for 99% sure
      * moved. Map<from , to>
+     * <p>
+     * Both lists are indexed by size and modification date. If several files
+     * share these the ones with the same name (moved) or the same directory
+     * (renamed) are paired. Then by content, if the hashes of the deleted
+     * files are known (see {@link ContentHashCache}). Files still not clearly
+     * matched are reported as ambiguous instead of moved.
      */
     private void tryFindMovementsInCurrentScan() {
         if (Feature.CORRECT_MOVEMENT_DETECTION.isDisabled()) {
             return;
         }
-        for (FileInfo deletedFile : remaining.values()) {
-            long size = deletedFile.getSize();
-            long modificationDate = deletedFile.getModifiedDate().getTime();
+        Map<MoveKey, List<FileInfo>> newByKey = new HashMap<MoveKey, List<FileInfo>>();
+        synchronized (currentScanResult.newFiles) {
             for (FileInfo newFile : currentScanResult.newFiles) {
-                if (newFile.getSize() == size
-                    && newFile.getModifiedDate().getTime() == modificationDate)
+                if (newFile.isFile() && newFile.getSize() > 0) {
+                    add(newByKey, new MoveKey(newFile), newFile);
+                }
+            }
+        }
+        if (newByKey.isEmpty()) {
+            return;
+        }
+        Map<MoveKey, List<FileInfo>> deletedByKey = new HashMap<MoveKey, List<FileInfo>>();
+        for (FileInfo deletedFile : remaining.values()) {
+            if (!deletedFile.isFile() || deletedFile.isDeleted()) {
+                continue;
+            }
+            MoveKey key = new MoveKey(deletedFile);
+            if (newByKey.containsKey(key)) {
+                add(deletedByKey, key, deletedFile);
+            }
+        }
+        for (Map.Entry<MoveKey, List<FileInfo>> entry : deletedByKey
+            .entrySet())
+        {
+            List<FileInfo> from = entry.getValue();
+            List<FileInfo> to = new ArrayList<FileInfo>(newByKey.get(entry
+                .getKey()));
+            if (from.size() > 1 || to.size() > 1) {
+                pairMovements(from, to, false);
+                pairMovements(from, to, true);
+                if (contentHashes != null && !from.isEmpty() && !to.isEmpty())
                 {
-                    // possible movement detected
+                    pairMovementsByContent(from, to);
+                }
+            }
+            if (from.size() == 1 && to.size() == 1) {
+                addMovement(from.get(0), to.get(0));
+            } else if (!from.isEmpty() && !to.isEmpty()) {
+                for (FileInfo deletedFile : from) {
                     if (isFine()) {
-                        logFine("Movement from: " + deletedFile + " to: "
-                            + newFile);
+                        logFine("Ambiguous movement from: " + deletedFile
+                            + " to: " + to);
                     }
-                    currentScanResult.movedFiles.put(deletedFile, newFile);
+                    currentScanResult.ambiguousMovedFiles.put(deletedFile,
+                        Collections.unmodifiableList(to));
                 }
             }
         }
     }
 
+    /**
+     * Pairs deleted and new files, which are the only match for each other by
+     * filename or directory. Paired files are removed from the lists.
+     * 
+     * @param from
+     *            the deleted files
+     * @param to
+     *            the new files
+     * @param byDirectory
+     *            true to match by same directory (rename), false by same
+     *            filename (move)
+     */
+    private void pairMovements(List<FileInfo> from, List<FileInfo> to,
+        boolean byDirectory)
+    {
+        if (from.size() * to.size() > 10000) {
+            // Too many files of same size and date. Don't try.
+            return;
+        }
+        for (Iterator<FileInfo> it = from.iterator(); it.hasNext();) {
+            FileInfo deletedFile = it.next();
+            FileInfo match = findOnlyMatch(deletedFile, to, byDirectory);
+            if (match != null
+                && findOnlyMatch(match, from, byDirectory) == deletedFile)
+            {
+                addMovement(deletedFile, match);
+                it.remove();
+                to.remove(match);
+            }
+        }
+    }
+
+    /**
+     * Pairs deleted and new files with the same contents. Only uses the hashes
+     * already known, the files are not read during the scan. The hashes of
+     * moved files are found by their inode. Paired files are removed from the
+     * lists.
+     * 
+     * @param from
+     *            the deleted files
+     * @param to
+     *            the new files
+     */
+    private void pairMovementsByContent(List<FileInfo> from, List<FileInfo> to)
+    {
+        if (from.size() * to.size() > 10000) {
+            return;
+        }
+        Map<FileInfo, byte[]> fromHashes = new HashMap<FileInfo, byte[]>();
+        for (FileInfo deletedFile : from) {
+            byte[] md5 = contentHashes.getMD5(deletedFile);
+            if (md5 != null) {
+                fromHashes.put(deletedFile, md5);
+            }
+        }
+        if (fromHashes.isEmpty()) {
+            return;
+        }
+        Map<FileInfo, byte[]> toHashes = new HashMap<FileInfo, byte[]>();
+        for (FileInfo newFile : to) {
+            File diskFile = newFile.getDiskFile(getController()
+                .getFolderRepository());
+            byte[] md5 = contentHashes.getMD5(newFile.getRelativeName(),
+                diskFile);
+            Iterator<FileInfo> it = fromHashes.keySet().iterator();
+            while (md5 == null && it.hasNext()) {
+                md5 = contentHashes.getMD5OfMoved(it.next().getRelativeName(),
+                    diskFile);
+            }
+            if (md5 != null) {
+                toHashes.put(newFile, md5);
+            }
+        }
+        for (Map.Entry<FileInfo, byte[]> entry : fromHashes.entrySet()) {
+            FileInfo match = findOnlyMatch(entry.getValue(), toHashes);
+            if (match != null
+                && findOnlyMatch(toHashes.get(match), fromHashes) == entry
+                    .getKey())
+            {
+                addMovement(entry.getKey(), match);
+                from.remove(entry.getKey());
+                to.remove(match);
+            }
+        }
+    }
+
+    private static FileInfo findOnlyMatch(byte[] md5,
+        Map<FileInfo, byte[]> candidates)
+    {
+        FileInfo match = null;
+        for (Map.Entry<FileInfo, byte[]> candidate : candidates.entrySet()) {
+            if (Arrays.equals(md5, candidate.getValue())) {
+                if (match != null) {
+                    return null;
+                }
+                match = candidate.getKey();
+            }
+        }
+        return match;
+    }
+
+    private static FileInfo findOnlyMatch(FileInfo fInfo,
+        List<FileInfo> candidates, boolean byDirectory)
+    {
+        FileInfo match = null;
+        for (FileInfo candidate : candidates) {
+            boolean matches = byDirectory ? Util.equalsRelativeName(
+                getDirectoryName(fInfo), getDirectoryName(candidate)) : Util
+                .equalsRelativeName(fInfo.getFilenameOnly(),
+                    candidate.getFilenameOnly());
+            if (matches) {
+                if (match != null) {
+                    return null;
+                }
+                match = candidate;
+            }
+        }
+        return match;
+    }
+
+    /**
+     * Incremental scan: Takes over the known items of a directory, which did
+     * not change since the last scan, without listing it. The contents of the
+     * known files are not checked. Known subdirectories still need to be
+     * scanned, since a change in a subdirectory does not change the
+     * modification date of its parent.
+     * 
+     * @param dirName
+     *            the relative name of the unchanged directory
+     * @param result
+     *            the result to count the skipped items in
+     * @return the known subdirectories
+     */
+    private List<File> skipUnchangedDirectory(String dirName, ScanResult result)
+    {
+        List<FileInfo> known = knownByDirectory.get(dirName);
+        if (known == null) {
+            return new ArrayList<File>(0);
+        }
+        List<File> subDirs = new ArrayList<File>();
+        for (FileInfo fInfo : known) {
+            if (fInfo.isDeleted()) {
+                // Stays deleted
+                continue;
+            }
+            if (fInfo.isDiretory()) {
+                subDirs.add(fInfo.getDiskFile(getController()
+                    .getFolderRepository()));
+            } else {
+                remaining.remove(fInfo.getRelativeName());
+                result.incrementTotalFilesCount();
+            }
+        }
+        if (isFiner()) {
+            logFiner("Skipped unchanged directory '" + dirName + "' with "
+                + known.size() + " known items");
+        }
+        return subDirs;
+    }
+
+    private static String getDirectoryName(FileInfo fInfo) {
+        String name = fInfo.getRelativeName();
+        int i = name.lastIndexOf('/');
+        return i < 0 ? "" : name.substring(0, i);
+    }
+
+    private void addMovement(FileInfo deletedFile, FileInfo newFile) {
+        // possible movement detected
+        if (isFine()) {
+            logFine("Movement from: " + deletedFile + " to: " + newFile);
+        }
+        currentScanResult.movedFiles.put(deletedFile, newFile);
+    }
+
+    private static void add(Map<MoveKey, List<FileInfo>> map, MoveKey key,
+        FileInfo fInfo)
+    {
+        List<FileInfo> list = map.get(key);
+        if (list == null) {
+            list = new ArrayList<FileInfo>(1);
+            map.put(key, list);
+        }
+        list.add(fInfo);
+    }
+
     /**
      * scans a single file.
      * 
@@ -501,17 +879,20 @@ public class FolderScanner extends PFComponent {
      * @return true on success and false on IOError (disk failure or file
      *         removed in the meantime)
      */
-    private boolean scanFile(File fileToScan, String currentDirName) {
+    private boolean scanFile(File fileToScan, String currentDirName,
+        ScanResult result)
+    {
         Reject.ifNull(currentScanningFolder,
             "currentScanningFolder must not be null");
-        currentScanResult.incrementTotalFilesCount();
+        result.incrementTotalFilesCount();
         String filename;
         if (currentDirName.length() == 0) {
             filename = fileToScan.getName();
         } else {
             filename = currentDirName + '/' + fileToScan.getName();
         }
-        return scanDiskItem(fileToScan, FileInfoFactory.decodeIllegalChars(filename), false);
+        return scanDiskItem(fileToScan,
+            FileInfoFactory.decodeIllegalChars(filename), false, result);
     }
 
     /**
@@ -526,14 +907,17 @@ public class FolderScanner extends PFComponent {
      * @return true on success and false on IOError (disk failure or file
      *         removed in the meantime)
      */
-    private boolean scanDirectory(File dirToScan, String currentDirName) {
+    private boolean scanDirectory(File dirToScan, String currentDirName,
+        ScanResult result)
+    {
         Reject.ifNull(currentScanningFolder,
             "currentScanningFolder must not be null");
         if (isFiner()) {
             logFiner("Scanning subdir " + dirToScan + " / " + currentDirName);
         }
-        currentScanResult.incrementTotalFilesCount();
-        return scanDiskItem(dirToScan, FileInfoFactory.decodeIllegalChars(currentDirName), true);
+        result.incrementTotalFilesCount();
+        return scanDiskItem(dirToScan,
+            FileInfoFactory.decodeIllegalChars(currentDirName), true, result);
     }
 
     /**
@@ -545,21 +929,27 @@ public class FolderScanner extends PFComponent {
      *            The location the use when creating a FileInfo. This is that
      *            same for each file in the same directory and so not neccesary
      *            to "calculate" this per file.
+     * @param result
+     *            the result to add the scanned item to
      * @return true on success and false on IOError (disk failure or file
      *         removed in the meantime)
      */
     private boolean scanDiskItem(File fileToScan, String filename,
-        boolean directory)
+        boolean directory, ScanResult result)
     {
         Reject.ifNull(currentScanningFolder,
             "currentScanningFolder must not be null");
 
         // #1531 / #1804
         FileInfo exists = remaining.remove(filename);
-        if (exists == null && FileInfo.IGNORE_CASE) {
+        List<FileInfo> sameName = exists == null && ignoreCase
+            ? remainingFolded.remove(foldCase(filename))
+            : null;
+        if (sameName != null) {
             // Try harder, same file with the
-            for (FileInfo otherFInfo : remaining.values()) {
-                if (otherFInfo.getRelativeName().equalsIgnoreCase(filename)) {
+            for (FileInfo otherFInfo : sameName) {
+                // Only if not already found by exact name.
+                if (remaining.remove(otherFInfo.getRelativeName()) != null) {
                     if (isFiner()) {
                         logFiner("Found local diskfile with diffrent name-case in db. file: "
                             + fileToScan.getAbsolutePath()
@@ -576,7 +966,6 @@ public class FolderScanner extends PFComponent {
                     // + otherFInfo.toDetailString()
                     // + " Probably FolderInfo objects are not equal?");
                     // }
-                    remaining.remove(otherFInfo.getRelativeName());
                     exists = otherFInfo;
                 }
             }
@@ -594,7 +983,7 @@ public class FolderScanner extends PFComponent {
                                 + fileToScan.length() + ", lastMod: "
                                 + fileToScan.lastModified());
                         }
-                        currentScanResult.restoredFiles.add(restoredFile);
+                        result.restoredFiles.add(restoredFile);
                     }
                 } else {
                     FileInfo changedFile = exists.syncFromDiskIfRequired(
@@ -609,7 +998,7 @@ public class FolderScanner extends PFComponent {
                                 + fileToScan.length() + ", lastMod: "
                                 + fileToScan.lastModified());
                         }
-                        currentScanResult.changedFiles.add(changedFile);
+                        result.changedFiles.add(changedFile);
                     }
                 }
             } else {
@@ -617,7 +1006,7 @@ public class FolderScanner extends PFComponent {
                 FileInfo info = FileInfoFactory.newFile(currentScanningFolder,
                     fileToScan, getController().getMySelf().getInfo(),
                     directory);
-                currentScanResult.newFiles.add(info);
+                result.newFiles.add(info);
                 if (isFiner()) {
                     logFiner("New found: " + info.toDetailString());
                 }
@@ -629,6 +1018,25 @@ public class FolderScanner extends PFComponent {
         return true;
     }
 
+    /**
+     * Case folds a relative name. Two names match
+     * {@link String#equalsIgnoreCase(String)} if their folded names are equal.
+     * Also normalizes the unicode composition (NFC), since e.g. Mac OS X
+     * returns decomposed names from disk.
+     * 
+     * @param relativeName
+     * @return the folded name
+     */
+    static String foldCase(String relativeName) {
+        String normalized = Normalizer.normalize(relativeName,
+            Normalizer.Form.NFC);
+        char[] chars = normalized.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Character.toLowerCase(Character.toUpperCase(chars[i]));
+        }
+        return new String(chars);
+    }
+
     /**
      * calculates the subdir of this file relative to the location of the folder
      */
@@ -647,75 +1055,221 @@ public class FolderScanner extends PFComponent {
         return fileName;
     }
 
-    /** A Thread that scans a directory */
-    private class DirectoryCrawler implements Runnable {
-        private File root;
-        private boolean shutdown = false;
+    /**
+     * Size and modification date of a file to detect movements.
+     */
+    private static class MoveKey {
+        private final long size;
+        private final long modified;
+
+        private MoveKey(FileInfo fInfo) {
+            size = fInfo.getSize();
+            modified = fInfo.getModifiedDate().getTime();
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (size ^ (size >>> 32) ^ modified ^ (modified >>> 32));
+        }
 
-        private void scan(File aRoot) {
-            if (root != null) {
-                throw new IllegalStateException(
-                    "cannot scan 2 directories at once");
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof MoveKey)) {
+                return false;
             }
-            synchronized (this) {
-                root = aRoot;
-                notify();
+            MoveKey other = (MoveKey) obj;
+            return size == other.size && modified == other.modified;
+        }
+    }
+
+    /**
+     * The shared state of the DirectoryCrawlers of one scan.
+     */
+    private class Crawl {
+        /** The directories to scan, one queue per crawler */
+        private final List<LinkedBlockingDeque<File>> queues;
+        /** Directories queued or currently scanned */
+        private final AtomicInteger pending = new AtomicInteger();
+        private final int maxParallelism;
+        /** Crawlers with a lower index take work */
+        private volatile int parallelism;
+        /** Crawlers created, started when needed. Guarded by this. */
+        private int started;
+        private volatile int idleCrawlers;
+
+        // Throughput measurement
+        private final AtomicInteger scannedItems = new AtomicInteger();
+        private long windowStart = System.nanoTime();
+        private double lastRate;
+        private int direction = 1;
+
+        private Crawl(int maxParallelism, List<File> dirs) {
+            this.maxParallelism = maxParallelism;
+            parallelism = Math.min(2, maxParallelism);
+            queues = new ArrayList<LinkedBlockingDeque<File>>(maxParallelism);
+            for (int i = 0; i < maxParallelism; i++) {
+                queues.add(new LinkedBlockingDeque<File>());
+            }
+            for (int i = 0; i < dirs.size(); i++) {
+                pending.incrementAndGet();
+                queues.get(i % maxParallelism).add(dirs.get(i));
             }
         }
 
-        public void shutdown() {
-            shutdown = true;
-            synchronized (this) {
-                notify();
+        /**
+         * @return the next directory to scan by the crawler: The latest one
+         *         found by itself or the oldest one of another crawler. null
+         *         if nothing to do.
+         */
+        private File take(int index) {
+            if (index >= parallelism) {
+                return null;
             }
+            File dir = queues.get(index).pollFirst();
+            for (int i = 1; dir == null && i < queues.size(); i++) {
+                dir = queues.get((index + i) % queues.size()).pollLast();
+            }
+            return dir;
+        }
+
+        private void push(int index, File dir) {
+            pending.incrementAndGet();
+            queues.get(index).addFirst(dir);
+            if (idleCrawlers > 0) {
+                wakeUp();
+            }
+        }
+
+        private void done() {
+            if (pending.decrementAndGet() == 0) {
+                wakeUp();
+            }
+        }
+
+        private synchronized void wakeUp() {
+            notifyAll();
+        }
+
+        /**
+         * Waits until work gets pushed, the crawler may take work again, the
+         * crawl is done or another crawler stopped.
+         *
+         * @param index
+         *            of the crawler
+         */
+        private synchronized void idle(int index) {
+            idleCrawlers++;
+            try {
+                if (index < parallelism && hasQueued() || pending.get() == 0
+                    || abort || failure)
+                {
+                    return;
+                }
+                wait();
+            } catch (InterruptedException e) {
+                abort = true;
+            } finally {
+                idleCrawlers--;
+            }
+        }
+
+        private boolean hasQueued() {
+            for (LinkedBlockingDeque<File> queue : queues) {
+                if (!queue.isEmpty()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Counts scanned items. Adds a crawler while the throughput rises,
+         * removes one if it drops. Spinning disks don't profit from parallel
+         * access, while SSDs and network shares do.
+         */
+        private void scanned(int items) {
+            int before = scannedItems.getAndAdd(items);
+            if (maxParallelism > 1
+                && before / ADAPT_INTERVAL != (before + items) / ADAPT_INTERVAL)
+            {
+                adapt();
+            }
+        }
+
+        private synchronized void adapt() {
+            long now = System.nanoTime();
+            double rate = (double) ADAPT_INTERVAL / Math.max(now - windowStart, 1);
+            windowStart = now;
+            if (lastRate > 0 && rate < lastRate * 0.9) {
+                direction = -direction;
+            }
+            lastRate = rate;
+            parallelism = Math.max(1,
+                Math.min(maxParallelism, parallelism + direction));
+            if (parallelism > started) {
+                if (startCrawler(new DirectoryCrawler(this, started))) {
+                    started++;
+                } else {
+                    parallelism = started;
+                }
+            }
+            // Parked crawlers may take work again
+            notifyAll();
+            if (isFiner()) {
+                logFiner("Scanning " + currentScanningFolder + " with "
+                    + parallelism + " crawlers");
+            }
+        }
+    }
+
+    /** Scans directories of a {@link Crawl} */
+    private class DirectoryCrawler implements Runnable {
+        private final Crawl crawl;
+        private final int index;
+        /** The partial result, merged on finish */
+        private final ScanResult result = new ScanResult(true);
+
+        private DirectoryCrawler(Crawl crawl, int index) {
+            this.crawl = crawl;
+            this.index = index;
         }
 
         public void run() {
-            while (true) {
-                try {
-                    while (root == null) {
-                        synchronized (this) {
-                            if (root != null) {
-                                // Make sure that we don't wait with root!
-                                continue;
-                            }
-                            try {
-                                wait();
-                                if (shutdown) {
-                                    return;
-                                }
-                            } catch (InterruptedException e) {
-                                logFiner(e.getMessage());
-                                return;
-                            }
+            try {
+                while (!abort && !failure) {
+                    File dir = crawl.take(index);
+                    if (dir == null) {
+                        if (crawl.pending.get() == 0) {
+                            break;
                         }
+                        crawl.idle(index);
+                        continue;
                     }
-                    if (!scanDir(root)) {
-                        // hardware failure
-                        failure = true;
-                    }
-                    root = null;
-
-                    synchronized (directoryCrawlersPool) {
-                        activeDirectoryCrawlers.remove(this);
-                        directoryCrawlersPool.add(this);
-                    }
-
-                } catch (RuntimeException e) {
-                    logSevere("Folder scanner crashed! " + e, e);
-                    failure = true;
-                } finally {
-                    // scan of this directory is ready, notify FolderScanner we
-                    // are ready for the next folder.
-                    synchronized (FolderScanner.this) {
-                        FolderScanner.this.notify();
+                    try {
+                        if (!scanDir(dir)) {
+                            // hardware failure
+                            failure = true;
+                        }
+                    } finally {
+                        crawl.done();
                     }
                 }
+            } catch (RuntimeException e) {
+                logSevere("Folder scanner crashed! " + e, e);
+                failure = true;
+            } finally {
+                currentScanResult.addAll(result);
+                // Idle crawlers stop too on abort or failure
+                crawl.wakeUp();
+                synchronized (FolderScanner.this) {
+                    activeDirectoryCrawlers.remove(this);
+                    FolderScanner.this.notifyAll();
+                }
             }
         }
 
         /**
-         * Scans a directory, will recurse into subdirectories
+         * Scans a directory. Subdirectories are queued for scanning.
          * 
          * @param dirToScan
          *            The directory to scan
@@ -733,7 +1287,22 @@ public class FolderScanner extends PFComponent {
             } catch (InterruptedException e) {
                 throw new RuntimeException(e);
             }
-            scanDirectory(dirToScan, currentDirName);
+            scanDirectory(dirToScan, currentDirName, result);
+            String dirName = FileInfoFactory.decodeIllegalChars(currentDirName);
+            // Before listing: Changes while listing cause another listing on
+            // the next scan.
+            long lastModified = recordStamps != null
+                ? dirToScan.lastModified()
+                : 0;
+            if (skipStamps != null
+                && skipStamps.isUnchanged(dirName, lastModified))
+            {
+                for (File subDir : skipUnchangedDirectory(dirName, result)) {
+                    crawl.push(index, subDir);
+                }
+                crawl.scanned(1);
+                return true;
+            }
             File[] files = dirToScan.listFiles();
             if (files == null) { // hardware failure
                 boolean deviceDisconnected = currentScanningFolder
@@ -748,9 +1317,6 @@ public class FolderScanner extends PFComponent {
                 unableToScanFiles.add(dirToScan);
                 return true;
             }
-            if (files.length == 0) {
-                return true;
-            }
             for (File subFile : files) {
                 if (failure) {
                     return false;
@@ -762,7 +1328,7 @@ public class FolderScanner extends PFComponent {
                     if (FileUtils.isScannable(subFile,
                         currentScanningFolder.getInfo()))
                     {
-                        if (!scanFile(subFile, currentDirName)) {
+                        if (!scanFile(subFile, currentDirName, result)) {
                             // hardware failure
                             failure = true;
                             return false;
@@ -772,11 +1338,7 @@ public class FolderScanner extends PFComponent {
                     if (FileUtils.isScannable(subFile,
                         currentScanningFolder.getInfo()))
                     {
-                        if (!scanDir(subFile)) {
-                            // hardware failure
-                            failure = true;
-                            return false;
-                        }
+                        crawl.push(index, subFile);
                     }
                 } else {
                     boolean deviceDisconnected = currentScanningFolder
@@ -792,6 +1354,10 @@ public class FolderScanner extends PFComponent {
                     unableToScanFiles.add(subFile);
                 }
             }
+            if (recordStamps != null && lastModified > 0 && !abort) {
+                result.directoryStamps.put(dirName, lastModified);
+            }
+            crawl.scanned(files.length + 1);
             return true;
         }
     }
@@ -57,6 +57,9 @@ public class FolderSettings {
     public static final String FOLDER_SETTINGS_VERSIONS = ".versions";
     public static final String FOLDER_SETTINGS_SYNC_PATTERNS = ".sync-patterns";
     public static final String FOLDER_SETTINGS_SYNC_WARN_SECONDS = ".sync-warn-seconds";
+    public static final String FOLDER_SETTINGS_DAO = ".dao";
+    public static final String FOLDER_SETTINGS_SCAN_INCREMENTAL = ".scan-incremental";
+    public static final String FOLDER_SETTINGS_SCAN_HASH = ".scan-hash";
 
     public static final String FOLDER_ID_GENERATE = "$generate";
     public static final String FOLDER_ID_FROM_ACCOUNT = "$fromAccount";
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2004 - 2013 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import de.dal33t.powerfolder.Controller;
+import de.dal33t.powerfolder.PFComponent;
+
+/**
+ * Pure Java backend of the {@link FolderWatcher} based on the WatchService of
+ * Java 7. One service and one thread are shared by all folders, since e.g. the
+ * number of inotify instances per user is limited on Linux.
+ * <p>
+ * The implementation NioFolderWatchService is in src/java7. It only gets
+ * compiled by a JDK 7+ and is loaded by reflection, so PowerFolder still
+ * builds and runs on Java 6.
+ */
+public abstract class FolderWatchService extends PFComponent {
+
+    private static final Logger log = Logger.getLogger(FolderWatchService.class
+        .getName());
+
+    private static final String IMPL_CLASS = "de.dal33t.powerfolder.disk.NioFolderWatchService";
+
+    private static Boolean SUPPORTED;
+
+    protected FolderWatchService(Controller controller) {
+        super(controller);
+    }
+
+    /**
+     * @return true if the WatchService is available (Java 7+) and the
+     *         implementation got compiled.
+     */
+    public synchronized static boolean isSupported() {
+        if (SUPPORTED == null) {
+            try {
+                Class.forName("java.nio.file.WatchService");
+                Class.forName(IMPL_CLASS);
+                SUPPORTED = true;
+            } catch (ClassNotFoundException e) {
+                SUPPORTED = false;
+            } catch (LinkageError e) {
+                SUPPORTED = false;
+            }
+        }
+        return SUPPORTED;
+    }
+
+    /**
+     * @param controller
+     * @return the NIO implementation or null if not supported.
+     */
+    static FolderWatchService create(Controller controller) {
+        if (!isSupported()) {
+            return null;
+        }
+        try {
+            Class<?> c = Class.forName(IMPL_CLASS);
+            return (FolderWatchService) c.getDeclaredConstructor(
+                Controller.class).newInstance(controller);
+        } catch (Exception e) {
+            log.log(Level.SEVERE, "Unable to create filesystem watch service. "
+                + e, e);
+            return null;
+        }
+    }
+
+    /**
+     * Starts watching all directories of the folder. Registration happens in
+     * the background.
+     *
+     * @param watcher
+     *            the watcher to report changes to.
+     * @throws IOException
+     *             if the service could not be started.
+     */
+    abstract void watch(FolderWatcher watcher) throws IOException;
+
+    /**
+     * Stops watching the directories of the folder.
+     *
+     * @param watcher
+     */
+    abstract void unwatch(FolderWatcher watcher);
+
+    /**
+     * Stops the service and all watches.
+     */
+    abstract void shutdown();
+}
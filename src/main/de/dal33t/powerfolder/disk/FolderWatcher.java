@@ -19,10 +19,11 @@
  */
 package de.dal33t.powerfolder.disk;
 
-import java.util.LinkedList;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.TimerTask;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReentrantLock;
@@ -32,6 +33,8 @@ import net.contentobjects.jnotify.JNotifyException;
 import net.contentobjects.jnotify.JNotifyListener;
 import de.dal33t.powerfolder.ConfigurationEntry;
 import de.dal33t.powerfolder.PFComponent;
+import de.dal33t.powerfolder.disk.problem.Problem;
+import de.dal33t.powerfolder.disk.problem.WatchLimitProblem;
 import de.dal33t.powerfolder.light.FileInfo;
 import de.dal33t.powerfolder.light.FileInfoFactory;
 import de.dal33t.powerfolder.util.FileUtils;
@@ -42,6 +45,12 @@ import de.dal33t.powerfolder.util.os.OSUtil;
 /**
  * TRAC #711: Automatic change detection by watching the filesystem.
  * <p>
+ * Uses the native JNotify library or the pure Java {@link FolderWatchService},
+ * see {@link ConfigurationEntry#FOLDER_WATCHER_BACKEND}. Changes are coalesced:
+ * The changed files are scanned after no change occurred for
+ * {@link ConfigurationEntry#FOLDER_WATCHER_DELAY} seconds. Bursts of changes
+ * (unzip, build output) are scanned in batches.
+ * <p>
  * Does NOT watch Meta Folders.
  * 
  * @author sprajc
@@ -51,9 +60,26 @@ public class FolderWatcher extends PFComponent {
     private static final boolean UNREGISTER_WATCHERS = true;
     private static Boolean LIB_LOADED;
 
+    /**
+     * Maximum number of changed files scanned at once.
+     */
+    private static final int MAX_BATCH_SIZE = 1000;
+
+    /**
+     * While changes keep coming the scan is postponed up to this number of
+     * delays.
+     */
+    private static final int MAX_DELAYS = 10;
+
     private Folder folder;
     private int watchID = -1;
     private NotifyListener listener;
+    /** Not null if watched by the {@link FolderWatchService} */
+    private FolderWatchService watchService;
+    private volatile boolean watchLimitReached;
+    /** The times of the first and latest change not scanned yet */
+    private volatile long firstChange;
+    private volatile long lastChange;
     private Map<String, FileInfo> dirtyFiles = Util.createConcurrentHashMap();
     private volatile boolean ignoreAll;
     private Map<FileInfo, FileInfo> ignoreFiles = Util
@@ -71,7 +97,48 @@ public class FolderWatcher extends PFComponent {
 
     public boolean isSupported() {
         return ConfigurationEntry.FOLDER_WATCHER_ENABLED
-            .getValueBoolean(getController()) && isLibLoaded();
+            .getValueBoolean(getController())
+            && (useWatchService() || isLibLoaded());
+    }
+
+    /**
+     * @return true if changes in all directories of the folder are currently
+     *         detected.
+     */
+    public boolean isWatching() {
+        return (watchID >= 0 || watchService != null) && !watchLimitReached;
+    }
+
+    /**
+     * @return true if the system refused to watch all directories of the
+     *         folder. Changes are detected by (incremental) scans only.
+     */
+    public boolean isWatchLimitReached() {
+        return watchLimitReached;
+    }
+
+    Folder getFolder() {
+        return folder;
+    }
+
+    /**
+     * @return true if the pure Java {@link FolderWatchService} should be used
+     *         instead of JNotify.
+     */
+    private boolean useWatchService() {
+        if (!FolderWatchService.isSupported()) {
+            return false;
+        }
+        String backend = ConfigurationEntry.FOLDER_WATCHER_BACKEND
+            .getValue(getController());
+        if ("nio".equalsIgnoreCase(backend)) {
+            return true;
+        }
+        if ("jnotify".equalsIgnoreCase(backend)) {
+            return false;
+        }
+        // Auto. The WatchService of Mac OS X only polls.
+        return OSUtil.isLinux() || !OSUtil.isMacOS() && !isLibLoaded();
     }
 
     /**
@@ -138,7 +205,18 @@ public class FolderWatcher extends PFComponent {
     }
 
     synchronized void remove() {
-        if (!isLibLoaded()) {
+        if (watchService != null) {
+            watchService.unwatch(this);
+            watchService = null;
+        }
+        if (watchLimitReached) {
+            watchLimitReached = false;
+            Problem problem = new WatchLimitProblem(folder.getInfo());
+            if (folder.getProblems().contains(problem)) {
+                folder.removeProblem(problem);
+            }
+        }
+        if (watchID < 0 || !isLibLoaded()) {
             return;
         }
         if (watchID >= 0) {
@@ -186,6 +264,25 @@ public class FolderWatcher extends PFComponent {
         }
         delay = 1000L * ConfigurationEntry.FOLDER_WATCHER_DELAY
             .getValueInt(getController());
+        remove();
+        if (useWatchService()) {
+            FolderWatchService service = getController().getFolderRepository()
+                .getFolderWatchService();
+            if (service == null) {
+                return;
+            }
+            try {
+                service.watch(this);
+                watchService = service;
+                logFine("Initialized filesystem watch service on " + path
+                    + " / " + folder);
+            } catch (IOException e) {
+                logSevere("Unable to initialize filesystem watch for "
+                    + folder + ". " + e);
+                logFiner(e);
+            }
+            return;
+        }
         boolean watchSubtree = true;
         try {
             watchID = JNotify.addWatch(path, JNotify.FILE_ANY, watchSubtree,
@@ -199,6 +296,121 @@ public class FolderWatcher extends PFComponent {
         }
     }
 
+    /**
+     * Called by the {@link FolderWatchService} if the system refuses to watch
+     * more directories. Reports a problem and falls back to scanning.
+     */
+    void watchLimitReached() {
+        if (watchLimitReached) {
+            return;
+        }
+        watchLimitReached = true;
+        logWarning("Unable to watch all directories of " + folder
+            + ". System limit reached. Falling back to incremental scans");
+        Problem problem = new WatchLimitProblem(folder.getInfo());
+        if (!folder.getProblems().contains(problem)) {
+            folder.addProblem(problem);
+        }
+        folder.recommendScanOnNextMaintenance();
+    }
+
+    /**
+     * Called if the system dropped change events.
+     */
+    void eventsLost() {
+        logFine("Filesystem events lost. Scanning folder " + folder);
+        folder.recommendScanOnNextMaintenance();
+    }
+
+    /**
+     * Enqueues a changed file or directory for scanning.
+     * 
+     * @param rawName
+     *            the name relative to the base directory of the folder.
+     */
+    void fileChanged(String rawName) {
+        if (watchID < 0 && watchService == null) {
+            // Illegal / Useless
+            return;
+        }
+        if (!isSupported()) {
+            // No supported
+            return;
+        }
+        if (!folder.scanAllowedNow()) {
+            // Not allowed
+            return;
+        }
+        String name = rawName;
+        if (!FileUtils.isScannable(name, folder.getInfo())) {
+            return;
+        }
+        if (ignoreAll) {
+            return;
+        }
+        if (OSUtil.isMacOS() && name.contains("?")) {
+            // Skip
+            return;
+        }
+        // For linux
+        if (name.endsWith("/")) {
+            name = name.substring(0, name.length() - 1);
+        }
+        name = FileInfoFactory.decodeIllegalChars(name);
+        DirectoryStamps stamps = folder.getDirectoryStamps();
+        if (stamps != null) {
+            // Incremental scan: Content changes don't touch the directory
+            stamps.invalidate(lookupInstance(name).getRelativeName());
+        }
+        long now = System.currentTimeMillis();
+        lastChange = now;
+        if (dirtyFiles.containsKey(name)) {
+            // Skipping already dirty file
+            return;
+        }
+        try {
+            FileInfo lookup = lookupInstance(name);
+            if (ignoreFiles.containsKey(lookup)) {
+                // Skipping ignored file
+                return;
+            }
+            if (dirtyFiles.isEmpty()) {
+                firstChange = now;
+            }
+            dirtyFiles.put(name, lookup);
+            scheduleScan(delay);
+        } catch (Exception e) {
+            logSevere("Unable to enqueue changed file for scan: " + name
+                + ". " + e, e);
+        }
+    }
+
+    private FileInfo lookupInstance(String rawName) {
+        String name = rawName;
+        if (name.contains("\\")) {
+            name = name.replace('\\', '/');
+        }
+        if (name.contains("//")) {
+            name = name.replace("//", "/");
+        }
+        if (name.startsWith("/")) {
+            name = name.substring(1);
+        }
+        return FileInfoFactory.lookupInstance(folder.getInfo(), name);
+    }
+
+    private void scheduleScan(long delayMillis) {
+        if (scheduled.compareAndSet(false, true)) {
+            getController().schedule(new Runnable() {
+                public void run() {
+                    scheduled.set(false);
+                    getController().getIOProvider().startIO(
+                        new DirtyFilesScanner());
+                }
+            }, Math.max(delayMillis, 10L));
+        }
+    }
+
     // Logger methods *********************************************************
 
     @Override
@@ -209,148 +421,104 @@ public class FolderWatcher extends PFComponent {
     private class DirtyFilesScanner implements Runnable {
 
         public void run() {
-            if (!scannerLock.tryLock()) {
-                // Already locked
-                return;
-            }
             if (dirtyFiles.isEmpty()) {
                 return;
             }
             if (ignoreAll) {
                 return;
             }
+            // Coalesce bursts: Wait until the changes calm down, but not
+            // forever.
+            long now = System.currentTimeMillis();
+            long quiet = now - lastChange;
+            if (quiet < delay && now - firstChange < MAX_DELAYS * delay) {
+                scheduleScan(delay - quiet);
+                return;
+            }
+            if (!scannerLock.tryLock()) {
+                // Already locked. Try again later.
+                scheduleScan(delay);
+                return;
+            }
             FileInfo dirtyFile = null;
+            int scanned = 0;
             try {
-                List<FileInfo> fileInfos = new LinkedList<FileInfo>();
                 if (folder.checkIfDeviceDisconnected()) {
                     logFine("Device disconnected while scanning " + folder
                         + ": " + folder.getLocalBase());
                     dirtyFiles.clear();
                     return;
                 }
-                for (Entry<String, FileInfo> entry : dirtyFiles.entrySet()) {
-                    dirtyFile = entry.getValue();
+                List<FileInfo> fileInfos = new ArrayList<FileInfo>(Math.min(
+                    dirtyFiles.size(), MAX_BATCH_SIZE));
+                for (Iterator<FileInfo> it = dirtyFiles.values().iterator(); it
+                    .hasNext();)
+                {
+                    dirtyFile = it.next();
                     if (ignoreAll) {
                         return;
                     }
+                    // Remove one by one. Changes from now on stay dirty.
+                    it.remove();
                     if (ignoreFiles.containsKey(dirtyFile)) {
                         // Ignore.
                         continue;
                     }
                     fileInfos.add(dirtyFile);
-                }
-                dirtyFiles.clear();
-                if (!fileInfos.isEmpty()) {
-                    folder.scanChangedFiles(fileInfos);
-                    for (FileInfo fileInfo : fileInfos) {
-                        if (!fileInfo.isLookupInstance()
-                            && fileInfo.isDiretory())
-                        {
-                            folder.recommendScanOnNextMaintenance();
-                        }
+                    if (fileInfos.size() >= MAX_BATCH_SIZE) {
+                        scanned += scan(fileInfos);
+                        fileInfos = new ArrayList<FileInfo>(MAX_BATCH_SIZE);
                     }
                 }
-                if (fileInfos.size() > 0 && isFine()) {
-                    logFine("Scanned " + fileInfos.size() + " changed files");
+                scanned += scan(fileInfos);
+                if (scanned > 0 && isFine()) {
+                    logFine("Scanned " + scanned + " changed files");
                 }
             } catch (Exception e) {
                 logSevere("Unable to scan changed file: " + dirtyFile + ". "
                     + e, e);
             } finally {
                 scannerLock.unlock();
+                if (!dirtyFiles.isEmpty() && !ignoreAll) {
+                    // Changed while scanning
+                    firstChange = System.currentTimeMillis();
+                    scheduleScan(delay);
+                }
             }
         }
 
+        private int scan(List<FileInfo> fileInfos) {
+            if (fileInfos.isEmpty()) {
+                return 0;
+            }
+            folder.scanChangedFiles(fileInfos);
+            for (FileInfo fileInfo : fileInfos) {
+                if (!fileInfo.isLookupInstance() && fileInfo.isDiretory()) {
+                    folder.recommendScanOnNextMaintenance();
+                }
+            }
+            return fileInfos.size();
+        }
     }
 
     private class NotifyListener implements JNotifyListener {
         public void fileRenamed(int wd, String rootPath, String oldName,
             String newName)
         {
-            fileChanged(rootPath, oldName);
-            fileChanged(rootPath, newName);
+            fileChanged(oldName);
+            fileChanged(newName);
         }
 
         public void fileModified(int wd, String rootPath, String name) {
-            fileChanged(rootPath, name);
+            fileChanged(name);
         }
 
         public void fileDeleted(int wd, String rootPath, String name) {
-            fileChanged(rootPath, name);
+            fileChanged(name);
         }
 
         public void fileCreated(int wd, String rootPath, String name) {
-            fileChanged(rootPath, name);
-        }
-
-        private void fileChanged(String rootPath, String name) {
-            if (watchID < 0) {
-                // Illegal / Useless
-                return;
-            }
-            if (!isSupported()) {
-                // No supported
-                return;
-            }
-            if (!folder.scanAllowedNow()) {
-                // Not allowed
-                return;
-            }
-            if (!FileUtils.isScannable(name, folder.getInfo())) {
-                return;
-            }
-            if (ignoreAll) {
-                return;
-            }
-            if (OSUtil.isMacOS() && name.contains("?")) {
-                // Skip
-                return;
-            }
-            // For linux
-            if (name.endsWith("/")) {
-                name = name.substring(0, name.length() - 1);
-            }
-            name = FileInfoFactory.decodeIllegalChars(name);
-            if (dirtyFiles.containsKey(name)) {
-                // Skipping already dirty file
-                return;
-            }
-            try {
-                FileInfo lookup = lookupInstance(rootPath, name);
-                if (ignoreFiles.containsKey(lookup)) {
-                    // Skipping ignored file
-                    return;
-                }
-                dirtyFiles.put(name, lookup);
-                if (!scannerLock.isLocked()) {
-                    if (scheduled.compareAndSet(false, true)) {
-                        getController().schedule(new Runnable() {
-                            public void run() {
-                                getController().getIOProvider().startIO(
-                                    new DirtyFilesScanner());
-                                scheduled.set(false);
-                            }
-                        }, delay);
-                    }
-                }
-            } catch (Exception e) {
-                logSevere("Unable to enqueue changed file for scan: "
-                    + rootPath + ", " + name + ". " + e, e);
-            }
-        }
-
-        private FileInfo lookupInstance(String rootPath, String rawName) {
-            String name = rawName;
-            if (name.contains("\\")) {
-                name = name.replace('\\', '/');
-            }
-            if (name.contains("//")) {
-                name = name.replace("//", "/");
-            }
-            if (name.startsWith("/")) {
-                name = name.substring(1);
-            }
-            return FileInfoFactory.lookupInstance(folder.getInfo(), name);
+            fileChanged(name);
         }
     }
 
@@ -50,6 +50,7 @@ public class ScanResult {
     Collection<FileInfo> deletedFiles;
     /** from, to */
     Map<FileInfo, FileInfo> movedFiles;
+    Map<FileInfo, List<FileInfo>> ambiguousMovedFiles;
     /**
      * Files that where marked deleted in the database but are available on disk
      * are collected here.
@@ -61,6 +62,15 @@ public class ScanResult {
     
     private volatile int totalFilesCount;
 
+    /**
+     * Relative directory name -> modification date. The directories
+     * completely listed by the scan. See {@link DirectoryStamps}
+     */
+    Map<String, Long> directoryStamps;
+
+    /** All directories have been listed */
+    boolean fullScan = true;
+
     public ScanResult(ResultState result) {
         this(false);
         Reject.ifNull(result, "Result state is null");
@@ -77,10 +87,14 @@ public class ScanResult {
                 .synchronizedList(new ArrayList<FileInfo>());
             movedFiles = Collections
                 .synchronizedMap(new HashMap<FileInfo, FileInfo>());
+            ambiguousMovedFiles = Collections
+                .synchronizedMap(new HashMap<FileInfo, List<FileInfo>>());
             restoredFiles = Collections
                 .synchronizedList(new ArrayList<FileInfo>());
             problemFiles = Collections
                 .synchronizedMap(new HashMap<FileInfo, List<Problem>>());
+            directoryStamps = Collections
+                .synchronizedMap(new HashMap<String, Long>());
         }
     }
 
@@ -111,6 +125,14 @@ public class ScanResult {
         return Collections.unmodifiableMap(movedFiles);
     }
 
+    /**
+     * @return the deleted files, which might have been moved to one of
+     *         several new files with same size and modification date.
+     */
+    public Map<FileInfo, List<FileInfo>> getAmbiguousMovedFiles() {
+        return Collections.unmodifiableMap(ambiguousMovedFiles);
+    }
+
     // public void setMovedFiles(Map<FileInfo, FileInfo> movedFiles) {
     // this.movedFiles = new HashMap<FileInfo, FileInfo>(movedFiles);
     // }
@@ -165,6 +187,39 @@ public class ScanResult {
         this.resultState = resultState;
     }
 
+    /**
+     * Adds the result of a partial scan.
+     * 
+     * @param other
+     */
+    synchronized void addAll(ScanResult other) {
+        newFiles.addAll(other.newFiles);
+        changedFiles.addAll(other.changedFiles);
+        deletedFiles.addAll(other.deletedFiles);
+        movedFiles.putAll(other.movedFiles);
+        ambiguousMovedFiles.putAll(other.ambiguousMovedFiles);
+        restoredFiles.addAll(other.restoredFiles);
+        problemFiles.putAll(other.problemFiles);
+        directoryStamps.putAll(other.directoryStamps);
+        totalFilesCount += other.totalFilesCount;
+    }
+
+    /**
+     * @return the modification dates of the directories completely listed by
+     *         the scan.
+     */
+    public Map<String, Long> getDirectoryStamps() {
+        return Collections.unmodifiableMap(directoryStamps);
+    }
+
+    /**
+     * @return true if all directories have been listed. false if unchanged
+     *         directories have been skipped by an incremental scan.
+     */
+    public boolean isFullScan() {
+        return fullScan;
+    }
+
     public void incrementTotalFilesCount() {
             totalFilesCount++;
     }
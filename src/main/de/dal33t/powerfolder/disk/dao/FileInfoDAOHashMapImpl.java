@@ -3,7 +3,10 @@ package de.dal33t.powerfolder.disk.dao;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
@@ -28,6 +31,18 @@ public class FileInfoDAOHashMapImpl extends Loggable implements FileInfoDAO {
     private final ConcurrentMap<String, Domain> domains = Util
         .createConcurrentHashMap(4);
 
+    /**
+     * The newest valid version of each item over all domains. Guarded by
+     * itself. The lock also guards the statistics of all {@link Domain}s.
+     */
+    private final Map<FileInfo, FileInfo> newestVersions = new HashMap<FileInfo, FileInfo>();
+
+    /**
+     * {@link DiskItemFilter#getModCount()} the statistics have been calculated
+     * with.
+     */
+    private int statsFilterModCount;
+
     private String selfDomain;
     private DiskItemFilter filter;
 
@@ -38,104 +53,95 @@ public class FileInfoDAOHashMapImpl extends Loggable implements FileInfoDAO {
         if (filter == null) {
             this.filter = new DiskItemFilter();
         }
+        statsFilterModCount = this.filter.getModCount();
     }
 
     public int count(String domain, boolean includeDirs, boolean excludeIgnored)
     {
         Domain d = getDomain(domain);
-        if (excludeIgnored) {
-            int c = 0;
-            for (FileInfo fInfo : d.files.keySet()) {
-                if (filter.isRetained(fInfo) && !fInfo.isDeleted()) {
-                    c++;
-                }
-            }
-            if (includeDirs) {
-                for (FileInfo dInfo : d.directories.keySet()) {
-                    if (filter.isRetained(dInfo) && !dInfo.isDeleted()) {
-                        c++;
-                    }
-                }
-            }
-            return c;
-        } else {
+        if (!excludeIgnored) {
             return d.files.size() + (includeDirs ? d.directories.size() : 0);
         }
+        synchronized (newestVersions) {
+            validateStats();
+            return d.retainedFiles + (includeDirs ? d.retainedDirs : 0);
+        }
     }
 
     public int countInSync(String domain, boolean includeDirs,
         boolean excludeIgnored)
     {
         Domain d = getDomain(domain);
-        int c = 0;
-        for (FileInfo fInfo : d.files.values()) {
-            if (filter.isExcluded(fInfo) || fInfo.isDeleted()) {
-                continue;
-            }
-            FileInfo newestFileInfo = findNewestVersion(fInfo, domains.keySet());
-            if (inSync(fInfo, newestFileInfo)) {
-                c++;
-            }
-        }
-        if (includeDirs) {
-            for (FileInfo fInfo : d.directories.values()) {
-                if (filter.isExcluded(fInfo) || fInfo.isDeleted()) {
-                    continue;
-                }
-                FileInfo newestFileInfo = findNewestVersion(fInfo,
-                    domains.keySet());
-                if (inSync(fInfo, newestFileInfo)) {
-                    c++;
-                }
-            }
+        synchronized (newestVersions) {
+            validateStats();
+            return d.inSyncFiles + (includeDirs ? d.inSyncDirs : 0);
         }
-        return c;
     }
 
     public long bytesInSync(String domain) {
         Domain d = getDomain(domain);
-        long bytes = 0;
-        for (FileInfo fInfo : d.files.values()) {
-            if (filter.isExcluded(fInfo) || fInfo.isDeleted()) {
-                continue;
-            }
-            FileInfo newestFileInfo = findNewestVersion(fInfo, domains.keySet());
-            if (inSync(fInfo, newestFileInfo)) {
-                bytes += fInfo.getSize();
-            }
+        synchronized (newestVersions) {
+            validateStats();
+            return d.bytesInSync;
         }
-        return bytes;
     }
 
     private static boolean inSync(FileInfo fileInfo, FileInfo newestFileInfo) {
-        if (newestFileInfo == null) {
-            // It is intended not to use Reject.ifNull for performance reasons.
-            throw new NullPointerException("Newest FileInfo not found of "
-                + fileInfo.toDetailString());
-        }
-        if (fileInfo == null) {
+        if (newestFileInfo == null || fileInfo == null) {
             return false;
         }
         return !newestFileInfo.isNewerThan(fileInfo);
     }
 
     public void delete(String domain, FileInfo info) {
-        if (info.isFile()) {
-            getDomain(domain).files.remove(info);
-        } else {
-            logWarning("Deleting directory: " + info.toDetailString());
-            getDomain(domain).directories.remove(info);
+        Domain d = getDomain(domain);
+        synchronized (newestVersions) {
+            FileInfo removed;
+            if (info.isFile()) {
+                removed = d.files.remove(info);
+            } else {
+                logWarning("Deleting directory: " + info.toDetailString());
+                removed = d.directories.remove(info);
+            }
+            d.unindex(info);
+            if (removed == null) {
+                return;
+            }
+            FileInfo newest = newestVersions.get(info);
+            updateStats(d, removed, newest, -1);
+            if (removed == newest) {
+                newestChanged(info, newest,
+                    findNewestVersion(info, domains.keySet()), d);
+            }
         }
     }
 
     public void deleteDomain(String domain, int newInitialSize) {
         String theDomain = StringUtils.isBlank(domain) ? selfDomain : domain;
-        domains.remove(theDomain);
-        if (newInitialSize > 0) {
-            domains.put(theDomain, new Domain(newInitialSize));
-            if (isFiner()) {
-                logFiner("Created new domain (" + theDomain
-                    + ") with initial capacity " + newInitialSize);
+        synchronized (newestVersions) {
+            Domain removed = domains.remove(theDomain);
+            if (newInitialSize > 0) {
+                domains.put(theDomain, new Domain(newInitialSize));
+                if (isFiner()) {
+                    logFiner("Created new domain (" + theDomain
+                        + ") with initial capacity " + newInitialSize);
+                }
+            }
+            if (removed == null) {
+                return;
+            }
+            // Newest versions held by the removed domain are gone.
+            for (FileInfo fInfo : removed.files.values()) {
+                if (newestVersions.get(fInfo) == fInfo) {
+                    newestChanged(fInfo, fInfo,
+                        findNewestVersion(fInfo, domains.keySet()), null);
+                }
+            }
+            for (FileInfo dInfo : removed.directories.values()) {
+                if (newestVersions.get(dInfo) == dInfo) {
+                    newestChanged(dInfo, dInfo,
+                        findNewestVersion(dInfo, domains.keySet()), null);
+                }
             }
         }
     }
@@ -148,6 +154,7 @@ public class FileInfoDAOHashMapImpl extends Loggable implements FileInfoDAO {
         return getDomain(domain).directories.get(info);
     }
 
+    @Deprecated
     public Collection<FileInfo> findAllFiles(String domain) {
         return Collections.unmodifiableCollection(getDomain(domain).files
             .values());
@@ -193,7 +200,10 @@ public class FileInfoDAOHashMapImpl extends Loggable implements FileInfoDAO {
     }
 
     public void stop() {
-        domains.clear();
+        synchronized (newestVersions) {
+            domains.clear();
+            newestVersions.clear();
+        }
     }
 
     public void store(String domain, FileInfo... infos) {
@@ -203,23 +213,36 @@ public class FileInfoDAOHashMapImpl extends Loggable implements FileInfoDAO {
     public void store(String domain, Collection<FileInfo> infos) {
         Domain d = getDomain(domain);
 
-        for (FileInfo fileInfo : infos) {
-            if (fileInfo.isFile()) {
-                d.files.put(fileInfo, fileInfo);
-                // Make sure not dir is left with name name.
-                d.directories.remove(fileInfo);
-            } else {
-                if (isFiner()) {
-                    logFiner("Storing directory: " + fileInfo.toDetailString());
+        synchronized (newestVersions) {
+            for (FileInfo fileInfo : infos) {
+                FileInfo previous;
+                if (fileInfo.isFile()) {
+                    previous = d.files.put(fileInfo, fileInfo);
+                    // Make sure not dir is left with name name.
+                    FileInfo previousDir = d.directories.remove(fileInfo);
+                    if (previous == null) {
+                        previous = previousDir;
+                    }
+                } else {
+                    if (isFiner()) {
+                        logFiner("Storing directory: "
+                            + fileInfo.toDetailString());
+                    }
+                    previous = d.directories.put((DirectoryInfo) fileInfo,
+                        (DirectoryInfo) fileInfo);
+                    // Make sure not file is left with name name.
+                    FileInfo previousFile = d.files.remove(fileInfo);
+                    if (previous == null) {
+                        previous = previousFile;
+                    }
                 }
-                d.directories.put((DirectoryInfo) fileInfo,
-                    (DirectoryInfo) fileInfo);
-                // Make sure not file is left with name name.
-                d.files.remove(fileInfo);
+                d.index(fileInfo);
+                stored(d, fileInfo, previous);
             }
         }
     }
 
+    @Deprecated
     public Collection<FileInfo> findInDirectory(String domainStr,
         DirectoryInfo directoryInfo, boolean recursive)
     {
@@ -230,6 +253,7 @@ public class FileInfoDAOHashMapImpl extends Loggable implements FileInfoDAO {
         return findFiles(crit);
     }
 
+    @Deprecated
     public Collection<FileInfo> findInDirectory(String domainStr, String path,
         boolean recursive)
     {
@@ -247,11 +271,8 @@ public class FileInfoDAOHashMapImpl extends Loggable implements FileInfoDAO {
         if (path == null) {
             path = "";
         }
-        if (path.equals("/")) {
-            path = "";
-        }
-        if (path.length() > 0 && !path.endsWith("/")) {
-            path += "/";
+        while (path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
         }
         boolean recursive = criteria.isRecursive();
         Collection<FileInfo> items = new HashSet<FileInfo>();
@@ -263,51 +284,16 @@ public class FileInfoDAOHashMapImpl extends Loggable implements FileInfoDAO {
             if (criteria.getType() == Type.DIRECTORIES_ONLY
                 || criteria.getType() == Type.FILES_AND_DIRECTORIES)
             {
-                for (DirectoryInfo dInfo : domain.directories.values()) {
-                    // if (filter.isExcluded(dInfo)) {
-                    // continue;
-                    // }
-
-                    if (criteria.getMaxResults() > 0
-                        && items.size() >= criteria.getMaxResults())
-                    {
-                        return items;
-                    }
-
-                    if (isInSubDir(dInfo, path, recursive)
-                        && !Util.equalsRelativeName(dInfo.getRelativeName(),
-                            path))
-                    {
-                        if (!items.contains(dInfo)
-                            && matches(dInfo, criteria.getKeyWords()))
-                        {
-                            items.add(dInfo);
-                        }
-                    }
+                if (!domain.collect(path, recursive, true, criteria, items)) {
+                    return items;
                 }
             }
 
             if (criteria.getType() == Type.FILES_ONLY
                 || criteria.getType() == Type.FILES_AND_DIRECTORIES)
             {
-                for (FileInfo fInfo : domain.files.values()) {
-                    // if (filter.isExcluded(fInfo)) {
-                    // continue;
-                    // }
-
-                    if (criteria.getMaxResults() > 0
-                        && items.size() >= criteria.getMaxResults())
-                    {
-                        return items;
-                    }
-
-                    if (isInSubDir(fInfo, path, recursive)) {
-                        if (!items.contains(fInfo)
-                            && matches(fInfo, criteria.getKeyWords()))
-                        {
-                            items.add(fInfo);
-                        }
-                    }
+                if (!domain.collect(path, recursive, false, criteria, items)) {
+                    return items;
                 }
             }
         }
@@ -321,6 +307,135 @@ public class FileInfoDAOHashMapImpl extends Loggable implements FileInfoDAO {
 
     // Internals **************************************************************
 
+    /**
+     * Updates the newest version and the statistics after an item has been
+     * stored. Caller must hold the lock on {@link #newestVersions}
+     *
+     * @param d
+     *            the domain the item has been stored in
+     * @param fileInfo
+     *            the stored item
+     * @param previous
+     *            the item replaced in the domain or null
+     */
+    private void stored(Domain d, FileInfo fileInfo, FileInfo previous) {
+        FileInfo newest = newestVersions.get(fileInfo);
+        if (previous != null) {
+            updateStats(d, previous, newest, -1);
+        }
+        FileInfo newNewest;
+        if (previous != null && previous == newest) {
+            newNewest = findNewestVersion(fileInfo, domains.keySet());
+        } else if (newest == null || fileInfo.isNewerThan(newest)) {
+            newNewest = fileInfo.isValid() ? fileInfo : newest;
+        } else {
+            newNewest = newest;
+        }
+        if (newNewest == newest) {
+            updateStats(d, fileInfo, newest, 1);
+        } else {
+            updateStats(d, fileInfo, newNewest, 1);
+            newestChanged(fileInfo, newest, newNewest, d);
+        }
+    }
+
+    /**
+     * Sets the new newest version and re-evaluates the in sync state of the
+     * item in all other domains. Caller must hold the lock on
+     * {@link #newestVersions}
+     *
+     * @param fInfo
+     * @param oldNewest
+     * @param newNewest
+     *            the new newest version or null if not available anymore.
+     * @param changed
+     *            the domain that caused the change and has already been
+     *            updated or null
+     */
+    private void newestChanged(FileInfo fInfo, FileInfo oldNewest,
+        FileInfo newNewest, Domain changed)
+    {
+        if (newNewest != null) {
+            newestVersions.put(fInfo, newNewest);
+        } else {
+            newestVersions.remove(fInfo);
+        }
+        for (Domain d : domains.values()) {
+            if (d == changed) {
+                continue;
+            }
+            FileInfo other = d.files.get(fInfo);
+            if (other == null) {
+                other = d.directories.get(fInfo);
+            }
+            if (other != null) {
+                updateStats(d, other, oldNewest, -1);
+                updateStats(d, other, newNewest, 1);
+            }
+        }
+    }
+
+    /**
+     * Adds or subtracts the item to/from the statistics of the domain. Caller
+     * must hold the lock on {@link #newestVersions}
+     *
+     * @param d
+     * @param fInfo
+     * @param newest
+     *            the newest version of the item over all domains.
+     * @param delta
+     *            1 to add, -1 to subtract
+     */
+    private void updateStats(Domain d, FileInfo fInfo, FileInfo newest,
+        int delta)
+    {
+        if (statsFilterModCount != filter.getModCount()) {
+            // Will be recalculated on next access
+            return;
+        }
+        if (fInfo.isDeleted() || filter.isExcluded(fInfo)) {
+            return;
+        }
+        boolean inSync = inSync(fInfo, newest);
+        if (fInfo.isFile()) {
+            d.retainedFiles += delta;
+            if (inSync) {
+                d.inSyncFiles += delta;
+                d.bytesInSync += delta * fInfo.getSize();
+            }
+        } else {
+            d.retainedDirs += delta;
+            if (inSync) {
+                d.inSyncDirs += delta;
+            }
+        }
+    }
+
+    /**
+     * Recalculates the statistics of all domains if the filter has changed.
+     * Caller must hold the lock on {@link #newestVersions}
+     */
+    private void validateStats() {
+        int modCount = filter.getModCount();
+        if (statsFilterModCount == modCount) {
+            return;
+        }
+        statsFilterModCount = modCount;
+        for (Domain d : domains.values()) {
+            d.retainedFiles = 0;
+            d.retainedDirs = 0;
+            d.inSyncFiles = 0;
+            d.inSyncDirs = 0;
+            d.bytesInSync = 0;
+            for (FileInfo fInfo : d.files.values()) {
+                updateStats(d, fInfo, newestVersions.get(fInfo), 1);
+            }
+            for (FileInfo dInfo : d.directories.values()) {
+                updateStats(d, dInfo, newestVersions.get(dInfo), 1);
+            }
+        }
+    }
+
     private Domain getDomain(String domain) {
         String theDomain = StringUtils.isBlank(domain) ? selfDomain : domain;
         synchronized (domains) {
@@ -340,7 +455,7 @@ public class FileInfoDAOHashMapImpl extends Loggable implements FileInfoDAO {
     /*
      * TODO: Performance optimization
      */
-    private boolean matches(FileInfo fInfo, Set<String> keyWords) {
+    private static boolean matches(FileInfo fInfo, Set<String> keyWords) {
         if (keyWords.isEmpty()) {
             return true;
         }
@@ -353,17 +468,24 @@ public class FileInfoDAOHashMapImpl extends Loggable implements FileInfoDAO {
         return true;
     }
 
-    private boolean isInSubDir(FileInfo fInfo, String path, boolean recursive) {
-        if (!fInfo.getRelativeName().startsWith(path)) {
-            return false;
-        }
-        if (recursive) {
-            return true;
-        }
-        int offset = path.length() + 1;
-        int i = fInfo.getRelativeName().indexOf('/', offset);
-        // No other subdirectory at end.
-        return i < 0;
+    /**
+     * @param path
+     *            the relative name of a directory without trailing slash.
+     * @return the key of the directory in the {@link Domain} tree index.
+     *         Respects {@link FileInfo#IGNORE_CASE}
+     */
+    private static String toKey(String path) {
+        return FileInfo.IGNORE_CASE ? path.toLowerCase() : path;
+    }
+
+    /**
+     * @param key
+     *            the key of a directory in the tree index
+     * @return the key of the parent directory. "" for the base directory.
+     */
+    private static String getParentKey(String key) {
+        int i = key.lastIndexOf('/');
+        return i < 0 ? "" : key.substring(0, i);
     }
 
     private static class Domain {
@@ -372,15 +494,145 @@ public class FileInfoDAOHashMapImpl extends Loggable implements FileInfoDAO {
         private final ConcurrentMap<DirectoryInfo, DirectoryInfo> directories = Util
             .createConcurrentHashMap(4);
 
+        // Statistics of items not deleted and not excluded by the filter.
+        private int retainedFiles;
+        private int retainedDirs;
+        private int inSyncFiles;
+        private int inSyncDirs;
+        private long bytesInSync;
+
+        /**
+         * The directory tree index of all files and directories. Key is the
+         * path of the directory as returned by {@link #toKey(String)}. A node
+         * exists as long as it contains items or sub directories, even if no
+         * {@link DirectoryInfo} has been stored for it. Guarded by itself.
+         */
+        private final Map<String, DirectoryNode> tree = new HashMap<String, DirectoryNode>();
+
         public Domain(int suggestedSize) {
             super();
             files = Util.createConcurrentHashMap(suggestedSize);
         }
 
+        private void index(FileInfo fInfo) {
+            String key = getParentKey(toKey(fInfo.getRelativeName()));
+            synchronized (tree) {
+                DirectoryNode node = getNode(key);
+                // Might have changed from file to directory or vice versa.
+                node.files.remove(fInfo);
+                node.directories.remove(fInfo);
+                if (fInfo.isFile()) {
+                    node.files.add(fInfo);
+                } else {
+                    node.directories.add(fInfo);
+                }
+            }
+        }
+
+        private void unindex(FileInfo fInfo) {
+            String key = getParentKey(toKey(fInfo.getRelativeName()));
+            synchronized (tree) {
+                DirectoryNode node = tree.get(key);
+                if (node == null) {
+                    return;
+                }
+                node.files.remove(fInfo);
+                node.directories.remove(fInfo);
+                // Prune empty nodes up to the base directory
+                while (node.isEmpty() && key.length() > 0) {
+                    tree.remove(key);
+                    String parentKey = getParentKey(key);
+                    node = tree.get(parentKey);
+                    if (node == null) {
+                        break;
+                    }
+                    node.subdirectories.remove(key);
+                    key = parentKey;
+                }
+            }
+        }
+
+        /**
+         * Gets or creates the node and all parent nodes. Caller must hold
+         * the lock on {@link #tree}
+         */
+        private DirectoryNode getNode(String key) {
+            DirectoryNode node = tree.get(key);
+            if (node != null) {
+                return node;
+            }
+            node = new DirectoryNode();
+            tree.put(key, node);
+            if (key.length() > 0) {
+                getNode(getParentKey(key)).subdirectories.add(key);
+            }
+            return node;
+        }
+
+        /**
+         * Adds the items in the given directory to the result.
+         * 
+         * @param path
+         *            the relative name of the directory without trailing
+         *            slash. "" for the base directory.
+         * @param recursive
+         *            true to include items in sub directories.
+         * @param dirs
+         *            true to add directories, false to add files.
+         * @param criteria
+         * @param items
+         *            the result
+         * @return false if the maximum number of results has been reached.
+         */
+        private boolean collect(String path, boolean recursive, boolean dirs,
+            FileInfoCriteria criteria, Collection<FileInfo> items)
+        {
+            int maxResults = criteria.getMaxResults();
+            Set<String> keyWords = criteria.getKeyWords();
+            LinkedList<String> pending = new LinkedList<String>();
+            pending.add(toKey(path));
+            synchronized (tree) {
+                while (!pending.isEmpty()) {
+                    DirectoryNode node = tree.get(pending.removeFirst());
+                    if (node == null) {
+                        continue;
+                    }
+                    for (FileInfo fInfo : dirs ? node.directories : node.files)
+                    {
+                        if (maxResults > 0 && items.size() >= maxResults) {
+                            return false;
+                        }
+                        if (!items.contains(fInfo) && matches(fInfo, keyWords))
+                        {
+                            items.add(fInfo);
+                        }
+                    }
+                    if (recursive) {
+                        pending.addAll(node.subdirectories);
+                    }
+                }
+            }
+            return true;
+        }
+
         public String toString() {
             return "Domain: " + files.size() + " files, " + directories.size()
                 + " dirs";
         }
     }
 
+    /**
+     * Items directly within one directory.
+     */
+    private static class DirectoryNode {
+        private final Set<FileInfo> files = new HashSet<FileInfo>(4);
+        private final Set<FileInfo> directories = new HashSet<FileInfo>(2);
+        private final Set<String> subdirectories = new HashSet<String>(2);
+
+        private boolean isEmpty() {
+            return files.isEmpty() && directories.isEmpty()
+                && subdirectories.isEmpty();
+        }
+    }
+
 }
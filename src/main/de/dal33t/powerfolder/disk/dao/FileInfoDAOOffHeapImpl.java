@@ -0,0 +1,972 @@
+/*
+ * Copyright 2004 - 2013 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk.dao;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+import de.dal33t.powerfolder.disk.DiskItemFilter;
+import de.dal33t.powerfolder.disk.dao.FileInfoCriteria.Type;
+import de.dal33t.powerfolder.light.DirectoryInfo;
+import de.dal33t.powerfolder.light.FileHistory;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FileInfoFactory;
+import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.light.MemberInfo;
+import de.dal33t.powerfolder.util.DateUtil;
+import de.dal33t.powerfolder.util.Reject;
+import de.dal33t.powerfolder.util.StringUtils;
+import de.dal33t.powerfolder.util.Util;
+import de.dal33t.powerfolder.util.logging.Loggable;
+
+/**
+ * A {@link FileInfoDAO} implementation that keeps the file metadata of each
+ * domain in fixed size records outside of the Java heap. Relative names,
+ * {@link FolderInfo}s and {@link MemberInfo}s are pooled once for all domains
+ * and referenced by id. {@link FileInfo} objects are only created on demand
+ * when returned to the caller.
+ * <p>
+ * Like {@link FileInfoDAOHashMapImpl} the domain that holds the newest
+ * version of each item and running counts of each domain are maintained on
+ * store and delete. The counts are calculated from the records, without
+ * creating {@link FileInfo}s.
+ * <p>
+ * Intended for folders with a lot of files and members, where holding every
+ * {@link FileInfo} of every member on the heap causes long GC pauses. Items are
+ * identified by relative name only, so one instance must only hold the files
+ * of one folder. Directory listings scan all records of a domain.
+ */
+public class FileInfoDAOOffHeapImpl extends Loggable implements FileInfoDAO {
+    /**
+     * Value of {@link de.dal33t.powerfolder.ConfigurationEntry#FOLDER_DB_DAO}
+     * to select this implementation.
+     */
+    public static final String TYPE = "offheap";
+
+    // Record layout
+    private static final int KEY = 0;
+    private static final int NAME = 4;
+    private static final int FOLDER = 8;
+    private static final int MODIFIED_BY = 12;
+    private static final int VERSION = 16;
+    private static final int FLAGS = 20;
+    private static final int SIZE = 24;
+    private static final int MODIFIED = 32;
+    private static final int RECORD_SIZE = 40;
+
+    private static final int FLAG_USED = 1;
+    private static final int FLAG_DIRECTORY = 2;
+    private static final int FLAG_DELETED = 4;
+    /** {@link FileInfo#isValid()} */
+    private static final int FLAG_VALID = 8;
+    /** Excluded by the {@link DiskItemFilter} */
+    private static final int FLAG_EXCLUDED = 16;
+
+    private static final int NONE = -1;
+    private static final int MIN_CAPACITY = 64;
+
+    private final ConcurrentMap<String, Domain> domains = Util
+        .createConcurrentHashMap(4);
+    private final Names names = new Names();
+    private final Pool<FolderInfo> folders = new Pool<FolderInfo>();
+    private final Pool<MemberInfo> members = new Pool<MemberInfo>();
+
+    /**
+     * Guards all changes of the records, {@link #newest} and the statistics
+     * of all {@link Domain}s.
+     */
+    private final Object statsLock = new Object();
+
+    /**
+     * Key id to the domain holding the newest valid version of the item.
+     */
+    private Domain[] newest = new Domain[0];
+
+    /**
+     * {@link DiskItemFilter#getModCount()} the statistics have been calculated
+     * with.
+     */
+    private int statsFilterModCount;
+
+    private String selfDomain;
+    private DiskItemFilter filter;
+
+    public FileInfoDAOOffHeapImpl(String selfDomain, DiskItemFilter filter) {
+        super();
+        this.selfDomain = selfDomain;
+        this.filter = filter;
+        if (filter == null) {
+            this.filter = new DiskItemFilter();
+        }
+        statsFilterModCount = this.filter.getModCount();
+    }
+
+    public int count(String domain, boolean includeDirs, boolean excludeIgnored)
+    {
+        Domain d = getDomain(domain);
+        if (!excludeIgnored) {
+            return d.files + (includeDirs ? d.directories : 0);
+        }
+        synchronized (statsLock) {
+            validateStats();
+            return d.retainedFiles + (includeDirs ? d.retainedDirs : 0);
+        }
+    }
+
+    public int countInSync(String domain, boolean includeDirs,
+        boolean excludeIgnored)
+    {
+        Domain d = getDomain(domain);
+        synchronized (statsLock) {
+            validateStats();
+            return d.inSyncFiles + (includeDirs ? d.inSyncDirs : 0);
+        }
+    }
+
+    public long bytesInSync(String domain) {
+        Domain d = getDomain(domain);
+        synchronized (statsLock) {
+            validateStats();
+            return d.bytesInSync;
+        }
+    }
+
+    public void delete(String domain, FileInfo info) {
+        Domain d = getDomain(domain);
+        synchronized (statsLock) {
+            int key = names.indexOf(toKey(info.getRelativeName()));
+            if (key == NONE || d.getSlot(key) == NONE) {
+                return;
+            }
+            Domain newestDomain = getNewest(key);
+            Stamp newestStamp = newestDomain != null ? newestDomain
+                .stamp(key) : null;
+            updateStats(d, key, newestStamp, -1);
+            names.release(d.remove(key));
+            if (newestDomain == d) {
+                newestChanged(key, newestStamp, findNewestDomain(key), d);
+            }
+            names.release(key);
+        }
+    }
+
+    public void deleteDomain(String domain, int newInitialSize) {
+        String theDomain = StringUtils.isBlank(domain) ? selfDomain : domain;
+        synchronized (statsLock) {
+            Domain removed = domains.remove(theDomain);
+            if (newInitialSize > 0) {
+                domains.put(theDomain, new Domain(newInitialSize));
+                if (isFiner()) {
+                    logFiner("Created new domain (" + theDomain
+                        + ") with initial capacity " + newInitialSize);
+                }
+            }
+            if (removed == null) {
+                return;
+            }
+            for (int slot = 0; slot < removed.highWater; slot++) {
+                int key = removed.key(slot, true, true);
+                if (key == NONE) {
+                    continue;
+                }
+                // Newest versions held by the removed domain are gone.
+                if (getNewest(key) == removed) {
+                    newestChanged(key, removed.stamp(key),
+                        findNewestDomain(key), null);
+                }
+                names.release(removed.nameOf(slot));
+                names.release(key);
+            }
+        }
+    }
+
+    public FileInfo find(FileInfo info, String domain) {
+        String key = toKey(info.getRelativeName());
+        int keyId = names.indexOf(key);
+        if (keyId == NONE) {
+            return null;
+        }
+        FileInfo found = getDomain(domain).find(keyId);
+        if (found == null || !key.equals(toKey(found.getRelativeName()))) {
+            // Id got reused by another name meanwhile
+            return null;
+        }
+        return found;
+    }
+
+    @Deprecated
+    public Collection<FileInfo> findAllFiles(String domain) {
+        Domain d = getDomain(domain);
+        List<FileInfo> files = new ArrayList<FileInfo>(d.files);
+        for (int slot = 0; slot < d.highWater; slot++) {
+            FileInfo fInfo = d.view(slot, true, false);
+            if (fInfo != null) {
+                files.add(fInfo);
+            }
+        }
+        return files;
+    }
+
+    public Collection<DirectoryInfo> findAllDirectories(String domain) {
+        Domain d = getDomain(domain);
+        List<DirectoryInfo> dirs = new ArrayList<DirectoryInfo>(d.directories);
+        for (int slot = 0; slot < d.highWater; slot++) {
+            FileInfo dInfo = d.view(slot, false, true);
+            if (dInfo != null) {
+                dirs.add((DirectoryInfo) dInfo);
+            }
+        }
+        return dirs;
+    }
+
+    public FileInfo findNewestVersion(FileInfo info, String... domainStrings) {
+        int key = names.indexOf(toKey(info.getRelativeName()));
+        if (key == NONE) {
+            return null;
+        }
+        FileInfo newestVersion = null;
+        for (String domain : domainStrings) {
+            FileInfo candidateFile = getDomain(domain).find(key);
+            if (candidateFile == null || !candidateFile.isValid()) {
+                continue;
+            }
+            if (newestVersion == null
+                || candidateFile.isNewerThan(newestVersion))
+            {
+                newestVersion = candidateFile;
+            }
+        }
+        return newestVersion;
+    }
+
+    public void stop() {
+        synchronized (statsLock) {
+            domains.clear();
+            newest = new Domain[0];
+            names.clear();
+        }
+    }
+
+    public void store(String domain, FileInfo... infos) {
+        store(domain, Arrays.asList(infos));
+    }
+
+    public void store(String domain, Collection<FileInfo> infos) {
+        Domain d = getDomain(domain);
+        synchronized (statsLock) {
+            for (FileInfo fileInfo : infos) {
+                String name = fileInfo.getRelativeName();
+                int key = names.intern(toKey(name));
+                boolean replaced = d.getSlot(key) != NONE;
+                Domain newestDomain = getNewest(key);
+                Stamp newestStamp = newestDomain != null ? newestDomain
+                    .stamp(key) : null;
+                if (replaced) {
+                    updateStats(d, key, newestStamp, -1);
+                }
+                int flags = 0;
+                if (fileInfo.isValid()) {
+                    flags |= FLAG_VALID;
+                }
+                if (filter.isExcluded(fileInfo)) {
+                    flags |= FLAG_EXCLUDED;
+                }
+                int previousName = d.put(key, names.intern(name), fileInfo,
+                    flags);
+                if (replaced) {
+                    // The record already referenced the key
+                    names.release(key);
+                    names.release(previousName);
+                }
+                stored(d, key, replaced, newestDomain, newestStamp);
+            }
+        }
+    }
+
+    @Deprecated
+    public Collection<FileInfo> findInDirectory(String domainStr,
+        DirectoryInfo directoryInfo, boolean recursive)
+    {
+        FileInfoCriteria crit = new FileInfoCriteria();
+        crit.addDomain(domainStr);
+        crit.setPath(directoryInfo);
+        crit.setRecursive(recursive);
+        return findFiles(crit);
+    }
+
+    @Deprecated
+    public Collection<FileInfo> findInDirectory(String domainStr, String path,
+        boolean recursive)
+    {
+        FileInfoCriteria crit = new FileInfoCriteria();
+        crit.addDomain(domainStr);
+        crit.setPath(path);
+        crit.setRecursive(recursive);
+        return findFiles(crit);
+    }
+
+    public Collection<FileInfo> findFiles(FileInfoCriteria criteria) {
+        Reject.ifTrue(criteria.getDomains().isEmpty(),
+            "No domains/members selected in criteria");
+        String path = criteria.getPath();
+        if (path == null) {
+            path = "";
+        }
+        while (path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        String prefix = path.length() > 0 ? toKey(path) + '/' : "";
+        boolean dirs = criteria.getType() == Type.DIRECTORIES_ONLY
+            || criteria.getType() == Type.FILES_AND_DIRECTORIES;
+        boolean files = criteria.getType() == Type.FILES_ONLY
+            || criteria.getType() == Type.FILES_AND_DIRECTORIES;
+        Collection<FileInfo> items = new HashSet<FileInfo>();
+        for (String domainStr : criteria.getDomains()) {
+            Domain domain = getDomain(domainStr);
+            if (dirs && !collect(domain, prefix, false, criteria, items)) {
+                return items;
+            }
+            if (files && !collect(domain, prefix, true, criteria, items)) {
+                return items;
+            }
+        }
+        return items;
+    }
+
+    /**
+     * @return false if the maximum number of results has been reached.
+     */
+    private boolean collect(Domain domain, String prefix, boolean files,
+        FileInfoCriteria criteria, Collection<FileInfo> items)
+    {
+        int maxResults = criteria.getMaxResults();
+        for (int slot = 0; slot < domain.highWater; slot++) {
+            int key = domain.key(slot, files, !files);
+            String keyName = key != NONE ? names.get(key) : null;
+            if (keyName == null
+                || !isInDirectory(keyName, prefix, criteria.isRecursive()))
+            {
+                continue;
+            }
+            if (maxResults > 0 && items.size() >= maxResults) {
+                return false;
+            }
+            FileInfo fInfo = domain.view(slot, files, !files);
+            if (fInfo != null && !items.contains(fInfo)
+                && matches(fInfo, criteria.getKeyWords()))
+            {
+                items.add(fInfo);
+            }
+        }
+        return true;
+    }
+
+    public FileHistory getFileHistory(FileInfo fileInfo) {
+        return null;
+    }
+
+    // Internals **************************************************************
+
+    /**
+     * Updates the newest version and the statistics after an item has been
+     * stored. Caller must hold {@link #statsLock}
+     *
+     * @param d
+     *            the domain the item has been stored in
+     * @param key
+     * @param replaced
+     *            if an item has been replaced in the domain
+     * @param newestDomain
+     *            the domain of the newest version before the item was stored
+     * @param newestStamp
+     *            the newest version before the item was stored
+     */
+    private void stored(Domain d, int key, boolean replaced,
+        Domain newestDomain, Stamp newestStamp)
+    {
+        Domain newNewest;
+        if (replaced && newestDomain == d) {
+            newNewest = findNewestDomain(key);
+        } else if (newestStamp == null || d.stamp(key).isNewerThan(newestStamp))
+        {
+            newNewest = d.isValid(key) ? d : newestDomain;
+        } else {
+            newNewest = newestDomain;
+        }
+        if (newNewest == newestDomain && newNewest != d) {
+            updateStats(d, key, newestStamp, 1);
+        } else {
+            updateStats(d, key, newNewest != null
+                ? newNewest.stamp(key)
+                : null, 1);
+            newestChanged(key, newestStamp, newNewest, d);
+        }
+    }
+
+    /**
+     * Sets the new newest version and re-evaluates the in sync state of the
+     * item in all other domains. Caller must hold {@link #statsLock}
+     *
+     * @param key
+     * @param oldNewest
+     *            the previous newest version or null
+     * @param newNewest
+     *            the domain of the new newest version or null if not
+     *            available anymore.
+     * @param changed
+     *            the domain that caused the change and has already been
+     *            updated or null
+     */
+    private void newestChanged(int key, Stamp oldNewest, Domain newNewest,
+        Domain changed)
+    {
+        if (newest.length <= key) {
+            newest = Arrays.copyOf(newest, Math.max(key + 1,
+                newest.length * 2));
+        }
+        newest[key] = newNewest;
+        Stamp newStamp = newNewest != null ? newNewest.stamp(key) : null;
+        for (Domain d : domains.values()) {
+            if (d != changed && d.getSlot(key) != NONE) {
+                updateStats(d, key, oldNewest, -1);
+                updateStats(d, key, newStamp, 1);
+            }
+        }
+    }
+
+    /**
+     * Adds or subtracts the item to/from the statistics of the domain. Caller
+     * must hold {@link #statsLock}
+     *
+     * @param d
+     * @param key
+     * @param newestStamp
+     *            the newest version of the item over all domains.
+     * @param delta
+     *            1 to add, -1 to subtract
+     */
+    private void updateStats(Domain d, int key, Stamp newestStamp, int delta)
+    {
+        if (statsFilterModCount != filter.getModCount()) {
+            // Will be recalculated on next access
+            return;
+        }
+        int slot = d.getSlot(key);
+        if (slot == NONE) {
+            return;
+        }
+        updateStats(d, slot, d.flags(slot), newestStamp, delta);
+    }
+
+    private void updateStats(Domain d, int slot, int flags, Stamp newestStamp,
+        int delta)
+    {
+        if ((flags & (FLAG_DELETED | FLAG_EXCLUDED)) != 0) {
+            return;
+        }
+        boolean inSync = newestStamp != null
+            && !newestStamp.isNewerThan(d.stampOf(slot));
+        if ((flags & FLAG_DIRECTORY) == 0) {
+            d.retainedFiles += delta;
+            if (inSync) {
+                d.inSyncFiles += delta;
+                d.bytesInSync += delta * d.sizeOf(slot);
+            }
+        } else {
+            d.retainedDirs += delta;
+            if (inSync) {
+                d.inSyncDirs += delta;
+            }
+        }
+    }
+
+    /**
+     * Recalculates the excluded flags and the statistics of all domains if
+     * the filter has changed. Caller must hold {@link #statsLock}
+     */
+    private void validateStats() {
+        int modCount = filter.getModCount();
+        if (statsFilterModCount == modCount) {
+            return;
+        }
+        statsFilterModCount = modCount;
+        for (Domain d : domains.values()) {
+            d.retainedFiles = 0;
+            d.retainedDirs = 0;
+            d.inSyncFiles = 0;
+            d.inSyncDirs = 0;
+            d.bytesInSync = 0;
+            for (int slot = 0; slot < d.highWater; slot++) {
+                int key = d.key(slot, true, true);
+                if (key == NONE) {
+                    continue;
+                }
+                int flags = d.updateExcluded(slot);
+                Domain newestDomain = getNewest(key);
+                updateStats(d, slot, flags, newestDomain != null
+                    ? newestDomain.stamp(key)
+                    : null, 1);
+            }
+        }
+    }
+
+    /**
+     * Caller must hold {@link #statsLock}
+     *
+     * @return the domain holding the newest valid version of the item or
+     *         null.
+     */
+    private Domain getNewest(int key) {
+        return key < newest.length ? newest[key] : null;
+    }
+
+    /**
+     * Caller must hold {@link #statsLock}
+     *
+     * @return the domain holding the newest valid version of the item or
+     *         null.
+     */
+    private Domain findNewestDomain(int key) {
+        Domain newestDomain = null;
+        Stamp newestStamp = null;
+        for (Domain d : domains.values()) {
+            if (!d.isValid(key)) {
+                continue;
+            }
+            Stamp candidate = d.stamp(key);
+            if (newestStamp == null || candidate.isNewerThan(newestStamp)) {
+                newestDomain = d;
+                newestStamp = candidate;
+            }
+        }
+        return newestDomain;
+    }
+
+    private Domain getDomain(String domain) {
+        String theDomain = StringUtils.isBlank(domain) ? selfDomain : domain;
+        synchronized (domains) {
+            Domain d = domains.get(theDomain);
+            if (d != null) {
+                return d;
+            }
+            if (isFiner()) {
+                logFiner("Domain '" + theDomain + "' created");
+            }
+            d = new Domain(MIN_CAPACITY);
+            domains.put(theDomain, d);
+            return d;
+        }
+    }
+
+    private static String toKey(String relativeName) {
+        return FileInfo.IGNORE_CASE ? relativeName.toLowerCase() : relativeName;
+    }
+
+    private static boolean isInDirectory(String key, String prefix,
+        boolean recursive)
+    {
+        if (!key.startsWith(prefix)) {
+            return false;
+        }
+        return recursive || key.indexOf('/', prefix.length()) < 0;
+    }
+
+    private static boolean matches(FileInfo fInfo, Set<String> keyWords) {
+        if (keyWords.isEmpty()) {
+            return true;
+        }
+        String lower = fInfo.getRelativeName().toLowerCase();
+        for (String keyWord : keyWords) {
+            if (!lower.contains(keyWord)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Version and modification date of a record, as compared by
+     * {@link FileInfo#isNewerThan(FileInfo)}.
+     */
+    private static class Stamp {
+        private final int version;
+        private final long modified;
+
+        private Stamp(int version, long modified) {
+            this.version = version;
+            this.modified = modified;
+        }
+
+        private boolean isNewerThan(Stamp other) {
+            if (version == other.version) {
+                return DateUtil.isNewerFileDateCrossPlattform(modified,
+                    other.modified);
+            }
+            return version > other.version;
+        }
+    }
+
+    /**
+     * The records of one domain in a direct buffer, which is grown on demand.
+     * Slots of removed records are reused.
+     */
+    private class Domain {
+        private ByteBuffer records;
+        private int capacity;
+        private volatile int highWater;
+        /**
+         * Key id to slot + 1.
+         */
+        private int[] slots = new int[0];
+        private int[] freeSlots = new int[0];
+        private int nFree;
+        private volatile int files;
+        private volatile int directories;
+
+        // Statistics, guarded by statsLock
+        private int retainedFiles;
+        private int retainedDirs;
+        private int inSyncFiles;
+        private int inSyncDirs;
+        private long bytesInSync;
+
+        private Domain(int initialCapacity) {
+            capacity = Math.max(initialCapacity, MIN_CAPACITY);
+            records = ByteBuffer.allocateDirect(capacity * RECORD_SIZE);
+        }
+
+        /**
+         * @return the name id of the replaced record or {@link #NONE}.
+         */
+        private synchronized int put(int key, int name, FileInfo fInfo,
+            int extraFlags)
+        {
+            int slot = getSlot(key);
+            int previousName = NONE;
+            if (slot == NONE) {
+                slot = allocate();
+                if (slots.length <= key) {
+                    slots = Arrays.copyOf(slots,
+                        Math.max(key + 1, slots.length * 2));
+                }
+                slots[key] = slot + 1;
+            } else {
+                count(slot, -1);
+                previousName = records.getInt(slot * RECORD_SIZE + NAME);
+            }
+            int offset = slot * RECORD_SIZE;
+            int flags = FLAG_USED | extraFlags;
+            if (fInfo.isDiretory()) {
+                flags |= FLAG_DIRECTORY;
+            }
+            if (fInfo.isDeleted()) {
+                flags |= FLAG_DELETED;
+            }
+            Date modified = fInfo.getModifiedDate();
+            records.putInt(offset + KEY, key);
+            records.putInt(offset + NAME, name);
+            records.putInt(offset + FOLDER,
+                folders.intern(fInfo.getFolderInfo()));
+            records.putInt(offset + MODIFIED_BY,
+                members.intern(fInfo.getModifiedBy()));
+            records.putInt(offset + VERSION, fInfo.getVersion());
+            records.putInt(offset + FLAGS, flags);
+            records.putLong(offset + SIZE, fInfo.getSize());
+            records.putLong(offset + MODIFIED, modified != null ? modified
+                .getTime() : Long.MIN_VALUE);
+            count(slot, 1);
+            return previousName;
+        }
+
+        /**
+         * @return the name id of the removed record or {@link #NONE}.
+         */
+        private synchronized int remove(int key) {
+            int slot = getSlot(key);
+            if (slot == NONE) {
+                return NONE;
+            }
+            count(slot, -1);
+            int name = nameOf(slot);
+            records.putInt(slot * RECORD_SIZE + FLAGS, 0);
+            slots[key] = 0;
+            if (nFree == freeSlots.length) {
+                freeSlots = Arrays.copyOf(freeSlots,
+                    Math.max(16, freeSlots.length * 2));
+            }
+            freeSlots[nFree++] = slot;
+            return name;
+        }
+
+        private synchronized FileInfo find(int key) {
+            int slot = getSlot(key);
+            return slot != NONE ? view(slot, true, true) : null;
+        }
+
+        /**
+         * @return the key id of the record or {@link #NONE} if slot is unused
+         *         or not of the requested type.
+         */
+        private synchronized int key(int slot, boolean files, boolean dirs) {
+            int offset = slot * RECORD_SIZE;
+            if (!isType(records.getInt(offset + FLAGS), files, dirs)) {
+                return NONE;
+            }
+            return records.getInt(offset + KEY);
+        }
+
+        private synchronized int nameOf(int slot) {
+            return records.getInt(slot * RECORD_SIZE + NAME);
+        }
+
+        private synchronized int flags(int slot) {
+            return records.getInt(slot * RECORD_SIZE + FLAGS);
+        }
+
+        private synchronized long sizeOf(int slot) {
+            return records.getLong(slot * RECORD_SIZE + SIZE);
+        }
+
+        private synchronized Stamp stampOf(int slot) {
+            int offset = slot * RECORD_SIZE;
+            return new Stamp(records.getInt(offset + VERSION), records
+                .getLong(offset + MODIFIED));
+        }
+
+        /**
+         * @return the version of the item or null if not in this domain.
+         */
+        private synchronized Stamp stamp(int key) {
+            int slot = getSlot(key);
+            return slot != NONE ? stampOf(slot) : null;
+        }
+
+        private synchronized boolean isValid(int key) {
+            int slot = getSlot(key);
+            return slot != NONE && (flags(slot) & FLAG_VALID) != 0;
+        }
+
+        /**
+         * Applies the current filter to the record.
+         *
+         * @return the new flags.
+         */
+        private synchronized int updateExcluded(int slot) {
+            int offset = slot * RECORD_SIZE;
+            int flags = records.getInt(offset + FLAGS);
+            String name = names.get(records.getInt(offset + NAME));
+            if ((flags & FLAG_DIRECTORY) != 0) {
+                // Like DiskItemFilter matches directories
+                name += "/*";
+            }
+            if (filter.isExcluded(name)) {
+                flags |= FLAG_EXCLUDED;
+            } else {
+                flags &= ~FLAG_EXCLUDED;
+            }
+            records.putInt(offset + FLAGS, flags);
+            return flags;
+        }
+
+        /**
+         * @return a new {@link FileInfo} of the record or null if the slot is
+         *         unused or not of the requested type.
+         */
+        private synchronized FileInfo view(int slot, boolean files,
+            boolean dirs)
+        {
+            if (slot >= highWater) {
+                return null;
+            }
+            int offset = slot * RECORD_SIZE;
+            int flags = records.getInt(offset + FLAGS);
+            if (!isType(flags, files, dirs)) {
+                return null;
+            }
+            String name = names.get(records.getInt(offset + NAME));
+            FolderInfo foInfo = folders.get(records.getInt(offset + FOLDER));
+            MemberInfo modifiedBy = members.get(records.getInt(offset
+                + MODIFIED_BY));
+            int version = records.getInt(offset + VERSION);
+            long modified = records.getLong(offset + MODIFIED);
+            Date modDate = modified != Long.MIN_VALUE
+                ? new Date(modified)
+                : null;
+            boolean dir = (flags & FLAG_DIRECTORY) != 0;
+            if ((flags & FLAG_DELETED) != 0) {
+                return FileInfoFactory.unmarshallDeletedFile(foInfo, name,
+                    modifiedBy, modDate, version, dir);
+            }
+            return FileInfoFactory.unmarshallExistingFile(foInfo, name,
+                records.getLong(offset + SIZE), modifiedBy, modDate, version,
+                dir);
+        }
+
+        private boolean isType(int flags, boolean files, boolean dirs) {
+            if ((flags & FLAG_USED) == 0) {
+                return false;
+            }
+            return (flags & FLAG_DIRECTORY) != 0 ? dirs : files;
+        }
+
+        private synchronized int getSlot(int key) {
+            return key < slots.length ? slots[key] - 1 : NONE;
+        }
+
+        private void count(int slot, int delta) {
+            int flags = records.getInt(slot * RECORD_SIZE + FLAGS);
+            if ((flags & FLAG_DIRECTORY) != 0) {
+                directories += delta;
+            } else {
+                files += delta;
+            }
+        }
+
+        private int allocate() {
+            if (nFree > 0) {
+                return freeSlots[--nFree];
+            }
+            if (highWater == capacity) {
+                capacity *= 2;
+                ByteBuffer grown = ByteBuffer.allocateDirect(capacity
+                    * RECORD_SIZE);
+                ByteBuffer old = records.duplicate();
+                old.clear();
+                old.limit(highWater * RECORD_SIZE);
+                grown.put(old);
+                records = grown;
+            }
+            return highWater++;
+        }
+
+        public String toString() {
+            return "Domain: " + files + " files, " + directories + " dirs";
+        }
+    }
+
+    /**
+     * Assigns a permanent id to each distinct value.
+     */
+    private static class Pool<T> {
+        private final Map<T, Integer> ids = new HashMap<T, Integer>();
+        private final List<T> values = new ArrayList<T>();
+
+        private synchronized int intern(T value) {
+            if (value == null) {
+                return NONE;
+            }
+            Integer id = ids.get(value);
+            if (id == null) {
+                id = values.size();
+                ids.put(value, id);
+                values.add(value);
+            }
+            return id;
+        }
+
+        private synchronized T get(int id) {
+            return id != NONE ? values.get(id) : null;
+        }
+    }
+
+    /**
+     * Assigns an id to each distinct name and key referenced by records. The
+     * ids of names no longer referenced are reused, so the names of deleted
+     * files don't pile up.
+     */
+    private static class Names {
+        private final Map<String, Integer> ids = new HashMap<String, Integer>();
+        private String[] values = new String[MIN_CAPACITY];
+        private int[] refs = new int[MIN_CAPACITY];
+        private int[] freeIds = new int[0];
+        private int nFree;
+        private int highWater;
+
+        /**
+         * Adds a reference to the name.
+         *
+         * @return the id of the name.
+         */
+        private synchronized int intern(String name) {
+            Integer id = ids.get(name);
+            if (id != null) {
+                refs[id]++;
+                return id;
+            }
+            int newId;
+            if (nFree > 0) {
+                newId = freeIds[--nFree];
+            } else {
+                if (highWater == values.length) {
+                    values = Arrays.copyOf(values, highWater * 2);
+                    refs = Arrays.copyOf(refs, highWater * 2);
+                }
+                newId = highWater++;
+            }
+            ids.put(name, newId);
+            values[newId] = name;
+            refs[newId] = 1;
+            return newId;
+        }
+
+        /**
+         * Removes a reference. The id is reused once the name is not
+         * referenced anymore.
+         */
+        private synchronized void release(int id) {
+            if (id == NONE || --refs[id] > 0) {
+                return;
+            }
+            ids.remove(values[id]);
+            values[id] = null;
+            if (nFree == freeIds.length) {
+                freeIds = Arrays.copyOf(freeIds, Math.max(16,
+                    freeIds.length * 2));
+            }
+            freeIds[nFree++] = id;
+        }
+
+        private synchronized int indexOf(String name) {
+            Integer id = ids.get(name);
+            return id != null ? id : NONE;
+        }
+
+        private synchronized String get(int id) {
+            return id != NONE ? values[id] : null;
+        }
+
+        private synchronized void clear() {
+            ids.clear();
+            Arrays.fill(values, null);
+            Arrays.fill(refs, 0);
+            nFree = 0;
+            highWater = 0;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2004 - 2013 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk.problem;
+
+import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.ui.WikiLinks;
+import de.dal33t.powerfolder.util.Reject;
+import de.dal33t.powerfolder.util.Translation;
+
+/**
+ * Problem where the operating system does not allow to watch all directories
+ * of a folder for changes (e.g. inotify watch limit on Linux). Changes are
+ * then only detected by scans.
+ */
+public class WatchLimitProblem extends Problem {
+
+    private FolderInfo folderInfo;
+
+    public WatchLimitProblem(FolderInfo folderInfo) {
+        Reject.ifNull(folderInfo, "FolderInfo");
+        this.folderInfo = folderInfo;
+    }
+
+    public String getDescription() {
+        return Translation.getTranslation(
+            "folder_problem.watch_limit.description", folderInfo.name);
+    }
+
+    public String getWikiLinkKey() {
+        return WikiLinks.PROBLEM_WATCH_LIMIT;
+    }
+
+    @Override
+    public String toString() {
+        return getDescription();
+    }
+
+    @Override
+    public int hashCode() {
+        return folderInfo.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        return folderInfo.equals(((WatchLimitProblem) obj).folderInfo);
+    }
+}
@@ -28,6 +28,7 @@ import java.io.ObjectOutput;
 import java.io.Serializable;
 import java.lang.ref.Reference;
 import java.lang.ref.WeakReference;
+import java.text.Normalizer;
 import java.util.Date;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -198,9 +199,13 @@ public class FileInfo implements Serializable, DiskItem, Cloneable {
             .getName());
         boolean nameMatch = fileName.endsWith(diskFileName);
 
-        if (!nameMatch && IGNORE_CASE) {
-            // Try harder if ignore case
-            nameMatch = diskFileName.equalsIgnoreCase(getFilenameOnly());
+        if (!nameMatch) {
+            // #1531 / #1804: Try harder. The scanner matches names in other
+            // case or unicode composition if ignoring case.
+            String filenameOnly = getFilenameOnly();
+            nameMatch = Normalizer.normalize(diskFileName, Normalizer.Form.NFC)
+                .equalsIgnoreCase(
+                    Normalizer.normalize(filenameOnly, Normalizer.Form.NFC));
         }
 
         // Check if files match
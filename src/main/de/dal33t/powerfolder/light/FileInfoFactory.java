@@ -147,6 +147,18 @@ public final class FileInfoFactory {
         return new FileInfo(fileName, size, modby, modDate, version, false, fi);
     }
 
+    public static FileInfo unmarshall(FolderInfo fi, String fileName,
+        long size, MemberInfo modby, Date modDate, int version,
+        boolean deleted, boolean dir)
+    {
+        if (dir) {
+            return new DirectoryInfo(fileName, size, modby, modDate, version,
+                deleted, fi);
+        }
+        return new FileInfo(fileName, size, modby, modDate, version, deleted,
+            fi);
+    }
+
     public static FileInfo unmarshallDeletedFile(FolderInfo fi,
         String fileName, MemberInfo modby, Date modDate, int version,
         boolean dir)
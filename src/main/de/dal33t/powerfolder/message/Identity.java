@@ -26,7 +26,9 @@ import de.dal33t.powerfolder.ConfigurationEntry;
 import de.dal33t.powerfolder.Controller;
 import de.dal33t.powerfolder.light.MemberInfo;
 import de.dal33t.powerfolder.net.ConnectionHandler;
+import de.dal33t.powerfolder.util.CompressionContext;
 import de.dal33t.powerfolder.util.Reject;
+import de.dal33t.powerfolder.util.delta.ChunkRecord;
 
 /**
  * Message which contains information about me.
@@ -80,8 +82,27 @@ public class Identity extends Message {
     // Leftover for semi-old clients
     private boolean supportingPartTransfers = true;
 
+    /**
+     * Supports {@link ChunkRecord}s for delta sync. False for older clients.
+     */
+    private boolean supportsChunkRecords = true;
+
     private Boolean useCompressedStream;
 
+    /**
+     * Supports one compression context per connection instead of a GZIP
+     * stream per message. False for older clients.
+     *
+     * @see CompressionContext
+     */
+    private boolean supportsStreamCompression;
+
+    /**
+     * Decodes messages encoded by {@link MessageCodecs}. False for older
+     * clients and connection handlers without codecs.
+     */
+    private boolean supportsMessageCodecs;
+
     /**
      * #2072: {@link Externalizable} protocol history:
      * <p>
@@ -184,6 +205,14 @@ public class Identity extends Message {
         return supportingPartTransfers;
     }
 
+    /**
+     * @return true if {@link RequestFilePartsRecord}s for
+     *         {@link ChunkRecord}s are answered.
+     */
+    public boolean isSupportsChunkRecords() {
+        return supportsChunkRecords;
+    }
+
     public boolean isSupportsQuickLogin() {
         return supportsQuickLogin;
     }
@@ -196,6 +225,40 @@ public class Identity extends Message {
         return useCompressedStream;
     }
 
+    /**
+     * @return true if the packets after the identity may be compressed by a
+     *         {@link CompressionContext}.
+     */
+    public boolean isSupportsStreamCompression() {
+        return supportsStreamCompression;
+    }
+
+    /**
+     * @param supportsStreamCompression
+     *            if the connection handler supports
+     *            {@link CompressionContext}s.
+     */
+    public void setSupportsStreamCompression(boolean supportsStreamCompression)
+    {
+        this.supportsStreamCompression = supportsStreamCompression;
+    }
+
+    /**
+     * @return true if the packets after the identity may be encoded by
+     *         {@link MessageCodecs}.
+     */
+    public boolean isSupportsMessageCodecs() {
+        return supportsMessageCodecs;
+    }
+
+    /**
+     * @param supportsMessageCodecs
+     *            if the connection handler decodes {@link MessageCodecs}.
+     */
+    public void setSupportsMessageCodecs(boolean supportsMessageCodecs) {
+        this.supportsMessageCodecs = supportsMessageCodecs;
+    }
+
     /**
      * #2569: Connection improvement: Don't send full folderlist from server to
      * client.
@@ -32,6 +32,63 @@ import java.io.Serializable;
 public class Message implements Serializable {
     private static final long serialVersionUID = 100L;
 
+    /**
+     * The serialized forms of this message: Plain and compressed. Only kept if
+     * the message gets sent to many nodes.
+     */
+    private transient volatile byte[][] serialized;
+
     public Message() {
     }
+
+    /**
+     * Keeps the serialized forms of the messages once created. For messages
+     * sent to many nodes: Each form gets serialized only once and is shared by
+     * all connections. The messages must not be changed afterwards.
+     * 
+     * @param messages
+     * @return the messages
+     */
+    public static Message[] keepSerialized(Message... messages) {
+        if (messages == null) {
+            return null;
+        }
+        for (Message message : messages) {
+            if (message != null && message.serialized == null) {
+                message.serialized = new byte[2][];
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * @return true if the serialized forms of this message are kept.
+     * @see #keepSerialized(Message...)
+     */
+    public boolean isSerializedKept() {
+        return serialized != null;
+    }
+
+    /**
+     * @param compressed
+     * @return the kept serialized form or null if not serialized yet.
+     */
+    public byte[] getSerialized(boolean compressed) {
+        byte[][] forms = serialized;
+        return forms != null ? forms[compressed ? 1 : 0] : null;
+    }
+
+    /**
+     * Keeps a serialized form of this message. Does nothing if the
+     * serialized forms are not kept.
+     * 
+     * @param compressed
+     * @param data
+     */
+    public void setSerialized(boolean compressed, byte[] data) {
+        byte[][] forms = serialized;
+        if (forms != null) {
+            forms[compressed ? 1 : 0] = data;
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2004 - 2013 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.message;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FileInfoFactory;
+import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.light.MemberInfo;
+
+/**
+ * Reads the fields of messages encoded by {@link MessageCodecs}. Keeps the
+ * {@link FolderInfo}s and {@link MemberInfo}s received before to resolve
+ * references.
+ *
+ * @see MessageCodecOutput
+ */
+class MessageCodecInput extends DataInputStream implements ObjectInput {
+
+    private final List<FolderInfo> folders = new ArrayList<FolderInfo>();
+    private final List<MemberInfo> members = new ArrayList<MemberInfo>();
+
+    MessageCodecInput() {
+        super(null);
+    }
+
+    /**
+     * Starts reading the next message.
+     *
+     * @param data
+     * @param off
+     * @param len
+     */
+    void reset(byte[] data, int off, int len) {
+        in = new ByteArrayInputStream(data, off, len);
+    }
+
+    /**
+     * Not supported. Messages with objects are not encoded.
+     */
+    public Object readObject() throws ClassNotFoundException, IOException {
+        throw new InvalidObjectException("Objects are not encoded");
+    }
+
+    int readVarInt() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new InvalidObjectException("Malformed int");
+    }
+
+    long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new InvalidObjectException("Malformed long");
+    }
+
+    String readString() throws IOException {
+        return readBoolean() ? readUTF() : null;
+    }
+
+    byte[] readByteArray() throws IOException {
+        int len = readVarInt();
+        if (len == MessageCodecOutput.NULL) {
+            return null;
+        }
+        byte[] data = new byte[checkLength(len - 1)];
+        readFully(data);
+        return data;
+    }
+
+    /**
+     * @param len
+     * @return the length read from the stream, if that many bytes are left.
+     * @throws IOException
+     *             if not.
+     */
+    private int checkLength(int len) throws IOException {
+        if (len < 0 || len > available()) {
+            throw new InvalidObjectException("Illegal length " + len);
+        }
+        return len;
+    }
+
+    FolderInfo readFolderInfo() throws IOException {
+        int ref = readVarInt();
+        if (ref == MessageCodecOutput.NULL) {
+            return null;
+        } else if (ref == MessageCodecOutput.DEFINITION) {
+            FolderInfo folder;
+            try {
+                folder = FolderInfo.readExt(this).intern();
+            } catch (ClassNotFoundException e) {
+                throw new InvalidObjectException(e.toString());
+            }
+            if (folders.size() < MessageCodecOutput.MAX_REFERENCES) {
+                folders.add(folder);
+            }
+            return folder;
+        }
+        ref -= MessageCodecOutput.FIRST_REFERENCE;
+        if (ref < 0 || ref >= folders.size()) {
+            throw new InvalidObjectException("Unknown folder reference " + ref);
+        }
+        return folders.get(ref);
+    }
+
+    MemberInfo readMemberInfo() throws IOException {
+        int ref = readVarInt();
+        if (ref == MessageCodecOutput.NULL) {
+            return null;
+        } else if (ref == MessageCodecOutput.DEFINITION) {
+            MemberInfo member;
+            try {
+                member = MemberInfo.readExt(this).intern();
+            } catch (ClassNotFoundException e) {
+                throw new InvalidObjectException(e.toString());
+            }
+            if (members.size() < MessageCodecOutput.MAX_REFERENCES) {
+                members.add(member);
+            }
+            return member;
+        }
+        ref -= MessageCodecOutput.FIRST_REFERENCE;
+        if (ref < 0 || ref >= members.size()) {
+            throw new InvalidObjectException("Unknown member reference " + ref);
+        }
+        return members.get(ref);
+    }
+
+    FileInfo readFileInfo() throws IOException {
+        int flags = readUnsignedByte();
+        String fileName = readUTF();
+        long size = readVarLong();
+        MemberInfo modifiedBy = readMemberInfo();
+        Date modDate = null;
+        if ((flags & MessageCodecOutput.FILE_HAS_DATE) != 0) {
+            modDate = new Date(readVarLong());
+        }
+        int version = readVarInt();
+        FolderInfo folder = readFolderInfo();
+        return FileInfoFactory.unmarshall(folder, fileName, size, modifiedBy,
+            modDate, version, (flags & MessageCodecOutput.FILE_DELETED) != 0,
+            (flags & MessageCodecOutput.FILE_DIRECTORY) != 0);
+    }
+
+    FileInfo[] readFileInfos() throws IOException {
+        int len = readVarInt();
+        if (len == MessageCodecOutput.NULL) {
+            return null;
+        }
+        // Each file takes some bytes
+        FileInfo[] files = new FileInfo[checkLength(len - 1)];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = readFileInfo();
+        }
+        return files;
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright 2004 - 2013 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.message;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.output.ByteArrayOutputStream;
+
+import de.dal33t.powerfolder.light.DirectoryInfo;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.light.MemberInfo;
+
+/**
+ * Writes the fields of messages encoded by {@link MessageCodecs}. Keeps the
+ * {@link FolderInfo}s and {@link MemberInfo}s written before: They are sent
+ * once per connection, later only as reference.
+ *
+ * @see MessageCodecInput
+ */
+class MessageCodecOutput extends DataOutputStream implements ObjectOutput {
+
+    static final int NULL = 0;
+    static final int DEFINITION = 1;
+    static final int FIRST_REFERENCE = 2;
+
+    /**
+     * The maximum number of references per type. Following ones get sent
+     * fully each time.
+     */
+    static final int MAX_REFERENCES = 4096;
+
+    static final int FILE_DIRECTORY = 1;
+    static final int FILE_DELETED = 2;
+    static final int FILE_HAS_DATE = 4;
+
+    private final Map<FolderInfo, Integer> folders = new HashMap<FolderInfo, Integer>();
+    private final Map<MemberInfo, Integer> members = new HashMap<MemberInfo, Integer>();
+
+    /** References added by the message currently written */
+    private final List<FolderInfo> newFolders = new ArrayList<FolderInfo>();
+    private final List<MemberInfo> newMembers = new ArrayList<MemberInfo>();
+
+    MessageCodecOutput() {
+        super(new ByteArrayOutputStream(512));
+    }
+
+    /**
+     * @return the data written since the last call.
+     */
+    byte[] finish() throws IOException {
+        flush();
+        ByteArrayOutputStream buf = (ByteArrayOutputStream) out;
+        byte[] data = buf.toByteArray();
+        buf.reset();
+        written = 0;
+        newFolders.clear();
+        newMembers.clear();
+        return data;
+    }
+
+    /**
+     * Drops the data written since the last call of {@link #finish()}. The
+     * references defined by it are forgotten, since they never get sent.
+     */
+    void discard() {
+        ((ByteArrayOutputStream) out).reset();
+        written = 0;
+        for (FolderInfo folder : newFolders) {
+            folders.remove(folder);
+        }
+        for (MemberInfo member : newMembers) {
+            members.remove(member);
+        }
+        newFolders.clear();
+        newMembers.clear();
+    }
+
+    /**
+     * Not supported. Messages with objects are not encoded.
+     *
+     * @throws NotSerializableException
+     *             always.
+     */
+    public void writeObject(Object obj) throws IOException {
+        throw new NotSerializableException("Object not encodable: "
+            + (obj != null ? obj.getClass().getName() : null));
+    }
+
+    /**
+     * Writes an int, which is usually small and positive, in 1 to 5 bytes.
+     *
+     * @param value
+     * @throws IOException
+     */
+    void writeVarInt(int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        write(value);
+    }
+
+    /**
+     * Writes a long, which is usually small and positive, in 1 to 10 bytes.
+     *
+     * @param value
+     * @throws IOException
+     */
+    void writeVarLong(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        write((int) value);
+    }
+
+    void writeString(String value) throws IOException {
+        writeBoolean(value != null);
+        if (value != null) {
+            writeUTF(value);
+        }
+    }
+
+    void writeByteArray(byte[] data) throws IOException {
+        if (data == null) {
+            writeVarInt(NULL);
+            return;
+        }
+        writeVarInt(data.length + 1);
+        write(data);
+    }
+
+    void writeFolderInfo(FolderInfo folder) throws IOException {
+        if (folder == null) {
+            writeVarInt(NULL);
+            return;
+        }
+        Integer ref = folders.get(folder);
+        if (ref != null) {
+            writeVarInt(FIRST_REFERENCE + ref);
+            return;
+        }
+        writeVarInt(DEFINITION);
+        folder.writeExternal(this);
+        if (folders.size() < MAX_REFERENCES) {
+            folders.put(folder, folders.size());
+            newFolders.add(folder);
+        }
+    }
+
+    void writeMemberInfo(MemberInfo member) throws IOException {
+        if (member == null) {
+            writeVarInt(NULL);
+            return;
+        }
+        Integer ref = members.get(member);
+        if (ref != null) {
+            writeVarInt(FIRST_REFERENCE + ref);
+            return;
+        }
+        writeVarInt(DEFINITION);
+        member.writeExternal(this);
+        if (members.size() < MAX_REFERENCES) {
+            members.put(member, members.size());
+            newMembers.add(member);
+        }
+    }
+
+    /**
+     * @param file
+     * @return true if the file can be written by
+     *         {@link #writeFileInfo(FileInfo)}.
+     */
+    static boolean isEncodable(FileInfo file) {
+        if (file == null || file.isLookupInstance()) {
+            return false;
+        }
+        return file.getClass() == FileInfo.class
+            || file.getClass() == DirectoryInfo.class;
+    }
+
+    /**
+     * @param files
+     * @return true if all files can be written by
+     *         {@link #writeFileInfos(FileInfo[])}.
+     */
+    static boolean isEncodable(FileInfo[] files) {
+        if (files == null) {
+            return true;
+        }
+        for (FileInfo file : files) {
+            if (!isEncodable(file)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void writeFileInfo(FileInfo file) throws IOException {
+        Date modDate = file.getModifiedDate();
+        int flags = 0;
+        if (file.isDiretory()) {
+            flags |= FILE_DIRECTORY;
+        }
+        if (file.isDeleted()) {
+            flags |= FILE_DELETED;
+        }
+        if (modDate != null) {
+            flags |= FILE_HAS_DATE;
+        }
+        writeByte(flags);
+        writeUTF(file.getRelativeName());
+        writeVarLong(file.getSize());
+        writeMemberInfo(file.getModifiedBy());
+        if (modDate != null) {
+            writeVarLong(modDate.getTime());
+        }
+        writeVarInt(file.getVersion());
+        writeFolderInfo(file.getFolderInfo());
+    }
+
+    void writeFileInfos(FileInfo[] files) throws IOException {
+        if (files == null) {
+            writeVarInt(NULL);
+            return;
+        }
+        writeVarInt(files.length + 1);
+        for (FileInfo file : files) {
+            writeFileInfo(file);
+        }
+    }
+}
@@ -0,0 +1,365 @@
+/*
+ * Copyright 2004 - 2013 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.message;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.NotSerializableException;
+import java.util.HashMap;
+import java.util.Map;
+
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.light.MemberInfo;
+import de.dal33t.powerfolder.util.Range;
+
+/**
+ * Binary codecs for the messages sent most, keyed by a message type id. The
+ * fields are written directly, without class descriptors and object graph of
+ * Java serialization (even for {@link java.io.Externalizable}s).
+ * {@link FolderInfo}s and {@link MemberInfo}s are sent once per connection,
+ * later only by reference.
+ * <p>
+ * An encoded message starts with {@link #MAGIC} and the type id. Serialized
+ * messages start with 0xAC (uncompressed) or 0x1F (GZIP), so both can be
+ * received on the same connection. Messages without codec get serialized.
+ * <p>
+ * One instance per connection. The messages must be decoded in the order
+ * they got encoded.
+ *
+ * @see Identity#isSupportsMessageCodecs()
+ */
+public class MessageCodecs {
+
+    /**
+     * First byte of an encoded message.
+     */
+    public static final byte MAGIC = (byte) 0xC0;
+
+    private static final Map<Class<? extends Message>, Codec<?>> CODECS = new HashMap<Class<? extends Message>, Codec<?>>();
+    private static final Codec<?>[] TYPES = new Codec<?>[16];
+
+    static {
+        register(new PingCodec(1));
+        register(new PongCodec(2));
+        register(new FileChunkCodec(3, FileChunk.class));
+        register(new FileChunkCodec(4, FileChunkExt.class));
+        register(new RequestPartCodec(5, RequestPart.class));
+        register(new RequestPartCodec(6, RequestPartExt.class));
+        register(new FileListCodec(7, FileList.class));
+        register(new FileListCodec(8, FileListExt.class));
+        register(new FolderFilesChangedCodec(9, FolderFilesChanged.class));
+        register(new FolderFilesChangedCodec(10, FolderFilesChangedExt.class));
+    }
+
+    private final MessageCodecOutput out = new MessageCodecOutput();
+    private final MessageCodecInput in = new MessageCodecInput();
+
+    private static void register(Codec<?> codec) {
+        CODECS.put(codec.clazz, codec);
+        TYPES[codec.type] = codec;
+    }
+
+    /**
+     * @param data
+     * @param len
+     * @return true if the data is an encoded message.
+     */
+    public static boolean isEncoded(byte[] data, int len) {
+        return len > 0 && data[0] == MAGIC;
+    }
+
+    /**
+     * @param message
+     * @return the encoded message or null if there is no codec for it or it
+     *         contains an object the codec can't write.
+     * @throws IOException
+     */
+    @SuppressWarnings("unchecked")
+    public byte[] encode(Message message) throws IOException {
+        Codec<Message> codec = (Codec<Message>) CODECS.get(message.getClass());
+        if (codec == null || !codec.canEncode(message)) {
+            return null;
+        }
+        synchronized (out) {
+            boolean written = false;
+            try {
+                out.writeByte(MAGIC);
+                out.writeByte(codec.type);
+                codec.write(message, out);
+                written = true;
+                return out.finish();
+            } catch (NotSerializableException e) {
+                // A field the codec can't write. Serialize it instead.
+                return null;
+            } finally {
+                if (!written) {
+                    out.discard();
+                }
+            }
+        }
+    }
+
+    /**
+     * @param data
+     * @param len
+     *            the length of the data
+     * @return the decoded message.
+     * @throws IOException
+     *             if the data is not a valid encoded message.
+     */
+    public Message decode(byte[] data, int len) throws IOException {
+        if (!isEncoded(data, len) || len < 2) {
+            throw new InvalidObjectException("Not an encoded message");
+        }
+        int type = data[1] & 0xFF;
+        Codec<?> codec = type < TYPES.length ? TYPES[type] : null;
+        if (codec == null) {
+            throw new InvalidObjectException("Unknown message type " + type);
+        }
+        synchronized (in) {
+            in.reset(data, 2, len - 2);
+            Message message;
+            try {
+                message = codec.read(in);
+            } catch (RuntimeException e) {
+                // Validation failed
+                throw new InvalidObjectException("Invalid "
+                    + codec.clazz.getSimpleName() + ": " + e);
+            }
+            if (in.available() > 0) {
+                throw new InvalidObjectException(in.available()
+                    + " bytes left after " + message);
+            }
+            return message;
+        }
+    }
+
+    // Codecs *****************************************************************
+
+    private static abstract class Codec<T extends Message> {
+        private final int type;
+        private final Class<? extends T> clazz;
+
+        private Codec(int type, Class<? extends T> clazz) {
+            this.type = type;
+            this.clazz = clazz;
+        }
+
+        /**
+         * @param message
+         * @return false if the message has to be serialized.
+         */
+        boolean canEncode(T message) {
+            return true;
+        }
+
+        /**
+         * @return true if the codec is for the {@link Externalizable}
+         *         variant of the message.
+         */
+        boolean isExt() {
+            return Externalizable.class.isAssignableFrom(clazz);
+        }
+
+        abstract void write(T message, MessageCodecOutput out)
+            throws IOException;
+
+        abstract T read(MessageCodecInput in) throws IOException;
+    }
+
+    private static class PingCodec extends Codec<Ping> {
+        private PingCodec(int type) {
+            super(type, Ping.class);
+        }
+
+        @Override
+        void write(Ping ping, MessageCodecOutput out) throws IOException {
+            out.writeString(ping.id);
+            out.writeByteArray(ping.payload);
+            out.writeLong(ping.sendTime);
+        }
+
+        @Override
+        Ping read(MessageCodecInput in) throws IOException {
+            Ping ping = new Ping();
+            ping.id = in.readString();
+            ping.payload = in.readByteArray();
+            ping.sendTime = in.readLong();
+            return ping;
+        }
+    }
+
+    private static class PongCodec extends Codec<Pong> {
+        private PongCodec(int type) {
+            super(type, Pong.class);
+        }
+
+        @Override
+        void write(Pong pong, MessageCodecOutput out) throws IOException {
+            out.writeString(pong.id);
+            out.writeByteArray(pong.payload);
+        }
+
+        @Override
+        Pong read(MessageCodecInput in) throws IOException {
+            Pong pong = new Pong();
+            pong.id = in.readString();
+            pong.payload = in.readByteArray();
+            return pong;
+        }
+    }
+
+    private static class FileChunkCodec extends Codec<FileChunk> {
+        private FileChunkCodec(int type, Class<? extends FileChunk> clazz) {
+            super(type, clazz);
+        }
+
+        @Override
+        boolean canEncode(FileChunk chunk) {
+            return MessageCodecOutput.isEncodable(chunk.file);
+        }
+
+        @Override
+        void write(FileChunk chunk, MessageCodecOutput out) throws IOException
+        {
+            out.writeFileInfo(chunk.file);
+            out.writeVarLong(chunk.offset);
+            out.writeByteArray(chunk.data);
+        }
+
+        @Override
+        FileChunk read(MessageCodecInput in) throws IOException {
+            FileInfo file = in.readFileInfo();
+            long offset = in.readVarLong();
+            byte[] data = in.readByteArray();
+            return isExt()
+                ? new FileChunkExt(file, offset, data)
+                : new FileChunk(file, offset, data);
+        }
+    }
+
+    private static class RequestPartCodec extends Codec<RequestPart> {
+        private RequestPartCodec(int type, Class<? extends RequestPart> clazz)
+        {
+            super(type, clazz);
+        }
+
+        @Override
+        boolean canEncode(RequestPart request) {
+            return MessageCodecOutput.isEncodable(request.file)
+                && request.range != null;
+        }
+
+        @Override
+        void write(RequestPart request, MessageCodecOutput out)
+            throws IOException
+        {
+            out.writeFileInfo(request.file);
+            out.writeVarLong(request.range.getStart());
+            out.writeVarLong(request.range.getLength());
+            out.writeDouble(request.progress);
+        }
+
+        @Override
+        RequestPart read(MessageCodecInput in) throws IOException {
+            FileInfo file = in.readFileInfo();
+            Range range = Range.getRangeByLength(in.readVarLong(), in
+                .readVarLong());
+            double progress = in.readDouble();
+            return isExt()
+                ? new RequestPartExt(file, range, progress)
+                : new RequestPart(file, range, progress);
+        }
+    }
+
+    private static class FileListCodec extends Codec<FileList> {
+        private FileListCodec(int type, Class<? extends FileList> clazz) {
+            super(type, clazz);
+        }
+
+        @Override
+        boolean canEncode(FileList list) {
+            return list.folder != null
+                && MessageCodecOutput.isEncodable(list.files);
+        }
+
+        @Override
+        void write(FileList list, MessageCodecOutput out) throws IOException {
+            out.writeFolderInfo(list.folder);
+            out.writeVarInt(list.nFollowingDeltas);
+            out.writeFileInfos(list.files);
+        }
+
+        @Override
+        FileList read(MessageCodecInput in) throws IOException {
+            FolderInfo folder = in.readFolderInfo();
+            int nFollowingDeltas = in.readVarInt();
+            FileInfo[] files = in.readFileInfos();
+            if (files == null) {
+                return isExt() ? new FileListExt(folder) : new FileList(
+                    folder);
+            }
+            return isExt()
+                ? new FileListExt(folder, files, nFollowingDeltas)
+                : new FileList(folder, files, nFollowingDeltas);
+        }
+    }
+
+    private static class FolderFilesChangedCodec extends
+        Codec<FolderFilesChanged>
+    {
+        private FolderFilesChangedCodec(int type,
+            Class<? extends FolderFilesChanged> clazz)
+        {
+            super(type, clazz);
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        boolean canEncode(FolderFilesChanged changes) {
+            return MessageCodecOutput.isEncodable(changes.added)
+                && MessageCodecOutput.isEncodable(changes.removed);
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        void write(FolderFilesChanged changes, MessageCodecOutput out)
+            throws IOException
+        {
+            out.writeFolderInfo(changes.folder);
+            out.writeFileInfos(changes.added);
+            out.writeFileInfos(changes.removed);
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        FolderFilesChanged read(MessageCodecInput in) throws IOException {
+            FolderFilesChanged changes = isExt()
+                ? new FolderFilesChangedExt()
+                : new FolderFilesChanged();
+            changes.folder = in.readFolderInfo();
+            changes.added = in.readFileInfos();
+            changes.removed = in.readFileInfos();
+            return changes;
+        }
+    }
+}
@@ -23,6 +23,7 @@ import java.io.IOException;
 
 import de.dal33t.powerfolder.light.FileInfo;
 import de.dal33t.powerfolder.util.Reject;
+import de.dal33t.powerfolder.util.delta.ChunkRecord;
 import de.dal33t.powerfolder.util.delta.FilePartsRecord;
 
 /**
@@ -37,6 +38,11 @@ public class ReplyFilePartsRecord extends Message {
     private FileInfo file;
     private FilePartsRecord record;
 
+    /**
+     * Reply to a request of chunks. Then the record is null.
+     */
+    private ChunkRecord chunkRecord;
+
     public ReplyFilePartsRecord() {
     }
 
@@ -48,16 +54,36 @@ public class ReplyFilePartsRecord extends Message {
         validate();
     }
 
+    public ReplyFilePartsRecord(FileInfo file, ChunkRecord chunkRecord) {
+        super();
+        this.file = file;
+        this.chunkRecord = chunkRecord;
+
+        validate();
+    }
+
     public FileInfo getFile() {
         return file;
     }
 
+    /**
+     * @return the record or null if this is a reply with a chunk record.
+     */
     public FilePartsRecord getRecord() {
         return record;
     }
 
+    /**
+     * @return the chunk record or null.
+     */
+    public ChunkRecord getChunkRecord() {
+        return chunkRecord;
+    }
+
     private void validate() {
-        Reject.noNullElements(file, record);
+        Reject.ifNull(file, "File is null");
+        Reject.ifTrue(record == null && chunkRecord == null,
+            "Record is null");
     }
 
     private void readObject(java.io.ObjectInputStream stream)
@@ -20,9 +20,10 @@
 package de.dal33t.powerfolder.message;
 
 import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.util.delta.ChunkRecord;
 
 /**
- * Requests a FilePartsRecord for a given file.
+ * Requests a FilePartsRecord or a {@link ChunkRecord} for a given file.
  * @author Dennis "Dante" Waldherr
  * @version $Revision$
  */ 
@@ -30,16 +31,34 @@ public class RequestFilePartsRecord extends Message {
 	private static final long serialVersionUID = 100L;
 
 	private FileInfo file;
+
+	/**
+	 * Request a {@link ChunkRecord} instead. Only if the remote side
+	 * supports it, see {@link Identity#isSupportsChunkRecords()}.
+	 */
+	private boolean chunks;
 	
 	public RequestFilePartsRecord() {
 	}
 
 	public RequestFilePartsRecord(FileInfo file) {
+		this(file, false);
+	}
+
+	public RequestFilePartsRecord(FileInfo file, boolean chunks) {
 		super();
 		this.file = file;
+		this.chunks = chunks;
 	}
 
 	public FileInfo getFile() {
 		return file;
 	}
+
+	/**
+	 * @return true if a {@link ChunkRecord} is requested.
+	 */
+	public boolean isChunks() {
+		return chunks;
+	}
 }
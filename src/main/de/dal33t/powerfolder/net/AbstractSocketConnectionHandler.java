@@ -19,22 +19,32 @@
  */
 package de.dal33t.powerfolder.net;
 
+import java.io.BufferedOutputStream;
 import java.io.EOFException;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InvalidClassException;
 import java.io.InvalidObjectException;
+import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+import org.apache.commons.io.output.ByteArrayOutputStream;
+
+import de.dal33t.powerfolder.ConfigurationEntry;
 import de.dal33t.powerfolder.Controller;
 import de.dal33t.powerfolder.Feature;
 import de.dal33t.powerfolder.Member;
@@ -65,6 +75,17 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
     implements ConnectionHandler
 {
 
+    /**
+     * The maximum number of messages sent together.
+     */
+    private static final int MAX_MESSAGES_PER_SEND = 64;
+
+    /**
+     * Size of the buffer the packets are written into before written into the
+     * socket.
+     */
+    private static final int SEND_BUFFER_SIZE = 64 * 1024;
+
     /** The basic io socket */
     private Socket socket;
 
@@ -117,6 +138,16 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
      */
     private boolean omitBandwidthLimit;
 
+    /**
+     * The time in ms a message may wait to be sent together with following
+     * messages.
+     */
+    private long sendCoalesceDelay;
+
+    // Statistics
+    private final AtomicLong framesSent = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+
     /**
      * Builds a new anonymous connection manager for the socket.
      * <p>
@@ -149,6 +180,39 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
     protected abstract byte[] serialize(Message message)
         throws ConnectionException;
 
+    /**
+     * Called before the message gets actally written into the socket. The
+     * buffer gets written into the socket as it is, without copying it into a
+     * single array first.
+     * 
+     * @param message
+     *            the message to serialize
+     * @return the buffer containing the serialized message
+     */
+    protected ByteArrayOutputStream serializeToBuffer(Message message)
+        throws ConnectionException
+    {
+        byte[] data = serialize(message);
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(data.length);
+        buf.write(data, 0, data.length);
+        return buf;
+    }
+
+    /**
+     * Called before a message, which is sent to many nodes, gets written into
+     * the socket. The serialized form may be shared by all connections and
+     * must not be modified.
+     * 
+     * @param message
+     *            the message to serialize
+     * @return the serialized message
+     * @see Message#keepSerialized(Message...)
+     */
+    protected byte[] serializeKept(Message message) throws ConnectionException
+    {
+        return serialize(message);
+    }
+
     /**
      * Called when the data got read from the socket. Should re-construct the
      * serialized object from the data.
@@ -180,6 +244,134 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
      */
     protected abstract Identity createOwnIdentity();
 
+    /**
+     * Opens the streams of the socket.
+     * 
+     * @throws IOException
+     */
+    protected void openStreams() throws IOException {
+        // Packets sent together get written into the socket at once
+        out = new LimitedOutputStream(getController().getTransferManager()
+            .getOutputLimiter(this), new BufferedOutputStream(
+            new SocketOutputStream(socket.getOutputStream()),
+            SEND_BUFFER_SIZE));
+        in = new LimitedInputStream(getController().getTransferManager()
+            .getInputLimiter(this), socket.getInputStream());
+    }
+
+    /**
+     * @return true if the streams of the socket are open.
+     */
+    protected boolean isStreamsOpen() {
+        return in != null && out != null;
+    }
+
+    /**
+     * Closes the streams of the socket.
+     */
+    protected void closeStreams() {
+        // close out stream
+        try {
+            if (out != null) {
+                out.close();
+            }
+        } catch (IOException ioe) {
+            logSevere("Could not close out stream", ioe);
+        }
+
+        // close in stream
+        try {
+            if (in != null) {
+                in.close();
+            }
+        } catch (IOException ioe) {
+            logSevere("Could not close in stream", ioe);
+        }
+    }
+
+    /**
+     * Starts receiving packets. By default one thread blocks on reading the
+     * socket.
+     * 
+     * @throws IOException
+     */
+    protected void startReceiver() throws IOException {
+        getController().getIOProvider().startIO(new Receiver());
+    }
+
+    /**
+     * Writes a packet into the socket: The header with the total length and
+     * the serialized message. Called by one thread at a time.
+     * 
+     * @param data
+     *            the serialized message
+     * @param omitBandwidthLimit
+     *            true if the packet should not be limited by the output
+     *            bandwidth
+     * @throws IOException
+     */
+    protected void writeFrame(ByteArrayOutputStream data,
+        boolean omitBandwidthLimit) throws IOException
+    {
+        // Write paket header / total length
+        out.write(Convert.convert2Bytes(data.size()));
+        // Directly from the serialization buffer. No copy
+        data.writeTo(new BandwidthOutputStream(out, omitBandwidthLimit));
+    }
+
+    /**
+     * Writes the packets written since the last call into the socket. Called
+     * after a number of packets was written by
+     * {@link #writeFrame(ByteArrayOutputStream, boolean)}.
+     * 
+     * @throws IOException
+     */
+    protected void flushFrames() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Counts a write into the socket.
+     */
+    protected void countWrite() {
+        writes.incrementAndGet();
+    }
+
+    /**
+     * @return the number of packets sent.
+     */
+    public long getFramesSent() {
+        return framesSent.get();
+    }
+
+    /**
+     * @return the number of writes into the socket. Several packets are
+     *         written together, if sent at once.
+     */
+    public long getWrites() {
+        return writes.get();
+    }
+
+    /**
+     * Writes a packet into the socket. Called by one thread at a time.
+     * 
+     * @param data
+     *            the serialized message. Might be shared with other
+     *            connections, must not be modified.
+     * @param omitBandwidthLimit
+     *            true if the packet should not be limited by the output
+     *            bandwidth
+     * @throws IOException
+     * @see #writeFrame(ByteArrayOutputStream, boolean)
+     */
+    protected void writeFrame(byte[] data, boolean omitBandwidthLimit)
+        throws IOException
+    {
+        // Write paket header / total length
+        out.write(Convert.convert2Bytes(data.length));
+        out.write(data, 0, data.length, omitBandwidthLimit);
+    }
+
     /**
      * @return the internal used serializer
      */
@@ -212,14 +404,12 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
         this.identityReply = null;
         this.messagesToSendQueue = new ConcurrentLinkedQueue<Message>();
         this.senderSpawnLock = new ReentrantLock();
+        this.sendCoalesceDelay = ConfigurationEntry.NET_SEND_COALESCE_DELAY
+            .getValueInt(getController());
         long startTime = System.currentTimeMillis();
 
         try {
-            out = new LimitedOutputStream(getController().getTransferManager()
-                .getOutputLimiter(this), socket.getOutputStream());
-
-            in = new LimitedInputStream(getController().getTransferManager()
-                .getInputLimiter(this), socket.getInputStream());
+            openStreams();
             if (isFiner()) {
                 logFiner("Got streams");
             }
@@ -242,7 +432,7 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
             }
 
             // Start receiver
-            getController().getIOProvider().startIO(new Receiver());
+            startReceiver();
 
             // Send identity
             sendMessagesAsynchron(myIdentity);
@@ -330,23 +520,7 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
 
         getController().getIOProvider().removeKeepAliveCheck(this);
 
-        // close out stream
-        try {
-            if (out != null) {
-                out.close();
-            }
-        } catch (IOException ioe) {
-            logSevere("Could not close out stream", ioe);
-        }
-
-        // close in stream
-        try {
-            if (in != null) {
-                in.close();
-            }
-        } catch (IOException ioe) {
-            logSevere("Could not close in stream", ioe);
-        }
+        closeStreams();
 
         // close socket
         if (socket != null) {
@@ -376,8 +550,8 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
      * @return true if the connection is active
      */
     public boolean isConnected() {
-        return (socket != null && in != null && out != null
-            && socket.isConnected() && !socket.isClosed() && serializer != null);
+        return (socket != null && isStreamsOpen() && socket.isConnected()
+            && !socket.isClosed() && serializer != null);
     }
 
     public boolean isEncrypted() {
@@ -390,10 +564,14 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
 
     public void setOnLAN(boolean onlan) {
         onLAN = onlan;
-        out.setBandwidthLimiter(getController().getTransferManager()
-            .getOutputLimiter(this));
-        in.setBandwidthLimiter(getController().getTransferManager()
-            .getInputLimiter(this));
+        if (out != null) {
+            out.setBandwidthLimiter(getController().getTransferManager()
+                .getOutputLimiter(this));
+        }
+        if (in != null) {
+            in.setBandwidthLimiter(getController().getTransferManager()
+                .getInputLimiter(this));
+        }
     }
 
     public void setMember(Member member) {
@@ -443,74 +621,50 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
         if (message == null) {
             throw new NullPointerException("Message is null");
         }
+        sendMessages(Collections.singletonList(message));
+    }
 
+    /**
+     * Sends the messages. The packets get written together into the socket.
+     * 
+     * @param messages
+     *            the messages to send
+     * @throws ConnectionException
+     */
+    private void sendMessages(List<Message> messages)
+        throws ConnectionException
+    {
         if (!isConnected()) {
             throw new ConnectionException("Connection to remote peer closed")
                 .with(this);
         }
 
         // break if remote peer did no identitfy
-        if (identity == null && (!(message instanceof Identity))) {
-            throw new ConnectionException(
-                "Unable to send message, peer did not identify yet").with(this);
+        if (identity == null) {
+            for (Message message : messages) {
+                if (!(message instanceof Identity)) {
+                    throw new ConnectionException(
+                        "Unable to send message, peer did not identify yet")
+                        .with(this);
+                }
+            }
         }
 
+        Message message = null;
         try {
             synchronized (sendLock) {
-                if (isFiner()) {
-                    logFiner("-- (sending) -> " + message);
-                }
-                // if (isServer()) {
-                // logWarning("-- (sending) -> " + message);
-                // }
-                if (!isConnected() || !started) {
-                    throw new ConnectionException(
-                        "Connection to remote peer closed").with(this);
-                }
-
                 long start = System.currentTimeMillis();
-                // Not limit some pakets
-                boolean omittBandwidthLimit = !(message instanceof LimitBandwidth)
-                    || this.omitBandwidthLimit;
-
-                byte[] data = serialize(message);
-
-                // Write paket header / total length
-                out.write(Convert.convert2Bytes(data.length));
-                getController().getTransferManager()
-                    .getTotalUploadTrafficCounter()
-                    .bytesTransferred(data.length + 4);
-                // out.flush();
-
-                // Do some calculations before send
-                int offset = 0;
-
-                // if (message instanceof Ping) {
-                // logWarning("Ping packet size: " + data.length);
-                // }
-
-                int remaining = data.length;
-                // synchronized (out) {
-                while (remaining > 0) {
-                    int allowed = remaining;
-                    if (!started) {
-                        throw new ConnectionException(
-                            "Unable to send message to peer, connection shutdown")
-                            .with(member).with(this);
-                    }
-                    out.write(data, offset, allowed, omittBandwidthLimit);
-                    offset += allowed;
-                    remaining -= allowed;
+                long bytes = 0;
+                for (Message next : messages) {
+                    message = next;
+                    bytes += writeMessage(message);
                 }
-                // }
-
-                // No Flush since we are not using bufferstreams no more.
-                // out.flush();
+                flushFrames();
 
                 long took = System.currentTimeMillis() - start;
                 if (took > 40000) {
-                    logWarning("Sending (" + data.length + " bytes) took "
-                        + took + "ms: " + message);
+                    logWarning("Sending (" + bytes + " bytes) took " + took
+                        + "ms: " + messages);
                 }
             }
         } catch (IOException e) {
@@ -531,6 +685,63 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
         }
     }
 
+    /**
+     * Serializes the message and writes the packet. Called with send lock.
+     * 
+     * @param message
+     * @return the number of bytes written.
+     * @throws IOException
+     * @throws ConnectionException
+     */
+    private int writeMessage(Message message) throws IOException,
+        ConnectionException
+    {
+        if (isFiner()) {
+            logFiner("-- (sending) -> " + message);
+        }
+        // if (isServer()) {
+        // logWarning("-- (sending) -> " + message);
+        // }
+        if (!isConnected() || !started) {
+            throw new ConnectionException("Connection to remote peer closed")
+                .with(this);
+        }
+
+        // Not limit some pakets
+        boolean omittBandwidthLimit = !(message instanceof LimitBandwidth)
+            || this.omitBandwidthLimit;
+
+        byte[] kept = null;
+        ByteArrayOutputStream data = null;
+        int length;
+        if (message.isSerializedKept()) {
+            kept = serializeKept(message);
+            length = kept.length;
+        } else {
+            data = serializeToBuffer(message);
+            length = data.size();
+        }
+
+        // if (message instanceof Ping) {
+        // logWarning("Ping packet size: " + length);
+        // }
+
+        if (!started) {
+            throw new ConnectionException(
+                "Unable to send message to peer, connection shutdown").with(
+                member).with(this);
+        }
+        if (kept != null) {
+            writeFrame(kept, omittBandwidthLimit);
+        } else {
+            writeFrame(data, omittBandwidthLimit);
+        }
+        framesSent.incrementAndGet();
+        getController().getTransferManager().getTotalUploadTrafficCounter()
+            .bytesTransferred(length + 4);
+        return length + 4;
+    }
+
     public void sendMessagesAsynchron(Message... messages) {
         for (Message message : messages) {
             sendMessageAsynchron(message, null);
@@ -771,12 +982,110 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
         return identity.getMemberInfo().getConnectAddress().getPort();
     }
 
+    /**
+     * Processes a packet received from the remote peer. Packets are processed
+     * one at a time in order of arrival.
+     * 
+     * @param data
+     *            the serialized data
+     * @param totalSize
+     *            the actual size of the data in data buffer
+     * @return false if the connection should be closed.
+     * @throws ConnectionException
+     * @throws ClassNotFoundException
+     */
+    protected boolean received(byte[] data, int totalSize)
+        throws ConnectionException, ClassNotFoundException
+    {
+        Object obj = deserialize(data, totalSize);
+
+        lastKeepaliveMessage = new Date();
+        getController().getTransferManager().getTotalDownloadTrafficCounter()
+            .bytesTransferred(totalSize);
+
+        if (isFiner()) {
+            logFiner("<- (received, " + Format.formatBytes(totalSize)
+                + ") - " + obj);
+        }
+
+        if (!getController().isStarted()) {
+            logFiner("Peer still active, shutting down " + getMember());
+            return false;
+        }
+
+        if (obj instanceof Identity) {
+            if (isFiner()) {
+                logFiner("Received remote identity: " + obj);
+            }
+
+            // Trigger identitywaiter
+            synchronized (identityWaiter) {
+                // the remote identity
+                identity = (Identity) obj;
+                identityWaiter.notifyAll();
+            }
+            // Get magic id
+            if (isFiner()) {
+                logFiner("Received magicId: " + identity.getMagicId());
+            }
+        } else if (obj instanceof IdentityReply) {
+            if (isFiner()) {
+                logFiner("Received identity reply: " + obj);
+            }
+            // Trigger identity accept waiter
+            synchronized (identityAcceptWaiter) {
+                // remote side accpeted our identity
+                identityReply = (IdentityReply) obj;
+                identityAcceptWaiter.notifyAll();
+            }
+        } else if (obj instanceof Pong) {
+            // Do nothing.
+            // TRAC #812: Ping is answered on Member, not here!
+
+        } else if (obj instanceof Problem) {
+            Problem problem = (Problem) obj;
+            if (member != null) {
+                member.handleMessage(problem, this);
+            } else {
+                logWarning("("
+                    + (identity != null
+                        ? identity.getMemberInfo().nick
+                        : "-") + ") Problem received: "
+                    + problem.message);
+                if (problem.fatal) {
+                    // Fatal problem, disconnecting
+                    return false;
+                }
+            }
+
+        } else if (receivedObject(obj)) {
+            // The object was handled by the subclass.
+            // OK pass through
+        } else if (obj instanceof Message) {
+
+            if (member != null) {
+                member.handleMessage((Message) obj, this);
+            } else if (!isConnected()) {
+                // Simply break. Already disconnected
+                return false;
+            } else {
+                logWarning("Connection closed, message received, before peer identified itself: "
+                    + obj);
+                // connection closed
+                return false;
+            }
+        } else {
+            logSevere("Received unknown message from peer: " + obj);
+        }
+        return true;
+    }
+
     /**
      * Logs a connection closed event
      * 
      * @param e
      */
-    private void logConnectionClose(Exception e) {
+    protected void logConnectionClose(Exception e) {
         String msg = "Connection closed to "
             + ((member == null) ? this.toString() : member.toString());
 
@@ -826,21 +1135,33 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
                 return;
             }
 
-            int i = 0;
-            Message msg;
+            if (sendCoalesceDelay > 0) {
+                // Let following messages queue up to be sent together
+                try {
+                    Thread.sleep(sendCoalesceDelay);
+                } catch (InterruptedException e) {
+                    logFiner("InterruptedException", e);
+                }
+            }
+
+            List<Message> msgs = new ArrayList<Message>();
             while (true) {
                 senderSpawnLock.lock();
-                msg = messagesToSendQueue.poll();
-                if (msg == null) {
+                Message msg;
+                while (msgs.size() < MAX_MESSAGES_PER_SEND
+                    && (msg = messagesToSendQueue.poll()) != null)
+                {
+                    msgs.add(msg);
+                }
+                if (msgs.isEmpty()) {
                     sender = null;
                     senderSpawnLock.unlock();
                     break;
                 }
                 senderSpawnLock.unlock();
 
-                i++;
                 if (!started) {
-                    logFine("Peer shutdown while sending: " + msg);
+                    logFine("Peer shutdown while sending: " + msgs);
                     senderSpawnLock.lock();
                     sender = null;
                     senderSpawnLock.unlock();
@@ -848,7 +1169,8 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
                     break;
                 }
                 try {
-                    sendMessage(msg);
+                    sendMessages(msgs);
+                    msgs.clear();
                 } catch (ConnectionException e) {
                     logFine("Unable to send message asynchronly. " + e);
                     logFiner("ConnectionException", e);
@@ -906,91 +1228,9 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
                     }
 
                     byte[] data = serializer.read(in, totalSize);
-                    Object obj = deserialize(data, totalSize);
-
-                    lastKeepaliveMessage = new Date();
-                    getController().getTransferManager()
-                        .getTotalDownloadTrafficCounter()
-                        .bytesTransferred(totalSize);
-
-                    if (isFiner()) {
-                        logFiner("<- (received, "
-                            + Format.formatBytes(totalSize) + ") - " + obj);
-                    }
-
-                    if (!getController().isStarted()) {
-                        logFiner("Peer still active, shutting down "
-                            + getMember());
+                    if (!received(data, totalSize)) {
                         break;
                     }
-
-                    if (obj instanceof Identity) {
-                        if (isFiner()) {
-                            logFiner("Received remote identity: " + obj);
-                        }
-
-                        // Trigger identitywaiter
-                        synchronized (identityWaiter) {
-                            // the remote identity
-                            identity = (Identity) obj;
-                            identityWaiter.notifyAll();
-                        }
-                        // Get magic id
-                        if (isFiner()) {
-                            logFiner("Received magicId: "
-                                + identity.getMagicId());
-                        }
-                    } else if (obj instanceof IdentityReply) {
-                        if (isFiner()) {
-                            logFiner("Received identity reply: " + obj);
-                        }
-                        // Trigger identity accept waiter
-                        synchronized (identityAcceptWaiter) {
-                            // remote side accpeted our identity
-                            identityReply = (IdentityReply) obj;
-                            identityAcceptWaiter.notifyAll();
-                        }
-                    } else if (obj instanceof Pong) {
-                        // Do nothing.
-                        // TRAC #812: Ping is answered on Member, not here!
-
-                    } else if (obj instanceof Problem) {
-                        Problem problem = (Problem) obj;
-                        if (member != null) {
-                            member.handleMessage(problem,
-                                AbstractSocketConnectionHandler.this);
-                        } else {
-                            logWarning("("
-                                + (identity != null
-                                    ? identity.getMemberInfo().nick
-                                    : "-") + ") Problem received: "
-                                + problem.message);
-                            if (problem.fatal) {
-                                // Fatal problem, disconnecting
-                                break;
-                            }
-                        }
-
-                    } else if (receivedObject(obj)) {
-                        // The object was handled by the subclass.
-                        // OK pass through
-                    } else if (obj instanceof Message) {
-
-                        if (member != null) {
-                            member.handleMessage((Message) obj,
-                                AbstractSocketConnectionHandler.this);
-                        } else if (!isConnected()) {
-                            // Simply break. Already disconnected
-                            break;
-                        } else {
-                            logWarning("Connection closed, message received, before peer identified itself: "
-                                + obj);
-                            // connection closed
-                            break;
-                        }
-                    } else {
-                        logSevere("Received unknown message from peer: " + obj);
-                    }
                 } catch (SocketTimeoutException e) {
                     logWarning("Socket timeout on read, not disconnecting");
                 } catch (SocketException e) {
@@ -1042,4 +1282,44 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
             shutdownWithMember();
         }
     }
+
+    /**
+     * Counts the writes into the socket.
+     */
+    private class SocketOutputStream extends FilterOutputStream {
+        private SocketOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            countWrite();
+        }
+    }
+
+    /**
+     * Writes into the socket with or without bandwidth limit.
+     */
+    private static class BandwidthOutputStream extends OutputStream {
+        private final LimitedOutputStream out;
+        private final boolean omittBandwidthLimit;
+
+        private BandwidthOutputStream(LimitedOutputStream out,
+            boolean omittBandwidthLimit)
+        {
+            this.out = out;
+            this.omittBandwidthLimit = omittBandwidthLimit;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len, omittBandwidthLimit);
+        }
+    }
 }
\ No newline at end of file
@@ -23,6 +23,7 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
 
 import de.dal33t.powerfolder.ConfigurationEntry;
 import de.dal33t.powerfolder.Constants;
@@ -151,8 +152,12 @@ public class ConnectionHandlerFactory extends PFComponent {
     public ConnectionHandler createAndInitSocketConnectionHandler(Socket socket)
         throws ConnectionException
     {
-        ConnectionHandler conHan = new PlainSocketConnectionHandler(
-            getController(), socket);
+        ConnectionHandler conHan;
+        if (useNIO() && socket.getChannel() != null) {
+            conHan = new NioSocketConnectionHandler(getController(), socket);
+        } else {
+            conHan = new PlainSocketConnectionHandler(getController(), socket);
+        }
         try {
             conHan.init();
         } catch (ConnectionException e) {
@@ -219,7 +224,9 @@ public class ConnectionHandlerFactory extends PFComponent {
         throws ConnectionException
     {
         try {
-            Socket socket = new Socket();
+            Socket socket = useNIO()
+                ? SocketChannel.open().socket()
+                : new Socket();
             String cfgBind = ConfigurationEntry.NET_BIND_ADDRESS
                 .getValue(getController());
             if (!StringUtils.isEmpty(cfgBind)) {
@@ -274,6 +281,16 @@ public class ConnectionHandlerFactory extends PFComponent {
 
     // Internal helper ********************************************************
 
+    /**
+     * @return true if TCP connections should be handled by non-blocking
+     *         sockets.
+     * @see NioSocketConnectionHandler
+     */
+    public boolean useNIO() {
+        return ConfigurationEntry.NET_NIO_ENABLED
+            .getValueBoolean(getController());
+    }
+
     protected boolean useRelayedConnections() {
         return !getController().isLanOnly()
             && ConfigurationEntry.RELAYED_CONNECTIONS_ENABLED
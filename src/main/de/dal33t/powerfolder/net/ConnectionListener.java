@@ -27,6 +27,7 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.channels.ServerSocketChannel;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.List;
@@ -114,8 +115,23 @@ public class ConnectionListener extends PFComponent implements Runnable {
                     bind = null;
                 }
             }
-            serverSocket = new ServerSocket(port,
-                Constants.MAX_INCOMING_CONNECTIONS, bAddress);
+            if (getController().getIOProvider().getConnectionHandlerFactory()
+                .useNIO())
+            {
+                // Accepted sockets have a channel
+                ServerSocket socket = ServerSocketChannel.open().socket();
+                try {
+                    socket.bind(new InetSocketAddress(bAddress, port),
+                        Constants.MAX_INCOMING_CONNECTIONS);
+                } catch (IOException e) {
+                    socket.close();
+                    throw e;
+                }
+                serverSocket = socket;
+            } else {
+                serverSocket = new ServerSocket(port,
+                    Constants.MAX_INCOMING_CONNECTIONS, bAddress);
+            }
         } catch (Exception e) {
             throw new ConnectionException(Translation.getTranslation(
                 "dialog.unable_to_open_port", port + ""), e);
@@ -19,6 +19,7 @@
  */
 package de.dal33t.powerfolder.net;
 
+import java.io.IOException;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashSet;
@@ -29,6 +30,7 @@ import java.util.concurrent.Executors;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import de.dal33t.powerfolder.ConfigurationEntry;
 import de.dal33t.powerfolder.Constants;
 import de.dal33t.powerfolder.Controller;
 import de.dal33t.powerfolder.Member;
@@ -72,6 +74,8 @@ public class IOProvider extends PFComponent {
      */
     private UDTSocketConnectionManager udtConManager;
 
+    private SocketSelector socketSelector;
+
     /**
      * The list of connection handlers to check for keepalive
      */
@@ -105,6 +109,13 @@ public class IOProvider extends PFComponent {
             logFine("Shutting down connection I/O threadpool");
             ioThreadPool.shutdownNow();
         }
+        synchronized (this) {
+            if (socketSelector != null) {
+                logFine("Shutting down socket selector");
+                socketSelector.shutdown();
+                socketSelector = null;
+            }
+        }
     }
 
     /**
@@ -140,6 +151,26 @@ public class IOProvider extends PFComponent {
         return udtConManager;
     }
 
+    /**
+     * @return the selector of the non-blocking connections. Gets started on
+     *         first use.
+     * @throws IOException
+     *             if the selector could not be opened.
+     */
+    public synchronized SocketSelector getSocketSelector() throws IOException {
+        if (socketSelector == null) {
+            int threads = ConfigurationEntry.NET_NIO_SELECTOR_THREADS
+                .getValueInt(getController());
+            if (threads <= 0) {
+                threads = Math.max(1, Math.min(4, Runtime.getRuntime()
+                    .availableProcessors() / 2));
+            }
+            socketSelector = new SocketSelector(getController(), threads);
+            socketSelector.start();
+        }
+        return socketSelector;
+    }
+
     /**
      * Starts a general connection handling working.
      * 
@@ -0,0 +1,501 @@
+/*
+ * Copyright 2004 - 2013 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.net;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.output.ByteArrayOutputStream;
+
+import de.dal33t.powerfolder.Controller;
+import de.dal33t.powerfolder.transfer.BandwidthLimiter;
+import de.dal33t.powerfolder.util.Reject;
+
+/**
+ * Handler for non-blocking socket connections. NO encrypted transfer.
+ * <p>
+ * The socket is read and written by a thread of the {@link SocketSelector},
+ * which is shared by many connections. The packets have the same format as
+ * those of the {@link PlainSocketConnectionHandler}: A 4 byte header with the
+ * total length followed by the serialized message. Received packets get
+ * processed by a I/O thread of the {@link IOProvider} only while there are
+ * any.
+ */
+public class NioSocketConnectionHandler extends PlainSocketConnectionHandler
+{
+
+    /**
+     * The sending thread waits while more bytes are queued for writing.
+     */
+    private static final long MAX_QUEUED_BYTES = 1024 * 1024;
+
+    /**
+     * No more data is read from the socket while more bytes are received but
+     * not processed yet.
+     */
+    private static final long MAX_RECEIVED_BYTES = 1024 * 1024;
+
+    private final SocketChannel channel;
+    private volatile SocketSelector.SelectorThread selectorThread;
+    private volatile SelectionKey selectionKey;
+
+    // Reading. Only accessed by the selector thread.
+    private final ByteBuffer header = ByteBuffer.allocate(4);
+    private ByteBuffer body;
+    private volatile boolean throttled;
+
+    // Processing
+    private final Queue<byte[]> received = new LinkedList<byte[]>();
+    private long receivedBytes;
+    private boolean processing;
+    private boolean eof;
+    private volatile boolean readSuspended;
+    private final Runnable processor = new Processor();
+
+    // Writing
+    private final Queue<ByteBuffer[]> writeQueue = new ConcurrentLinkedQueue<ByteBuffer[]>();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    /** The selector needs to start writing on flush. Guarded by send lock */
+    private boolean writeStartPending;
+
+    /**
+     * Builds a new anonymous connection manager for the socket.
+     * <p>
+     * Should be called from <code>ConnectionHandlerFactory</code> only.
+     *
+     * @see ConnectionHandlerFactory
+     * @param controller
+     *            the controller.
+     * @param socket
+     *            the socket. Must have a channel.
+     */
+    protected NioSocketConnectionHandler(Controller controller, Socket socket)
+    {
+        super(controller, socket);
+        Reject.ifNull(socket.getChannel(), "Socket has no channel");
+        this.channel = socket.getChannel();
+    }
+
+    // Stream handling ********************************************************
+
+    @Override
+    protected void openStreams() throws IOException {
+        channel.configureBlocking(false);
+    }
+
+    @Override
+    protected boolean isStreamsOpen() {
+        return channel.isOpen();
+    }
+
+    @Override
+    protected void closeStreams() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logSevere("Could not close channel", e);
+        }
+        writeQueue.clear();
+        synchronized (writeQueue) {
+            writeQueue.notifyAll();
+        }
+        synchronized (received) {
+            received.clear();
+            receivedBytes = 0;
+        }
+        SocketSelector.SelectorThread thread = selectorThread;
+        if (thread != null) {
+            selectorThread = null;
+            thread.closed();
+        }
+    }
+
+    @Override
+    protected void startReceiver() throws IOException {
+        selectorThread = getController().getIOProvider().getSocketSelector()
+            .register(this);
+    }
+
+    @Override
+    protected void writeFrame(ByteArrayOutputStream data,
+        boolean omitBandwidthLimit) throws IOException
+    {
+        writeFrame(data.toByteArray(), omitBandwidthLimit);
+    }
+
+    @Override
+    protected void writeFrame(byte[] data, boolean omitBandwidthLimit)
+        throws IOException
+    {
+        if (!omitBandwidthLimit) {
+            requestBandwidth(getController().getTransferManager()
+                .getOutputLimiter(this), data.length + 4);
+        }
+        enqueue(data);
+    }
+
+    @Override
+    protected void flushFrames() throws IOException {
+        if (writeStartPending) {
+            writeStartPending = false;
+            SocketSelector.SelectorThread thread = selectorThread;
+            if (thread != null) {
+                thread.update(this);
+            }
+        }
+        synchronized (writeQueue) {
+            while (queuedBytes.get() > MAX_QUEUED_BYTES && channel.isOpen()) {
+                try {
+                    writeQueue.wait(1000);
+                } catch (InterruptedException e) {
+                    throw new IOException(e.toString());
+                }
+            }
+        }
+        if (!channel.isOpen()) {
+            throw new IOException("Connection closed");
+        }
+    }
+
+    /**
+     * Queues a packet for writing. The selector writes it after the next
+     * flush.
+     * 
+     * @param data
+     *            the serialized message. Might be shared with other
+     *            connections.
+     * @throws IOException
+     */
+    private void enqueue(byte[] data) throws IOException {
+        int length = data.length;
+        ByteBuffer frameHeader = ByteBuffer.allocate(4);
+        frameHeader.putInt(length);
+        frameHeader.flip();
+        writeQueue.add(new ByteBuffer[]{frameHeader, ByteBuffer.wrap(data)});
+        if (queuedBytes.getAndAdd(length + 4) == 0) {
+            writeStartPending = true;
+        }
+        if (queuedBytes.get() > MAX_QUEUED_BYTES) {
+            flushFrames();
+        }
+    }
+
+    private void requestBandwidth(BandwidthLimiter limiter, long size)
+        throws IOException
+    {
+        try {
+            while (size > 0) {
+                size -= limiter.requestBandwidth(size);
+            }
+        } catch (InterruptedException e) {
+            throw new IOException(e.toString());
+        }
+    }
+
+    // Selector callbacks *****************************************************
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    SelectionKey getSelectionKey() {
+        return selectionKey;
+    }
+
+    void setSelectionKey(SelectionKey selectionKey) {
+        this.selectionKey = selectionKey;
+    }
+
+    /**
+     * @return the operations of the socket the connection is currently
+     *         interested in.
+     */
+    int getInterestOps() {
+        int ops = 0;
+        if (!readSuspended && !throttled) {
+            ops |= SelectionKey.OP_READ;
+        }
+        if (!writeQueue.isEmpty()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        return ops;
+    }
+
+    /**
+     * @return true if reading is stopped by the input bandwidth limit.
+     */
+    boolean isThrottled() {
+        return throttled;
+    }
+
+    /**
+     * @return true if input bandwidth is available again.
+     */
+    boolean unthrottle() {
+        if (getController().getTransferManager().getInputLimiter(this)
+            .getAvailable() == 0)
+        {
+            return false;
+        }
+        throttled = false;
+        return true;
+    }
+
+    /**
+     * Reads from the socket until no more data is available or allowed.
+     *
+     * @param buf
+     *            the buffer to read into.
+     * @throws IOException
+     */
+    void readable(ByteBuffer buf) throws IOException {
+        BandwidthLimiter limiter = getController().getTransferManager()
+            .getInputLimiter(this);
+        while (!readSuspended) {
+            int allowed = (int) limiter.requestBandwidthNoWait(buf.capacity());
+            if (allowed <= 0) {
+                throttled = true;
+                return;
+            }
+            buf.clear();
+            buf.limit(allowed);
+            int read = channel.read(buf);
+            if (read < allowed) {
+                limiter.returnAvailable(allowed - Math.max(read, 0));
+            }
+            if (read < 0) {
+                throw new EOFException("Connection closed by remote peer");
+            }
+            if (read == 0) {
+                return;
+            }
+            buf.flip();
+            parse(buf);
+            if (read < allowed) {
+                // Nothing more available
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes the queued packets until the socket does not take any more.
+     * Several packets get written at once.
+     *
+     * @param gather
+     *            the array to gather the buffers of the packets in.
+     * @throws IOException
+     */
+    void writable(ByteBuffer[] gather) throws IOException {
+        while (!writeQueue.isEmpty()) {
+            int n = 0;
+            for (ByteBuffer[] frame : writeQueue) {
+                if (n + frame.length > gather.length) {
+                    break;
+                }
+                for (ByteBuffer buf : frame) {
+                    gather[n++] = buf;
+                }
+            }
+            channel.write(gather, 0, n);
+            countWrite();
+            Arrays.fill(gather, 0, n, null);
+
+            // Remove the written packets
+            int gathered = n / 2;
+            ByteBuffer[] frame;
+            while (gathered > 0 && (frame = writeQueue.peek()) != null
+                && !frame[1].hasRemaining())
+            {
+                writeQueue.poll();
+                gathered--;
+                long before = queuedBytes.getAndAdd(-(frame[0].limit()
+                    + frame[1].limit()));
+                if (before > MAX_QUEUED_BYTES) {
+                    synchronized (writeQueue) {
+                        writeQueue.notifyAll();
+                    }
+                }
+            }
+            if (gathered > 0) {
+                // Socket does not take any more
+                return;
+            }
+        }
+    }
+
+    /**
+     * The socket got closed or broke.
+     *
+     * @param e
+     *            the cause
+     */
+    void closed(IOException e) {
+        logConnectionClose(e);
+        boolean start;
+        synchronized (received) {
+            eof = true;
+            start = !processing;
+            processing = true;
+        }
+        if (start) {
+            // Shuts down after the received packets got processed
+            getController().getIOProvider().startIO(processor);
+        }
+    }
+
+    // Internal ***************************************************************
+
+    /**
+     * Splits the data into packets.
+     *
+     * @param buf
+     * @throws IOException
+     */
+    private void parse(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            if (body == null) {
+                transfer(buf, header);
+                if (header.hasRemaining()) {
+                    return;
+                }
+                header.flip();
+                int totalSize = header.getInt();
+                header.clear();
+                getController().getTransferManager()
+                    .getTotalDownloadTrafficCounter().bytesTransferred(4);
+                if (totalSize == -1393754107) {
+                    throw new IOException("Client has old protocol version");
+                }
+                if (totalSize == -1) {
+                    throw new EOFException("Connection closed by remote peer");
+                }
+                if (totalSize <= 0) {
+                    throw new IOException("Illegal paket size: " + totalSize);
+                }
+                body = ByteBuffer.allocate(totalSize);
+            }
+            transfer(buf, body);
+            if (body.hasRemaining()) {
+                return;
+            }
+            byte[] data = body.array();
+            body = null;
+            receivedPacket(data);
+        }
+    }
+
+    private static void transfer(ByteBuffer src, ByteBuffer dst) {
+        int n = Math.min(src.remaining(), dst.remaining());
+        int limit = src.limit();
+        src.limit(src.position() + n);
+        dst.put(src);
+        src.limit(limit);
+    }
+
+    private void receivedPacket(byte[] data) {
+        boolean start;
+        synchronized (received) {
+            received.add(data);
+            receivedBytes += data.length;
+            if (receivedBytes > MAX_RECEIVED_BYTES) {
+                readSuspended = true;
+            }
+            start = !processing;
+            processing = true;
+        }
+        if (start) {
+            getController().getIOProvider().startIO(processor);
+        }
+    }
+
+    /**
+     * @param data
+     * @return false if the connection should be closed.
+     */
+    private boolean process(byte[] data) {
+        try {
+            return received(data, data.length);
+        } catch (ConnectionException e) {
+            logFiner("ConnectionException", e);
+            logConnectionClose(e);
+            return false;
+        } catch (ClassNotFoundException e) {
+            logFiner("ClassNotFoundException", e);
+            logWarning("Received unknown packet/class: " + e.getMessage()
+                + " from " + this);
+            // do not break connection
+            return true;
+        } catch (RuntimeException e) {
+            logSevere("RuntimeException. " + e, e);
+            return false;
+        }
+    }
+
+    /**
+     * Processes the received packets in order of arrival.
+     */
+    private class Processor implements Runnable {
+        public void run() {
+            while (true) {
+                byte[] data;
+                boolean resume = false;
+                boolean shutdown = false;
+                synchronized (received) {
+                    data = received.poll();
+                    if (data == null) {
+                        processing = false;
+                        if (!eof) {
+                            return;
+                        }
+                        shutdown = true;
+                    } else {
+                        receivedBytes -= data.length;
+                        if (readSuspended
+                            && receivedBytes <= MAX_RECEIVED_BYTES / 2)
+                        {
+                            readSuspended = false;
+                            resume = true;
+                        }
+                    }
+                }
+                if (resume) {
+                    SocketSelector.SelectorThread thread = selectorThread;
+                    if (thread != null) {
+                        thread.update(NioSocketConnectionHandler.this);
+                    }
+                }
+                if (shutdown || !isConnected() || !process(data)) {
+                    shutdownWithMember();
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -1304,29 +1304,24 @@ public class NodeManager extends PFComponent {
                         // Skip
                         continue;
                     }
+                    // Serialized once and shared by all nodes
                     if (node.getProtocolVersion() >= minProtocolVersion) {
                         if (msgsExt == null) {
-                            msgsExt = msgProd.getMessages(true);
+                            msgsExt = Message.keepSerialized(msgProd
+                                .getMessages(true));
                         }
                         if (msgsExt != null && msgsExt.length > 0) {
                             node.sendMessagesAsynchron(msgsExt);
                         }
                     } else {
                         if (msgs == null) {
-                            msgs = msgProd.getMessages(false);
+                            msgs = Message.keepSerialized(msgProd
+                                .getMessages(false));
                         }
                         if (msgs != null && msgs.length > 0) {
                             node.sendMessagesAsynchron(msgs);
                         }
                     }
-                    try {
-                        // Slight delay to prevent abnormal threadpool
-                        // growth of Sender threads.
-                        Thread.sleep(5);
-                    } catch (InterruptedException e) {
-                        logFiner("InterruptedException", e);
-                        break;
-                    }
                 }
             }
         };
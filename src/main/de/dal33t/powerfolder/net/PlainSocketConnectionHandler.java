@@ -23,10 +23,16 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 
+import org.apache.commons.io.output.ByteArrayOutputStream;
+
+import de.dal33t.powerfolder.ConfigurationEntry;
 import de.dal33t.powerfolder.Controller;
+import de.dal33t.powerfolder.message.FileChunk;
 import de.dal33t.powerfolder.message.Identity;
 import de.dal33t.powerfolder.message.Message;
+import de.dal33t.powerfolder.message.MessageCodecs;
 import de.dal33t.powerfolder.util.ByteSerializer;
+import de.dal33t.powerfolder.util.CompressionContext;
 
 /**
  * Handler for relayed connections to other clients. NO encrypted transfer.
@@ -40,6 +46,19 @@ public class PlainSocketConnectionHandler extends
     AbstractSocketConnectionHandler implements ConnectionHandler
 {
 
+    /**
+     * Compresses the packets after the identities got exchanged, if supported
+     * by both sides.
+     */
+    private final CompressionContext compression = new CompressionContext();
+
+    /**
+     * Encodes the messages sent most, if supported by the remote side.
+     * Messages sent to many nodes keep being serialized once for all.
+     */
+    private final MessageCodecs codecs = new MessageCodecs();
+    private final boolean useCodecs;
+
     /**
      * Builds a new anonymous connection manager for the socket.
      * <p>
@@ -55,12 +74,42 @@ public class PlainSocketConnectionHandler extends
     protected PlainSocketConnectionHandler(Controller controller, Socket socket)
     {
         super(controller, socket);
+        useCodecs = ConfigurationEntry.USE_MESSAGE_CODECS
+            .getValueBoolean(controller);
     }
 
     @Override
     protected Object deserialize(byte[] data, int len)
         throws ClassNotFoundException, ConnectionException
     {
+        if (isStreamCompressionReceiving()) {
+            byte[] plain;
+            try {
+                plain = compression.decompress(data, len);
+            } catch (IOException e) {
+                throw new ConnectionException(
+                    "Unable to decompress message from peer", e).with(this);
+            }
+            if (!MessageCodecs.isEncoded(plain, plain.length)) {
+                try {
+                    return ByteSerializer.deserializeStatic(plain, false);
+                } catch (IOException e) {
+                    throw new ConnectionException(
+                        "Unable to deserialize message from peer", e)
+                        .with(this);
+                }
+            }
+            data = plain;
+            len = plain.length;
+        }
+        if (MessageCodecs.isEncoded(data, len)) {
+            try {
+                return codecs.decode(data, len);
+            } catch (IOException e) {
+                throw new ConnectionException(
+                    "Unable to decode message from peer", e).with(this);
+            }
+        }
         boolean expectCompressed = !isOnLAN();
         if (getIdentity() != null
             && getIdentity().isUseCompressedStream() != null)
@@ -78,13 +127,36 @@ public class PlainSocketConnectionHandler extends
 
     @Override
     protected byte[] serialize(Message message) throws ConnectionException {
+        return serializeToBuffer(message).toByteArray();
+    }
+
+    @Override
+    protected ByteArrayOutputStream serializeToBuffer(Message message)
+        throws ConnectionException
+    {
         try {
             boolean compressed = getMyIdentity().isUseCompressedStream();
             ByteSerializer serializer = getSerializer();
             if (serializer == null) {
                 throw new IOException("Connection already closed");
             }
-            return serializer.serialize(message, compressed, -1);
+            boolean stream = isStreamCompressionSending(message);
+            // Encode only if sent. Keeps the references in sync.
+            byte[] encoded = isCodecSending() && (stream || !compressed)
+                ? codecs.encode(message)
+                : null;
+            if (stream) {
+                return compress(message, encoded != null
+                    ? encoded
+                    : serializer.serialize(message, false, -1));
+            }
+            if (encoded != null) {
+                ByteArrayOutputStream buf = new ByteArrayOutputStream(
+                    encoded.length);
+                buf.write(encoded, 0, encoded.length);
+                return buf;
+            }
+            return serializer.serializeToBuffer(message, compressed, -1);
         } catch (IOException e) {
             throw new ConnectionException(
                 "Unable to send message to peer, connection closed", e)
@@ -92,10 +164,105 @@ public class PlainSocketConnectionHandler extends
         }
     }
 
+    @Override
+    protected byte[] serializeKept(Message message) throws ConnectionException
+    {
+        // Share the uncompressed form, compress with the own context. Costs
+        // one compression per connection, see USE_STREAM_COMPRESSION.
+        boolean stream = isStreamCompressionSending(message);
+        boolean compressed = !stream
+            && getMyIdentity().isUseCompressedStream();
+        // Serialize only once, other connections wait for it. Not encoded,
+        // the references of the codecs are per connection.
+        byte[] data;
+        synchronized (message) {
+            data = message.getSerialized(compressed);
+            if (data == null) {
+                try {
+                    data = ByteSerializer.serializeStatic(message, compressed);
+                } catch (IOException e) {
+                    throw new ConnectionException(
+                        "Unable to send message to peer, connection closed", e)
+                        .with(this);
+                }
+                message.setSerialized(compressed, data);
+            }
+        }
+        return stream ? compress(message, data).toByteArray() : data;
+    }
+
     @Override
     protected Identity createOwnIdentity() {
-        return new Identity(getController(), getController().getMySelf()
-            .getInfo(), getMyMagicId(), false, false, this);
+        Identity identity = new Identity(getController(), getController()
+            .getMySelf().getInfo(), getMyMagicId(), false, false, this);
+        identity.setSupportsStreamCompression(CompressionContext.isSupported()
+            && ConfigurationEntry.USE_STREAM_COMPRESSION
+                .getValueBoolean(getController()));
+        // Decodes in any case, the codecs are only switched off for sending
+        identity.setSupportsMessageCodecs(true);
+        return identity;
+    }
+
+    @Override
+    public void shutdown() {
+        super.shutdown();
+        compression.close();
+    }
+
+    // Stream compression *****************************************************
+
+    /**
+     * @return true if the remote connection handler decodes
+     *         {@link MessageCodecs}.
+     */
+    private boolean isCodecSending() {
+        Identity remote = getIdentity();
+        return useCodecs && remote != null && remote.isSupportsMessageCodecs();
+    }
+
+    /**
+     * The identity itself is never compressed by the context, it might get
+     * sent after the remote identity was received.
+     *
+     * @param message
+     * @return true if the message gets compressed by the compression context
+     *         of this connection.
+     */
+    private boolean isStreamCompressionSending(Message message) {
+        Identity remote = getIdentity();
+        return !(message instanceof Identity) && remote != null
+            && remote.isSupportsStreamCompression()
+            && getMyIdentity().isSupportsStreamCompression()
+            && getMyIdentity().isUseCompressedStream();
+    }
+
+    /**
+     * The first packet is the remote identity. All packets after it were sent
+     * by the remote side after it received my identity.
+     *
+     * @return true if the next received packet was compressed by the
+     *         compression context of the remote side.
+     */
+    private boolean isStreamCompressionReceiving() {
+        Identity remote = getIdentity();
+        return remote != null && remote.isSupportsStreamCompression()
+            && getMyIdentity().isSupportsStreamCompression()
+            && Boolean.TRUE.equals(remote.isUseCompressedStream());
+    }
+
+    private ByteArrayOutputStream compress(Message message, byte[] data)
+        throws ConnectionException
+    {
+        // Chunks of zip, jpg, ... files don't get any smaller
+        boolean plain = message instanceof FileChunk
+            && !CompressionContext.isCompressible(((FileChunk) message).data);
+        try {
+            return compression.compress(data, plain);
+        } catch (IOException e) {
+            throw new ConnectionException(
+                "Unable to send message to peer, connection closed", e)
+                .with(this);
+        }
     }
 
     // Logger methods *********************************************************
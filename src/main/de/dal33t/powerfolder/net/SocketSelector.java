@@ -0,0 +1,300 @@
+/*
+ * Copyright 2004 - 2013 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.dal33t.powerfolder.Controller;
+import de.dal33t.powerfolder.PFComponent;
+import de.dal33t.powerfolder.util.NamedThreadFactory;
+import de.dal33t.powerfolder.util.Reject;
+
+/**
+ * Multiplexes the non-blocking sockets of {@link NioSocketConnectionHandler}s
+ * on a few selector threads. The selector threads only read and write the
+ * sockets. Received packets are processed by the I/O threads of the
+ * {@link IOProvider}, so an idle connection does not occupy any thread.
+ */
+public class SocketSelector extends PFComponent {
+
+    /**
+     * Connections throttled by the input bandwidth limit are checked again
+     * after that time.
+     */
+    private static final long THROTTLE_CHECK_INTERVAL = 100;
+
+    /**
+     * Size of the buffer of each selector thread to read into.
+     */
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The maximum number of packets written at once.
+     */
+    private static final int MAX_GATHERED_PACKETS = 64;
+
+    private final SelectorThread[] selectorThreads;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * @param controller
+     * @param nThreads
+     *            the number of selector threads.
+     * @throws IOException
+     *             if the selectors could not be opened.
+     */
+    SocketSelector(Controller controller, int nThreads) throws IOException {
+        super(controller);
+        Reject.ifTrue(nThreads <= 0, "Illegal number of selector threads: "
+            + nThreads);
+        selectorThreads = new SelectorThread[nThreads];
+        for (int i = 0; i < selectorThreads.length; i++) {
+            selectorThreads[i] = new SelectorThread(Selector.open());
+        }
+    }
+
+    void start() {
+        NamedThreadFactory factory = new NamedThreadFactory("NIOSelector-");
+        for (SelectorThread selectorThread : selectorThreads) {
+            Thread thread = factory.newThread(selectorThread);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    void shutdown() {
+        for (SelectorThread selectorThread : selectorThreads) {
+            selectorThread.shutdown();
+        }
+    }
+
+    /**
+     * @return the number of selector threads.
+     */
+    public int getThreadCount() {
+        return selectorThreads.length;
+    }
+
+    /**
+     * @return the number of connections registered.
+     */
+    public int getConnectionCount() {
+        int count = 0;
+        for (SelectorThread selectorThread : selectorThreads) {
+            count += selectorThread.connections.get();
+        }
+        return count;
+    }
+
+    /**
+     * Registers the connection at the selector thread with the least
+     * connections.
+     *
+     * @param handler
+     * @return the selector thread of the connection.
+     */
+    SelectorThread register(NioSocketConnectionHandler handler) {
+        SelectorThread selectorThread = selectorThreads[Math.abs(next
+            .getAndIncrement() % selectorThreads.length)];
+        for (SelectorThread candidate : selectorThreads) {
+            if (candidate.connections.get() < selectorThread.connections
+                .get())
+            {
+                selectorThread = candidate;
+            }
+        }
+        selectorThread.connections.incrementAndGet();
+        selectorThread.update(handler);
+        return selectorThread;
+    }
+
+    /**
+     * Selects the sockets of its connections.
+     */
+    class SelectorThread implements Runnable {
+        private final Selector selector;
+        private final ByteBuffer readBuffer = ByteBuffer
+            .allocateDirect(READ_BUFFER_SIZE);
+        private final ByteBuffer[] gather = new ByteBuffer[2 * MAX_GATHERED_PACKETS];
+        private final AtomicInteger connections = new AtomicInteger();
+
+        /**
+         * Connections to register or to update the interest of.
+         */
+        private final Queue<NioSocketConnectionHandler> pending = new ConcurrentLinkedQueue<NioSocketConnectionHandler>();
+
+        /**
+         * Connections currently throttled by the input bandwidth limit. Only
+         * accessed by the selector thread.
+         */
+        private final List<NioSocketConnectionHandler> throttled = new ArrayList<NioSocketConnectionHandler>();
+
+        private volatile boolean running = true;
+
+        private SelectorThread(Selector selector) {
+            this.selector = selector;
+        }
+
+        /**
+         * Registers the connection or updates the operations it is interested
+         * in.
+         *
+         * @param handler
+         */
+        void update(NioSocketConnectionHandler handler) {
+            pending.add(handler);
+            selector.wakeup();
+        }
+
+        /**
+         * The connection got closed.
+         */
+        void closed() {
+            connections.decrementAndGet();
+        }
+
+        private void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        public void run() {
+            while (running) {
+                try {
+                    selector.select(throttled.isEmpty()
+                        ? 0
+                        : THROTTLE_CHECK_INTERVAL);
+                    processPending();
+                    processThrottled();
+                    Iterator<SelectionKey> it = selector.selectedKeys()
+                        .iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        process(key);
+                    }
+                } catch (ClosedSelectorException e) {
+                    break;
+                } catch (IOException e) {
+                    logSevere("IOException while selecting: " + e, e);
+                } catch (RuntimeException e) {
+                    logSevere("RuntimeException while selecting: " + e, e);
+                }
+            }
+            close();
+        }
+
+        private void process(SelectionKey key) {
+            NioSocketConnectionHandler handler = (NioSocketConnectionHandler) key
+                .attachment();
+            try {
+                if (key.isValid() && key.isWritable()) {
+                    handler.writable(gather);
+                }
+                if (key.isValid() && key.isReadable()) {
+                    handler.readable(readBuffer);
+                    if (handler.isThrottled()) {
+                        throttled.add(handler);
+                    }
+                }
+                updateInterest(handler);
+            } catch (CancelledKeyException e) {
+                // Closed meanwhile
+            } catch (IOException e) {
+                key.cancel();
+                handler.closed(e);
+            } catch (RuntimeException e) {
+                logSevere("RuntimeException on " + handler + ": " + e, e);
+                key.cancel();
+                handler.closed(new IOException(e.toString()));
+            }
+        }
+
+        private void processPending() {
+            NioSocketConnectionHandler handler;
+            while ((handler = pending.poll()) != null) {
+                if (handler.getSelectionKey() != null) {
+                    updateInterest(handler);
+                    continue;
+                }
+                try {
+                    handler.setSelectionKey(handler.getChannel().register(
+                        selector, handler.getInterestOps(), handler));
+                } catch (ClosedChannelException e) {
+                    // Closed before registration
+                    logFiner("Channel closed before registration: " + handler);
+                }
+            }
+        }
+
+        private void processThrottled() {
+            for (Iterator<NioSocketConnectionHandler> it = throttled
+                .iterator(); it.hasNext();)
+            {
+                NioSocketConnectionHandler handler = it.next();
+                if (handler.unthrottle()) {
+                    it.remove();
+                    updateInterest(handler);
+                }
+            }
+        }
+
+        private void updateInterest(NioSocketConnectionHandler handler) {
+            SelectionKey key = handler.getSelectionKey();
+            if (key == null || !key.isValid()) {
+                return;
+            }
+            try {
+                key.interestOps(handler.getInterestOps());
+            } catch (CancelledKeyException e) {
+                // Closed meanwhile
+            }
+        }
+
+        private void close() {
+            try {
+                for (SelectionKey key : selector.keys()) {
+                    try {
+                        key.channel().close();
+                    } catch (IOException e) {
+                        logFiner("Unable to close channel: " + e);
+                    }
+                }
+                selector.close();
+            } catch (IOException e) {
+                logFiner("Unable to close selector: " + e);
+            } catch (ClosedSelectorException e) {
+                // Already closed
+            }
+        }
+    }
+}
@@ -28,13 +28,13 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.RandomAccessFile;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.Callable;
 
+import de.dal33t.powerfolder.ConfigurationEntry;
 import de.dal33t.powerfolder.Constants;
 import de.dal33t.powerfolder.Controller;
 import de.dal33t.powerfolder.PFComponent;
@@ -54,6 +54,8 @@ import de.dal33t.powerfolder.util.Range;
 import de.dal33t.powerfolder.util.Reject;
 import de.dal33t.powerfolder.util.TransferCounter;
 import de.dal33t.powerfolder.util.Util;
+import de.dal33t.powerfolder.util.delta.ChunkCopyWorker;
+import de.dal33t.powerfolder.util.delta.ChunkRecord;
 import de.dal33t.powerfolder.util.delta.FilePartsRecord;
 import de.dal33t.powerfolder.util.delta.FilePartsState;
 import de.dal33t.powerfolder.util.delta.FilePartsState.PartState;
@@ -109,6 +111,23 @@ public abstract class AbstractDownloadManager extends PFComponent implements
 
     protected FilePartsRecord remotePartRecord;
 
+    /**
+     * The record of content defined chunks. Used instead of the part record
+     * if the remote side supports it.
+     */
+    protected ChunkRecord remoteChunkRecord;
+
+    /**
+     * The MD5 of the tempfile, computed while writing. Only if there is a
+     * remote record to verify against.
+     */
+    private DownloadDigest digest;
+
+    /**
+     * The MD5 of the completed tempfile, if it matched the remote digest.
+     */
+    private volatile byte[] verifiedMD5;
+
     private volatile TransferCounter counter;
     private State transferState = new State();
 
@@ -203,7 +222,19 @@ public abstract class AbstractDownloadManager extends PFComponent implements
         Reject.noNullElements(download, record);
         validateDownload(download);
         try {
-            receivedFilePartsRecord0(download, record);
+            receivedRecord0(download, record, null);
+        } catch (BrokenDownloadException e) {
+            setBroken(TransferProblem.BROKEN_DOWNLOAD, e.toString());
+        }
+    }
+
+    public synchronized void chunkRecordReceived(Download download,
+        ChunkRecord record)
+    {
+        Reject.noNullElements(download, record);
+        validateDownload(download);
+        try {
+            receivedRecord0(download, null, record);
         } catch (BrokenDownloadException e) {
             setBroken(TransferProblem.BROKEN_DOWNLOAD, e.toString());
         }
@@ -252,6 +283,10 @@ public abstract class AbstractDownloadManager extends PFComponent implements
         return tempFile;
     }
 
+    public byte[] getVerifiedMD5() {
+        return verifiedMD5;
+    }
+
     public boolean isBroken() {
         return state == InternalState.BROKEN;
     }
@@ -310,41 +345,57 @@ public abstract class AbstractDownloadManager extends PFComponent implements
         setTransferState(TransferState.VERIFYING);
         // logFine("Verifying file hash for " + this);
         try {
-            FilePartsRecord thisRemotePartRecord = remotePartRecord;
+            byte[] remoteDigest = getRemoteFileDigest();
+            DownloadDigest thisDigest;
+            synchronized (this) {
+                thisDigest = digest;
+                digest = null;
+            }
             byte[] tempFileHash = null;
-            if (thisRemotePartRecord != null) {
-                tempFileHash = FileUtils.digest(getTempFile(),
-                    MessageDigest.getInstance("MD5"), new ProgressListener() {
-                        public void progressReached(double percentageReached) {
-                            setTransferState(percentageReached / 100.0);
-                        }
-
-                    });
+            if (remoteDigest != null) {
+                if (thisDigest == null) {
+                    thisDigest = new DownloadDigest(fileInfo.getSize());
+                } else if (isFine()) {
+                    logFine("Digested " + thisDigest.getPosition() + " of "
+                        + fileInfo.getSize() + " bytes while downloading "
+                        + fileInfo.toDetailString());
+                }
+                RandomAccessFile raf = new RandomAccessFile(getTempFile(),
+                    "r");
+                try {
+                    tempFileHash = thisDigest.finish(raf,
+                        new ProgressListener() {
+                            public void progressReached(
+                                double percentageReached)
+                            {
+                                setTransferState(percentageReached / 100.0);
+                            }
+                        });
+                } finally {
+                    raf.close();
+                }
             }
             // If we don't have a record, no hashing was performed and the file
             // is assumed to be "valid"
             if (tempFileHash == null
-                || Arrays.equals(thisRemotePartRecord.getFileDigest(),
-                    tempFileHash))
+                || Arrays.equals(remoteDigest, tempFileHash))
             {
+                verifiedMD5 = tempFileHash;
                 return true;
             }
             logWarning("Checksum test FAILED on " + fileInfo.toDetailString()
                 + ". MD5 found: " + Base64.encodeBytes(tempFileHash)
                 + " expected: "
-                + Base64.encodeBytes(thisRemotePartRecord.getFileDigest()));
+                + Base64.encodeBytes(remoteDigest));
             counter = new TransferCounter(0, fileInfo.getSize());
             // filePartsState.setPartState(Range.getRangeByLength(0,
             // filePartsState.getFileLength()), PartState.NEEDED);
             filePartsState = null;
             // Maybe part record was bogus.
             remotePartRecord = null;
+            remoteChunkRecord = null;
 
             return false;
-        } catch (NoSuchAlgorithmException e) {
-            // If this error occurs, no downloads will ever succeed.
-            logSevere("NoSuchAlgorithmException", e);
-            throw new RuntimeException(e);
         } catch (Exception e) {
             logSevere("Exception", e);
             setBroken(TransferProblem.GENERAL_EXCEPTION, e.getMessage());
@@ -406,10 +457,25 @@ public abstract class AbstractDownloadManager extends PFComponent implements
 
     protected boolean isNeedingFilePartsRecord() {
         return !isCompleted() && remotePartRecord == null
+            && remoteChunkRecord == null
             && fileInfo.getSize() >= Constants.MIN_SIZE_FOR_PARTTRANSFERS
             && fileInfo.diskFileExists(getController());
     }
 
+    /**
+     * @return the digest of the complete file from the remote record or null
+     *         if no record is known.
+     */
+    private byte[] getRemoteFileDigest() {
+        if (remoteChunkRecord != null) {
+            return remoteChunkRecord.getFileDigest();
+        }
+        if (remotePartRecord != null) {
+            return remotePartRecord.getFileDigest();
+        }
+        return null;
+    }
+
     protected void matchAndCopyData() throws BrokenDownloadException,
         InterruptedException
     {
@@ -422,8 +488,17 @@ public abstract class AbstractDownloadManager extends PFComponent implements
                     setTransferState(percentageReached);
                 }
             };
+            if (remoteChunkRecord != null) {
+                copyMatchingChunks(src, transferObs);
+                return;
+            }
+            int threads = ConfigurationEntry.DELTA_MATCH_THREADS
+                .getValueInt(getController());
+            if (threads <= 0) {
+                threads = Runtime.getRuntime().availableProcessors();
+            }
             Callable<List<MatchInfo>> mInfoWorker = new MatchResultWorker(
-                remotePartRecord, src, transferObs);
+                remotePartRecord, src, transferObs, threads);
             List<MatchInfo> mInfoRes = null;
             mInfoRes = mInfoWorker.call();
 
@@ -464,6 +539,37 @@ public abstract class AbstractDownloadManager extends PFComponent implements
         }
     }
 
+    /**
+     * Compares the chunks of the remote record with the ones of the local
+     * file. The record of the local file is usually cached, the local file is
+     * only read to copy the matching chunks.
+     */
+    private void copyMatchingChunks(File src, ProgressListener transferObs)
+        throws Exception
+    {
+        FileInfo localInfo = fileInfo.getLocalFileInfo(getController()
+            .getFolderRepository());
+        ChunkRecord localRecord = tm.getFileRecordManager()
+            .retrieveChunkRecord(localInfo != null ? localInfo : fileInfo,
+                remoteChunkRecord.getAverageChunkSize(), transferObs);
+        setTransferState(TransferState.COPYING);
+        FilePartsState calcedState = new ChunkCopyWorker(src, localRecord,
+            getTempFile(), remoteChunkRecord, transferObs).call();
+        if (calcedState.getFileLength() != fileInfo.getSize()) {
+            // Concurrent file modification
+            throw new BrokenDownloadException();
+        }
+        setFilePartsState(calcedState);
+        long available = filePartsState.countPartStates(
+            filePartsState.getRange(), PartState.AVAILABLE);
+        counter = new TransferCounter(available, fileInfo.getSize());
+        if (isFine()) {
+            logFine("Chunks: " + remoteChunkRecord.getChunks().length
+                + ", found locally: " + Format.formatBytes(available)
+                + " bytes on " + fileInfo.toDetailString());
+        }
+    }
+
     protected abstract void removeSourceImpl(Download source);
 
     protected abstract void requestFilePartsRecord(Download download);
@@ -538,6 +644,12 @@ public abstract class AbstractDownloadManager extends PFComponent implements
             }
         }
 
+        if (remoteChunkRecord != null && verifiedMD5 != null) {
+            // Base of the next version
+            tm.getFileRecordManager().storeChunkRecord(fileInfo,
+                remoteChunkRecord);
+        }
+
         setTransferState(TransferState.DONE, 1);
         setState(InternalState.COMPLETED);
         shutdown();
@@ -555,6 +667,7 @@ public abstract class AbstractDownloadManager extends PFComponent implements
         }
 
         filePartsState = state;
+        digest = null;
     }
 
     protected void setStarted() {
@@ -628,6 +741,7 @@ public abstract class AbstractDownloadManager extends PFComponent implements
         // stored "somewhere" - like in the
         // folders database or so)
         remotePartRecord = null;
+        remoteChunkRecord = null;
         updateTempFile();
 
         assert tempRAF == null;
@@ -660,6 +774,12 @@ public abstract class AbstractDownloadManager extends PFComponent implements
         try {
             tempRAF.seek(chunk.offset);
             tempRAF.write(chunk.data);
+            if (digest == null && getRemoteFileDigest() != null) {
+                digest = new DownloadDigest(fileInfo.getSize());
+            }
+            if (digest != null) {
+                digest.written(chunk.offset, chunk.data);
+            }
         } catch (IOException e) {
             logSevere("IOException", e);
             setBroken(TransferProblem.IO_EXCEPTION,
@@ -671,6 +791,16 @@ public abstract class AbstractDownloadManager extends PFComponent implements
 
         Range range = Range.getRangeByLength(chunk.offset, chunk.data.length);
         filePartsState.setPartState(range, PartState.AVAILABLE);
+        if (digest != null) {
+            try {
+                digest.catchUp(tempRAF, filePartsState);
+            } catch (IOException e) {
+                // Digest the whole file on completion
+                logFine("Unable to digest tempfile " + getTempFile() + ". "
+                    + e);
+                digest = null;
+            }
+        }
 
         long avs = filePartsState.countPartStates(filePartsState.getRange(),
             PartState.AVAILABLE);
@@ -876,6 +1006,7 @@ public abstract class AbstractDownloadManager extends PFComponent implements
      * @throws IOException
      */
     private void deleteTempFile() throws IOException {
+        digest = null;
         boolean exists = getTempFile() != null && getTempFile().exists();
         if (exists && isFine()) {
             logFine("killTempFile: " + getTempFile() + ", size: "
@@ -927,6 +1058,8 @@ public abstract class AbstractDownloadManager extends PFComponent implements
                         setFilePartsState((FilePartsState) o);
                     } else if (o.getClass() == FilePartsRecord.class) {
                         remotePartRecord = (FilePartsRecord) o;
+                    } else if (o.getClass() == ChunkRecord.class) {
+                        remoteChunkRecord = (ChunkRecord) o;
                     }
                 }
             } else {
@@ -936,6 +1069,7 @@ public abstract class AbstractDownloadManager extends PFComponent implements
             }
         } catch (Exception e) {
             remotePartRecord = null;
+            remoteChunkRecord = null;
             filePartsState = null;
             if (in != null) {
                 try {
@@ -1038,6 +1172,11 @@ public abstract class AbstractDownloadManager extends PFComponent implements
                 download.abort();
                 break;
             case ACTIVE_DOWNLOAD :
+                if (isReceivedBefore(chunk)) {
+                    // Endgame: Requested from several sources
+                    sendPartRequests();
+                    break;
+                }
                 storeFileChunk(download, chunk);
                 if (filePartsState.isCompleted()) {
                     checkFileValidity();
@@ -1045,6 +1184,12 @@ public abstract class AbstractDownloadManager extends PFComponent implements
                     sendPartRequests();
                 }
                 break;
+            case CHECKING_FILE_VALIDITY :
+                if (!isReceivedBefore(chunk)) {
+                    protocolStateError(download, "receivedChunk");
+                }
+                // Endgame: Late duplicate
+                break;
             case PASSIVE_DOWNLOAD :
                 storeFileChunk(download, chunk);
                 if (filePartsState.isCompleted()) {
@@ -1064,8 +1209,22 @@ public abstract class AbstractDownloadManager extends PFComponent implements
         }
     }
 
-    private void receivedFilePartsRecord0(Download download,
-        final FilePartsRecord record) throws BrokenDownloadException
+    /**
+     * @return true if the data of the chunk is already available. Happens if
+     *         the part has been requested from several sources.
+     */
+    private boolean isReceivedBefore(FileChunk chunk) {
+        if (filePartsState == null) {
+            return false;
+        }
+        Range range = Range.getRangeByLength(chunk.offset, chunk.data.length);
+        return filePartsState.countPartStates(range, PartState.AVAILABLE) == range
+            .getLength();
+    }
+
+    private void receivedRecord0(Download download,
+        FilePartsRecord partRecord, ChunkRecord chunkRecord)
+        throws BrokenDownloadException
     {
         switch (state) {
             case WAITING_FOR_FILEPARTSRECORD :
@@ -1074,7 +1233,8 @@ public abstract class AbstractDownloadManager extends PFComponent implements
                         + fileInfo.toDetailString());
                 }
                 setState(InternalState.MATCHING_AND_COPYING);
-                remotePartRecord = record;
+                remotePartRecord = partRecord;
+                remoteChunkRecord = chunkRecord;
 
                 tm.doWork(new Runnable() {
                     public void run() {
@@ -1186,6 +1346,9 @@ public abstract class AbstractDownloadManager extends PFComponent implements
             if (remotePartRecord != null) {
                 list.add(remotePartRecord);
             }
+            if (remoteChunkRecord != null) {
+                list.add(remoteChunkRecord);
+            }
             out.writeObject(list);
         } finally {
             out.close();
@@ -88,6 +88,23 @@ public class BandwidthLimiter {
 		}
     }
 
+    /**
+     * Requests bandwidth on a medium. Does not block.
+     * 
+     * @param size
+     *            the amount requested
+     * @return the amount of bandwidth granted. 0 if none is available.
+     */
+    public long requestBandwidthNoWait(long size) {
+        synchronized (monitor) {
+            long amount = available < 0 ? size : Math.min(available, size);
+            if (available >= 0) {
+                available -= amount;
+            }
+            return amount;
+        }
+    }
+
     /**
      * Sets the amount of available "bandwidth". As a side-effect this call will
      * wake Threads waiting in requestBandwidth().
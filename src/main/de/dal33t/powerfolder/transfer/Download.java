@@ -43,6 +43,7 @@ import de.dal33t.powerfolder.util.Range;
 import de.dal33t.powerfolder.util.Reject;
 import de.dal33t.powerfolder.util.Util;
 import de.dal33t.powerfolder.util.Validate;
+import de.dal33t.powerfolder.util.delta.ChunkRecord;
 import de.dal33t.powerfolder.util.delta.FilePartsRecord;
 
 /**
@@ -67,6 +68,7 @@ public class Download extends Transfer {
     private Queue<RequestPart> pendingRequests = new ConcurrentLinkedQueue<RequestPart>();
 
     private transient DownloadManager dlManager;
+    private transient RequestWindow requestWindow;
 
     /** for serialisation */
     public Download() {
@@ -100,6 +102,7 @@ public class Download extends Transfer {
         super.init(aTransferManager);
         queued = false;
         markedBroken = false;
+        requestWindow = null;
     }
 
     /**
@@ -162,7 +165,8 @@ public class Download extends Transfer {
         requestCheckState();
 
         getPartner().sendMessagesAsynchron(
-            new RequestFilePartsRecord(getFile()));
+            new RequestFilePartsRecord(getFile(), Util.useChunkRecords(
+                getController(), this)));
     }
 
     /**
@@ -187,6 +191,27 @@ public class Download extends Transfer {
         dlManager.filePartsRecordReceived(Download.this, record);
     }
 
+    /**
+     * Invoked when a chunk record for this download was received.
+     * 
+     * @param fileInfo
+     *            the fileInfo the remote side uses.
+     * @param record
+     *            the record received.
+     */
+    public void receivedChunkRecord(FileInfo fileInfo, final ChunkRecord record)
+    {
+        Reject.ifNull(record, "Record is null");
+        checkFileInfo(fileInfo);
+
+        lastTouch.setTime(System.currentTimeMillis());
+        if (isFine()) {
+            logFine("Received chunk record for " + fileInfo.toDetailString()
+                + ": " + record);
+        }
+        dlManager.chunkRecordReceived(Download.this, record);
+    }
+
     /**
      * Requests a single part from the remote peer.
      * 
@@ -199,11 +224,11 @@ public class Download extends Transfer {
         requestCheckState();
 
         RequestPart rp;
-        if (pendingRequests.size() >= getTransferManager()
-            .getMaxRequestsQueued())
-        {
+        RequestWindow window = getRequestWindow();
+        if (!window.isOpen()) {
             if (isFiner()) {
-                logFiner("X Skipping request. Already got too many pending requests: " + range);
+                logFiner("X Skipping request. Already got too many pending requests: "
+                    + range + ". " + window);
             }
             return false;
         }
@@ -227,6 +252,7 @@ public class Download extends Transfer {
                 "Concurrent file change while requesting: " + e);
         }
         pendingRequests.add(rp);
+        window.requested(range);
         getPartner().sendMessagesAsynchron(rp);
         return true;
     }
@@ -235,6 +261,19 @@ public class Download extends Transfer {
         return Collections.unmodifiableCollection(pendingRequests);
     }
 
+    /**
+     * @return the window of requests in flight to the partner.
+     */
+    synchronized RequestWindow getRequestWindow() {
+        if (requestWindow == null) {
+            TransferManager tm = getTransferManager();
+            // Uploads accept five times the queued requests at most
+            requestWindow = new RequestWindow(tm.getMaxFileChunkSize(),
+                tm.getMaxRequestsQueued(), tm.getMaxRequestsQueued() * 3);
+        }
+        return requestWindow;
+    }
+
     /**
      * Adds a chunk to the download
      * 
@@ -278,10 +317,13 @@ public class Download extends Transfer {
             RequestPart p = ip.next();
             if (p.getRange().contains(range)) {
                 ip.remove();
+                getRequestWindow().received(p.getRange(),
+                    getCounter().calculateCurrentCPS());
             }
         }
 
         getCounter().chunkTransferred(chunk);
+        getTransferManager().getSourceRanking().transferred(Download.this);
 
         dlManager.chunkReceived(Download.this, chunk);
         return true;
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2004 - 2013 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.transfer;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import de.dal33t.powerfolder.util.ProgressListener;
+import de.dal33t.powerfolder.util.Range;
+import de.dal33t.powerfolder.util.delta.FilePartsState;
+import de.dal33t.powerfolder.util.delta.FilePartsState.PartState;
+
+/**
+ * The MD5 of a tempfile, computed while it is written. Chunks written in order
+ * are digested from memory. If the data at the current position has been
+ * written before (out of order by swarming, copied from matching local parts
+ * or from an earlier session) it is read back from the tempfile in small
+ * steps, while it is still cached by the OS. Only the rest that could not be
+ * digested that way needs to be read on completion.
+ */
+class DownloadDigest {
+
+    /**
+     * Maximum bytes read back from the tempfile per written chunk.
+     */
+    private static final int MAX_CATCH_UP = 4 * 1024 * 1024;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final MessageDigest md5;
+    private final long length;
+
+    /** Everything before this position has been digested */
+    private long position;
+
+    DownloadDigest(long length) {
+        this.length = length;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return the number of bytes from the start, which have been digested.
+     */
+    long getPosition() {
+        return position;
+    }
+
+    /**
+     * Digests the written data if it continues the digested data.
+     *
+     * @param offset
+     *            the position the data was written to
+     * @param data
+     */
+    void written(long offset, byte[] data) {
+        long end = offset + data.length;
+        if (offset > position || end <= position) {
+            return;
+        }
+        int skip = (int) (position - offset);
+        md5.update(data, skip, data.length - skip);
+        position = end;
+    }
+
+    /**
+     * Digests data at the current position, which is already available in the
+     * tempfile. Reads {@link #MAX_CATCH_UP} bytes at most.
+     *
+     * @param raf
+     *            the tempfile. The file pointer is changed.
+     * @param state
+     *            the parts of the tempfile written.
+     * @throws IOException
+     */
+    void catchUp(RandomAccessFile raf, FilePartsState state)
+        throws IOException
+    {
+        if (position >= length) {
+            return;
+        }
+        Range available = state.findPart(
+            Range.getRangeByNumbers(position, length - 1), PartState.AVAILABLE);
+        if (available == null || available.getStart() != position) {
+            return;
+        }
+        long read = Math.min(available.getLength(), MAX_CATCH_UP);
+        digest(raf, position + read, null);
+    }
+
+    /**
+     * Digests the rest of the tempfile.
+     *
+     * @param raf
+     *            the completed tempfile. The file pointer is changed.
+     * @param listener
+     *            gets the progress in percent of the complete file. May be
+     *            null.
+     * @return the MD5 of the tempfile.
+     * @throws IOException
+     */
+    byte[] finish(RandomAccessFile raf, ProgressListener listener)
+        throws IOException
+    {
+        digest(raf, length, listener);
+        return md5.digest();
+    }
+
+    private void digest(RandomAccessFile raf, long end,
+        ProgressListener listener) throws IOException
+    {
+        byte[] buf = new byte[(int) Math.min(BUFFER_SIZE, end - position)];
+        raf.seek(position);
+        while (position < end) {
+            int read = raf.read(buf, 0, (int) Math.min(buf.length, end
+                - position));
+            if (read < 0) {
+                throw new IOException("Tempfile shorter than expected: "
+                    + position + " of " + length);
+            }
+            md5.update(buf, 0, read);
+            position += read;
+            if (listener != null) {
+                listener.progressReached(position * 100.0 / length);
+            }
+        }
+    }
+}
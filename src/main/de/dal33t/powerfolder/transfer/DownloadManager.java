@@ -59,6 +59,12 @@ public interface DownloadManager extends DownloadSourceHandler, DownloadControl
      */
     File getTempFile();
 
+    /**
+     * @return the MD5 of the temporary file if it has been verified against
+     *         the digest of the source, otherwise null.
+     */
+    byte[] getVerifiedMD5();
+
     /**
      * Returns true if there are sources left to download from.
      * 
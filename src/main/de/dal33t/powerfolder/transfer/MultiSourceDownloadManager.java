@@ -19,9 +19,15 @@
  */
 package de.dal33t.powerfolder.transfer;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Logger;
 
@@ -44,6 +50,12 @@ import de.dal33t.powerfolder.util.delta.FilePartsState.PartState;
  */
 public class MultiSourceDownloadManager extends AbstractDownloadManager {
 
+    /**
+     * Maximum number of sources the same outstanding part gets requested
+     * from. In endgame or if a source stalls.
+     */
+    private static final int MAX_SOURCES_PER_PART = 2;
+
     private static final Logger log = Logger
         .getLogger(MultiSourceDownloadManager.class.getName());
     private final ConcurrentMap<MemberInfo, Download> downloads = Util
@@ -146,7 +158,17 @@ public class MultiSourceDownloadManager extends AbstractDownloadManager {
         // All pending requests from that download are void.
         if (filePartsState != null) {
             for (RequestPart req : download.getPendingRequests()) {
-                filePartsState.setPartState(req.getRange(), PartState.NEEDED);
+                if (isRequested(req.getRange())) {
+                    // Endgame: Still requested from another source
+                    continue;
+                }
+                // Parts already received from another source stay available
+                Range pending;
+                while ((pending = filePartsState.findPart(req.getRange(),
+                    PartState.PENDING)) != null)
+                {
+                    filePartsState.setPartState(pending, PartState.NEEDED);
+                }
             }
         }
     }
@@ -230,6 +252,11 @@ public class MultiSourceDownloadManager extends AbstractDownloadManager {
 
         setTransferState(TransferState.DOWNLOADING);
 
+        // Best first
+        List<Download> sources = getController().getTransferManager()
+            .getSourceRanking().rankDownloads(getRequestableSources());
+        rebalanceStalled(sources);
+
         Range range;
         while (true) {
             range = filePartsState.findFirstPart(PartState.NEEDED);
@@ -237,16 +264,16 @@ public class MultiSourceDownloadManager extends AbstractDownloadManager {
                 // File completed, or only pending requests left
                 break;
             }
-            range = Range.getRangeByLength(range.getStart(), Math.min(
-                getController().getTransferManager().getMaxFileChunkSize(),
-                range.getLength()));
             // Split requests across sources
-            if (findAndRequestDownloadFor(range)) {
-                filePartsState.setPartState(range, PartState.PENDING);
-            } else {
+            if (!findAndRequestDownloadFor(sources, range)) {
                 break;
             }
         }
+        if (range == null) {
+            // Endgame: Only pending requests left. Don't wait for the slowest
+            // source.
+            requestAgain(sources, sources);
+        }
 
         if (isFiner()) {
             logFiner("X Sending part requests over");
@@ -255,10 +282,15 @@ public class MultiSourceDownloadManager extends AbstractDownloadManager {
         long p = filePartsState.countPartStates(filePartsState.getRange(),
             PartState.PENDING);
         if (p > 0) {
+            // Endgame: Same range requested from several sources
+            Set<Range> requested = new HashSet<Range>();
             for (Download d : downloads.values()) {
                 if (d.isStarted() && !d.isBroken()) {
                     for (RequestPart rp : d.getPendingRequests()) {
-                        p -= rp.getRange().getLength();
+                        if (requested.add(rp.getRange())) {
+                            p -= filePartsState.countPartStates(rp
+                                .getRange(), PartState.PENDING);
+                        }
                     }
                 }
             }
@@ -289,18 +321,149 @@ public class MultiSourceDownloadManager extends AbstractDownloadManager {
         return true;
     }
 
-    private boolean findAndRequestDownloadFor(Range range)
+    /**
+     * @return the sources, which are ready for requests.
+     */
+    private List<Download> getRequestableSources() {
+        List<Download> sources = new ArrayList<Download>(downloads.size());
+        for (Download d : downloads.values()) {
+            if (d.isStarted() && !d.isBroken()) {
+                sources.add(d);
+            }
+        }
+        return sources;
+    }
+
+    /**
+     * Requests the parts outstanding at stalled sources also from the others.
+     *
+     * @param sources
+     *            the requestable sources, best first.
+     */
+    private void rebalanceStalled(List<Download> sources)
         throws BrokenDownloadException
+    {
+        List<Download> stalled = null;
+        List<Download> others = new ArrayList<Download>(sources.size());
+        for (Download d : sources) {
+            RequestWindow window = d.getRequestWindow();
+            if (!window.isStalled()) {
+                others.add(d);
+                continue;
+            }
+            if (window.reportStall()) {
+                getController().getTransferManager().getSourceRanking()
+                    .stalled(d.getPartner());
+            }
+            if (stalled == null) {
+                stalled = new ArrayList<Download>();
+            }
+            stalled.add(d);
+        }
+        if (stalled != null && !others.isEmpty()) {
+            requestAgain(stalled, others);
+        }
+    }
+
+    private boolean findAndRequestDownloadFor(List<Download> sources,
+        Range range) throws BrokenDownloadException
     {
         assert range != null;
         if (isFiner()) {
             logFiner("X findAndRequestDownloadFor: " + range);
         }
-        for (Download d : downloads.values()) {
-            if (!d.isStarted() || d.isBroken()) {
+        for (Download d : sources) {
+            RequestWindow window = d.getRequestWindow();
+            if (!window.isOpen() || window.isStalled()) {
                 continue;
             }
-            if (d.requestPart(range)) {
+            // Slow sources get smaller ranges
+            Range request = Range.getRangeByLength(range.getStart(), Math
+                .min(window.getRequestSize(), range.getLength()));
+            if (d.requestPart(request)) {
+                filePartsState.setPartState(request, PartState.PENDING);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Requests the outstanding parts of some sources also from others with
+     * free capacity. The part received first is taken, the duplicate gets
+     * ignored.
+     *
+     * @param from
+     *            the sources of the outstanding parts
+     * @param to
+     *            the sources to request from, best first.
+     */
+    private void requestAgain(Collection<Download> from, List<Download> to)
+        throws BrokenDownloadException
+    {
+        // Outstanding range -> number of sources requested from
+        Map<Range, Integer> outstanding = new LinkedHashMap<Range, Integer>();
+        for (Download d : from) {
+            for (RequestPart rp : d.getPendingRequests()) {
+                Range range = rp.getRange();
+                if (filePartsState.countPartStates(range, PartState.PENDING) == 0)
+                {
+                    // Already received from another source
+                    continue;
+                }
+                outstanding.put(range, 0);
+            }
+        }
+        if (outstanding.isEmpty()) {
+            return;
+        }
+        for (Download d : getRequestableSources()) {
+            for (RequestPart rp : d.getPendingRequests()) {
+                Integer n = outstanding.get(rp.getRange());
+                if (n != null) {
+                    outstanding.put(rp.getRange(), n + 1);
+                }
+            }
+        }
+        for (Download d : to) {
+            if (d.getRequestWindow().isStalled()) {
+                continue;
+            }
+            for (Map.Entry<Range, Integer> entry : outstanding.entrySet()) {
+                if (!d.getRequestWindow().isOpen()) {
+                    break;
+                }
+                if (entry.getValue() >= MAX_SOURCES_PER_PART
+                    || isRequestedFrom(d, entry.getKey()))
+                {
+                    continue;
+                }
+                if (isFiner()) {
+                    logFiner("Requesting " + entry.getKey() + " also from "
+                        + d);
+                }
+                if (d.requestPart(entry.getKey())) {
+                    entry.setValue(entry.getValue() + 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if the range is requested from any source.
+     */
+    private boolean isRequested(Range range) {
+        for (Download d : downloads.values()) {
+            if (isRequestedFrom(d, range)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isRequestedFrom(Download download, Range range) {
+        for (RequestPart rp : download.getPendingRequests()) {
+            if (rp.getRange().equals(range)) {
                 return true;
             }
         }
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2004 - 2013 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.transfer;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import de.dal33t.powerfolder.util.Format;
+import de.dal33t.powerfolder.util.Range;
+
+/**
+ * The window of bytes requested but not yet received from one source of a
+ * download. Similar to the congestion window of TCP: The window is kept at
+ * twice the bandwidth-delay product of the source, measured by its throughput
+ * and the minimum round trip time of the requests. High latency sources get
+ * enough requests in flight to not stall between chunks, slow sources only
+ * get a few small ranges.
+ */
+class RequestWindow {
+
+    /**
+     * The smallest range requested.
+     */
+    static final int MIN_REQUEST_SIZE = 4 * 1024;
+
+    /**
+     * A single range should be received in that time from the source.
+     */
+    private static final long RANGE_TIME = 250;
+
+    /**
+     * The minimum round trip time is measured again after that time, the
+     * route or load of the source might have changed.
+     */
+    private static final long MIN_RTT_VALIDITY = 30 * 1000;
+
+    /**
+     * The source stalls if a range was not received within that many round
+     * trip times ...
+     */
+    private static final int STALL_RTTS = 10;
+
+    /**
+     * ... but not before that time.
+     */
+    static final long MIN_STALL_TIME = 10 * 1000;
+
+    private final int maxRequestSize;
+    private final int maxRequests;
+    private final long minWindow;
+    private final long maxWindow;
+
+    /** Range -> Time of request */
+    private final Map<Range, Long> requested = new HashMap<Range, Long>();
+    private long inFlight;
+    private long window;
+
+    private long minRtt = -1;
+    private long minRttSince;
+    private double rate;
+    private boolean stallReported;
+
+    /**
+     * @param maxRequestSize
+     *            the maximum size of a single range.
+     * @param initialRequests
+     *            the number of ranges of maximum size requested before the
+     *            first measurement.
+     * @param maxRequests
+     *            the maximum number of ranges in flight. The remote side
+     *            refuses more.
+     */
+    RequestWindow(int maxRequestSize, int initialRequests, int maxRequests) {
+        this.maxRequestSize = Math.max(MIN_REQUEST_SIZE, maxRequestSize);
+        this.maxRequests = Math.max(1, maxRequests);
+        this.minWindow = 2 * MIN_REQUEST_SIZE;
+        this.maxWindow = (long) this.maxRequests * this.maxRequestSize;
+        this.window = Math.max(minWindow, Math.min(maxWindow,
+            (long) initialRequests * this.maxRequestSize));
+    }
+
+    /**
+     * @return true if another range may be requested.
+     */
+    synchronized boolean isOpen() {
+        return requested.size() < maxRequests && inFlight < window;
+    }
+
+    /**
+     * @return the size of the next range to request. Ranges take about
+     *         {@link #RANGE_TIME} to receive.
+     */
+    synchronized int getRequestSize() {
+        if (rate <= 0) {
+            return maxRequestSize;
+        }
+        long size = (long) (rate * RANGE_TIME / 1000);
+        return (int) Math.max(MIN_REQUEST_SIZE, Math.min(maxRequestSize,
+            size));
+    }
+
+    /**
+     * @param range
+     *            the range that got requested.
+     */
+    synchronized void requested(Range range) {
+        if (requested.put(range, System.currentTimeMillis()) == null) {
+            inFlight += range.getLength();
+        }
+    }
+
+    /**
+     * @param range
+     *            the requested range that got received.
+     * @param currentRate
+     *            the current throughput of the source in bytes per second.
+     */
+    synchronized void received(Range range, double currentRate) {
+        Long requestedAt = requested.remove(range);
+        if (requestedAt == null) {
+            return;
+        }
+        inFlight -= range.getLength();
+        stallReported = false;
+        long now = System.currentTimeMillis();
+        long rtt = Math.max(1, now - requestedAt);
+        if (minRtt < 0 || rtt <= minRtt || now - minRttSince > MIN_RTT_VALIDITY)
+        {
+            minRtt = rtt;
+            minRttSince = now;
+        }
+        if (currentRate <= 0) {
+            // Nothing measured yet
+            return;
+        }
+        rate = currentRate;
+        long bdp = (long) (rate * minRtt / 1000);
+        window = Math.max(minWindow, Math.min(maxWindow, 2 * bdp));
+    }
+
+    /**
+     * @return true if the oldest requested range is overdue.
+     */
+    synchronized boolean isStalled() {
+        if (requested.isEmpty()) {
+            return false;
+        }
+        long oldest = Long.MAX_VALUE;
+        for (Long requestedAt : requested.values()) {
+            oldest = Math.min(oldest, requestedAt);
+        }
+        long timeout = Math.max(MIN_STALL_TIME, STALL_RTTS * minRtt);
+        return System.currentTimeMillis() - oldest > timeout;
+    }
+
+    /**
+     * @return true if stalled and not reported yet since the last received
+     *         range.
+     */
+    synchronized boolean reportStall() {
+        if (stallReported || !isStalled()) {
+            return false;
+        }
+        stallReported = true;
+        return true;
+    }
+
+    /**
+     * @return the bytes requested but not received yet.
+     */
+    synchronized long getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * @return the current size of the window in bytes.
+     */
+    synchronized long getWindow() {
+        return window;
+    }
+
+    /**
+     * @return the minimum round trip time in ms or -1 if not measured yet.
+     */
+    synchronized long getMinRtt() {
+        return minRtt;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "window " + Format.formatBytesShort(window) + ", in flight "
+            + Format.formatBytesShort(inFlight) + " (" + requested.size()
+            + " requests), rtt " + minRtt + "ms, "
+            + Format.formatBytesShort((long) rate) + "/s";
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2004 - 2013 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.transfer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+import de.dal33t.powerfolder.Controller;
+import de.dal33t.powerfolder.Member;
+import de.dal33t.powerfolder.PFComponent;
+import de.dal33t.powerfolder.light.MemberInfo;
+import de.dal33t.powerfolder.message.TransferStatus;
+import de.dal33t.powerfolder.util.Format;
+import de.dal33t.powerfolder.util.Util;
+
+/**
+ * Ranks the sources of downloads by the throughput to expect from them. The
+ * score of a source is based on:
+ * <ul>
+ * <li>The download rate observed from the source, smoothed over all downloads
+ * from it. If not known yet, the free upload bandwidth reported by the source
+ * in its {@link TransferStatus}.</li>
+ * <li>The load: The rate gets shared by all downloads from the source. A
+ * source with queued uploads (e.g. a busy server) counts as more loaded.</li>
+ * <li>LAN sources are preferred.</li>
+ * <li>Sources that stalled recently are penalized.</li>
+ * </ul>
+ */
+public class SourceRanking extends PFComponent {
+
+    /**
+     * Assumed rate of sources without any information.
+     */
+    private static final double UNKNOWN_RATE = 100 * 1024;
+
+    private static final double LAN_FACTOR = 4;
+
+    /**
+     * Minimum time between two rate samples of a source.
+     */
+    private static final long SAMPLE_INTERVAL = 1000;
+
+    /**
+     * Weight of a new rate sample.
+     */
+    private static final double SMOOTHING = 0.3;
+
+    /**
+     * Stalls are forgotten after that time.
+     */
+    private static final long STALL_MEMORY = 5 * 60 * 1000;
+
+    private static final int MAX_STALL_PENALTY = 4;
+
+    private final ConcurrentMap<MemberInfo, SourceStats> stats = Util
+        .createConcurrentHashMap();
+
+    SourceRanking(Controller controller) {
+        super(controller);
+    }
+
+    /**
+     * Takes a sample of the current rate of the download.
+     *
+     * @param download
+     *            the download, which received a chunk.
+     */
+    void transferred(Download download) {
+        Member source = download.getPartner();
+        if (source == null) {
+            return;
+        }
+        getStats(source).sample(download.getCounter().calculateCurrentCPS());
+    }
+
+    /**
+     * The source did not deliver requested parts in time.
+     *
+     * @param source
+     */
+    void stalled(Member source) {
+        getStats(source).stalled();
+        if (isFine()) {
+            logFine("Source stalled: " + describe(source));
+        }
+    }
+
+    /**
+     * @param source
+     * @return the score of the source. Higher is better.
+     */
+    public double getScore(Member source) {
+        SourceStats s = stats.get(source.getInfo());
+        TransferStatus status = source.getLastTransferStatus();
+        double score = s != null ? s.getRate() : 0;
+        if (score <= 0) {
+            // Nothing observed yet
+            score = status != null && status.maxUploadCPS > 0 ? status
+                .getAvailbleUploadCPS() : UNKNOWN_RATE;
+        }
+        int load = 1 + getController().getTransferManager()
+            .countActiveAndQueuedDownloads(source);
+        if (status != null && status.queuedUploads > 0) {
+            load++;
+        }
+        score /= load;
+        if (source.isOnLAN()) {
+            score *= LAN_FACTOR;
+        }
+        if (s != null) {
+            score /= 1 << s.getStalls();
+        }
+        return score;
+    }
+
+    /**
+     * @param sources
+     * @return the sources, best first.
+     */
+    public List<Member> rank(Collection<Member> sources) {
+        final Map<Member, Double> scores = new HashMap<Member, Double>(
+            sources.size());
+        for (Member source : sources) {
+            // Scores change during sorting. Take a snapshot.
+            scores.put(source, getScore(source));
+        }
+        List<Member> ranked = new ArrayList<Member>(sources);
+        Collections.sort(ranked, new Comparator<Member>() {
+            public int compare(Member o1, Member o2) {
+                return Double.compare(scores.get(o2), scores.get(o1));
+            }
+        });
+        return ranked;
+    }
+
+    /**
+     * @param downloads
+     * @return the downloads, best source first.
+     */
+    List<Download> rankDownloads(Collection<Download> downloads) {
+        // Downloads of the same file are equal
+        final Map<Download, Double> scores = new IdentityHashMap<Download, Double>(
+            downloads.size());
+        for (Download download : downloads) {
+            scores.put(download, getScore(download.getPartner()));
+        }
+        List<Download> ranked = new ArrayList<Download>(downloads);
+        Collections.sort(ranked, new Comparator<Download>() {
+            public int compare(Download o1, Download o2) {
+                return Double.compare(scores.get(o2), scores.get(o1));
+            }
+        });
+        return ranked;
+    }
+
+    /**
+     * @return the members a download rate has been observed from.
+     */
+    public Collection<Member> getObservedSources() {
+        List<Member> sources = new ArrayList<Member>(stats.size());
+        for (MemberInfo info : stats.keySet()) {
+            Member source = info.getNode(getController(), false);
+            if (source != null) {
+                sources.add(source);
+            }
+        }
+        return sources;
+    }
+
+    /**
+     * @param source
+     * @return the details of the score for diagnostics.
+     */
+    public String describe(Member source) {
+        SourceStats s = stats.get(source.getInfo());
+        StringBuilder b = new StringBuilder();
+        b.append(source.getNick());
+        if (source.isOnLAN()) {
+            b.append(" (local-net)");
+        }
+        b.append(": score ");
+        b.append(Format.formatBytesShort((long) getScore(source)));
+        b.append("/s");
+        if (s != null) {
+            b.append(", observed ");
+            b.append(Format.formatBytesShort((long) s.getRate()));
+            b.append("/s, stalls ");
+            b.append(s.getStalls());
+        }
+        b.append(", downloads ");
+        b.append(getController().getTransferManager()
+            .countActiveAndQueuedDownloads(source));
+        return b.toString();
+    }
+
+    // Internal ***************************************************************
+
+    private SourceStats getStats(Member source) {
+        SourceStats s = stats.get(source.getInfo());
+        if (s == null) {
+            s = new SourceStats();
+            SourceStats existing = stats.putIfAbsent(source.getInfo(), s);
+            if (existing != null) {
+                s = existing;
+            }
+        }
+        return s;
+    }
+
+    private static class SourceStats {
+        private double rate;
+        private long lastSample;
+        private int stalls;
+        private long lastStall;
+
+        private synchronized void sample(double currentRate) {
+            long now = System.currentTimeMillis();
+            if (currentRate <= 0 || now - lastSample < SAMPLE_INTERVAL) {
+                return;
+            }
+            lastSample = now;
+            rate = rate <= 0 ? currentRate : rate * (1 - SMOOTHING)
+                + currentRate * SMOOTHING;
+        }
+
+        private synchronized void stalled() {
+            if (System.currentTimeMillis() - lastStall > STALL_MEMORY) {
+                stalls = 0;
+            }
+            stalls = Math.min(stalls + 1, MAX_STALL_PENALTY);
+            lastStall = System.currentTimeMillis();
+        }
+
+        private synchronized double getRate() {
+            return rate;
+        }
+
+        private synchronized int getStalls() {
+            if (System.currentTimeMillis() - lastStall > STALL_MEMORY) {
+                return 0;
+            }
+            return stalls;
+        }
+    }
+}
@@ -77,8 +77,10 @@ import de.dal33t.powerfolder.message.FileChunk;
 import de.dal33t.powerfolder.message.RequestDownload;
 import de.dal33t.powerfolder.message.TransferStatus;
 import de.dal33t.powerfolder.net.ConnectionHandler;
+import de.dal33t.powerfolder.transfer.swarm.CachingFileRecordProvider;
 import de.dal33t.powerfolder.transfer.swarm.FileRecordProvider;
 import de.dal33t.powerfolder.transfer.swarm.VolatileFileRecordProvider;
+import de.dal33t.powerfolder.util.BufferPool;
 import de.dal33t.powerfolder.util.Filter;
 import de.dal33t.powerfolder.util.Format;
 import de.dal33t.powerfolder.util.NamedThreadFactory;
@@ -90,8 +92,6 @@ import de.dal33t.powerfolder.util.Util;
 import de.dal33t.powerfolder.util.Validate;
 import de.dal33t.powerfolder.util.Visitor;
 import de.dal33t.powerfolder.util.WrapperExecutorService;
-import de.dal33t.powerfolder.util.compare.MemberComparator;
-import de.dal33t.powerfolder.util.compare.ReverseComparator;
 import de.dal33t.powerfolder.util.delta.FilePartsRecord;
 
 /**
@@ -166,6 +166,12 @@ public class TransferManager extends PFComponent {
     /** the counter for download traffic (real) */
     private final TransferCounter totalDownloadTrafficCounter;
 
+    /** The buffers for the file chunks read by the uploads */
+    private final BufferPool chunkBuffers = new BufferPool(256, 1024 * 1024);
+
+    /** Ranks the sources of downloads */
+    private final SourceRanking sourceRanking;
+
     /** Provides bandwidth for the transfers */
     private final BandwidthProvider bandwidthProvider;
 
@@ -200,6 +206,7 @@ public class TransferManager extends PFComponent {
         downloadCounter = new TransferCounter();
         totalUploadTrafficCounter = new TransferCounter();
         totalDownloadTrafficCounter = new TransferCounter();
+        sourceRanking = new SourceRanking(controller);
 
         // Create listener support
         listenerSupport = ListenerSupportFactory
@@ -293,7 +300,13 @@ public class TransferManager extends PFComponent {
             logWarning("Not starting TransferManager. disabled by config");
             return;
         }
-        fileRecordProvider = new VolatileFileRecordProvider(getController());
+        if (ConfigurationEntry.DELTA_RECORD_CACHE_MB
+            .getValueInt(getController()) > 0)
+        {
+            fileRecordProvider = new CachingFileRecordProvider(getController());
+        } else {
+            fileRecordProvider = new VolatileFileRecordProvider(getController());
+        }
 
         bandwidthProvider.start();
 
@@ -786,7 +799,9 @@ public class TransferManager extends PFComponent {
 
             assert getActiveUploads(fInfo).isEmpty();
 
-            if (folder.scanDownloadFile(fInfo, dlManager.getTempFile())) {
+            if (folder.scanDownloadFile(fInfo, dlManager.getTempFile(),
+                dlManager.getVerifiedMD5()))
+            {
                 if (StringUtils.isNotBlank(folder.getDownloadScript())) {
                     Runnable scriptRunner = new Runnable() {
                         public void run() {
@@ -1158,6 +1173,20 @@ public class TransferManager extends PFComponent {
             .getValueInt(getController());
     }
 
+    /**
+     * @return the ranking of download sources.
+     */
+    public SourceRanking getSourceRanking() {
+        return sourceRanking;
+    }
+
+    /**
+     * @return the buffers for the data of outgoing file chunks.
+     */
+    BufferPool getChunkBuffers() {
+        return chunkBuffers;
+    }
+
     /**
      * @see ConfigurationEntry#TRANSFERS_MAX_REQUESTS_QUEUED
      * @return
@@ -1996,12 +2025,9 @@ public class TransferManager extends PFComponent {
         if (sources == null) {
             return Collections.emptyList();
         }
-        // Sort by the best upload availibility
+        // Sort by the expected throughput. Shuffle for equal scores
         Collections.shuffle(sources);
-        Collections.sort(sources, new ReverseComparator<Member>(
-            MemberComparator.BY_UPLOAD_AVAILIBILITY));
-
-        return sources;
+        return sourceRanking.rank(sources);
     }
 
     /**
@@ -2435,7 +2461,7 @@ public class TransferManager extends PFComponent {
      *            the node to check
      * @return Number of active or enqued downloads to that node
      */
-    private int countActiveAndQueuedDownloads(Member node) {
+    int countActiveAndQueuedDownloads(Member node) {
         Integer cached = downloadsCount.get(node);
         if (cached != null) {
             // cacheHit++;
@@ -23,6 +23,8 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.LinkedList;
 import java.util.Queue;
 
@@ -41,11 +43,14 @@ import de.dal33t.powerfolder.message.StartUpload;
 import de.dal33t.powerfolder.message.StartUploadExt;
 import de.dal33t.powerfolder.message.StopUpload;
 import de.dal33t.powerfolder.net.ConnectionException;
+import de.dal33t.powerfolder.util.BufferPool;
 import de.dal33t.powerfolder.util.Convert;
 import de.dal33t.powerfolder.util.DateUtil;
 import de.dal33t.powerfolder.util.ProgressListener;
 import de.dal33t.powerfolder.util.Reject;
 import de.dal33t.powerfolder.util.Util;
+import de.dal33t.powerfolder.util.delta.ChunkRecord;
+import de.dal33t.powerfolder.util.delta.ChunkRecordBuilder;
 import de.dal33t.powerfolder.util.delta.FilePartsRecord;
 import de.schlichtherle.truezip.file.TFileInputStream;
 
@@ -339,18 +344,26 @@ public class Upload extends Transfer {
         final FileInfo fi = r.getFile();
         checkLastModificationDate(fi,
             fi.getDiskFile(getController().getFolderRepository()));
-        FilePartsRecord fpr;
         try {
             state.setState(TransferState.FILEHASHING);
-            fpr = getTransferManager().getFileRecordManager().retrieveRecord(
-                fi, new ProgressListener() {
-                    public void progressReached(double percentageReached) {
-                        state.setProgress(percentageReached);
-                    }
-
-                });
-            getPartner().sendMessagesAsynchron(
-                new ReplyFilePartsRecord(fi, fpr));
+            ProgressListener obs = new ProgressListener() {
+                public void progressReached(double percentageReached) {
+                    state.setProgress(percentageReached);
+                }
+            };
+            if (r.isChunks()) {
+                ChunkRecord cr = getTransferManager().getFileRecordManager()
+                    .retrieveChunkRecord(fi,
+                        ChunkRecordBuilder.getAverageChunkSize(fi.getSize()),
+                        obs);
+                getPartner().sendMessagesAsynchron(
+                    new ReplyFilePartsRecord(fi, cr));
+            } else {
+                FilePartsRecord fpr = getTransferManager()
+                    .getFileRecordManager().retrieveRecord(fi, obs);
+                getPartner().sendMessagesAsynchron(
+                    new ReplyFilePartsRecord(fi, fpr));
+            }
             state.setState(TransferState.UPLOADING);
         } catch (FileNotFoundException e) {
             logSevere("FileNotFoundException", e);
@@ -413,11 +426,22 @@ public class Upload extends Transfer {
         }
         File f = pr.getFile()
             .getDiskFile(getController().getFolderRepository());
+        // Not referenced anymore after the chunk has been sent
+        BufferPool buffers = getTransferManager().getChunkBuffers();
+        byte[] data = buffers.acquire((int) pr.getRange().getLength());
         try {
-            byte[] data = new byte[(int) pr.getRange().getLength()];
             long startOffset = pr.getRange().getStart();
             if (raf != null) {
-                raf.seek(startOffset);
+                // Positional read. No seek
+                FileChannel channel = raf.getChannel();
+                ByteBuffer buf = ByteBuffer.wrap(data);
+                while (buf.hasRemaining()) {
+                    if (channel.read(buf, startOffset + buf.position()) < 0) {
+                        logWarning("Requested part exceeds filesize!");
+                        throw new TransferException(
+                            "Requested part exceeds filesize!");
+                    }
+                }
             } else if (in != null) {
                 long skip = startOffset - inpos;
                 if (skip >= 0) {
@@ -437,26 +461,19 @@ public class Upload extends Transfer {
                         throw new TransferException(e);
                     }
                 }
-
-            }
-            int pos = 0;
-            while (pos < data.length) {
-                int read;
-                int readLen = data.length - pos;
-                if (raf != null) {
-                    read = raf.read(data, pos, readLen);
-                } else if (in != null) {
-                    read = in.read(data, pos, readLen);
+                int pos = 0;
+                while (pos < data.length) {
+                    int read = in.read(data, pos, data.length - pos);
+                    if (read < 0) {
+                        logWarning("Requested part exceeds filesize!");
+                        throw new TransferException(
+                            "Requested part exceeds filesize!");
+                    }
                     inpos += read;
-                } else {
-                    throw new TransferException("I/O already closed");
-                }
-                if (read < 0) {
-                    logWarning("Requested part exceeds filesize!");
-                    throw new TransferException(
-                        "Requested part exceeds filesize!");
+                    pos += read;
                 }
-                pos += read;
+            } else {
+                throw new TransferException("I/O already closed");
             }
             FileChunk chunk;
             if (getPartner().getProtocolVersion() >= 104) {
@@ -487,6 +504,8 @@ public class Upload extends Transfer {
                 logFiner("ConnectionException", e);
             }
             throw new TransferException(e);
+        } finally {
+            buffers.release(data);
         }
         return true;
     }
@@ -29,9 +29,13 @@ import java.util.logging.Logger;
 import java.util.zip.Adler32;
 
 import de.dal33t.powerfolder.Controller;
+import de.dal33t.powerfolder.disk.ContentHashCache;
+import de.dal33t.powerfolder.disk.Folder;
 import de.dal33t.powerfolder.light.FileInfo;
 import de.dal33t.powerfolder.util.ProgressListener;
 import de.dal33t.powerfolder.util.Reject;
+import de.dal33t.powerfolder.util.delta.ChunkRecord;
+import de.dal33t.powerfolder.util.delta.ChunkRecordBuilder;
 import de.dal33t.powerfolder.util.delta.FilePartsRecord;
 import de.dal33t.powerfolder.util.delta.FilePartsRecordBuilder;
 import de.schlichtherle.truezip.file.TFileInputStream;
@@ -75,6 +79,7 @@ public abstract class AbstractFileRecordProvider implements FileRecordProvider {
         // calculate it.
         int partSize = Math
             .max(4096, (int) (Math.pow(f.length(), 0.25) * 2048));
+        long lastModified = f.lastModified();
         InputStream in = new TFileInputStream(f);
         try {
             FilePartsRecordBuilder b = new FilePartsRecordBuilder(
@@ -91,6 +96,8 @@ public abstract class AbstractFileRecordProvider implements FileRecordProvider {
                 }
             }
             FilePartsRecord fileRecord = b.getRecord();
+            rememberDigest(fileInfo, f, lastModified,
+                fileRecord.getFileLength(), fileRecord.getFileDigest());
             long took = System.currentTimeMillis() - start;
             if (log.isLoggable(Level.FINE)) {
                 log.fine("Built file parts for " + this + ". took " + took
@@ -104,4 +111,64 @@ public abstract class AbstractFileRecordProvider implements FileRecordProvider {
         }
     }
 
+    protected ChunkRecord computeChunkRecord(FileInfo fileInfo,
+        int averageChunkSize, ProgressListener obs) throws IOException
+    {
+        assert fileInfo != null;
+        long start = System.currentTimeMillis();
+        File f = fileInfo.getDiskFile(controller.getFolderRepository());
+        long lastModified = f.lastModified();
+        InputStream in = new TFileInputStream(f);
+        try {
+            ChunkRecordBuilder b = new ChunkRecordBuilder(MessageDigest
+                .getInstance("SHA-256"), MessageDigest.getInstance("MD5"),
+                averageChunkSize);
+            int read = 0;
+            byte buf[] = new byte[8192];
+            long processed = 0, size = f.length();
+            while ((read = in.read(buf)) > 0) {
+                b.update(buf, 0, read);
+                processed += read;
+                if (obs != null) {
+                    obs.progressReached((double) processed / size);
+                }
+            }
+            ChunkRecord chunkRecord = b.getRecord();
+            rememberDigest(fileInfo, f, lastModified,
+                chunkRecord.getFileLength(), chunkRecord.getFileDigest());
+            long took = System.currentTimeMillis() - start;
+            if (log.isLoggable(Level.FINE)) {
+                log.fine("Built chunks for " + fileInfo + ". took " + took
+                    + "ms" + " while processing " + processed + " bytes: "
+                    + chunkRecord);
+            }
+            return chunkRecord;
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Keeps the digest of the file in the {@link ContentHashCache} of the
+     * folder, so it does not need to be read again for hashing.
+     */
+    private void rememberDigest(FileInfo fileInfo, File f, long lastModified,
+        long length, byte[] fileDigest)
+    {
+        if (f.lastModified() != lastModified || f.length() != length)
+        {
+            // Changed while reading
+            return;
+        }
+        Folder folder = fileInfo.getFolder(controller.getFolderRepository());
+        ContentHashCache hashes = folder != null
+            ? folder.getContentHashes()
+            : null;
+        if (hashes != null) {
+            hashes.put(fileInfo.getRelativeName(), f, fileDigest);
+        }
+    }
+
 }
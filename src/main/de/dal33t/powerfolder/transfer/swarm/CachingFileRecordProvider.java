@@ -0,0 +1,482 @@
+/*
+ * Copyright 2004 - 2013 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.transfer.swarm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import de.dal33t.powerfolder.ConfigurationEntry;
+import de.dal33t.powerfolder.Controller;
+import de.dal33t.powerfolder.disk.Folder;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.util.Convert;
+import de.dal33t.powerfolder.util.ProgressListener;
+import de.dal33t.powerfolder.util.Reject;
+import de.dal33t.powerfolder.util.Util;
+import de.dal33t.powerfolder.util.delta.ChunkRecord;
+import de.dal33t.powerfolder.util.delta.FilePartsRecord;
+
+/**
+ * {@link FileRecordProvider} which keeps the computed {@link FilePartsRecord}s
+ * and {@link ChunkRecord}s on disk, in the "records" directory of the folder
+ * system directory. A record is reused as long as the version, size and
+ * modification date of the file on disk match the ones it was built from.
+ * Otherwise it is dropped and built again.
+ * <p>
+ * {@link ChunkRecord}s of downloaded files are kept too. They are the base for
+ * matching the next version of the file.
+ * <p>
+ * The records of all folders together are limited to
+ * {@link ConfigurationEntry#DELTA_RECORD_CACHE_MB}. The least recently used
+ * records are removed first.
+ * <p>
+ * Concurrent requests for the same file wait for one computation instead of
+ * reading the file several times.
+ * 
+ */
+public class CachingFileRecordProvider extends AbstractFileRecordProvider {
+
+    private static final Logger log = Logger
+        .getLogger(CachingFileRecordProvider.class.getName());
+
+    public static final String RECORDS_DIR = "records";
+
+    private static final String RECORD_SUFFIX = ".record";
+
+    private static final String CHUNKS_SUFFIX = ".chunks";
+
+    /**
+     * Records of smaller files are cheap to compute and not kept.
+     */
+    private static final long MIN_FILE_SIZE = 1024L * 1024;
+
+    /** The running computations by record file */
+    private final Map<File, Computation> computations = new HashMap<File, Computation>();
+
+    /**
+     * The known record files and their sizes. In order of last access. Built
+     * on first use.
+     */
+    private Map<File, Long> records;
+    private long totalSize;
+
+    public CachingFileRecordProvider(Controller controller) {
+        super(controller);
+    }
+
+    public FilePartsRecord retrieveRecord(final FileInfo fileInfo,
+        ProgressListener obs) throws IOException
+    {
+        Reject.ifNull(fileInfo, "FileInfo is null!");
+        return (FilePartsRecord) retrieve(fileInfo, obs, new RecordType(
+            RECORD_SUFFIX)
+        {
+            Object compute(ProgressListener listener) throws IOException {
+                return computeFilePartsRecord(fileInfo, listener);
+            }
+
+            boolean isValid(Object record) {
+                return record instanceof FilePartsRecord;
+            }
+        });
+    }
+
+    public ChunkRecord retrieveChunkRecord(final FileInfo fileInfo,
+        final int averageChunkSize, ProgressListener obs) throws IOException
+    {
+        Reject.ifNull(fileInfo, "FileInfo is null!");
+        return (ChunkRecord) retrieve(fileInfo, obs, new RecordType(
+            CHUNKS_SUFFIX)
+        {
+            Object compute(ProgressListener listener) throws IOException {
+                return computeChunkRecord(fileInfo, averageChunkSize,
+                    listener);
+            }
+
+            boolean isValid(Object record) {
+                return record instanceof ChunkRecord
+                    && ((ChunkRecord) record).getAverageChunkSize() == averageChunkSize;
+            }
+        });
+    }
+
+    public void storeChunkRecord(FileInfo fileInfo, ChunkRecord record) {
+        Reject.noNullElements(fileInfo, record);
+        Folder folder = fileInfo.getFolder(getController()
+            .getFolderRepository());
+        if (folder == null || fileInfo.getSize() < MIN_FILE_SIZE
+            || fileInfo.getSize() != record.getFileLength())
+        {
+            return;
+        }
+        writeRecord(getRecordFile(folder, fileInfo, CHUNKS_SUFFIX), fileInfo,
+            record);
+    }
+
+    public void shutdown() {
+        synchronized (this) {
+            records = null;
+            totalSize = 0;
+        }
+    }
+
+    // Internal ***************************************************************
+
+    private Object retrieve(FileInfo fileInfo, ProgressListener obs,
+        RecordType type) throws IOException
+    {
+        Folder folder = fileInfo.getFolder(getController()
+            .getFolderRepository());
+        if (folder == null || fileInfo.getSize() < MIN_FILE_SIZE) {
+            return type.compute(obs);
+        }
+        File recordFile = getRecordFile(folder, fileInfo, type.suffix);
+        Object record = readRecord(recordFile, fileInfo, type);
+        if (record != null) {
+            return record;
+        }
+
+        Computation computation;
+        boolean compute = false;
+        synchronized (computations) {
+            computation = computations.get(recordFile);
+            if (computation == null) {
+                computation = new Computation(fileInfo);
+                computations.put(recordFile, computation);
+                compute = true;
+            }
+        }
+        if (obs != null) {
+            computation.listeners.add(obs);
+        }
+        if (!compute) {
+            try {
+                record = computation.await(fileInfo);
+            } finally {
+                computation.listeners.remove(obs);
+            }
+            // Might have been computed with other parameters
+            return type.isValid(record) ? record : type.compute(obs);
+        }
+
+        try {
+            record = type.compute(computation);
+            computation.record = record;
+            if (fileInfo.inSyncWithDisk(fileInfo.getDiskFile(getController()
+                .getFolderRepository())))
+            {
+                writeRecord(recordFile, fileInfo, record);
+            }
+            return record;
+        } catch (IOException e) {
+            computation.exception = e;
+            throw e;
+        } catch (RuntimeException e) {
+            computation.exception = new IOException(e.toString());
+            throw e;
+        } finally {
+            synchronized (computations) {
+                computations.remove(recordFile);
+            }
+            computation.done.countDown();
+        }
+    }
+
+    private static File getRecordFile(Folder folder, FileInfo fileInfo,
+        String suffix)
+    {
+        String name = new String(Util.encodeHex(Util.md5(fileInfo
+            .getRelativeName().getBytes(Convert.UTF8))));
+        return new File(new File(folder.getSystemSubDir(), RECORDS_DIR), name
+            + suffix);
+    }
+
+    /**
+     * @return the stored record or null if not available or outdated.
+     */
+    private Object readRecord(File recordFile, FileInfo fileInfo,
+        RecordType type)
+    {
+        if (!recordFile.exists()) {
+            return null;
+        }
+        File diskFile = fileInfo.getDiskFile(getController()
+            .getFolderRepository());
+        Object record = null;
+        ObjectInputStream in = null;
+        try {
+            in = new ObjectInputStream(new BufferedInputStream(
+                new FileInputStream(recordFile)));
+            String relativeName = in.readUTF();
+            int version = in.readInt();
+            long size = in.readLong();
+            long modified = in.readLong();
+            boolean valid = relativeName.equals(fileInfo.getRelativeName())
+                && version == fileInfo.getVersion()
+                && size == fileInfo.getSize()
+                && modified == fileInfo.getModifiedDate().getTime()
+                && diskFile != null && fileInfo.inSyncWithDisk(diskFile);
+            if (valid) {
+                record = in.readObject();
+            }
+        } catch (Exception e) {
+            log.warning("Unable to read file parts " + recordFile + ". " + e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        if (!type.isValid(record)) {
+            // Outdated, corrupt or built with other parameters
+            removeRecord(recordFile);
+            return null;
+        }
+        touched(recordFile);
+        if (log.isLoggable(Level.FINER)) {
+            log.finer("Using stored file parts for " + fileInfo);
+        }
+        return record;
+    }
+
+    private void writeRecord(File recordFile, FileInfo fileInfo, Object record)
+    {
+        File dir = recordFile.getParentFile();
+        if (!dir.exists() && !dir.mkdirs()) {
+            log.warning("Unable to create directory " + dir);
+            return;
+        }
+        File tempFile = null;
+        ObjectOutputStream out = null;
+        try {
+            // Unique name: A stored chunk record and a computed one might be
+            // written at the same time.
+            tempFile = File.createTempFile(recordFile.getName(), ".writing",
+                dir);
+            out = new ObjectOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tempFile)));
+            out.writeUTF(fileInfo.getRelativeName());
+            out.writeInt(fileInfo.getVersion());
+            out.writeLong(fileInfo.getSize());
+            out.writeLong(fileInfo.getModifiedDate().getTime());
+            out.writeObject(record);
+            out.close();
+            out = null;
+            replaceRecord(tempFile, recordFile);
+        } catch (IOException e) {
+            log.warning("Unable to write file parts " + recordFile + ". " + e);
+            if (tempFile != null) {
+                tempFile.delete();
+            }
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves the written temp file to the record file. The last one written
+     * wins.
+     */
+    private synchronized void replaceRecord(File tempFile, File recordFile)
+        throws IOException
+    {
+        if (recordFile.exists() && !recordFile.delete()) {
+            throw new IOException("Unable to delete " + recordFile);
+        }
+        if (!tempFile.renameTo(recordFile)) {
+            throw new IOException("Unable to rename " + tempFile);
+        }
+        touched(recordFile);
+    }
+
+    private synchronized void removeRecord(File recordFile) {
+        recordFile.delete();
+        if (records != null) {
+            Long size = records.remove(recordFile);
+            if (size != null) {
+                totalSize -= size;
+            }
+        }
+    }
+
+    /**
+     * Marks the record file as recently used and removes the least recently
+     * used ones if the limit is exceeded.
+     */
+    private synchronized void touched(File recordFile) {
+        if (records == null) {
+            loadRecords();
+        }
+        Long oldSize = records.remove(recordFile);
+        if (oldSize != null) {
+            totalSize -= oldSize;
+        }
+        long size = recordFile.length();
+        records.put(recordFile, size);
+        totalSize += size;
+
+        long limit = 1024L * 1024 * ConfigurationEntry.DELTA_RECORD_CACHE_MB
+            .getValueInt(getController());
+        for (Iterator<Map.Entry<File, Long>> it = records.entrySet()
+            .iterator(); it.hasNext() && totalSize > limit;)
+        {
+            Map.Entry<File, Long> entry = it.next();
+            if (entry.getKey().equals(recordFile)) {
+                continue;
+            }
+            if (log.isLoggable(Level.FINER)) {
+                log.finer("Removing least recently used file parts "
+                    + entry.getKey());
+            }
+            entry.getKey().delete();
+            totalSize -= entry.getValue();
+            it.remove();
+        }
+    }
+
+    /**
+     * Reads the existing records of all folders. The modification date of a
+     * record is the time it was written.
+     */
+    private void loadRecords() {
+        records = new LinkedHashMap<File, Long>(16, 0.75f, true);
+        totalSize = 0;
+        List<File> files = new ArrayList<File>();
+        for (Folder folder : getController().getFolderRepository()
+            .getFolders(true))
+        {
+            File[] recordFiles = new File(folder.getSystemSubDir(),
+                RECORDS_DIR).listFiles();
+            if (recordFiles == null) {
+                continue;
+            }
+            for (File file : recordFiles) {
+                if (file.getName().endsWith(RECORD_SUFFIX)
+                    || file.getName().endsWith(CHUNKS_SUFFIX))
+                {
+                    files.add(file);
+                } else {
+                    // Left over while writing
+                    file.delete();
+                }
+            }
+        }
+        final Map<File, Long> modified = new HashMap<File, Long>();
+        for (File file : files) {
+            modified.put(file, file.lastModified());
+        }
+        Collections.sort(files, new Comparator<File>() {
+            public int compare(File o1, File o2) {
+                long m1 = modified.get(o1);
+                long m2 = modified.get(o2);
+                return m1 < m2 ? -1 : m1 == m2 ? 0 : 1;
+            }
+        });
+        for (File file : files) {
+            long size = file.length();
+            records.put(file, size);
+            totalSize += size;
+        }
+    }
+
+    /**
+     * The kind of record to retrieve.
+     */
+    private abstract static class RecordType {
+        private final String suffix;
+
+        private RecordType(String suffix) {
+            this.suffix = suffix;
+        }
+
+        abstract Object compute(ProgressListener listener) throws IOException;
+
+        /**
+         * @param record
+         *            the stored or computed record, might be null.
+         * @return true if the record is of this type and parameters.
+         */
+        abstract boolean isValid(Object record);
+    }
+
+    /**
+     * One running computation of a record. Forwards the progress to all
+     * waiting requests.
+     */
+    private static class Computation implements ProgressListener {
+        private final FileInfo fileInfo;
+        private final List<ProgressListener> listeners = new CopyOnWriteArrayList<ProgressListener>();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile Object record;
+        private volatile IOException exception;
+
+        private Computation(FileInfo fileInfo) {
+            this.fileInfo = fileInfo;
+        }
+
+        public void progressReached(double percentageReached) {
+            for (ProgressListener listener : listeners) {
+                listener.progressReached(percentageReached);
+            }
+        }
+
+        private Object await(FileInfo requested) throws IOException {
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted while waiting for "
+                    + requested);
+            }
+            if (exception != null) {
+                throw exception;
+            }
+            if (!fileInfo.isVersionDateAndSizeIdentical(requested)) {
+                throw new IOException("File changed while waiting for "
+                    + requested);
+            }
+            return record;
+        }
+    }
+}
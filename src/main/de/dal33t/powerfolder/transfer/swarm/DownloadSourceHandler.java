@@ -21,6 +21,7 @@ package de.dal33t.powerfolder.transfer.swarm;
 
 import de.dal33t.powerfolder.message.FileChunk;
 import de.dal33t.powerfolder.transfer.Download;
+import de.dal33t.powerfolder.util.delta.ChunkRecord;
 import de.dal33t.powerfolder.util.delta.FilePartsRecord;
 
 public interface DownloadSourceHandler {
@@ -48,4 +49,12 @@ public interface DownloadSourceHandler {
      * @param record
      */
     void filePartsRecordReceived(Download source, FilePartsRecord record);
+
+    /**
+     * Called when a download received a ChunkRecord
+     * 
+     * @param download
+     * @param record
+     */
+    void chunkRecordReceived(Download source, ChunkRecord record);
 }
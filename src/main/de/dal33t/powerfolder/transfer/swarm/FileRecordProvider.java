@@ -23,6 +23,7 @@ import java.io.IOException;
 
 import de.dal33t.powerfolder.light.FileInfo;
 import de.dal33t.powerfolder.util.ProgressListener;
+import de.dal33t.powerfolder.util.delta.ChunkRecord;
 import de.dal33t.powerfolder.util.delta.FilePartsRecord;
 
 /**
@@ -45,6 +46,31 @@ public interface FileRecordProvider {
     FilePartsRecord retrieveRecord(FileInfo fileInfo, ProgressListener progObs)
         throws IOException;
 
+    /**
+     * Called to request a {@link ChunkRecord}. Waits for the record to become
+     * available and returns it.
+     * 
+     * @param fileInfo
+     * @param averageChunkSize
+     *            the average chunk size the record has to use.
+     * @param progObs
+     * @return the requested record
+     * @throws IOException
+     *             if an exception occurred while retrieving the record
+     */
+    ChunkRecord retrieveChunkRecord(FileInfo fileInfo, int averageChunkSize,
+        ProgressListener progObs) throws IOException;
+
+    /**
+     * Remembers the record of a file, which got downloaded and verified
+     * against it. Saves the computation if the file is requested or used as
+     * base for the next version.
+     * 
+     * @param fileInfo
+     * @param record
+     */
+    void storeChunkRecord(FileInfo fileInfo, ChunkRecord record);
+
     /**
      * Releases any resources held by this manager.
      */
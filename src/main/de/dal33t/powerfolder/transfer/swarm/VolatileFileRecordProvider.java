@@ -25,6 +25,7 @@ import de.dal33t.powerfolder.Controller;
 import de.dal33t.powerfolder.light.FileInfo;
 import de.dal33t.powerfolder.util.ProgressListener;
 import de.dal33t.powerfolder.util.Reject;
+import de.dal33t.powerfolder.util.delta.ChunkRecord;
 import de.dal33t.powerfolder.util.delta.FilePartsRecord;
 
 /**
@@ -47,6 +48,16 @@ public class VolatileFileRecordProvider extends AbstractFileRecordProvider {
         return computeFilePartsRecord(fileInfo, obs);
     }
 
+    public ChunkRecord retrieveChunkRecord(FileInfo fileInfo,
+        int averageChunkSize, ProgressListener obs) throws IOException
+    {
+        Reject.ifNull(fileInfo, "FileInfo is null!");
+        return computeChunkRecord(fileInfo, averageChunkSize, obs);
+    }
+
+    public void storeChunkRecord(FileInfo fileInfo, ChunkRecord record) {
+    }
+
     public void shutdown() {
     }
 }
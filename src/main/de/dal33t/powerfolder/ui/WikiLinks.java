@@ -45,6 +45,7 @@ public interface WikiLinks {
     String PROBLEM_NO_CONFLICT_DETECTION_POSSIBLE = "Version_Conflict_With_Old_Client";
     String PROBLEM_NO_OWNER = "No-Owner";
     String PROBLEM_FILE_CONFLICT = "Conflict_handling";
+    String PROBLEM_WATCH_LIMIT = "Watch-Limit";
     String SCRIPT_EXECUTION = "Script_execution";
     String DEFAULT_FOLDER = "Default_Folder";
     String TRANSFER_MODES = "Transfer_Modes";
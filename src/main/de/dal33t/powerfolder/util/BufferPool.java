@@ -0,0 +1,98 @@
+/*
+ * Copyright 2004 - 2013 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of byte arrays of exact sizes. Avoids allocating a new array for every
+ * file chunk, since most chunks have the same size.
+ * <p>
+ * A returned buffer must not be used anymore by the caller.
+ */
+public class BufferPool {
+
+    private final int maxBuffersPerSize;
+    private final int maxBufferSize;
+
+    /** Size -> free buffers */
+    private final ConcurrentMap<Integer, Pool> pools = Util
+        .createConcurrentHashMap();
+
+    /**
+     * @param maxBuffersPerSize
+     *            the number of free buffers of one size to keep.
+     * @param maxBufferSize
+     *            larger buffers are not pooled.
+     */
+    public BufferPool(int maxBuffersPerSize, int maxBufferSize) {
+        Reject.ifTrue(maxBuffersPerSize < 0, "Illegal pool size: "
+            + maxBuffersPerSize);
+        this.maxBuffersPerSize = maxBuffersPerSize;
+        this.maxBufferSize = maxBufferSize;
+    }
+
+    /**
+     * @param size
+     * @return a free buffer of exactly that size. The content is undefined.
+     */
+    public byte[] acquire(int size) {
+        Pool pool = pools.get(size);
+        byte[] buf = pool != null ? pool.free.poll() : null;
+        if (buf == null) {
+            return new byte[size];
+        }
+        pool.count.decrementAndGet();
+        return buf;
+    }
+
+    /**
+     * Returns a buffer to the pool.
+     *
+     * @param buf
+     *            the buffer, which is not used anymore. May be null.
+     */
+    public void release(byte[] buf) {
+        if (buf == null || buf.length > maxBufferSize) {
+            return;
+        }
+        Pool pool = pools.get(buf.length);
+        if (pool == null) {
+            pool = new Pool();
+            Pool existing = pools.putIfAbsent(buf.length, pool);
+            if (existing != null) {
+                pool = existing;
+            }
+        }
+        if (pool.count.incrementAndGet() > maxBuffersPerSize) {
+            pool.count.decrementAndGet();
+            return;
+        }
+        pool.free.offer(buf);
+    }
+
+    private static class Pool {
+        private final Queue<byte[]> free = new ConcurrentLinkedQueue<byte[]>();
+        private final AtomicInteger count = new AtomicInteger();
+    }
+}
@@ -90,6 +90,31 @@ public class ByteSerializer extends Loggable {
      */
     public byte[] serialize(Serializable target, boolean compress, int padToSize)
         throws IOException
+    {
+        return serializeToBuffer(target, compress, padToSize).toByteArray();
+    }
+
+    /**
+     * Serialize an object into a buffer. In contrast to
+     * {@link #serialize(Serializable, boolean, int)} the data is not copied
+     * into a single array. Write it with
+     * {@link ByteArrayOutputStream#writeTo(OutputStream)}.
+     * <p>
+     * The buffer might be re-used on the next call.
+     * 
+     * @param target
+     *            The object to be serialized
+     * @param compress
+     *            true if serialization should compress.
+     * @param padToSize
+     *            the size to pad the output buffer to. number below 0 means no
+     *            padding.
+     * @return the buffer containing the serialized object
+     * @throws IOException
+     *             In case the object cannot be serialized
+     */
+    public ByteArrayOutputStream serializeToBuffer(Serializable target,
+        boolean compress, int padToSize) throws IOException
     {
         long start = System.currentTimeMillis();
         ByteArrayOutputStream byteOut;
@@ -151,7 +176,6 @@ public class ByteSerializer extends Loggable {
                 + Format.formatBytes(byteOut.size()) + ". Message: " + target);
         }
 
-        byte[] buf = byteOut.toByteArray();
         if (BENCHMARK) {
             totalObjects++;
             totalTime += System.currentTimeMillis() - start;
@@ -162,7 +186,7 @@ public class ByteSerializer extends Loggable {
             count++;
             CLASS_STATS.put(target.getClass(), count);
         }
-        return buf;
+        return byteOut;
     }
 
     /**
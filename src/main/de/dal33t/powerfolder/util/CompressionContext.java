@@ -0,0 +1,242 @@
+/*
+ * Copyright 2004 - 2013 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.util;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.commons.io.output.ByteArrayOutputStream;
+
+/**
+ * The compression context of a connection. In contrast to a GZIP stream per
+ * message, all messages in one direction are compressed by one deflate
+ * stream, which gets flushed (SYNC_FLUSH) after each message. Small messages
+ * do not pay the header and the warm up of the dictionary, repeated content
+ * (e.g. the same folder or member) is compressed across messages.
+ * <p>
+ * Each packet starts with a mode byte: {@link #PLAIN} or {@link #DEFLATED}.
+ * Data, which does not compress (e.g. chunks of zip or jpg files), is sent
+ * plain and does not pass the deflater.
+ * <p>
+ * Packets must be compressed and decompressed in the order they are sent.
+ */
+public class CompressionContext {
+
+    public static final byte PLAIN = 0;
+    public static final byte DEFLATED = 1;
+
+    /**
+     * Data smaller than this is always compressed.
+     */
+    private static final int MIN_PROBE_SIZE = 1024;
+    private static final int PROBE_SIZE = 4 * 1024;
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private static Boolean SUPPORTED;
+    /** Deflater.deflate(byte[], int, int, int) of Java 7+ */
+    private static Method DEFLATE;
+    private static int SYNC_FLUSH;
+
+    // Sending and receiving do not block each other
+    private final Object deflateLock = new Object();
+    private final Object inflateLock = new Object();
+    private Deflater deflater;
+    private Inflater inflater;
+    private byte[] deflateBuf;
+    private byte[] inflateBuf;
+    private volatile boolean closed;
+
+    /**
+     * Requires SYNC_FLUSH of Java 7+. Looked up by reflection to still build
+     * and run on Java 6.
+     *
+     * @return true if streaming compression is supported by the runtime.
+     */
+    public synchronized static boolean isSupported() {
+        if (SUPPORTED == null) {
+            try {
+                SYNC_FLUSH = Deflater.class.getField("SYNC_FLUSH").getInt(
+                    null);
+                DEFLATE = Deflater.class.getMethod("deflate", byte[].class,
+                    int.class, int.class, int.class);
+                SUPPORTED = true;
+            } catch (Exception e) {
+                SUPPORTED = false;
+            } catch (LinkageError e) {
+                SUPPORTED = false;
+            }
+        }
+        return SUPPORTED;
+    }
+
+    /**
+     * Checks if the data is worth to be compressed by compressing a sample of
+     * it.
+     *
+     * @param data
+     * @return false if the data seems to be compressed already.
+     */
+    public static boolean isCompressible(byte[] data) {
+        if (data.length < MIN_PROBE_SIZE) {
+            return true;
+        }
+        int len = Math.min(data.length, PROBE_SIZE);
+        Deflater probe = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            probe.setInput(data, 0, len);
+            probe.finish();
+            byte[] buf = new byte[len];
+            int compressed = probe.deflate(buf);
+            // Less than 10% saved
+            return probe.finished() && compressed < len * 9 / 10;
+        } finally {
+            probe.end();
+        }
+    }
+
+    /**
+     * Compresses the next outgoing packet.
+     *
+     * @param data
+     *            the serialized message
+     * @param plain
+     *            true to send the data uncompressed
+     * @return the packet, starting with the mode byte.
+     * @throws IOException
+     *             if the context got closed
+     */
+    public ByteArrayOutputStream compress(byte[] data, boolean plain)
+        throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(plain
+            ? data.length + 1
+            : Math.max(64, data.length / 2));
+        if (plain) {
+            out.write(PLAIN);
+            out.write(data, 0, data.length);
+            return out;
+        }
+        if (!isSupported()) {
+            throw new IOException("Streaming compression not supported");
+        }
+        out.write(DEFLATED);
+        synchronized (deflateLock) {
+            if (closed) {
+                throw new IOException("Compression closed");
+            }
+            if (deflater == null) {
+                deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+                deflateBuf = new byte[BUFFER_SIZE];
+            }
+            deflater.setInput(data, 0, data.length);
+            int n;
+            do {
+                n = syncFlush();
+                out.write(deflateBuf, 0, n);
+            } while (n == deflateBuf.length);
+        }
+        return out;
+    }
+
+    /**
+     * Deflates the pending input into the buffer with SYNC_FLUSH.
+     *
+     * @return the number of bytes written to the buffer.
+     */
+    private int syncFlush() throws IOException {
+        try {
+            return (Integer) DEFLATE.invoke(deflater, deflateBuf, 0,
+                deflateBuf.length, SYNC_FLUSH);
+        } catch (InvocationTargetException e) {
+            throw new IOException("Unable to compress: " + e.getCause(), e);
+        } catch (IllegalAccessException e) {
+            throw new IOException("Unable to compress: " + e, e);
+        }
+    }
+
+    /**
+     * Decompresses the next incoming packet.
+     *
+     * @param data
+     *            the packet
+     * @param len
+     *            the length of the packet
+     * @return the serialized message.
+     * @throws IOException
+     *             if the packet is corrupt or the context got closed
+     */
+    public byte[] decompress(byte[] data, int len) throws IOException {
+        if (len < 1) {
+            throw new IOException("Empty packet");
+        }
+        if (data[0] == PLAIN) {
+            byte[] plain = new byte[len - 1];
+            System.arraycopy(data, 1, plain, 0, plain.length);
+            return plain;
+        } else if (data[0] != DEFLATED) {
+            throw new IOException("Unknown compression mode " + data[0]);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(len * 3);
+        synchronized (inflateLock) {
+            if (closed) {
+                throw new IOException("Compression closed");
+            }
+            if (inflater == null) {
+                inflater = new Inflater(true);
+                inflateBuf = new byte[BUFFER_SIZE];
+            }
+            inflater.setInput(data, 1, len - 1);
+            try {
+                int n;
+                do {
+                    n = inflater.inflate(inflateBuf);
+                    if (n == 0 && !inflater.needsInput()) {
+                        throw new IOException("Corrupt compressed packet");
+                    }
+                    out.write(inflateBuf, 0, n);
+                } while (n == inflateBuf.length || !inflater.needsInput());
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt compressed packet: " + e, e);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Frees the native resources. Following calls fail.
+     */
+    public void close() {
+        closed = true;
+        synchronized (deflateLock) {
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+        synchronized (inflateLock) {
+            if (inflater != null) {
+                inflater.end();
+            }
+        }
+    }
+}
@@ -52,6 +52,7 @@ import de.dal33t.powerfolder.light.FileInfo;
 import de.dal33t.powerfolder.light.MemberInfo;
 import de.dal33t.powerfolder.message.Identity;
 import de.dal33t.powerfolder.message.NodeInformation;
+import de.dal33t.powerfolder.net.AbstractSocketConnectionHandler;
 import de.dal33t.powerfolder.net.ConnectionHandler;
 import de.dal33t.powerfolder.net.ConnectionQuality;
 import de.dal33t.powerfolder.transfer.Download;
@@ -332,6 +333,18 @@ public class Debug {
                     b.append(" (none)\n");
                 }
 
+                b.append("\nDownload sources (best first):");
+                List<Member> sources = tm.getSourceRanking().rank(
+                    tm.getSourceRanking().getObservedSources());
+                for (Member source : sources) {
+                    b.append("\n ");
+                    b.append(tm.getSourceRanking().describe(source));
+                }
+                b.append('\n');
+                if (sources.isEmpty()) {
+                    b.append(" (none)\n");
+                }
+
                 b.append("\nUploads ("
                     + tm.countActiveUploads()
                     + " active, "
@@ -477,6 +490,12 @@ public class Debug {
         b.append(", ver. " + (id != null ? id.getProgramVersion() : "-")
             + ", ID: " + m.getId());
         b.append(", reconnect address " + m.getReconnectAddress());
+        ConnectionHandler peer = m.getPeer();
+        if (peer instanceof AbstractSocketConnectionHandler) {
+            AbstractSocketConnectionHandler socketPeer = (AbstractSocketConnectionHandler) peer;
+            b.append(", sent " + socketPeer.getFramesSent() + " packets in "
+                + socketPeer.getWrites() + " writes");
+        }
         return b.toString();
     }
 
@@ -12,6 +12,7 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import de.dal33t.powerfolder.Constants;
+import de.dal33t.powerfolder.disk.BinaryFolderDB;
 import de.dal33t.powerfolder.disk.FolderSettings;
 import de.dal33t.powerfolder.disk.SyncProfile;
 import de.dal33t.powerfolder.light.FileInfo;
@@ -89,6 +90,9 @@ public class FolderConfigRestore {
             throw new FileNotFoundException("No folder found at " + sysDir);
         }
         File dbFile = new File(sysDir, Constants.DB_FILENAME);
+        if (BinaryFolderDB.isBinary(dbFile)) {
+            return BinaryFolderDB.open(dbFile).getFolderInfo();
+        }
         // load files and scan in
         InputStream fIn = new BufferedInputStream(new FileInputStream(dbFile));
         ObjectInputStream in = new ObjectInputStream(fIn);
@@ -29,6 +29,7 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
+import de.dal33t.powerfolder.disk.BinaryFolderDB;
 import de.dal33t.powerfolder.light.FileInfo;
 import de.dal33t.powerfolder.light.FolderInfo;
 
@@ -53,11 +54,23 @@ public class FolderDBDebug {
                 "The first argument has to be the filename of the folder database file");
         }
 
-        InputStream fIn = new BufferedInputStream(new FileInputStream(args[0]));
-        ObjectInputStream in = new ObjectInputStream(fIn);
-        FileInfo[] files = (FileInfo[]) in.readObject();
-        System.err.println(in.readObject());
-        System.err.println(in.readObject());
+        FileInfo[] files;
+        if (BinaryFolderDB.isBinary(new File(args[0]))) {
+            BinaryFolderDB db = BinaryFolderDB.open(new File(args[0]));
+            files = new FileInfo[db.size()];
+            for (int i = 0; i < files.length; i++) {
+                files[i] = db.get(i);
+            }
+            System.err.println(Arrays.asList(db.getMembers()));
+            System.err.println(db.getLastScan());
+        } else {
+            InputStream fIn = new BufferedInputStream(new FileInputStream(
+                args[0]));
+            ObjectInputStream in = new ObjectInputStream(fIn);
+            files = (FileInfo[]) in.readObject();
+            System.err.println(in.readObject());
+            System.err.println(in.readObject());
+        }
 
         if (!checkForDupes(files)) {
             System.out.println("OK: DB contain NO dupes.");
@@ -27,6 +27,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
 
+import de.dal33t.powerfolder.disk.BinaryFolderDB;
 import de.dal33t.powerfolder.light.FileInfo;
 
 /**
@@ -63,10 +64,15 @@ public class FolderSetLastmodified {
         try {
 
             File dbFile = new File(localBase, ".PowerFolder/.PowerFolder.db");
-            InputStream fIn = new BufferedInputStream(new FileInputStream(
-                dbFile));
-            ObjectInputStream in = new ObjectInputStream(fIn);
-            FileInfo[] files = (FileInfo[]) in.readObject();
+            FileInfo[] files;
+            if (BinaryFolderDB.isBinary(dbFile)) {
+                files = BinaryFolderDB.readFileInfos(dbFile);
+            } else {
+                InputStream fIn = new BufferedInputStream(new FileInputStream(
+                    dbFile));
+                ObjectInputStream in = new ObjectInputStream(fIn);
+                files = (FileInfo[]) in.readObject();
+            }
             int changed = 0;
             int same = 0;
             int total = 0;
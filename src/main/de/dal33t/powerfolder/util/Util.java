@@ -266,6 +266,19 @@ public class Util {
         return allowDeltaSync(c, d.getPartner().isOnLAN());
     }
 
+    /**
+     * @param c
+     * @param d
+     * @return true, if delta sync of the download should use content defined
+     *         chunks instead of rolling checksums.
+     */
+    public static boolean useChunkRecords(Controller c, Download d) {
+        Reject.ifNull(c, "Controller is null");
+        Identity id = d.getPartner().getIdentity();
+        return id != null && id.isSupportsChunkRecords()
+            && ConfigurationEntry.USE_DELTA_CHUNKS.getValueBoolean(c);
+    }
+
     /**
      * Retrieves the URL to an resource within PF.
      * 
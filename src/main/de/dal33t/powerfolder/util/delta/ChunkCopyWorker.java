@@ -0,0 +1,115 @@
+/*
+ * Copyright 2004 - 2013 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.util.delta;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import de.dal33t.powerfolder.util.FileUtils;
+import de.dal33t.powerfolder.util.ProgressListener;
+import de.dal33t.powerfolder.util.Range;
+import de.dal33t.powerfolder.util.Reject;
+import de.dal33t.powerfolder.util.delta.FilePartsState.PartState;
+
+/**
+ * Copies the chunks of a remote {@link ChunkRecord}, which are also found in
+ * the record of the local file, from the local file to the destination file.
+ * The chunks are compared by their digests only. The local file is not read
+ * except for copying.
+ */
+public class ChunkCopyWorker implements Callable<FilePartsState> {
+    private final File srcFile;
+    private final ChunkRecord srcRecord;
+    private final File dstFile;
+    private final ChunkRecord dstRecord;
+    private final ProgressListener progressObserver;
+
+    /**
+     * @param srcFile
+     *            the local file.
+     * @param srcRecord
+     *            the record of the local file.
+     * @param dstFile
+     *            the file to copy to.
+     * @param dstRecord
+     *            the record of the wanted file.
+     * @param obs
+     */
+    public ChunkCopyWorker(File srcFile, ChunkRecord srcRecord, File dstFile,
+        ChunkRecord dstRecord, ProgressListener obs)
+    {
+        Reject.noNullElements(srcFile, srcRecord, dstFile, dstRecord);
+        Reject.ifFalse(
+            srcRecord.getAverageChunkSize() == dstRecord.getAverageChunkSize(),
+            "Records not comparable");
+        this.srcFile = srcFile;
+        this.srcRecord = srcRecord;
+        this.dstFile = dstFile;
+        this.dstRecord = dstRecord;
+        this.progressObserver = obs;
+    }
+
+    public FilePartsState call() throws Exception {
+        Map<ByteBuffer, ChunkInfo> available = new HashMap<ByteBuffer, ChunkInfo>();
+        for (ChunkInfo chunk : srcRecord.getChunks()) {
+            available.put(ByteBuffer.wrap(chunk.getDigest()), chunk);
+        }
+        FilePartsState result = new FilePartsState(dstRecord.getFileLength());
+        ChunkInfo[] chunks = dstRecord.getChunks();
+        RandomAccessFile src = new RandomAccessFile(srcFile, "r");
+        try {
+            RandomAccessFile dst = new RandomAccessFile(dstFile, "rw");
+            try {
+                for (int i = 0; i < chunks.length; i++) {
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException();
+                    }
+                    if (progressObserver != null) {
+                        progressObserver.progressReached((double) i
+                            / chunks.length);
+                    }
+                    ChunkInfo chunk = chunks[i];
+                    ChunkInfo match = available.get(ByteBuffer.wrap(chunk
+                        .getDigest()));
+                    if (match == null
+                        || match.getLength() != chunk.getLength())
+                    {
+                        continue;
+                    }
+                    src.seek(match.getOffset());
+                    dst.seek(chunk.getOffset());
+                    FileUtils.ncopy(src, dst, chunk.getLength());
+                    // The copied data is now AVAILABLE
+                    result.setPartState(Range.getRangeByLength(chunk
+                        .getOffset(), chunk.getLength()), PartState.AVAILABLE);
+                }
+                return result;
+            } finally {
+                dst.close();
+            }
+        } finally {
+            src.close();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2004 - 2013 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.util.delta;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Info for a content defined chunk of a file. Chunks are identified by their
+ * digest only, the same chunk may be found at different offsets in other
+ * versions of the file.
+ */
+public final class ChunkInfo implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final long offset;
+    private final int length;
+    private final byte[] digest;
+
+    public ChunkInfo(long offset, int length, byte[] digest) {
+        this.offset = offset;
+        this.length = length;
+        this.digest = digest;
+    }
+
+    /**
+     * @return the position of the chunk in the file.
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return the number of bytes of the chunk.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return the message digest of the data of the chunk.
+     */
+    public byte[] getDigest() {
+        return digest;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == this) {
+            return true;
+        }
+        if (obj instanceof ChunkInfo) {
+            ChunkInfo o = (ChunkInfo) obj;
+            return offset == o.offset && length == o.length
+                && Arrays.equals(digest, o.digest);
+        }
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) offset ^ (int) (offset >> 32) ^ length
+            ^ Arrays.hashCode(digest);
+    }
+
+    @Override
+    public String toString() {
+        return "{" + offset + "+" + length + "}";
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2004 - 2013 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.util.delta;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * The content defined chunks of one file. Other than a
+ * {@link FilePartsRecord} the chunk boundaries depend on the data only, so an
+ * insertion or deletion changes only the chunks around it. Two records built
+ * with the same average chunk size can be compared by the digests of their
+ * chunks, without reading the files again.
+ *
+ * @see ChunkRecordBuilder
+ */
+public final class ChunkRecord implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final ChunkInfo[] chunks;
+    private final int averageChunkSize;
+    private final long fileLength;
+    private final byte[] fileDigest;
+
+    /**
+     * @param fileLength
+     *            the size of the file that was used.
+     * @param chunks
+     *            the chunks of the file in order.
+     * @param averageChunkSize
+     *            the average chunk size used to find the chunk boundaries.
+     * @param fileDigest
+     *            the digest of the complete file.
+     */
+    public ChunkRecord(long fileLength, ChunkInfo[] chunks,
+        int averageChunkSize, byte[] fileDigest)
+    {
+        this.fileLength = fileLength;
+        this.chunks = chunks;
+        this.averageChunkSize = averageChunkSize;
+        this.fileDigest = fileDigest;
+    }
+
+    /**
+     * @return the chunks of the file in order.
+     */
+    public ChunkInfo[] getChunks() {
+        return chunks;
+    }
+
+    /**
+     * @return the average chunk size used to find the chunk boundaries.
+     *         Records are only comparable if built with the same value.
+     */
+    public int getAverageChunkSize() {
+        return averageChunkSize;
+    }
+
+    /**
+     * @return the size of the file used to create this record.
+     */
+    public long getFileLength() {
+        return fileLength;
+    }
+
+    /**
+     * @return the digest of the complete file represented by this record.
+     */
+    public byte[] getFileDigest() {
+        return fileDigest;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == this) {
+            return true;
+        }
+        if (obj instanceof ChunkRecord) {
+            ChunkRecord o = (ChunkRecord) obj;
+            return averageChunkSize == o.averageChunkSize
+                && fileLength == o.fileLength
+                && Arrays.equals(fileDigest, o.fileDigest)
+                && Arrays.equals(chunks, o.chunks);
+        }
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(fileDigest);
+    }
+
+    @Override
+    public String toString() {
+        return "[ChunkRecord, fsize: " + fileLength + ", averageChunkSize: "
+            + averageChunkSize + ", chunks: " + chunks.length + "]";
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2004 - 2013 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.util.delta;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import de.dal33t.powerfolder.util.Reject;
+import de.dal33t.powerfolder.util.Validate;
+
+/**
+ * Splits data into content defined chunks and creates a {@link ChunkRecord}.
+ * <p>
+ * A gear hash is rolled over the data. A chunk ends where the upper bits of
+ * the hash are all zero. The hash only depends on the last 64 bytes, so the
+ * boundaries are found again at the same content after data got inserted or
+ * removed. Chunks are at least a quarter and at most four times the average
+ * chunk size.
+ */
+public final class ChunkRecordBuilder {
+    /**
+     * The smallest average chunk size used for files.
+     */
+    public static final int MIN_AVERAGE_CHUNK_SIZE = 8 * 1024;
+
+    /**
+     * The largest average chunk size used for files.
+     */
+    public static final int MAX_AVERAGE_CHUNK_SIZE = 1024 * 1024;
+
+    /**
+     * Random values per byte. NEVER CHANGE: Records built with another table
+     * are not comparable.
+     */
+    private static final long[] GEAR = new long[256];
+    static {
+        Random random = new Random(0x50F01DE5L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final MessageDigest chunkDigester, fileDigester;
+    private final int averageChunkSize;
+    private final int minChunkSize;
+    private final int maxChunkSize;
+    private final long mask;
+
+    private final List<ChunkInfo> chunks = new ArrayList<ChunkInfo>();
+    private long processed;
+    private long chunkStart;
+    private int chunkLen;
+    private long hash;
+
+    /**
+     * @param chunkDigester
+     *            the digest identifying a chunk.
+     * @param fileDigester
+     *            the digest of the complete file.
+     * @param averageChunkSize
+     *            the average chunk size, a power of two.
+     */
+    public ChunkRecordBuilder(MessageDigest chunkDigester,
+        MessageDigest fileDigester, int averageChunkSize)
+    {
+        Reject.noNullElements(chunkDigester, fileDigester);
+        Reject.ifFalse(averageChunkSize >= 64
+            && Integer.bitCount(averageChunkSize) == 1,
+            "Average chunk size must be a power of two: " + averageChunkSize);
+        this.chunkDigester = chunkDigester;
+        this.fileDigester = fileDigester;
+        this.averageChunkSize = averageChunkSize;
+        this.minChunkSize = averageChunkSize / 4;
+        this.maxChunkSize = averageChunkSize * 4;
+        int bits = Integer.numberOfTrailingZeros(averageChunkSize);
+        this.mask = ((1L << bits) - 1) << (64 - bits);
+    }
+
+    /**
+     * @param fileLength
+     * @return the average chunk size to use for a file of that size.
+     */
+    public static int getAverageChunkSize(long fileLength) {
+        // About the part size of FilePartsRecords
+        int size = (int) Math.min(MAX_AVERAGE_CHUNK_SIZE,
+            Math.pow(fileLength, 0.25) * 2048);
+        return Integer.highestOneBit(Math.max(MIN_AVERAGE_CHUNK_SIZE, size));
+    }
+
+    /**
+     * Updates the current record with the given data.
+     *
+     * @param data
+     * @param off
+     * @param len
+     */
+    public void update(byte[] data, int off, int len) {
+        Validate.notNull(data);
+        if (off < 0 || len < 0 || off + len > data.length) {
+            throw new IndexOutOfBoundsException("Invalid parameters!");
+        }
+        fileDigester.update(data, off, len);
+        int start = off;
+        int end = off + len;
+        for (int i = off; i < end; i++) {
+            hash = (hash << 1) + GEAR[data[i] & 0xff];
+            chunkLen++;
+            if (chunkLen >= minChunkSize && (hash & mask) == 0
+                || chunkLen >= maxChunkSize)
+            {
+                chunkDigester.update(data, start, i + 1 - start);
+                start = i + 1;
+                endChunk();
+            }
+        }
+        chunkDigester.update(data, start, end - start);
+        processed += len;
+    }
+
+    /**
+     * Updates the current record with the given data. Same as calling
+     * update(data, 0, data.length).
+     *
+     * @param data
+     *            the data to update with.
+     */
+    public void update(byte[] data) {
+        update(data, 0, data.length);
+    }
+
+    /**
+     * Ends the last chunk and returns the resulting record. The builder is
+     * reset after this call is made.
+     *
+     * @return the record of the chunks.
+     */
+    public ChunkRecord getRecord() {
+        try {
+            if (chunkLen > 0) {
+                endChunk();
+            }
+            return new ChunkRecord(processed, chunks
+                .toArray(new ChunkInfo[chunks.size()]), averageChunkSize,
+                fileDigester.digest());
+        } finally {
+            reset();
+        }
+    }
+
+    /**
+     * Resets the builder for further use.
+     */
+    public void reset() {
+        processed = 0;
+        chunkStart = 0;
+        chunkLen = 0;
+        hash = 0;
+        chunks.clear();
+        chunkDigester.reset();
+        fileDigester.reset();
+    }
+
+    private void endChunk() {
+        chunks.add(new ChunkInfo(chunkStart, chunkLen, chunkDigester.digest()));
+        chunkStart += chunkLen;
+        chunkLen = 0;
+    }
+}
@@ -23,34 +23,76 @@ import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import de.dal33t.powerfolder.util.CountedInputStream;
+import de.dal33t.powerfolder.util.NamedThreadFactory;
 import de.dal33t.powerfolder.util.ProgressListener;
 import de.dal33t.powerfolder.util.Reject;
 
+/**
+ * Finds the parts of a {@link FilePartsRecord} in a file.
+ * <p>
+ * Large files are split into segments, which get matched in parallel. The
+ * segments overlap by one part, so no match at a segment border gets lost.
+ * The matches are merged in the order of the file.
+ */
 public class MatchResultWorker implements Callable<List<MatchInfo>> {
+    /**
+     * Files are not split into smaller segments than that.
+     */
+    private static final int MIN_SEGMENT_SIZE = 16 * 1024 * 1024;
+
     private final FilePartsRecord record;
     private final File inFile;
     private final ProgressListener progressListener;
+    private final int threads;
 
     public MatchResultWorker(FilePartsRecord record, File inFile,
         ProgressListener obs)
+    {
+        this(record, inFile, obs, 1);
+    }
+
+    /**
+     * @param record
+     * @param inFile
+     * @param obs
+     * @param threads
+     *            the maximum number of segments to match in parallel.
+     */
+    public MatchResultWorker(FilePartsRecord record, File inFile,
+        ProgressListener obs, int threads)
     {
         Reject.noNullElements(record, inFile);
         this.record = record;
         this.inFile = inFile;
         this.progressListener = obs;
+        this.threads = Math.max(1, threads);
     }
 
     public List<MatchInfo> call() throws Exception {
+        long fsize = inFile.length();
+        int segments = (int) Math.min(threads, fsize / MIN_SEGMENT_SIZE);
+        if (segments <= 1) {
+            return matchSequential(fsize);
+        }
+        return matchParallel(fsize, segments);
+    }
+
+    private List<MatchInfo> matchSequential(long fsize) throws Exception {
         CountedInputStream in = new CountedInputStream(new BufferedInputStream(
             new FileInputStream(inFile)));
         try {
-            final long fsize = inFile.length();
-
             PartInfoMatcher matcher = new PartInfoMatcher(in,
                 new RollingAdler32(record.getPartLength()), MessageDigest
                     .getInstance("SHA-256"), record.getInfos());
@@ -70,4 +112,116 @@ public class MatchResultWorker implements Callable<List<MatchInfo>> {
             in.close();
         }
     }
+
+    private List<MatchInfo> matchParallel(long fsize, int segments)
+        throws Exception
+    {
+        PartInfoMatcher.PartIndex index = new PartInfoMatcher.PartIndex(
+            record.getInfos());
+        long segmentSize = fsize / segments;
+        List<SegmentMatcher> matchers = new ArrayList<SegmentMatcher>(
+            segments);
+        for (int i = 0; i < segments; i++) {
+            long offset = i * segmentSize;
+            boolean last = i == segments - 1;
+            matchers.add(new SegmentMatcher(index, offset, last
+                ? Long.MAX_VALUE
+                : offset + segmentSize, last));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(segments,
+            new NamedThreadFactory("DeltaMatcher-"));
+        try {
+            List<Future<List<MatchInfo>>> results = new ArrayList<Future<List<MatchInfo>>>(
+                segments);
+            for (SegmentMatcher matcher : matchers) {
+                results.add(executor.submit(matcher));
+            }
+            List<MatchInfo> matches = new LinkedList<MatchInfo>();
+            long nextPos = 0;
+            for (Future<List<MatchInfo>> result : results) {
+                for (MatchInfo match : waitFor(result, matchers, fsize)) {
+                    // Segments overlap. Drop matches overlapping the last.
+                    // Might miss a few parts right after a segment border.
+                    if (match.getMatchedPosition() < nextPos) {
+                        continue;
+                    }
+                    matches.add(match);
+                    nextPos = match.getMatchedPosition()
+                        + record.getPartLength();
+                }
+            }
+            return matches;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private List<MatchInfo> waitFor(Future<List<MatchInfo>> result,
+        List<SegmentMatcher> matchers, long fsize) throws Exception
+    {
+        while (true) {
+            try {
+                return result.get(500, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                if (progressListener != null) {
+                    long read = 0;
+                    for (SegmentMatcher matcher : matchers) {
+                        read += matcher.getReadBytes();
+                    }
+                    progressListener.progressReached((double) read / fsize);
+                }
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Exception) {
+                    throw (Exception) e.getCause();
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Matches the parts starting in one segment of the file.
+     */
+    private class SegmentMatcher implements Callable<List<MatchInfo>> {
+        private final PartInfoMatcher.PartIndex index;
+        private final long offset;
+        private final long limit;
+        private final boolean matchTail;
+        private volatile CountedInputStream in;
+
+        private SegmentMatcher(PartInfoMatcher.PartIndex index, long offset,
+            long limit, boolean matchTail)
+        {
+            this.index = index;
+            this.offset = offset;
+            this.limit = limit;
+            this.matchTail = matchTail;
+        }
+
+        private long getReadBytes() {
+            CountedInputStream i = in;
+            return i != null ? i.getReadBytes() : 0;
+        }
+
+        public List<MatchInfo> call() throws Exception {
+            FileInputStream fin = new FileInputStream(inFile);
+            try {
+                fin.getChannel().position(offset);
+                in = new CountedInputStream(fin);
+                PartInfoMatcher matcher = new PartInfoMatcher(in, offset,
+                    limit, matchTail, new RollingAdler32(record
+                        .getPartLength()), MessageDigest
+                        .getInstance("SHA-256"), index);
+                List<MatchInfo> matches = new LinkedList<MatchInfo>();
+                MatchInfo match;
+                while ((match = matcher.nextMatch()) != null) {
+                    matches.add(match);
+                }
+                return matches;
+            } finally {
+                fin.close();
+            }
+        }
+    }
 }
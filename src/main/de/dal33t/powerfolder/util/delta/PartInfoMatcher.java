@@ -30,113 +30,246 @@ import java.util.List;
 import java.util.Map;
 
 import de.dal33t.powerfolder.util.Reject;
-import de.dal33t.powerfolder.util.RingBuffer;
 
 /**
- * Creates arrays of PartInfos given the algorithms to use and a data set. 
- * 
+ * Creates arrays of PartInfos given the algorithms to use and a data set.
+ * <p>
+ * The data is processed in blocks. Rolling over the data after a checksum
+ * miss works directly on the block, most positions are rejected by a bit
+ * filter of the known checksums without any lookup.
+ * <p>
+ * A matcher may also process only a segment of the data, so a large file can
+ * be matched by several matchers in parallel. See {@link MatchResultWorker}.
+ *
  * @author Dennis "Dante" Waldherr
- * @version $Revision: 4280 $ 
+ * @version $Revision: 4280 $
  */
 public class PartInfoMatcher extends FilterInputStream {
-	private static final int BUFFER_SIZE = 16384;
-	private final RollingChecksum chksum;
-	private final MessageDigest digester;
-    private final RingBuffer rbuf;
-    private final byte[] buf = new byte[BUFFER_SIZE];
-    private final Map<Long, List<PartInfo>> partCache =
-        new HashMap<Long, List<PartInfo>>();
-    private final byte[] dbuf;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private final RollingChecksum chksum;
+    private final MessageDigest digester;
+    private final PartIndex index;
+    private final int frameSize;
+    private final byte[] buf;
 
+    /** Frames starting at or after this position are not matched */
+    private final long limit;
+    /** Match the zero padded last part at the end of the data */
+    private final boolean matchTail;
+
+    /** Position in the data of the next byte to process */
     private long pos;
-	
-	public PartInfoMatcher(InputStream in, RollingChecksum chksum, MessageDigest digester, PartInfo[] partInfos) {
-		super(in);
-		Reject.noNullElements(chksum, digester, partInfos);
-		this.chksum = chksum;
-		this.digester = digester;
-        
-        rbuf = new RingBuffer(chksum.getFrameSize());
-        dbuf = new byte[chksum.getFrameSize()];
-        for (PartInfo info: partInfos) {
-            List<PartInfo> pList = partCache.get(info.getChecksum());
-            if (pList == null) {
-                partCache.put(info.getChecksum(), pList = new LinkedList<PartInfo>());
+    /** Index of the next byte to process in the buffer */
+    private int cursor;
+    /** End of valid data in the buffer */
+    private int end;
+    /** Bytes processed since the last match. The frame ends at the cursor */
+    private int frameLen;
+    private boolean done;
+
+    public PartInfoMatcher(InputStream in, RollingChecksum chksum,
+        MessageDigest digester, PartInfo[] partInfos)
+    {
+        this(in, 0, Long.MAX_VALUE, true, chksum, digester, new PartIndex(
+            partInfos));
+    }
+
+    /**
+     * Matches a segment of the data.
+     *
+     * @param in
+     *            the data starting at offset
+     * @param offset
+     *            the position of the first byte of the stream in the data.
+     * @param limit
+     *            frames starting at or after this position are not matched.
+     * @param matchTail
+     *            true if the stream ends with the end of the data.
+     * @param chksum
+     * @param digester
+     * @param index
+     */
+    PartInfoMatcher(InputStream in, long offset, long limit,
+        boolean matchTail, RollingChecksum chksum, MessageDigest digester,
+        PartIndex index)
+    {
+        super(in);
+        Reject.noNullElements(chksum, digester, index);
+        this.chksum = chksum;
+        this.digester = digester;
+        this.index = index;
+        this.frameSize = chksum.getFrameSize();
+        this.buf = new byte[frameSize + BUFFER_SIZE];
+        this.pos = offset;
+        this.limit = limit;
+        this.matchTail = matchTail;
+    }
+
+    public MatchInfo nextMatch() throws IOException, InterruptedException {
+        if (done) {
+            return null;
+        }
+        // Step 1: Fill frame for matching
+        while (frameLen < frameSize) {
+            if (cursor == end && !fill()) {
+                return matchTail();
             }
-            pList.add(info);
-        }
-	}
-
-	public MatchInfo nextMatch() throws IOException, InterruptedException {
-	    // Step 1: Fill buffer for matching
-	    int rem = rbuf.remaining();
-
-	    while (rem > 0) {
-	        int amount = Math.min(rem, BUFFER_SIZE);
-	        int read = read(buf, 0, amount);
-	        if (read == -1) {
-	            break;
-	        }
-	        pos += read;
-	        rem -= read;
-	        chksum.update(buf, 0, read);
-	        rbuf.write(buf, 0, read);
-	    }
-	    // Step 2: If the buffer is full, try to find a match or EOF
-	    while (rbuf.remaining() == 0) {
-	        if (Thread.interrupted()) {
-	            throw new InterruptedException();
-	        }
-	        List<PartInfo> lookup = partCache.get(chksum.getValue());
-	        if (lookup != null) {
-                rbuf.peek(dbuf, 0, chksum.getFrameSize());
-                byte[] digest = digester.digest(dbuf);
-                
-                for (PartInfo info: lookup) {
-                    if (Arrays.equals(digest, info.getDigest())) {
-                        MatchInfo retval = new MatchInfo(info, pos - chksum.getFrameSize());
-                        rbuf.reset();
-                        return retval;
-                    }
+            int amount = Math.min(frameSize - frameLen, end - cursor);
+            chksum.update(buf, cursor, amount);
+            cursor += amount;
+            frameLen += amount;
+            pos += amount;
+        }
+        // Step 2: Roll over the data until a match or EOF
+        while (true) {
+            for (; cursor < end; cursor++, pos++) {
+                MatchInfo match = match();
+                if (match != null) {
+                    return match;
+                }
+                if (done) {
+                    return null;
                 }
-	        }
-	        rbuf.skip(1);
-            int data = read();
-            if (data == -1) {
-                break;
+                chksum.update(buf[cursor]);
+            }
+            MatchInfo match = match();
+            if (match != null || done) {
+                return match;
+            }
+            if (!fill()) {
+                // The frame start got dropped on the last roll
+                frameLen = frameSize - 1;
+                return matchTail();
             }
-	        pos++;
-	        rbuf.write(data);
-	        chksum.update(data);
-	    }
-	    // Step 3: If we got on EOF before try to finalize the result or return null if all is done
-        rem = (int) (pos % chksum.getFrameSize());
-        if (rem > 0) {
-            pos -= rem;
-            
-            int av = rbuf.available();
-            rbuf.peek(dbuf, 0, av);
-            digester.update(dbuf, 0, av);
-            
-            
-            rem = chksum.getFrameSize() - rem;
-            
-            for (int i = 0; i < rem; i++) {
-                chksum.update(0);
-                digester.update((byte) 0);
+            chksum.update(buf[cursor++]);
+            pos++;
+        }
+    }
+
+    /**
+     * Checks the current frame.
+     *
+     * @return the match or null.
+     */
+    private MatchInfo match() {
+        long frameStart = pos - frameSize;
+        if (frameStart >= limit) {
+            done = true;
+            return null;
+        }
+        long value = chksum.getValue();
+        if (!index.mayContain(value)) {
+            return null;
+        }
+        List<PartInfo> lookup = index.get(value);
+        if (lookup == null) {
+            return null;
+        }
+        digester.update(buf, cursor - frameSize, frameSize);
+        byte[] digest = digester.digest();
+        for (PartInfo info : lookup) {
+            if (Arrays.equals(digest, info.getDigest())) {
+                frameLen = 0;
+                return new MatchInfo(info, frameStart);
             }
-            
-            byte[] digest = digester.digest();
-            List<PartInfo> mList = partCache.get(chksum.getValue());
-            
-            if (mList != null) {
-                for (PartInfo info: mList) {
-                    if (Arrays.equals(digest, info.getDigest())) {
-                        return new MatchInfo(info, pos);
-                    }
+        }
+        return null;
+    }
+
+    /**
+     * Step 3: On EOF try to match the last, zero padded part.
+     *
+     * @return the match or null if all is done
+     */
+    private MatchInfo matchTail() {
+        done = true;
+        int rem = (int) (pos % frameSize);
+        if (!matchTail || rem == 0) {
+            return null;
+        }
+        long tailPos = pos - rem;
+        digester.update(buf, cursor - frameLen, frameLen);
+        rem = frameSize - rem;
+        for (int i = 0; i < rem; i++) {
+            chksum.update(0);
+            digester.update((byte) 0);
+        }
+        byte[] digest = digester.digest();
+        List<PartInfo> mList = index.get(chksum.getValue());
+        if (mList != null) {
+            for (PartInfo info : mList) {
+                if (Arrays.equals(digest, info.getDigest())) {
+                    return new MatchInfo(info, tailPos);
                 }
             }
         }
         return null;
-	}
+    }
+
+    /**
+     * Reads the next block. Keeps the current frame in front of it.
+     *
+     * @return false on EOF.
+     */
+    private boolean fill() throws IOException, InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        System.arraycopy(buf, cursor - frameLen, buf, 0, frameLen);
+        cursor = frameLen;
+        end = frameLen;
+        int read = in.read(buf, end, buf.length - end);
+        if (read <= 0) {
+            return false;
+        }
+        end += read;
+        return true;
+    }
+
+    /**
+     * The checksums of the parts to find. Read only after creation, may be
+     * shared by matchers running in parallel.
+     */
+    static class PartIndex {
+        private final Map<Long, List<PartInfo>> partCache = new HashMap<Long, List<PartInfo>>();
+        /** One bit per checksum hash */
+        private final long[] filter;
+        private final int filterBits;
+
+        PartIndex(PartInfo[] partInfos) {
+            Reject.ifNull(partInfos, "Part infos");
+            for (PartInfo info : partInfos) {
+                List<PartInfo> pList = partCache.get(info.getChecksum());
+                if (pList == null) {
+                    partCache.put(info.getChecksum(),
+                        pList = new LinkedList<PartInfo>());
+                }
+                pList.add(info);
+            }
+            // About 1/16 of the bits set
+            int bits = 10;
+            while (bits < 26 && (1 << bits) < partInfos.length * 16) {
+                bits++;
+            }
+            filterBits = bits;
+            filter = new long[1 << (bits - 6)];
+            for (Long checksum : partCache.keySet()) {
+                int h = hash(checksum);
+                filter[h >>> 6] |= 1L << h;
+            }
+        }
+
+        boolean mayContain(long checksum) {
+            int h = hash(checksum);
+            return (filter[h >>> 6] & (1L << h)) != 0;
+        }
+
+        List<PartInfo> get(long checksum) {
+            return partCache.get(checksum);
+        }
+
+        private int hash(long checksum) {
+            return (int) ((checksum * 0x9E3779B97F4A7C15L) >>> (64 - filterBits));
+        }
+    }
 }
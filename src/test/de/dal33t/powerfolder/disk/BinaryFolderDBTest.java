@@ -0,0 +1,140 @@
+/*
+ * Copyright 2004 - 2013 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import junit.framework.TestCase;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FileInfoFactory;
+import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.light.MemberInfo;
+import de.dal33t.powerfolder.util.FileUtils;
+import de.dal33t.powerfolder.util.IdGenerator;
+import de.dal33t.powerfolder.util.Profiling;
+import de.dal33t.powerfolder.util.test.TestHelper;
+
+public class BinaryFolderDBTest extends TestCase {
+
+    private File dbFile;
+    private FolderInfo foInfo;
+    private MemberInfo mInfo;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        File dir = new File(TestHelper.getTestDir(), "binarydb");
+        FileUtils.recursiveDelete(dir);
+        assertTrue(dir.mkdirs());
+        dbFile = new File(dir, ".PowerFolder.db");
+        foInfo = new FolderInfo("Binary DB", IdGenerator.makeId()).intern();
+        mInfo = new MemberInfo("Bart", IdGenerator.makeId(), null);
+        mInfo.setConnectAddress(new InetSocketAddress("10.0.0.1", 1337));
+        mInfo.setLastConnectTime(new Date(6000L));
+        mInfo.isSupernode = true;
+    }
+
+    public void testRoundTrip() throws IOException {
+        List<FileInfo> fInfos = new ArrayList<FileInfo>();
+        fInfos.add(FileInfoFactory.unmarshallExistingFile(foInfo, "root.txt",
+            10, mInfo, new Date(1000L), 3, false));
+        fInfos.add(FileInfoFactory.unmarshallExistingFile(foInfo, "sub",
+            0, mInfo, new Date(2000L), 0, true));
+        fInfos.add(FileInfoFactory.unmarshallExistingFile(foInfo,
+            "sub/dir/file äöü.bin", 1234567890123L, null,
+            new Date(3000L), 7, false));
+        fInfos.add(FileInfoFactory.unmarshallDeletedFile(foInfo,
+            "sub/deleted.txt", mInfo, new Date(4000L), 2, false));
+        Date lastScan = new Date(5000L);
+
+        BinaryFolderDB.write(dbFile, foInfo, fInfos,
+            new MemberInfo[]{mInfo}, lastScan);
+        assertTrue(BinaryFolderDB.isBinary(dbFile));
+
+        BinaryFolderDB db = BinaryFolderDB.open(dbFile);
+        assertEquals(foInfo, db.getFolderInfo());
+        assertEquals(lastScan, db.getLastScan());
+        assertEquals(1, db.getMembers().length);
+        assertEquals(mInfo.id, db.getMembers()[0].id);
+        assertEquals(mInfo.nick, db.getMembers()[0].nick);
+        assertEquals(mInfo.networkId, db.getMembers()[0].networkId);
+        assertEquals(mInfo.getConnectAddress(), db.getMembers()[0]
+            .getConnectAddress());
+        assertEquals(mInfo.getLastConnectTime(), db.getMembers()[0]
+            .getLastConnectTime());
+        assertTrue(db.getMembers()[0].isSupernode);
+        assertEquals(fInfos.size(), db.size());
+        for (int i = 0; i < fInfos.size(); i++) {
+            FileInfo expected = fInfos.get(i);
+            FileInfo actual = db.get(i);
+            assertEquals(expected.getRelativeName(), actual.getRelativeName());
+            assertEquals(expected.getSize(), actual.getSize());
+            assertEquals(expected.getModifiedDate(), actual.getModifiedDate());
+            assertEquals(expected.getVersion(), actual.getVersion());
+            assertEquals(expected.isDeleted(), actual.isDeleted());
+            assertEquals(expected.isDiretory(), actual.isDiretory());
+            assertEquals(expected.getModifiedBy(), actual.getModifiedBy());
+            assertTrue(expected.isVersionDateAndSizeIdentical(actual));
+        }
+    }
+
+    public void testSerializedFormatNotBinary() throws IOException {
+        ObjectOutputStream out = new ObjectOutputStream(
+            new BufferedOutputStream(new FileOutputStream(dbFile)));
+        out.writeObject(new FileInfo[0]);
+        out.close();
+        assertFalse(BinaryFolderDB.isBinary(dbFile));
+    }
+
+    public void testSizeCompared() throws IOException {
+        List<FileInfo> fInfos = new ArrayList<FileInfo>();
+        for (int i = 0; i < 50000; i++) {
+            fInfos.add(FileInfoFactory.unmarshallExistingFile(foInfo,
+                "dir-" + (i % 100) + "/subdir/file-" + i + ".txt", i, mInfo,
+                new Date(), 1, false));
+        }
+        Profiling.setEnabled(false);
+        BinaryFolderDB.write(dbFile, foInfo, fInfos,
+            new MemberInfo[]{mInfo}, null);
+        long binarySize = dbFile.length();
+
+        BinaryFolderDB db = BinaryFolderDB.open(dbFile);
+        for (int i = 0; i < db.size(); i++) {
+            assertNotNull(db.get(i));
+        }
+
+        File serFile = new File(dbFile.getParentFile(), "serialized.db");
+        ObjectOutputStream out = new ObjectOutputStream(
+            new BufferedOutputStream(new FileOutputStream(serFile)));
+        out.writeObject(fInfos.toArray(new FileInfo[fInfos.size()]));
+        out.close();
+
+        assertTrue("Binary: " + binarySize + " bytes. Serialized: "
+            + serFile.length() + " bytes", binarySize < serFile.length());
+    }
+}
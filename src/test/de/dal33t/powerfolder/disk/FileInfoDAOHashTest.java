@@ -49,4 +49,12 @@ public class FileInfoDAOHashTest extends FileInfoDAOTestCase {
         testFindInDir(dao, 5000);
     }
 
+    public void testStatsAfterChanges() {
+        testStatsAfterChanges(dao, filter);
+    }
+
+    public void testFindInDirAfterChanges() {
+        testFindInDirAfterChanges(dao);
+    }
+
 }
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2004 - 2013 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk;
+
+import java.util.logging.Level;
+
+import de.dal33t.powerfolder.disk.dao.FileInfoDAO;
+import de.dal33t.powerfolder.disk.dao.FileInfoDAOOffHeapImpl;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.util.logging.LoggingManager;
+
+public class FileInfoDAOOffHeapTest extends FileInfoDAOTestCase {
+    private FileInfoDAO dao;
+    private DiskItemFilter filter;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        filter = new DiskItemFilter();
+        dao = new FileInfoDAOOffHeapImpl("ME", filter);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        dao.stop();
+        super.tearDown();
+    }
+
+    public void testIndexFileInfo() {
+        testIndexFileInfo(dao);
+    }
+
+    public void testFindNewestVersion() {
+        testFindNewestVersion(dao);
+    }
+
+    public void testFindAll() {
+        LoggingManager.setConsoleLogging(Level.SEVERE);
+        testFindAll(dao, 5000);
+    }
+
+    public void testFindInDir() {
+        testFindInDir(dao, 1);
+        testFindInDir(dao, 100);
+        testFindInDir(dao, 5000);
+    }
+
+    public void testStatsAfterChanges() {
+        testStatsAfterChanges(dao, filter);
+    }
+
+    public void testFindInDirAfterChanges() {
+        testFindInDirAfterChanges(dao);
+    }
+
+    public void testDeleteAndReuse() {
+        FileInfo a = createFileInfo("a.txt", 0, false);
+        FileInfo b = createFileInfo("b.txt", 0, false);
+        dao.store(null, a, b);
+        dao.delete(null, a);
+        assertNull(dao.find(a, null));
+        assertEquals(1, dao.count(null, true, false));
+        dao.store(null, version(a, 3));
+        assertEquals(3, dao.find(a, null).getVersion());
+        assertEquals(0, dao.find(b, null).getVersion());
+        assertEquals(2, dao.count(null, true, false));
+    }
+
+    public void testNamesReleased() {
+        FileInfo a = createFileInfo("a.txt", 0, false);
+        dao.store(null, a);
+        dao.store("OTHER", version(a, 1));
+        dao.delete(null, a);
+        assertEquals(1, dao.findNewestVersion(a, null, "OTHER").getVersion());
+        dao.deleteDomain("OTHER", 0);
+        assertNull(dao.findNewestVersion(a, null, "OTHER"));
+
+        // Ids of a.txt get reused
+        FileInfo b = createFileInfo("b.txt", 0, false);
+        dao.store(null, b, createFileInfo("c.txt", 0, false));
+        assertNull(dao.find(a, null));
+        assertNull(dao.find(a, "OTHER"));
+        assertNotNull(dao.find(b, null));
+        assertEquals(2, findInDirectory(dao, null, "", false).size());
+        assertEquals(2, dao.countInSync(null, true, true));
+    }
+}
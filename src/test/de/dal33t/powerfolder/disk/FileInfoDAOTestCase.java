@@ -28,7 +28,6 @@ import java.util.UUID;
 import de.dal33t.powerfolder.disk.DiskItemFilter;
 import de.dal33t.powerfolder.disk.dao.FileInfoCriteria;
 import de.dal33t.powerfolder.disk.dao.FileInfoDAO;
-import de.dal33t.powerfolder.light.DirectoryInfo;
 import de.dal33t.powerfolder.light.FileInfo;
 import de.dal33t.powerfolder.light.FileInfoFactory;
 import de.dal33t.powerfolder.light.FolderInfo;
@@ -213,15 +212,15 @@ public abstract class FileInfoDAOTestCase extends ControllerTestCase {
         assertEquals(n, dao.count("WWW", true, true));
         assertEquals(0, dao.count("123", true, true));
 
-        assertEquals(n, dao.findAllFiles(null).size());
-        assertEquals(n, dao.findAllFiles("XXX").size());
-        assertEquals(n, dao.findAllFiles("WWW").size());
-        assertEquals(0, dao.findAllFiles("123").size());
+        assertEquals(n, findAllFiles(dao, null).size());
+        assertEquals(n, findAllFiles(dao, "XXX").size());
+        assertEquals(n, findAllFiles(dao, "WWW").size());
+        assertEquals(0, findAllFiles(dao, "123").size());
 
-        assertEquals(n, dao.findAllFiles(null).size());
-        assertEquals(n, dao.findAllFiles("XXX").size());
-        assertEquals(n, dao.findAllFiles("WWW").size());
-        assertEquals(0, dao.findAllFiles("123").size());
+        assertEquals(n, findAllFiles(dao, null).size());
+        assertEquals(n, findAllFiles(dao, "XXX").size());
+        assertEquals(n, findAllFiles(dao, "WWW").size());
+        assertEquals(0, findAllFiles(dao, "123").size());
     }
 
     protected void testFindNewestVersion(FileInfoDAO dao) {
@@ -259,7 +258,7 @@ public abstract class FileInfoDAOTestCase extends ControllerTestCase {
         // Should overwrite
         dao.store(null, retrieved);
 
-        assertEquals(1, dao.findAllFiles(null).size());
+        assertEquals(1, findAllFiles(dao, null).size());
         assertEquals(1, dao.count(null, true, true));
     }
 
@@ -289,16 +288,15 @@ public abstract class FileInfoDAOTestCase extends ControllerTestCase {
         assertEquals(nItems, dao.count(null, true, false));
         assertEquals(nFiles, dao.count(null, false, false));
 
-        assertEquals(0, dao.findInDirectory(null, (DirectoryInfo) null, false)
-            .size());
-        assertEquals(nItems, dao.findInDirectory(null, (String) null, true)
-            .size());
-        assertEquals(nItems, dao
-            .findInDirectory(null, "subdir1/SUBDIR2/", true).size());
+        assertEquals(0, findInDirectory(dao, null, null, false).size());
+        assertEquals(nItems, findInDirectory(dao, null, null, true).size());
+        assertEquals(nItems,
+            findInDirectory(dao, null, "subdir1/SUBDIR2/", true).size());
         assertEquals(n * 2 + 2,
-            dao.findInDirectory(null, "subdir1/SUBDIR2/", false).size());
+            findInDirectory(dao, null, "subdir1/SUBDIR2/", false).size());
         assertEquals(n,
-            dao.findInDirectory(null, (DirectoryInfo) dirInfo, false).size());
+            findInDirectory(dao, null, dirInfo.getRelativeName(), false)
+                .size());
         //
         // Alexandria/
         // Alexandria/Alexandria
@@ -328,6 +326,162 @@ public abstract class FileInfoDAOTestCase extends ControllerTestCase {
             .size());
     }
 
+    protected void testStatsAfterChanges(FileInfoDAO dao,
+        DiskItemFilter filter)
+    {
+        String[] domains = {null, "OTHER", "THIRD"};
+        FileInfo dir = createFileInfo("docs", 0, true);
+        List<FileInfo> fInfos = new ArrayList<FileInfo>();
+        for (int i = 0; i < 50; i++) {
+            fInfos.add(sameFolder(dir, "docs/file-" + i
+                + (i % 2 == 0 ? ".txt" : ".xls"), false));
+        }
+        fInfos.add(dir);
+        for (String domain : domains) {
+            dao.store(domain, fInfos);
+        }
+        assertStats(dao, filter, domains);
+
+        // Newer versions at other members
+        for (int i = 0; i < 10; i++) {
+            dao.store("OTHER", version(fInfos.get(i), 1));
+        }
+        dao.store("THIRD", version(fInfos.get(0), 2));
+        assertStats(dao, filter, domains);
+        assertEquals(40, dao.countInSync(null, false, true));
+
+        // Catch up and delete
+        dao.store(null, version(fInfos.get(0), 2));
+        dao.delete("THIRD", fInfos.get(0));
+        dao.store(null, FileInfoFactory.deletedFile(fInfos.get(1), null,
+            new Date()));
+        assertStats(dao, filter, domains);
+
+        filter.addPattern("*.xls");
+        assertStats(dao, filter, domains);
+        dao.store("THIRD", version(fInfos.get(3), 5));
+        assertStats(dao, filter, domains);
+
+        dao.deleteDomain("OTHER", 0);
+        assertStats(dao, filter, domains);
+        filter.removeAllPatterns();
+        assertStats(dao, filter, domains);
+    }
+
+    /**
+     * Compares the statistics of the DAO with freshly calculated ones.
+     */
+    private static void assertStats(FileInfoDAO dao, DiskItemFilter filter,
+        String... domains)
+    {
+        for (String domain : domains) {
+            int files = 0;
+            int dirs = 0;
+            int filesInSync = 0;
+            int dirsInSync = 0;
+            long bytesInSync = 0;
+            List<FileInfo> items = new ArrayList<FileInfo>(
+                findAllFiles(dao, domain));
+            items.addAll(dao.findAllDirectories(domain));
+            for (FileInfo fInfo : items) {
+                if (fInfo.isDeleted() || filter.isExcluded(fInfo)) {
+                    continue;
+                }
+                FileInfo newest = dao.findNewestVersion(fInfo, domains);
+                boolean inSync = !newest.isNewerThan(fInfo);
+                if (fInfo.isFile()) {
+                    files++;
+                    if (inSync) {
+                        filesInSync++;
+                        bytesInSync += fInfo.getSize();
+                    }
+                } else {
+                    dirs++;
+                    if (inSync) {
+                        dirsInSync++;
+                    }
+                }
+            }
+            assertEquals(files, dao.count(domain, false, true));
+            assertEquals(files + dirs, dao.count(domain, true, true));
+            assertEquals(filesInSync, dao.countInSync(domain, false, true));
+            assertEquals(filesInSync + dirsInSync,
+                dao.countInSync(domain, true, true));
+            assertEquals(bytesInSync, dao.bytesInSync(domain));
+        }
+    }
+
+    protected void testFindInDirAfterChanges(FileInfoDAO dao) {
+        FileInfo dir = createFileInfo("docs", 0, true);
+        FileInfo sub = sameFolder(dir, "docs/sub", true);
+        FileInfo a = sameFolder(dir, "docs/a.txt", false);
+        FileInfo b = sameFolder(dir, "docs/sub/b.txt", false);
+        FileInfo c = sameFolder(dir, "docs/sub/deeper/c.txt", false);
+        dao.store(null, dir, sub, a, b, c);
+
+        assertEquals(2, findInDirectory(dao, null, "docs", false).size());
+        assertEquals(4, findInDirectory(dao, null, "docs/", true).size());
+        assertEquals(1, findInDirectory(dao, null, "", false).size());
+
+        FileInfoCriteria crit = new FileInfoCriteria();
+        crit.addDomain(null);
+        crit.setPath("docs");
+        crit.setRecursive(true);
+        crit.setMaxResults(3);
+        assertEquals(3, dao.findFiles(crit).size());
+        crit.setMaxResults(-1);
+        crit.setType(FileInfoCriteria.Type.DIRECTORIES_ONLY);
+        assertEquals(1, dao.findFiles(crit).size());
+
+        // Replace file with directory of same name
+        dao.store(null, sameFolder(dir, "docs/a.txt", true));
+        crit.setType(FileInfoCriteria.Type.FILES_ONLY);
+        crit.setRecursive(false);
+        assertEquals(0, dao.findFiles(crit).size());
+
+        dao.delete(null, c);
+        assertEquals(0, findInDirectory(dao, null, "docs/sub/deeper", true)
+            .size());
+        assertEquals(3, findInDirectory(dao, null, "docs", true).size());
+        dao.delete(null, b);
+        dao.delete(null, sub);
+        assertEquals(1, findInDirectory(dao, null, "docs", true).size());
+        assertEquals(2, findInDirectory(dao, null, "", true).size());
+    }
+
+    /**
+     * @return the files and directories in the path of the domain.
+     */
+    protected static Collection<FileInfo> findInDirectory(FileInfoDAO dao,
+        String domain, String path, boolean recursive)
+    {
+        FileInfoCriteria crit = new FileInfoCriteria();
+        crit.addDomain(domain);
+        crit.setPath(path);
+        crit.setRecursive(recursive);
+        return dao.findFiles(crit);
+    }
+
+    /**
+     * @return all files of the domain.
+     */
+    protected static Collection<FileInfo> findAllFiles(FileInfoDAO dao,
+        String domain)
+    {
+        FileInfoCriteria crit = new FileInfoCriteria();
+        crit.addDomain(domain);
+        crit.setRecursive(true);
+        crit.setType(FileInfoCriteria.Type.FILES_ONLY);
+        return dao.findFiles(crit);
+    }
+
+    private static FileInfo sameFolder(FileInfo fInfo, String name,
+        boolean directory)
+    {
+        return FileInfoFactory.unmarshallExistingFile(fInfo.getFolderInfo(),
+            name, 100, fInfo.getModifiedBy(), new Date(), 0, directory);
+    }
+
     protected static FileInfo createFileInfo(String name, int version,
         boolean directory)
     {
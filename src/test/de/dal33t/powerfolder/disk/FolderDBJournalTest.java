@@ -0,0 +1,186 @@
+/*
+ * Copyright 2004 - 2013 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FileInfoFactory;
+import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.light.MemberInfo;
+import de.dal33t.powerfolder.util.FileUtils;
+import de.dal33t.powerfolder.util.IdGenerator;
+import de.dal33t.powerfolder.util.test.TestHelper;
+
+public class FolderDBJournalTest extends TestCase {
+
+    private static final String DB_NAME = ".PowerFolder.db";
+    private File dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        dir = new File(TestHelper.getTestDir(), "journal");
+        FileUtils.recursiveDelete(dir);
+        assertTrue(dir.mkdirs());
+    }
+
+    public void testAppendAndReplay() {
+        FolderDBJournal journal = new FolderDBJournal(dir, DB_NAME, 25);
+        FileInfo a = createFileInfo("a.txt", 0);
+        FileInfo b = createFileInfo("sub/b.txt", 0);
+        journal.stored(list(a, b));
+        journal.deleted(a);
+        journal.stored(list(version(b, 1)));
+        Date lastScan = new Date(1234567890L);
+        journal.lastScan(lastScan);
+        assertTrue(journal.flush());
+
+        RecordingHandler handler = new RecordingHandler();
+        FolderDBJournal reopened = new FolderDBJournal(dir, DB_NAME, 25);
+        assertEquals(5, reopened.replay(handler));
+        assertEquals(1, handler.state.size());
+        assertEquals(1, handler.state.get("sub/b.txt").getVersion());
+        assertEquals(lastScan, handler.lastScan);
+    }
+
+    public void testCorruptTailIgnored() throws IOException {
+        FolderDBJournal journal = new FolderDBJournal(dir, DB_NAME, 25);
+        journal.stored(list(createFileInfo("a.txt", 0)));
+        assertTrue(journal.flush());
+        File journalFile = new File(dir, DB_NAME
+            + FolderDBJournal.JOURNAL_SUFFIX);
+        long validLength = journalFile.length();
+
+        // Simulate crash while appending
+        FileOutputStream out = new FileOutputStream(journalFile, true);
+        out.write(new byte[]{FolderDBJournal.OP_STORE, 0, 0, 1, 0, 7, 7});
+        out.close();
+
+        RecordingHandler handler = new RecordingHandler();
+        assertEquals(1, new FolderDBJournal(dir, DB_NAME, 25).replay(handler));
+        assertEquals(1, handler.state.size());
+        assertEquals(validLength, journalFile.length());
+    }
+
+    public void testTornLengthIgnored() throws IOException {
+        FolderDBJournal journal = new FolderDBJournal(dir, DB_NAME, 25);
+        journal.stored(list(createFileInfo("a.txt", 0)));
+        assertTrue(journal.flush());
+        File journalFile = new File(dir, DB_NAME
+            + FolderDBJournal.JOURNAL_SUFFIX);
+        long validLength = journalFile.length();
+
+        // Garbage length far beyond the end of the journal
+        FileOutputStream out = new FileOutputStream(journalFile, true);
+        out.write(new byte[]{FolderDBJournal.OP_STORE, 0x7F, -1, -1, -16, 0,
+            0, 0, 0, 0, 0, 0, 0, 1, 2, 3});
+        out.close();
+
+        RecordingHandler handler = new RecordingHandler();
+        assertEquals(1, new FolderDBJournal(dir, DB_NAME, 25).replay(handler));
+        assertEquals(1, handler.state.size());
+        assertEquals(validLength, journalFile.length());
+    }
+
+    public void testRotateAndCompact() {
+        FolderDBJournal journal = new FolderDBJournal(dir, DB_NAME, 25);
+        FileInfo a = createFileInfo("a.txt", 0);
+        journal.stored(list(a));
+        assertTrue(journal.rotate());
+        // Change after snapshot copy has been taken
+        journal.stored(list(version(a, 1)));
+        assertTrue(journal.flush());
+
+        // Crash before new snapshot written: Both are replayed in order.
+        RecordingHandler handler = new RecordingHandler();
+        assertEquals(2, new FolderDBJournal(dir, DB_NAME, 25).replay(handler));
+        assertEquals(1, handler.state.get("a.txt").getVersion());
+
+        journal.compacted();
+        handler = new RecordingHandler();
+        assertEquals(1, new FolderDBJournal(dir, DB_NAME, 25).replay(handler));
+        assertEquals(1, handler.state.get("a.txt").getVersion());
+        assertFalse(new File(dir, DB_NAME + FolderDBJournal.COMPACTING_SUFFIX)
+            .exists());
+    }
+
+    public void testCompactionRecommended() {
+        FolderDBJournal journal = new FolderDBJournal(dir, DB_NAME, 25);
+        List<FileInfo> changes = new ArrayList<FileInfo>();
+        for (int i = 0; i < 6000; i++) {
+            changes.add(createFileInfo("file-" + i, 0));
+        }
+        journal.stored(changes);
+        assertFalse(journal.isCompactionRecommended(100000));
+        assertTrue(journal.isCompactionRecommended(20000));
+        journal.clear();
+        assertFalse(journal.isCompactionRecommended(0));
+    }
+
+    private static List<FileInfo> list(FileInfo... fInfos) {
+        List<FileInfo> list = new ArrayList<FileInfo>();
+        Collections.addAll(list, fInfos);
+        return list;
+    }
+
+    private static FileInfo createFileInfo(String name, int version) {
+        FolderInfo foInfo = new FolderInfo("Journal test", "FOLDERID")
+            .intern();
+        MemberInfo mInfo = new MemberInfo(IdGenerator.makeId(),
+            IdGenerator.makeId(), IdGenerator.makeId());
+        return FileInfoFactory.unmarshallExistingFile(foInfo, name, 100, mInfo,
+            new Date(), version, false);
+    }
+
+    private static FileInfo version(FileInfo fInfo, int version) {
+        return FileInfoFactory.unmarshallExistingFile(fInfo.getFolderInfo(),
+            fInfo.getRelativeName(), fInfo.getSize(), fInfo.getModifiedBy(),
+            fInfo.getModifiedDate(), version, fInfo.isDiretory());
+    }
+
+    private static class RecordingHandler implements
+        FolderDBJournal.ReplayHandler
+    {
+        private final Map<String, FileInfo> state = new LinkedHashMap<String, FileInfo>();
+        private Date lastScan;
+
+        public void stored(FileInfo fInfo) {
+            state.put(fInfo.getRelativeName(), fInfo);
+        }
+
+        public void deleted(FileInfo fInfo) {
+            state.remove(fInfo.getRelativeName());
+        }
+
+        public void lastScan(Date date) {
+            lastScan = date;
+        }
+    }
+}
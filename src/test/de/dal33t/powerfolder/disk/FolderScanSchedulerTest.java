@@ -0,0 +1,49 @@
+/*
+ * Copyright 2004 - 2013 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+import de.dal33t.powerfolder.util.os.OSUtil;
+
+public class FolderScanSchedulerTest extends TestCase {
+
+    public void testDeviceKey() {
+        if (OSUtil.isWindowsSystem()) {
+            assertEquals("c:", key("C:\\Users\\bob\\PowerFolders\\a"));
+            assertEquals("d:", key("D:\\Data"));
+            assertEquals("//server/share", key("\\\\server\\share\\dir\\b"));
+            return;
+        }
+        assertEquals("/", key("/home/bob/PowerFolders/a"));
+        assertEquals("/", key("/var/data"));
+        assertEquals("/media/bob/usb", key("/media/bob/usb/folder"));
+        assertEquals("/run/media/bob/usb", key("/run/media/bob/usb/folder"));
+        assertEquals("/mnt/disk2", key("/mnt/disk2/a/b"));
+        if (OSUtil.isMacOS()) {
+            assertEquals("/Volumes/Backup", key("/Volumes/Backup/a"));
+        }
+    }
+
+    private static String key(String path) {
+        return FolderScanScheduler.getDeviceKey(new File(path));
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2004 - 2013 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk;
+
+import java.text.Normalizer;
+
+import junit.framework.TestCase;
+
+/**
+ * #1531 / #1804: Tests the case folded names, by which
+ * {@link FolderScanner} finds known files with a different name case.
+ */
+public class FolderScannerFoldCaseTest extends TestCase {
+
+    public void testAscii() {
+        assertFolded("subdir/readme.txt", "SubDir/README.TXT");
+        assertNotFolded("subdir/readme.txt", "subdir/readme.txt2");
+        assertNotFolded("a/b", "a_b");
+    }
+
+    public void testUnicode() {
+        assertFolded("Übersicht.doc", "üBERSICHT.DOC");
+        assertFolded("Ελληνικά", "ΕΛΛΗΝΙΚΆ");
+        assertFolded("Кириллица", "кИРИЛЛИЦА");
+        // Final and normal sigma
+        assertFolded("ΟΔΟΣ", "οδος");
+        assertFolded("ΟΔΟΣ", "οδοσ");
+        // Kelvin sign and dotless i
+        assertFolded("\u212Aelvin", "kelvin");
+        assertFolded("ı", "I");
+        assertNotFolded("ä", "a");
+        assertNotFolded("ß", "ss");
+    }
+
+    public void testDecomposed() {
+        // Mac OS X returns decomposed names
+        String composed = "Müller/Äpfel.txt";
+        String decomposed = Normalizer.normalize(composed,
+            Normalizer.Form.NFD);
+        assertFalse(composed.equals(decomposed));
+        assertFolded(composed, decomposed);
+        assertFolded("mÜLLER/äPFEL.TXT", decomposed);
+    }
+
+    /**
+     * Two names with equal folded names must also be equal ignoring case, and
+     * the other way round. Checks all chars of the BMP, which are not changed
+     * by the normalization.
+     */
+    public void testSameAsEqualsIgnoreCase() {
+        for (char c = 0; c < Character.MIN_SURROGATE; c++) {
+            String s = String.valueOf(c);
+            if (!Normalizer.isNormalized(s, Normalizer.Form.NFC)) {
+                continue;
+            }
+            String folded = FolderScanner.foldCase(s);
+            assertTrue(s + " / " + folded, s.equalsIgnoreCase(folded));
+            char[] variants = {Character.toUpperCase(c),
+                Character.toLowerCase(c), Character.toTitleCase(c)};
+            for (char v : variants) {
+                String other = String.valueOf(v);
+                if (Normalizer.isNormalized(other, Normalizer.Form.NFC)) {
+                    assertEquals(s.equalsIgnoreCase(other), folded
+                        .equals(FolderScanner.foldCase(other)));
+                }
+            }
+        }
+    }
+
+    private static void assertFolded(String name, String otherName) {
+        assertEquals(FolderScanner.foldCase(name), FolderScanner
+            .foldCase(otherName));
+    }
+
+    private static void assertNotFolded(String name, String otherName) {
+        assertFalse(FolderScanner.foldCase(name).equals(
+            FolderScanner.foldCase(otherName)));
+    }
+}
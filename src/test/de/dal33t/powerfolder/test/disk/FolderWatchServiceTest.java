@@ -0,0 +1,87 @@
+/*
+ * Copyright 2004 - 2013 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.test.disk;
+
+import java.io.File;
+
+import de.dal33t.powerfolder.ConfigurationEntry;
+import de.dal33t.powerfolder.disk.FolderWatchService;
+import de.dal33t.powerfolder.disk.SyncProfile;
+import de.dal33t.powerfolder.util.test.ConditionWithMessage;
+import de.dal33t.powerfolder.util.test.ControllerTestCase;
+import de.dal33t.powerfolder.util.test.TestHelper;
+
+public class FolderWatchServiceTest extends ControllerTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        setupTestFolder(SyncProfile.MANUAL_SYNCHRONIZATION);
+        if (!FolderWatchService.isSupported()) {
+            return;
+        }
+        ConfigurationEntry.FOLDER_WATCHER_BACKEND.setValue(getController(),
+            "nio");
+        getController().setPaused(false);
+        getFolder().setSyncProfile(SyncProfile.AUTOMATIC_SYNCHRONIZATION);
+        scanFolder(getFolder());
+    }
+
+    public void testNewSubdirectories() {
+        if (!FolderWatchService.isSupported()) {
+            return;
+        }
+        assertTrue(getFolder().getFolderWatcher().isWatching());
+        // Created faster than registered
+        File dir = new File(getFolder().getLocalBase(), "a/b/c");
+        TestHelper.createRandomFile(dir);
+        TestHelper.createRandomFile(dir.getParentFile());
+        waitForKnownItems(5);
+
+        TestHelper.createRandomFile(dir);
+        waitForKnownItems(6);
+    }
+
+    public void testBurst() {
+        if (!FolderWatchService.isSupported()) {
+            return;
+        }
+        for (int i = 0; i < 20; i++) {
+            File dir = new File(getFolder().getLocalBase(), "dir-" + i);
+            for (int j = 0; j < 50; j++) {
+                TestHelper.createRandomFile(dir, 10);
+            }
+        }
+        waitForKnownItems(20 + 20 * 50);
+    }
+
+    private void waitForKnownItems(final int n) {
+        TestHelper.waitForCondition(30, new ConditionWithMessage() {
+            public boolean reached() {
+                return getFolder().getKnownItemCount() == n;
+            }
+
+            public String message() {
+                return "Known items: " + getFolder().getKnownItemCount()
+                    + ", expected: " + n;
+            }
+        });
+    }
+}
@@ -20,13 +20,19 @@
 package de.dal33t.powerfolder.test.folder;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
 
+import de.dal33t.powerfolder.ConfigurationEntry;
 import de.dal33t.powerfolder.Feature;
-import de.dal33t.powerfolder.disk.FolderScanner;
+import de.dal33t.powerfolder.disk.FolderScanScheduler;
 import de.dal33t.powerfolder.disk.ScanResult;
 import de.dal33t.powerfolder.disk.SyncProfile;
 import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.util.test.Condition;
 import de.dal33t.powerfolder.util.test.ControllerTestCase;
 import de.dal33t.powerfolder.util.test.TestHelper;
 import de.schlichtherle.truezip.file.TFile;
@@ -49,8 +55,8 @@ public class FolderScannerTest extends ControllerTestCase {
 
     public void testScanFiles() throws Exception {
         // getController().setPaused(true);
-        final FolderScanner folderScanner = getController()
-            .getFolderRepository().getFolderScanner();
+        final FolderScanScheduler folderScanner = getController()
+            .getFolderRepository().getFolderScanScheduler();
         // getController().setPaused(false);
 
         File file1 = TestHelper.createRandomFile(getFolder().getLocalBase());
@@ -123,7 +129,216 @@ public class FolderScannerTest extends ControllerTestCase {
         }
     }
 
-    private ScanResult scanFolderWaitIfBusy(final FolderScanner folderScanner) {
+    public void testScanAmbiguousMovement() {
+        if (Feature.CORRECT_MOVEMENT_DETECTION.isDisabled()) {
+            return;
+        }
+        FolderScanScheduler folderScanner = getController().getFolderRepository()
+            .getFolderScanScheduler();
+        File base = getFolder().getLocalBase();
+        File[] files = new File[3];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = TestHelper.createRandomFile(base, 100);
+            assertTrue(files[i].setLastModified(1300000000000L));
+        }
+        getFolder().setSyncProfile(SyncProfile.HOST_FILES);
+        scanFolder(getFolder());
+        assertEquals(3, getFolder().getKnownItemCount());
+
+        // Same name in other directory: Unique movement
+        File moved = new File(base, "moved/" + files[0].getName());
+        moved.getParentFile().mkdirs();
+        assertTrue(files[0].renameTo(moved));
+        // Other name in other directory: Not distinguishable
+        File other1 = new File(base, "other1/a.bin");
+        other1.getParentFile().mkdirs();
+        assertTrue(files[1].renameTo(other1));
+        File other2 = new File(base, "other2/b.bin");
+        other2.getParentFile().mkdirs();
+        assertTrue(files[2].renameTo(other2));
+
+        ScanResult result = scanFolderWaitIfBusy(folderScanner);
+        assertEquals(ScanResult.ResultState.SCANNED, result.getResultState());
+        assertEquals(1, result.getMovedFiles().size());
+        FileInfo target = result.getMovedFiles().values().iterator().next();
+        assertEquals("moved/" + files[0].getName(), target.getRelativeName());
+        assertEquals(2, result.getAmbiguousMovedFiles().size());
+        for (Collection<FileInfo> targets : result.getAmbiguousMovedFiles()
+            .values())
+        {
+            assertEquals(2, targets.size());
+        }
+    }
+
+    public void testScanAmbiguousMovementByContent() {
+        if (Feature.CORRECT_MOVEMENT_DETECTION.isDisabled()) {
+            return;
+        }
+        ConfigurationEntry.FOLDER_SCAN_HASH.setValue(getController(), true);
+        FolderScanScheduler folderScanner = getController()
+            .getFolderRepository().getFolderScanScheduler();
+        File base = getFolder().getLocalBase();
+        File[] files = new File[2];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = TestHelper.createRandomFile(base, 100);
+            assertTrue(files[i].setLastModified(1300000000000L));
+        }
+        scanFolder(getFolder());
+        assertEquals(2, getFolder().getKnownItemCount());
+        TestHelper.waitForCondition(10, new Condition() {
+            public boolean reached() {
+                return getFolder().getContentHashes().size() == 2;
+            }
+        });
+
+        // Moved like by the user, keeping the inode.
+        File other1 = new File(base, "other1/a.bin");
+        other1.getParentFile().mkdirs();
+        assertTrue(new File(files[0].getPath()).renameTo(other1));
+        File other2 = new File(base, "other2/b.bin");
+        other2.getParentFile().mkdirs();
+        assertTrue(new File(files[1].getPath()).renameTo(other2));
+
+        ScanResult result = scanFolderWaitIfBusy(folderScanner);
+        assertEquals(ScanResult.ResultState.SCANNED, result.getResultState());
+        assertEquals(2, result.getMovedFiles().size());
+        assertEquals(0, result.getAmbiguousMovedFiles().size());
+        for (Map.Entry<FileInfo, FileInfo> move : result.getMovedFiles()
+            .entrySet())
+        {
+            String expected = move.getKey().getFilenameOnly()
+                .equals(files[0].getName()) ? "other1/a.bin" : "other2/b.bin";
+            assertEquals(expected, move.getValue().getRelativeName());
+        }
+    }
+
+    public void testScanWideTreeParallel() {
+        ConfigurationEntry.FOLDER_SCAN_THREADS.setValue(getController(), 4);
+        assertScanTree(20, 10, 5);
+    }
+
+    /**
+     * More than one adaption interval: Crawlers get started during the scan.
+     */
+    public void testScanLargeTreeAdaptive() {
+        ConfigurationEntry.FOLDER_SCAN_THREADS.setValue(getController(), 8);
+        assertScanTree(40, 10, 12);
+    }
+
+    private void assertScanTree(int nTopDirs, int nSubDirs, int nFilesPerDir)
+    {
+        FolderScanScheduler folderScanner = getController().getFolderRepository()
+            .getFolderScanScheduler();
+        int nDirs = 0;
+        int nFiles = 0;
+        for (int i = 0; i < nTopDirs; i++) {
+            File dir = new File(getFolder().getLocalBase(), "dir-" + i);
+            nDirs++;
+            for (int j = 0; j < nSubDirs; j++) {
+                File subDir = new File(dir, "sub-" + j);
+                nDirs++;
+                for (int k = 0; k < nFilesPerDir; k++) {
+                    TestHelper.createRandomFile(subDir, 10);
+                    nFiles++;
+                }
+            }
+        }
+
+        ScanResult result = scanFolderWaitIfBusy(folderScanner);
+        assertEquals(ScanResult.ResultState.SCANNED, result.getResultState());
+        assertEquals(nDirs + nFiles, result.getTotalFilesCount());
+        assertEquals(nDirs + nFiles, result.getNewFiles().size());
+        assertEquals(nDirs + nFiles, new HashSet<FileInfo>(result
+            .getNewFiles()).size());
+    }
+
+    public void testIncrementalScan() {
+        ConfigurationEntry.FOLDER_SCAN_INCREMENTAL.setValue(getController(),
+            true);
+        FolderScanScheduler folderScanner = getController()
+            .getFolderRepository().getFolderScanScheduler();
+        File base = getFolder().getLocalBase();
+        File file1 = TestHelper.createRandomFile(new File(base, "a/b"));
+        TestHelper.createRandomFile(new File(base, "c"));
+        scanFolder(getFolder());
+        // a, a/b, c + 2 files
+        assertEquals(5, getFolder().getKnownItemCount());
+        // base, a, a/b, c
+        assertEquals(4, getFolder().getDirectoryStamps().size());
+
+        // Changing the contents does not touch the directory
+        TestHelper.waitMilliSeconds(2000);
+        TestHelper.changeFile(file1);
+        TestHelper.createRandomFile(new File(base, "c"));
+        ScanResult result = scanFolderWaitIfBusy(folderScanner);
+        assertEquals(ScanResult.ResultState.SCANNED, result.getResultState());
+        assertFalse(result.isFullScan());
+        assertEquals(1, result.getNewFiles().size());
+        assertEquals(0, result.getChangedFiles().size());
+        assertEquals(0, result.getDeletedFiles().size());
+
+        // Full scan detects it
+        getFolder().getDirectoryStamps().requestFullScan();
+        result = scanFolderWaitIfBusy(folderScanner);
+        assertEquals(ScanResult.ResultState.SCANNED, result.getResultState());
+        assertTrue(result.isFullScan());
+        assertEquals(1, result.getChangedFiles().size());
+        assertEquals(0, result.getDeletedFiles().size());
+    }
+
+    public void testScanRenamedCase() {
+        FolderScanScheduler folderScanner = getController()
+            .getFolderRepository().getFolderScanScheduler();
+        // #1531 / #1804: Like on Windows and Mac OS X
+        folderScanner.setIgnoreCase(true);
+        File base = getFolder().getLocalBase();
+        File file = TestHelper.createRandomFile(base, "report.txt");
+        scanFolder(getFolder());
+        assertEquals(1, getFolder().getKnownItemCount());
+
+        // Same file, renamed and changed
+        File renamed = new File(base, "REPORT.txt");
+        assertTrue(file.renameTo(renamed));
+        TestHelper.changeFile(renamed);
+        ScanResult result = scanFolderWaitIfBusy(folderScanner);
+        assertEquals(ScanResult.ResultState.SCANNED, result.getResultState());
+        assertEquals(result.toString(), 1, result.getChangedFiles().size());
+        assertEquals(result.toString(), 0, result.getNewFiles().size());
+        assertEquals(result.toString(), 0, result.getDeletedFiles().size());
+    }
+
+    public void testScanRenamedNormalization() throws IOException {
+        FolderScanScheduler folderScanner = getController()
+            .getFolderRepository().getFolderScanScheduler();
+        folderScanner.setIgnoreCase(true);
+        File base = getFolder().getLocalBase();
+        // e with acute accent, composed (NFC) and decomposed (NFD)
+        String composed = "caf\u00e9.txt";
+        String decomposed = "cafe\u0301.txt";
+        File probe = new File(base, composed);
+        assertTrue(probe.createNewFile());
+        boolean unicodeNames = Arrays.asList(base.list()).contains(composed);
+        assertTrue(probe.delete());
+        if (!unicodeNames) {
+            // File names not unicode capable (file.encoding / locale)
+            return;
+        }
+        File file = TestHelper.createRandomFile(base, composed);
+        scanFolder(getFolder());
+        assertEquals(1, getFolder().getKnownItemCount());
+
+        // Like Mac OS X stores names
+        File renamed = new File(base, decomposed);
+        assertTrue(file.renameTo(renamed));
+        TestHelper.changeFile(renamed);
+        ScanResult result = scanFolderWaitIfBusy(folderScanner);
+        assertEquals(ScanResult.ResultState.SCANNED, result.getResultState());
+        assertEquals(result.toString(), 1, result.getChangedFiles().size());
+        assertEquals(result.toString(), 0, result.getNewFiles().size());
+        assertEquals(result.toString(), 0, result.getDeletedFiles().size());
+    }
+
+    private ScanResult scanFolderWaitIfBusy(final FolderScanScheduler folderScanner) {
         ScanResult result;
         boolean scannerBusy;
         do {
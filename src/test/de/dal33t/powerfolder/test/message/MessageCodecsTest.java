@@ -0,0 +1,290 @@
+/*
+ * Copyright 2004 - 2013 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.test.message;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import de.dal33t.powerfolder.disk.DiskItemFilter;
+import de.dal33t.powerfolder.light.DirectoryInfo;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FileInfoFactory;
+import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.light.MemberInfo;
+import de.dal33t.powerfolder.message.FileChunk;
+import de.dal33t.powerfolder.message.FileChunkExt;
+import de.dal33t.powerfolder.message.FileList;
+import de.dal33t.powerfolder.message.FileListExt;
+import de.dal33t.powerfolder.message.FolderFilesChanged;
+import de.dal33t.powerfolder.message.FolderFilesChangedExt;
+import de.dal33t.powerfolder.message.Message;
+import de.dal33t.powerfolder.message.MessageCodecs;
+import de.dal33t.powerfolder.message.Ping;
+import de.dal33t.powerfolder.message.Pong;
+import de.dal33t.powerfolder.message.RequestPart;
+import de.dal33t.powerfolder.message.RequestPartExt;
+import de.dal33t.powerfolder.util.ByteSerializer;
+import de.dal33t.powerfolder.util.IdGenerator;
+import de.dal33t.powerfolder.util.Range;
+
+/**
+ * Tests the binary codecs of messages against the serialized form.
+ */
+public class MessageCodecsTest extends TestCase {
+
+    private final Random random = new Random(4711);
+    private final FolderInfo folder = new FolderInfo("Test folder",
+        IdGenerator.makeId());
+    private final MemberInfo member = new MemberInfo("Tester",
+        IdGenerator.makeId(), null);
+
+    private MessageCodecs sender;
+    private MessageCodecs receiver;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        sender = new MessageCodecs();
+        receiver = new MessageCodecs();
+    }
+
+    public void testPingPong() throws Exception {
+        Ping ping = new Ping(100);
+        Ping ping2 = (Ping) roundTrip(ping);
+        assertEquals(ping.id, ping2.id);
+        Pong pong = (Pong) roundTrip(new Pong(ping2));
+        assertEquals(ping.id, pong.id);
+        assertEquals(Ping.class, roundTrip(new Ping()).getClass());
+    }
+
+    public void testFileChunk() throws Exception {
+        byte[] data = new byte[1000];
+        random.nextBytes(data);
+        FileInfo file = createFile("chunked.bin", false);
+        for (FileChunk chunk : new FileChunk[]{
+            new FileChunk(file, 4096, data),
+            new FileChunkExt(file, 4096, data)})
+        {
+            FileChunk chunk2 = (FileChunk) roundTrip(chunk);
+            assertEquals(chunk.getClass(), chunk2.getClass());
+            assertFileEquals(file, chunk2.file);
+            assertEquals(4096, chunk2.offset);
+            assertTrue(Arrays.equals(data, chunk2.data));
+        }
+    }
+
+    public void testRequestPart() throws Exception {
+        FileInfo file = FileInfoFactory.unmarshallExistingFile(folder,
+            "requested.bin", 1L << 34, member, new Date(), 1, false);
+        Range range = Range.getRangeByLength(1L << 33, 32768);
+        for (RequestPart request : new RequestPart[]{
+            new RequestPart(file, range, 0.5),
+            new RequestPartExt(file, range, 0.5)})
+        {
+            RequestPart request2 = (RequestPart) roundTrip(request);
+            assertEquals(request.getClass(), request2.getClass());
+            assertEquals(request, request2);
+            assertFileEquals(file, request2.getFile());
+            assertEquals(range, request2.getRange());
+            assertEquals(0.5, request2.getProgress(), 0);
+        }
+    }
+
+    public void testFileList() throws Exception {
+        List<FileInfo> files = new ArrayList<FileInfo>();
+        files.add(createFile("deleted.txt", true));
+        files.add(createFile("dir/some file.txt", false));
+        files.add(FileInfoFactory.unmarshallExistingFile(folder, "dir", 0,
+            member, new Date(), 2, true));
+        FileList list = (FileList) FileList.create4Test(folder, files,
+            new DiskItemFilter())[0];
+        FileList list2 = (FileList) roundTrip(list);
+        assertEquals(FileListExt.class, list2.getClass());
+        assertEquals(folder, list2.folder);
+        assertEquals(list.nFollowingDeltas, list2.nFollowingDeltas);
+        assertEquals(list.files.length, list2.files.length);
+        for (int i = 0; i < list.files.length; i++) {
+            assertFileEquals(list.files[i], list2.files[i]);
+        }
+        assertTrue(list2.files[2] instanceof DirectoryInfo);
+
+        for (boolean useExt : new boolean[]{false, true}) {
+            FileList empty = (FileList) roundTrip(FileList.createEmpty(
+                folder, useExt));
+            assertEquals(useExt ? FileListExt.class : FileList.class, empty
+                .getClass());
+            assertEquals(folder, empty.folder);
+        }
+    }
+
+    public void testFolderFilesChanged() throws Exception {
+        FileInfo file = createFile("changed.txt", false);
+        for (FolderFilesChanged changes : new FolderFilesChanged[]{
+            FolderFilesChanged.create(file, false),
+            FolderFilesChanged.create(file, true)})
+        {
+            FolderFilesChanged changes2 = (FolderFilesChanged) roundTrip(
+                changes);
+            assertEquals(changes.getClass(), changes2.getClass());
+            assertEquals(folder, changes2.folder);
+            assertEquals(1, changes2.getFiles().length);
+            assertFileEquals(file, changes2.getFiles()[0]);
+        }
+        assertEquals(FolderFilesChangedExt.class, FolderFilesChanged.create(
+            file, true).getClass());
+    }
+
+    /**
+     * Folder and member get referenced after their first occurrence.
+     */
+    public void testReferences() throws Exception {
+        Message[] lists = createFileList(500);
+        FileList list = (FileList) lists[0];
+        byte[] first = sender.encode(list);
+        byte[] second = sender.encode(list);
+        assertTrue(second.length < first.length);
+        assertNotNull(receiver.decode(first, first.length));
+        FileList list2 = (FileList) receiver.decode(second, second.length);
+        for (int i = 0; i < list.files.length; i++) {
+            assertFileEquals(list.files[i], list2.files[i]);
+        }
+        // The receiver shares the instances
+        assertSame(list2.files[0].getFolderInfo(), list2.files[1]
+            .getFolderInfo());
+        assertSame(list2.files[0].getModifiedBy(), list2.files[1]
+            .getModifiedBy());
+
+        // Out of sync: Reference unknown to a new receiver
+        try {
+            new MessageCodecs().decode(second, second.length);
+            fail("Unknown reference decoded");
+        } catch (IOException e) {
+            // OK
+        }
+    }
+
+    public void testNotEncoded() throws Exception {
+        // Not registered
+        assertNull(sender.encode(new UnknownMessage()));
+        // Lookup instances carry no version
+        FileInfo lookup = FileInfoFactory.lookupInstance(folder, "lookup");
+        assertNull(sender.encode(FolderFilesChanged.create(lookup, true)));
+
+        byte[] serialized = ByteSerializer.serializeStatic(new Ping(10),
+            false);
+        assertFalse(MessageCodecs.isEncoded(serialized, serialized.length));
+        assertFalse(MessageCodecs.isEncoded(new byte[0], 0));
+    }
+
+    public void testCorruptData() throws Exception {
+        byte[] data = sender.encode(new FileChunk(createFile("chunk", false),
+            0, new byte[100]));
+        assertTrue(MessageCodecs.isEncoded(data, data.length));
+        assertDecodeFails(Arrays.copyOf(data, data.length - 1));
+        assertDecodeFails(Arrays.copyOf(data, data.length + 1));
+        byte[] unknownType = data.clone();
+        unknownType[1] = 127;
+        assertDecodeFails(unknownType);
+    }
+
+    /**
+     * Compares the sizes of encoded and serialized messages.
+     */
+    public void testSize() throws Exception {
+        Message[] messages = createFileList(1000);
+        long encoded = 0;
+        long serialized = 0;
+        for (Message message : messages) {
+            encoded += sender.encode(message).length;
+            serialized += ByteSerializer.serializeStatic(message, false).length;
+        }
+        assertTrue("Encoded " + encoded + " bytes, serialized " + serialized
+            + " bytes", encoded * 2 < serialized);
+
+        FileChunk chunk = new FileChunk(createFile("chunk", false), 0,
+            new byte[32768]);
+        int chunkEncoded = sender.encode(chunk).length;
+        int chunkSerialized = ByteSerializer.serializeStatic(chunk, false)
+            .length;
+        assertTrue("Encoded " + chunkEncoded + " bytes, serialized "
+            + chunkSerialized + " bytes", chunkEncoded < chunkSerialized);
+    }
+
+    // Helper *****************************************************************
+
+    private Message roundTrip(Message message) throws IOException {
+        byte[] data = sender.encode(message);
+        assertNotNull("Not encoded: " + message, data);
+        assertTrue(MessageCodecs.isEncoded(data, data.length));
+        // Trailing bytes of the buffer are ignored
+        byte[] buf = Arrays.copyOf(data, data.length + 10);
+        Message decoded = receiver.decode(buf, data.length);
+        assertNotNull(decoded);
+        return decoded;
+    }
+
+    private void assertDecodeFails(byte[] data) {
+        try {
+            new MessageCodecs().decode(data, data.length);
+            fail("Corrupt data decoded");
+        } catch (IOException e) {
+            // OK
+        }
+    }
+
+    private void assertFileEquals(FileInfo expected, FileInfo actual) {
+        assertEquals(expected, actual);
+        assertEquals(expected.getClass(), actual.getClass());
+        assertTrue(expected.isVersionDateAndSizeIdentical(actual));
+        assertEquals(expected.isDeleted(), actual.isDeleted());
+        assertEquals(expected.getModifiedBy(), actual.getModifiedBy());
+        assertEquals(expected.getModifiedDate(), actual.getModifiedDate());
+    }
+
+    private FileInfo createFile(String fn, boolean deleted) {
+        if (deleted) {
+            return FileInfoFactory.unmarshallDeletedFile(folder, fn, member,
+                new Date(1300000000000L), 3, false);
+        }
+        return FileInfoFactory.unmarshallExistingFile(folder, fn, random
+            .nextInt(10000000), member, new Date(1300000000000L + random
+            .nextInt()), 1, false);
+    }
+
+    private Message[] createFileList(int nFiles) {
+        List<FileInfo> files = new ArrayList<FileInfo>();
+        for (int i = 0; i < nFiles; i++) {
+            String fn = "dir-" + random.nextInt(20) + "/sub-"
+                + random.nextInt(10) + "/document " + random.nextInt(100000)
+                + ".doc";
+            files.add(createFile(fn, i % 10 == 0));
+        }
+        return FileList.create4Test(folder, files, new DiskItemFilter());
+    }
+
+    private static class UnknownMessage extends Message {
+        private static final long serialVersionUID = 1L;
+    }
+}
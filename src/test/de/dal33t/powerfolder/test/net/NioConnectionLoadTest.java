@@ -0,0 +1,301 @@
+/*
+ * Copyright 2004 - 2013 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.test.net;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.dal33t.powerfolder.ConfigurationEntry;
+import de.dal33t.powerfolder.message.Message;
+import de.dal33t.powerfolder.message.Pong;
+import de.dal33t.powerfolder.net.AbstractSocketConnectionHandler;
+import de.dal33t.powerfolder.net.ConnectionHandler;
+import de.dal33t.powerfolder.net.NioSocketConnectionHandler;
+import de.dal33t.powerfolder.util.ByteSerializer;
+import de.dal33t.powerfolder.util.TransferCounter;
+import de.dal33t.powerfolder.util.test.Condition;
+import de.dal33t.powerfolder.util.test.ControllerTestCase;
+import de.dal33t.powerfolder.util.test.TestHelper;
+
+/**
+ * Tests non-blocking connections over loopback. The load test with many
+ * connections only runs if the number of connections is given by the system
+ * property <code>nio.loadtest.connections</code>, e.g. 500.
+ */
+public class NioConnectionLoadTest extends ControllerTestCase {
+
+    private static final int CONNECTIONS = Integer.getInteger(
+        "nio.loadtest.connections", 0);
+
+    private ServerSocketChannel server;
+    private List<ConnectionHandler> handlers = new ArrayList<ConnectionHandler>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        ConfigurationEntry.NET_NIO_ENABLED.setValue(getController(), true);
+        server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (ConnectionHandler handler : handlers) {
+            handler.shutdown();
+        }
+        server.close();
+        super.tearDown();
+    }
+
+    public void testManyConnections() throws Exception {
+        if (CONNECTIONS <= 0) {
+            // Load test not enabled
+            return;
+        }
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        int threadsBefore = threadBean.getThreadCount();
+
+        connect(CONNECTIONS / 2);
+        for (ConnectionHandler handler : handlers) {
+            assertTrue(handler instanceof NioSocketConnectionHandler);
+            assertTrue(handler.isConnected());
+        }
+
+        int threads = threadBean.getThreadCount() - threadsBefore;
+        assertEquals(handlers.size(), getController().getIOProvider()
+            .getSocketSelector().getConnectionCount());
+        // A blocking connection takes one thread for receiving alone
+        assertTrue("Too many threads: " + threads, threads < handlers.size() / 4);
+
+        // Every connection sends some packets
+        final TransferCounter sent = getController().getTransferManager()
+            .getTotalUploadTrafficCounter();
+        final TransferCounter received = getController().getTransferManager()
+            .getTotalDownloadTrafficCounter();
+        long sentBefore = sent.getBytesTransferred();
+        for (int i = 0; i < 10; i++) {
+            for (ConnectionHandler handler : handlers) {
+                handler.sendMessage(new Pong());
+            }
+        }
+        assertTrue(sent.getBytesTransferred() > sentBefore);
+        TestHelper.waitForCondition(30, new Condition() {
+            public boolean reached() {
+                return received.getBytesTransferred() == sent
+                    .getBytesTransferred();
+            }
+        });
+        for (ConnectionHandler handler : handlers) {
+            assertTrue(handler.isConnected());
+        }
+    }
+
+    public void testKeptSerialization() throws Exception {
+        connect(10);
+        final TransferCounter sent = getController().getTransferManager()
+            .getTotalUploadTrafficCounter();
+        final TransferCounter received = getController().getTransferManager()
+            .getTotalDownloadTrafficCounter();
+        CountingPong pong = new CountingPong();
+        Message.keepSerialized(pong);
+        for (ConnectionHandler handler : handlers) {
+            handler.sendMessagesAsynchron(pong);
+        }
+        TestHelper.waitForCondition(30, new Condition() {
+            public boolean reached() {
+                return received.getBytesTransferred() == sent
+                    .getBytesTransferred();
+            }
+        });
+        // All connections use the same compression
+        assertEquals(1, CountingPong.SERIALIZED.get());
+        for (ConnectionHandler handler : handlers) {
+            assertTrue(handler.isConnected());
+        }
+    }
+
+    public void testCoalescedSending() throws Exception {
+        ConfigurationEntry.NET_SEND_COALESCE_DELAY.setValue(getController(),
+            100);
+        connect(1);
+        assertCoalesced((AbstractSocketConnectionHandler) handlers.get(0));
+    }
+
+    public void testCoalescedSendingBlocking() throws Exception {
+        ConfigurationEntry.NET_NIO_ENABLED.setValue(getController(), false);
+        ConfigurationEntry.NET_SEND_COALESCE_DELAY.setValue(getController(),
+            100);
+        connect(1);
+        assertFalse(handlers.get(0) instanceof NioSocketConnectionHandler);
+        assertCoalesced((AbstractSocketConnectionHandler) handlers.get(0));
+    }
+
+    private void assertCoalesced(final AbstractSocketConnectionHandler handler)
+    {
+        final TransferCounter sent = getController().getTransferManager()
+            .getTotalUploadTrafficCounter();
+        final TransferCounter received = getController().getTransferManager()
+            .getTotalDownloadTrafficCounter();
+        final long frames = handler.getFramesSent();
+        long writes = handler.getWrites();
+        for (int i = 0; i < 100; i++) {
+            handler.sendMessagesAsynchron(new Pong());
+        }
+        TestHelper.waitForCondition(30, new Condition() {
+            public boolean reached() {
+                return handler.getFramesSent() == frames + 100
+                    && received.getBytesTransferred() == sent
+                        .getBytesTransferred();
+            }
+        });
+        // Sent together after the delay
+        assertTrue("Packets written in " + (handler.getWrites() - writes)
+            + " writes", handler.getWrites() - writes <= 10);
+        assertTrue(handler.isConnected());
+    }
+
+    public void testStreamCompression() throws Exception {
+        // Loopback is on LAN
+        ConfigurationEntry.USE_ZIP_ON_LAN.setValue(getController(), true);
+        connect(2);
+        for (ConnectionHandler handler : handlers) {
+            assertTrue(handler.getIdentity().isSupportsStreamCompression());
+        }
+        final TransferCounter sent = getController().getTransferManager()
+            .getTotalUploadTrafficCounter();
+        final TransferCounter received = getController().getTransferManager()
+            .getTotalDownloadTrafficCounter();
+        long sentBefore = sent.getBytesTransferred();
+        CountingPong kept = new CountingPong();
+        Message.keepSerialized(kept);
+        for (int i = 0; i < 100; i++) {
+            for (ConnectionHandler handler : handlers) {
+                handler.sendMessagesAsynchron(new Pong(), kept);
+            }
+        }
+        TestHelper.waitForCondition(30, new Condition() {
+            public boolean reached() {
+                return received.getBytesTransferred() == sent
+                    .getBytesTransferred();
+            }
+        });
+        for (ConnectionHandler handler : handlers) {
+            assertTrue(handler.isConnected());
+        }
+        // Each GZIP stream alone takes more
+        long perMessage = (sent.getBytesTransferred() - sentBefore)
+            / (2 * 100 * handlers.size());
+        int gzipped = ByteSerializer.serializeStatic(new Pong(), true).length;
+        assertTrue(perMessage + " bytes per pong", perMessage < gzipped / 2);
+    }
+
+    public void testMessageCodecs() throws Exception {
+        ConfigurationEntry.USE_ZIP_ON_LAN.setValue(getController(), false);
+        connect(2);
+        for (ConnectionHandler handler : handlers) {
+            assertTrue(handler.getIdentity().isSupportsMessageCodecs());
+        }
+        final TransferCounter sent = getController().getTransferManager()
+            .getTotalUploadTrafficCounter();
+        final TransferCounter received = getController().getTransferManager()
+            .getTotalDownloadTrafficCounter();
+        long sentBefore = sent.getBytesTransferred();
+        // The handlers have no member: Only pongs get accepted. Kept
+        // messages are serialized, not encoded, on the same connection.
+        Pong kept = new Pong();
+        Message.keepSerialized(kept);
+        for (int i = 0; i < 100; i++) {
+            for (ConnectionHandler handler : handlers) {
+                handler.sendMessagesAsynchron(new Pong(), kept);
+            }
+        }
+        TestHelper.waitForCondition(30, new Condition() {
+            public boolean reached() {
+                return received.getBytesTransferred() == sent
+                    .getBytesTransferred();
+            }
+        });
+        for (ConnectionHandler handler : handlers) {
+            assertTrue(handler.isConnected());
+        }
+        long perPair = (sent.getBytesTransferred() - sentBefore)
+            / (100 * handlers.size());
+        int serialized = ByteSerializer.serializeStatic(new Pong(), false)
+            .length;
+        // The encoded pong takes less than half of the serialized one
+        assertTrue(perPair + " bytes per encoded and serialized pong",
+            perPair < serialized + serialized / 2);
+    }
+
+    /**
+     * Connects the given number of pairs of connections over loopback.
+     */
+    private void connect(int pairs) throws Exception {
+        ExecutorService initPool = Executors.newFixedThreadPool(16);
+        List<Future<ConnectionHandler>> futures = new ArrayList<Future<ConnectionHandler>>();
+        for (int i = 0; i < pairs; i++) {
+            SocketChannel client = SocketChannel.open(server.socket()
+                .getLocalSocketAddress());
+            SocketChannel accepted = server.accept();
+            futures.add(initPool.submit(init(client.socket())));
+            futures.add(initPool.submit(init(accepted.socket())));
+        }
+        for (Future<ConnectionHandler> future : futures) {
+            handlers.add(future.get());
+        }
+        initPool.shutdown();
+    }
+
+    private Callable<ConnectionHandler> init(final Socket socket) {
+        return new Callable<ConnectionHandler>() {
+            public ConnectionHandler call() throws Exception {
+                return getController().getIOProvider()
+                    .getConnectionHandlerFactory()
+                    .createAndInitSocketConnectionHandler(socket);
+            }
+        };
+    }
+
+    /**
+     * Counts its serializations. Ignored by the receiving side like any pong.
+     */
+    private static class CountingPong extends Pong {
+        private static final long serialVersionUID = 100L;
+        private static final AtomicInteger SERIALIZED = new AtomicInteger();
+
+        private void writeObject(ObjectOutputStream out) throws IOException {
+            SERIALIZED.incrementAndGet();
+            out.defaultWriteObject();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2004 - 2013 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.test.transfer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.dal33t.powerfolder.ConfigurationEntry;
+import de.dal33t.powerfolder.disk.SyncProfile;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.transfer.swarm.CachingFileRecordProvider;
+import de.dal33t.powerfolder.util.ProgressListener;
+import de.dal33t.powerfolder.util.delta.ChunkRecord;
+import de.dal33t.powerfolder.util.delta.FilePartsRecord;
+import de.dal33t.powerfolder.util.test.ControllerTestCase;
+import de.dal33t.powerfolder.util.test.TestHelper;
+
+public class FileRecordProviderTest extends ControllerTestCase {
+
+    private CachingFileRecordProvider provider;
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        setupTestFolder(SyncProfile.HOST_FILES);
+        ConfigurationEntry.DELTA_RECORD_CACHE_MB.setValue(getController(), 16);
+        provider = new CachingFileRecordProvider(getController());
+        file = TestHelper.createRandomFile(getFolder().getLocalBase(),
+            2 * 1024 * 1024);
+        scanFolder(getFolder());
+    }
+
+    public void testStoredRecord() throws IOException {
+        FileInfo fInfo = getFolder().getKnownFiles().iterator().next();
+        FilePartsRecord record = provider.retrieveRecord(fInfo, null);
+        File[] records = getRecordsDir().listFiles();
+        assertEquals(1, records.length);
+
+        // Not read again
+        final AtomicInteger progress = new AtomicInteger();
+        assertEquals(record, provider.retrieveRecord(fInfo,
+            new ProgressListener() {
+                public void progressReached(double percentageReached) {
+                    progress.incrementAndGet();
+                }
+            }));
+        assertEquals(0, progress.get());
+
+        // Changed
+        TestHelper.waitMilliSeconds(1500);
+        TestHelper.changeFile(file, 3 * 1024 * 1024);
+        scanFolder(getFolder());
+        FileInfo changed = getFolder().getKnownFiles().iterator().next();
+        assertEquals(1, changed.getVersion());
+        FilePartsRecord newRecord = provider.retrieveRecord(changed, null);
+        assertFalse(record.equals(newRecord));
+        assertEquals(3 * 1024 * 1024, newRecord.getFileLength());
+        assertEquals(1, getRecordsDir().listFiles().length);
+    }
+
+    public void testConcurrentRequests() throws Exception {
+        final FileInfo fInfo = getFolder().getKnownFiles().iterator().next();
+        final FilePartsRecord[] results = new FilePartsRecord[4];
+        Thread[] threads = new Thread[results.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int n = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        results[n] = provider.retrieveRecord(fInfo, null);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (FilePartsRecord result : results) {
+            assertNotNull(result);
+            assertEquals(results[0], result);
+        }
+    }
+
+    public void testConcurrentStore() throws Exception {
+        final FileInfo fInfo = getFolder().getKnownFiles().iterator().next();
+        final ChunkRecord record = provider.retrieveChunkRecord(fInfo, 4096,
+            null);
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < 10; j++) {
+                        provider.storeChunkRecord(fInfo, record);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        File[] records = getRecordsDir().listFiles();
+        assertEquals(1, records.length);
+        assertTrue(records[0].getName().endsWith(".chunks"));
+        assertEquals(record, provider.retrieveChunkRecord(fInfo, 4096,
+            new ProgressListener() {
+                public void progressReached(double percentageReached) {
+                    fail("Stored chunk record not used");
+                }
+            }));
+    }
+
+    private File getRecordsDir() {
+        return new File(getFolder().getSystemSubDir(),
+            CachingFileRecordProvider.RECORDS_DIR);
+    }
+}
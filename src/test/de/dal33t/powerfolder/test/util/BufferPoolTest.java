@@ -0,0 +1,58 @@
+/*
+ * Copyright 2004 - 2013 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.test.util;
+
+import junit.framework.TestCase;
+import de.dal33t.powerfolder.util.BufferPool;
+
+public class BufferPoolTest extends TestCase {
+
+    public void testReuse() {
+        BufferPool pool = new BufferPool(2, 1024);
+        byte[] a = pool.acquire(512);
+        assertEquals(512, a.length);
+        pool.release(a);
+        assertSame(a, pool.acquire(512));
+        // Other size
+        assertNotSame(a, pool.acquire(256));
+        assertEquals(256, pool.acquire(256).length);
+    }
+
+    public void testLimits() {
+        BufferPool pool = new BufferPool(2, 1024);
+        byte[] large = pool.acquire(2048);
+        pool.release(large);
+        assertNotSame(large, pool.acquire(2048));
+
+        byte[] a = new byte[100];
+        byte[] b = new byte[100];
+        byte[] c = new byte[100];
+        pool.release(a);
+        pool.release(b);
+        pool.release(c);
+        byte[] x = pool.acquire(100);
+        byte[] y = pool.acquire(100);
+        byte[] z = pool.acquire(100);
+        assertTrue(x == a || x == b);
+        assertTrue(y == a || y == b);
+        assertNotSame(c, z);
+        pool.release(null);
+    }
+}
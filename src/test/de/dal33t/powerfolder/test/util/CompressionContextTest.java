@@ -0,0 +1,243 @@
+/*
+ * Copyright 2004 - 2013 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.test.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import de.dal33t.powerfolder.disk.DiskItemFilter;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FileInfoFactory;
+import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.light.MemberInfo;
+import de.dal33t.powerfolder.message.FileChunk;
+import de.dal33t.powerfolder.message.FileList;
+import de.dal33t.powerfolder.message.Message;
+import de.dal33t.powerfolder.message.Pong;
+import de.dal33t.powerfolder.util.ByteSerializer;
+import de.dal33t.powerfolder.util.CompressionContext;
+import de.dal33t.powerfolder.util.IdGenerator;
+
+/**
+ * Tests the compression context of connections and compares it with a GZIP
+ * stream per message.
+ */
+public class CompressionContextTest extends TestCase {
+
+    private static final int CHUNK_SIZE = 32 * 1024;
+
+    private final Random random = new Random(4711);
+    private final FolderInfo folder = new FolderInfo("Test folder",
+        IdGenerator.makeId());
+    private final MemberInfo member = new MemberInfo("Tester",
+        IdGenerator.makeId(), null);
+
+    private CompressionContext sender;
+    private CompressionContext receiver;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        assertTrue(CompressionContext.isSupported());
+        sender = new CompressionContext();
+        receiver = new CompressionContext();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        sender.close();
+        receiver.close();
+        super.tearDown();
+    }
+
+    public void testRoundTrip() throws Exception {
+        List<Message> messages = new ArrayList<Message>();
+        messages.add(new Pong());
+        for (Message message : createFileList(1200)) {
+            messages.add(message);
+        }
+        messages.add(createChunk(true));
+        messages.add(createChunk(false));
+        messages.add(new Pong());
+
+        for (Message message : messages) {
+            Message received = transfer(message, false);
+            assertEquals(message.getClass(), received.getClass());
+            assertEquals(message.toString(), received.toString());
+        }
+    }
+
+    public void testSmallMessages() throws Exception {
+        // Many small messages shrink after the first one
+        int first = 0;
+        for (int i = 0; i < 100; i++) {
+            byte[] data = ByteSerializer.serializeStatic(new Pong(), false);
+            byte[] packet = sender.compress(data, false).toByteArray();
+            int size = packet.length;
+            receiver.decompress(packet, size);
+            if (i == 0) {
+                first = size;
+            } else {
+                assertTrue(size + " / " + first, size < first / 2);
+            }
+        }
+        assertTrue(first < ByteSerializer.serializeStatic(new Pong(), true).length);
+    }
+
+    public void testIncompressible() throws Exception {
+        FileChunk chunk = createChunk(false);
+        assertFalse(CompressionContext.isCompressible(chunk.data));
+        assertTrue(CompressionContext.isCompressible(createChunk(true).data));
+
+        byte[] data = ByteSerializer.serializeStatic(chunk, false);
+        byte[] packet = sender.compress(data, true).toByteArray();
+        assertEquals(CompressionContext.PLAIN, packet[0]);
+        assertEquals(data.length + 1, packet.length);
+        FileChunk received = (FileChunk) ByteSerializer.deserializeStatic(
+            receiver.decompress(packet, packet.length), false);
+        assertEquals(chunk.offset, received.offset);
+        assertEquals(chunk.data.length, received.data.length);
+
+        // The context continues after a plain packet
+        Message pong = transfer(new Pong(), false);
+        assertTrue(pong instanceof Pong);
+    }
+
+    public void testClosed() throws Exception {
+        sender.close();
+        try {
+            sender.compress(new byte[10], false);
+            fail("Compressed after close");
+        } catch (IOException e) {
+            // OK
+        }
+    }
+
+    /**
+     * Compares the bytes on the wire for the traffic of a folder sync with a
+     * GZIP stream per message.
+     */
+    public void testWireSize() throws Exception {
+        List<Message> fileLists = new ArrayList<Message>();
+        for (int i = 0; i < 4; i++) {
+            for (Message message : createFileList(2000)) {
+                fileLists.add(message);
+            }
+        }
+        // Changes of single files
+        List<Message> updates = new ArrayList<Message>();
+        for (int i = 0; i < 1000; i++) {
+            updates.add(createFileList(1)[0]);
+        }
+        List<Message> chunks = new ArrayList<Message>();
+        for (int i = 0; i < 64; i++) {
+            chunks.add(createChunk(i % 2 == 0));
+        }
+
+        long gzip = wireSize(fileLists, false);
+        long stream = wireSize(fileLists, true);
+        assertTrue(stream + " vs. " + gzip + " bytes", stream < gzip);
+        gzip = wireSize(updates, false);
+        stream = wireSize(updates, true);
+        assertTrue(stream + " vs. " + gzip + " bytes", stream < gzip / 2);
+        gzip = wireSize(chunks, false);
+        stream = wireSize(chunks, true);
+        // Incompressible chunks are sent as they are
+        assertTrue(stream + " vs. " + gzip + " bytes",
+            stream < gzip * 101 / 100);
+    }
+
+    // Helper *****************************************************************
+
+    /**
+     * @return the bytes on the wire
+     */
+    private long wireSize(List<Message> messages, boolean useContext)
+        throws Exception
+    {
+        long wire = 0;
+        for (Message message : messages) {
+            byte[] data;
+            if (useContext) {
+                data = ByteSerializer.serializeStatic(message, false);
+                data = sender.compress(data, plain(message)).toByteArray();
+                ByteSerializer.deserializeStatic(
+                    receiver.decompress(data, data.length), false);
+            } else {
+                data = ByteSerializer.serializeStatic(message, true);
+                ByteSerializer.deserializeStatic(data, true);
+            }
+            wire += data.length;
+        }
+        return wire;
+    }
+
+    private Message transfer(Message message, boolean plain) throws Exception
+    {
+        byte[] data = ByteSerializer.serializeStatic(message, false);
+        byte[] packet = sender.compress(data, plain).toByteArray();
+        return (Message) ByteSerializer.deserializeStatic(
+            receiver.decompress(packet, packet.length), false);
+    }
+
+    private static boolean plain(Message message) {
+        return message instanceof FileChunk
+            && !CompressionContext.isCompressible(((FileChunk) message).data);
+    }
+
+    private Message[] createFileList(int nFiles) {
+        List<FileInfo> files = new ArrayList<FileInfo>();
+        for (int i = 0; i < nFiles; i++) {
+            String fn = "dir-" + random.nextInt(20) + "/sub-"
+                + random.nextInt(10) + "/document " + random.nextInt(100000)
+                + ".doc";
+            files.add(FileInfoFactory.unmarshallExistingFile(folder, fn,
+                random.nextInt(10000000), member,
+                new Date(1300000000000L + random.nextInt()), 1, false));
+        }
+        return FileList.create4Test(folder, files, new DiskItemFilter());
+    }
+
+    /**
+     * @param compressible
+     *            true for text, false for random data.
+     */
+    private FileChunk createChunk(boolean compressible) {
+        byte[] data = new byte[CHUNK_SIZE];
+        if (compressible) {
+            StringBuilder b = new StringBuilder();
+            while (b.length() < CHUNK_SIZE) {
+                b.append("Line ").append(random.nextInt(1000)).append(
+                    ": The quick brown fox jumps over the lazy dog.\n");
+            }
+            byte[] text = b.toString().getBytes();
+            System.arraycopy(text, 0, data, 0, CHUNK_SIZE);
+        } else {
+            random.nextBytes(data);
+        }
+        FileInfo file = FileInfoFactory.unmarshallExistingFile(folder,
+            "chunked.bin", 10 * CHUNK_SIZE, member, new Date(), 1, false);
+        return new FileChunk(file, CHUNK_SIZE, data);
+    }
+}
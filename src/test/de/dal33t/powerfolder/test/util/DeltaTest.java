@@ -20,6 +20,9 @@
 package de.dal33t.powerfolder.test.util;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.security.MessageDigest;
@@ -35,10 +38,15 @@ import java.util.zip.Adler32;
 import junit.framework.TestCase;
 import de.dal33t.powerfolder.util.Range;
 import de.dal33t.powerfolder.util.RingBuffer;
+import de.dal33t.powerfolder.util.delta.ChunkCopyWorker;
+import de.dal33t.powerfolder.util.delta.ChunkInfo;
+import de.dal33t.powerfolder.util.delta.ChunkRecord;
+import de.dal33t.powerfolder.util.delta.ChunkRecordBuilder;
 import de.dal33t.powerfolder.util.delta.FilePartsRecord;
 import de.dal33t.powerfolder.util.delta.FilePartsRecordBuilder;
 import de.dal33t.powerfolder.util.delta.FilePartsState;
 import de.dal33t.powerfolder.util.delta.MatchInfo;
+import de.dal33t.powerfolder.util.delta.MatchResultWorker;
 import de.dal33t.powerfolder.util.delta.PartInfo;
 import de.dal33t.powerfolder.util.delta.PartInfoMatcher;
 import de.dal33t.powerfolder.util.delta.RollingAdler32;
@@ -300,6 +308,122 @@ public class DeltaTest extends TestCase {
         }
     }
 
+    public void testParallelMatching() throws Exception {
+        Random rng = new Random();
+        byte[] data = new byte[40 * 1024 * 1024 + 777];
+        rng.nextBytes(data);
+        File file = File.createTempFile("delta", ".bin");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        // The remote version differs in the first part
+        data[1000]++;
+        FilePartsRecordBuilder builder = new FilePartsRecordBuilder(
+            new RollingAdler32(4096), MessageDigest.getInstance("SHA-256"),
+            MessageDigest.getInstance("MD5"), 4096);
+        builder.update(data);
+        FilePartsRecord rec = builder.getRecord();
+
+        List<MatchInfo> sequential = new MatchResultWorker(rec, file, null, 1)
+            .call();
+        List<MatchInfo> parallel = new MatchResultWorker(rec, file, null, 4)
+            .call();
+        assertEquals(rec.getInfos().length - 1, sequential.size());
+        assertEquals(sequential.size(), parallel.size());
+        for (int i = 0; i < sequential.size(); i++) {
+            assertEquals(sequential.get(i).getMatchedPosition(), parallel
+                .get(i).getMatchedPosition());
+            assertSame(sequential.get(i).getMatchedPart(), parallel.get(i)
+                .getMatchedPart());
+        }
+        file.delete();
+    }
+
+    public void testContentDefinedChunks() throws Exception {
+        Random rng = new Random();
+        byte[] data = new byte[2 * 1024 * 1024];
+        rng.nextBytes(data);
+        ChunkRecord oldRec = buildChunks(data, 8192);
+        long pos = 0;
+        ChunkInfo[] chunks = oldRec.getChunks();
+        for (int i = 0; i < chunks.length; i++) {
+            assertEquals(pos, chunks[i].getOffset());
+            assertTrue(chunks[i].getLength() <= 4 * 8192);
+            assertTrue(i == chunks.length - 1
+                || chunks[i].getLength() >= 8192 / 4);
+            pos += chunks[i].getLength();
+        }
+        assertEquals(data.length, pos);
+        assertEquals(data.length, oldRec.getFileLength());
+        ChunkRecordBuilder builder = new ChunkRecordBuilder(MessageDigest
+            .getInstance("SHA-256"), MessageDigest.getInstance("MD5"), 8192);
+        builder.update(data);
+        assertEquals(oldRec, builder.getRecord());
+
+        // Insert some bytes: Only the chunks around it change
+        byte[] changed = new byte[data.length + 100];
+        System.arraycopy(data, 0, changed, 0, 500000);
+        System.arraycopy(data, 500000, changed, 500100, data.length - 500000);
+        ChunkRecord newRec = buildChunks(changed, 8192);
+
+        File oldFile = File.createTempFile("delta", ".old");
+        oldFile.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(oldFile);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        File newFile = File.createTempFile("delta", ".new");
+        newFile.deleteOnExit();
+        FilePartsState state = new ChunkCopyWorker(oldFile, oldRec, newFile,
+            newRec, null).call();
+        assertEquals(changed.length, state.getFileLength());
+        long missing = changed.length
+            - state.countPartStates(state.getRange(), PartState.AVAILABLE);
+        assertTrue("Missing: " + missing, missing >= 100
+            && missing <= 3 * 4 * 8192);
+
+        RandomAccessFile raf = new RandomAccessFile(newFile, "r");
+        try {
+            for (ChunkInfo chunk : newRec.getChunks()) {
+                Range r = Range.getRangeByLength(chunk.getOffset(), chunk
+                    .getLength());
+                if (state.countPartStates(r, PartState.AVAILABLE) == 0) {
+                    continue;
+                }
+                byte[] copied = new byte[chunk.getLength()];
+                raf.seek(chunk.getOffset());
+                raf.readFully(copied);
+                for (int i = 0; i < copied.length; i++) {
+                    assertEquals(changed[(int) chunk.getOffset() + i],
+                        copied[i]);
+                }
+            }
+        } finally {
+            raf.close();
+        }
+        oldFile.delete();
+        newFile.delete();
+    }
+
+    private ChunkRecord buildChunks(byte[] data, int averageChunkSize)
+        throws NoSuchAlgorithmException
+    {
+        ChunkRecordBuilder builder = new ChunkRecordBuilder(MessageDigest
+            .getInstance("SHA-256"), MessageDigest.getInstance("MD5"),
+            averageChunkSize);
+        // Odd block sizes: Boundaries must not depend on them
+        for (int off = 0; off < data.length; off += 777) {
+            builder.update(data, off, Math.min(777, data.length - off));
+        }
+        return builder.getRecord();
+    }
+
     private void testDigest(String alg) throws NoSuchAlgorithmException {
         MessageDigest d1 = MessageDigest.getInstance(alg);
         MessageDigest d2 = MessageDigest.getInstance(alg);
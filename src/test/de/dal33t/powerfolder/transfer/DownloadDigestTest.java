@@ -0,0 +1,177 @@
+/*
+ * Copyright 2004 - 2013 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.transfer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import de.dal33t.powerfolder.util.ProgressListener;
+import de.dal33t.powerfolder.util.Range;
+import de.dal33t.powerfolder.util.delta.FilePartsState;
+import de.dal33t.powerfolder.util.delta.FilePartsState.PartState;
+import de.dal33t.powerfolder.util.test.TestHelper;
+
+/**
+ * Tests the MD5 of a tempfile computed by {@link DownloadDigest} while it is
+ * written.
+ */
+public class DownloadDigestTest extends TestCase {
+
+    private static final int CHUNK_SIZE = 1000;
+
+    private byte[] data;
+    private File file;
+    private RandomAccessFile raf;
+    private FilePartsState state;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TestHelper.cleanTestDir();
+        data = new byte[10 * CHUNK_SIZE + 123];
+        new Random().nextBytes(data);
+        file = new File(TestHelper.getTestDir(), "download.tmp");
+        raf = new RandomAccessFile(file, "rw");
+        raf.setLength(data.length);
+        state = new FilePartsState(data.length);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        raf.close();
+        super.tearDown();
+    }
+
+    public void testInOrder() throws Exception {
+        DownloadDigest digest = new DownloadDigest(data.length);
+        for (int offset = 0; offset < data.length; offset += CHUNK_SIZE) {
+            write(digest, offset, CHUNK_SIZE);
+            assertEquals(Math.min(offset + CHUNK_SIZE, data.length), digest
+                .getPosition());
+        }
+        // Nothing left to read back
+        raf.close();
+        raf = new RandomAccessFile(file, "r");
+        file.delete();
+        assertDigest(digest.finish(raf, null));
+    }
+
+    public void testOverlapping() throws Exception {
+        DownloadDigest digest = new DownloadDigest(data.length);
+        write(digest, 0, 2 * CHUNK_SIZE);
+        // Only the new part gets digested
+        write(digest, CHUNK_SIZE, 2 * CHUNK_SIZE);
+        assertEquals(3 * CHUNK_SIZE, digest.getPosition());
+        // Already digested
+        write(digest, 0, CHUNK_SIZE);
+        assertEquals(3 * CHUNK_SIZE, digest.getPosition());
+        writeFrom(digest, 3 * CHUNK_SIZE);
+        assertEquals(data.length, digest.getPosition());
+        assertDigest(digest.finish(raf, null));
+    }
+
+    public void testOutOfOrderCatchUp() throws Exception {
+        DownloadDigest digest = new DownloadDigest(data.length);
+        // Written ahead: Not digested yet
+        write(digest, 2 * CHUNK_SIZE, CHUNK_SIZE);
+        write(digest, 3 * CHUNK_SIZE, CHUNK_SIZE);
+        assertEquals(0, digest.getPosition());
+        digest.catchUp(raf, state);
+        assertEquals(0, digest.getPosition());
+
+        write(digest, 0, CHUNK_SIZE);
+        write(digest, CHUNK_SIZE, CHUNK_SIZE);
+        assertEquals(2 * CHUNK_SIZE, digest.getPosition());
+        // Reads back the parts written ahead
+        digest.catchUp(raf, state);
+        assertEquals(4 * CHUNK_SIZE, digest.getPosition());
+
+        writeFrom(digest, 4 * CHUNK_SIZE);
+        assertEquals(data.length, digest.getPosition());
+        assertDigest(digest.finish(raf, null));
+    }
+
+    public void testFinishReadsRest() throws Exception {
+        DownloadDigest digest = new DownloadDigest(data.length);
+        // Backwards, without catching up
+        int last = data.length / CHUNK_SIZE * CHUNK_SIZE;
+        for (int offset = last; offset >= 0; offset -= CHUNK_SIZE) {
+            write(digest, offset, CHUNK_SIZE);
+        }
+        assertEquals(CHUNK_SIZE, digest.getPosition());
+
+        final double[] progress = new double[1];
+        byte[] md5 = digest.finish(raf, new ProgressListener() {
+            public void progressReached(double percentageReached) {
+                assertTrue(percentageReached >= progress[0]);
+                progress[0] = percentageReached;
+            }
+        });
+        assertDigest(md5);
+        assertEquals(data.length, digest.getPosition());
+        assertEquals(100.0, progress[0], 0.001);
+    }
+
+    public void testTruncatedTempfile() throws Exception {
+        DownloadDigest digest = new DownloadDigest(data.length);
+        write(digest, 0, CHUNK_SIZE);
+        raf.setLength(2 * CHUNK_SIZE);
+        try {
+            digest.finish(raf, null);
+            fail("Tempfile shorter than the file, but no exception");
+        } catch (IOException e) {
+            // OK
+        }
+    }
+
+    private void writeFrom(DownloadDigest digest, int start)
+        throws IOException
+    {
+        for (int offset = start; offset < data.length; offset += CHUNK_SIZE) {
+            write(digest, offset, CHUNK_SIZE);
+        }
+    }
+
+    /**
+     * Writes a chunk to the tempfile, like the download manager does.
+     */
+    private void write(DownloadDigest digest, int offset, int length)
+        throws IOException
+    {
+        length = Math.min(length, data.length - offset);
+        byte[] chunk = new byte[length];
+        System.arraycopy(data, offset, chunk, 0, length);
+        raf.seek(offset);
+        raf.write(chunk);
+        state.setPartState(Range.getRangeByLength(offset, length),
+            PartState.AVAILABLE);
+        digest.written(offset, chunk);
+    }
+
+    private void assertDigest(byte[] md5) throws Exception {
+        byte[] expected = MessageDigest.getInstance("MD5").digest(data);
+        assertTrue(Arrays.equals(expected, md5));
+    }
+}
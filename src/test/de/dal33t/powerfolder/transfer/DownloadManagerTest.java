@@ -0,0 +1,126 @@
+/*
+ * Copyright 2004 - 2013 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.transfer;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Random;
+
+import de.dal33t.powerfolder.Member;
+import de.dal33t.powerfolder.disk.SyncProfile;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FileInfoFactory;
+import de.dal33t.powerfolder.light.MemberInfo;
+import de.dal33t.powerfolder.message.FileChunk;
+import de.dal33t.powerfolder.util.IdGenerator;
+import de.dal33t.powerfolder.util.test.Condition;
+import de.dal33t.powerfolder.util.test.ControllerTestCase;
+import de.dal33t.powerfolder.util.test.TestHelper;
+
+/**
+ * Drives a {@link MultiSourceDownloadManager} directly with chunks from a
+ * source, which is not connected.
+ */
+public class DownloadManagerTest extends ControllerTestCase {
+
+    private byte[] data;
+    private FileInfo fInfo;
+    private Download download;
+    private AbstractDownloadManager manager;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        setupTestFolder(SyncProfile.HOST_FILES);
+
+        MemberInfo sourceInfo = new MemberInfo("Source", IdGenerator.makeId(),
+            getController().getNodeManager().getNetworkId());
+        data = new byte[3000];
+        new Random().nextBytes(data);
+        fInfo = FileInfoFactory.unmarshallExistingFile(getFolder().getInfo(),
+            "endgame.bin", data.length, sourceInfo, new Date(), 1, false);
+
+        download = new Download(getController().getTransferManager(), fInfo,
+            false)
+        {
+            @Override
+            public boolean isBroken() {
+                // Not queued at the source, which is not connected
+                return false;
+            }
+        };
+        download.setPartner(new Member(getController(), sourceInfo));
+        manager = (AbstractDownloadManager) MultiSourceDownloadManager.factory
+            .createDownloadManager(getController(), fInfo, false);
+        manager.init(false);
+        download.setDownloadManager(manager);
+        manager.addSource(download);
+        download.uploadStarted(fInfo);
+    }
+
+    public void testCompleted() throws Exception {
+        assertEquals(1, download.getPendingRequests().size());
+        assertTrue(download.addChunk(new FileChunk(fInfo, 0, data)));
+        waitForCompleted();
+    }
+
+    /**
+     * Endgame: A part requested from several sources arrives again while the
+     * completed file gets verified.
+     */
+    public void testLateDuplicateWhileChecking() throws Exception {
+        FileChunk chunk = new FileChunk(fInfo, 0, data);
+        synchronized (manager) {
+            // Verification can't complete while holding the lock
+            assertTrue(download.addChunk(chunk));
+            assertFalse(manager.isDone());
+            assertTrue(download.addChunk(chunk));
+            assertFalse(manager.isBroken());
+        }
+        waitForCompleted();
+    }
+
+    private void waitForCompleted() throws Exception {
+        TestHelper.waitForCondition(10, new Condition() {
+            public boolean reached() {
+                return manager.isDone();
+            }
+        });
+        assertTrue(manager.toString(), manager.isCompleted());
+        final File diskFile = fInfo.getDiskFile(getController()
+            .getFolderRepository());
+        // Moved from the tempfile after completion
+        TestHelper.waitForCondition(10, new Condition() {
+            public boolean reached() {
+                return diskFile.length() == data.length;
+            }
+        });
+        byte[] downloaded = new byte[(int) diskFile.length()];
+        RandomAccessFile raf = new RandomAccessFile(diskFile, "r");
+        try {
+            raf.readFully(downloaded);
+        } finally {
+            raf.close();
+        }
+        assertTrue(Arrays.equals(data, downloaded));
+    }
+}
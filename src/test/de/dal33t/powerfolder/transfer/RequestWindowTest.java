@@ -0,0 +1,148 @@
+/*
+ * Copyright 2004 - 2013 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.transfer;
+
+import junit.framework.TestCase;
+import de.dal33t.powerfolder.util.Range;
+
+public class RequestWindowTest extends TestCase {
+
+    private static final int MAX_REQUEST_SIZE = 32 * 1024;
+
+    private RequestWindow window;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        window = new RequestWindow(MAX_REQUEST_SIZE, 4, 12);
+    }
+
+    public void testInitialWindow() {
+        assertEquals(4 * MAX_REQUEST_SIZE, window.getWindow());
+        assertEquals(-1, window.getMinRtt());
+        assertEquals(MAX_REQUEST_SIZE, window.getRequestSize());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(window.isOpen());
+            window.requested(range(i, MAX_REQUEST_SIZE));
+        }
+        assertFalse(window.isOpen());
+        assertEquals(4 * MAX_REQUEST_SIZE, window.getInFlight());
+    }
+
+    public void testMaxRequests() {
+        RequestWindow small = new RequestWindow(MAX_REQUEST_SIZE, 100, 3);
+        assertEquals(3 * MAX_REQUEST_SIZE, small.getWindow());
+        for (int i = 0; i < 3; i++) {
+            assertTrue(small.isOpen());
+            small.requested(range(i, RequestWindow.MIN_REQUEST_SIZE));
+        }
+        // Bytes left in the window, but the remote side refuses more
+        assertTrue(small.getInFlight() < small.getWindow());
+        assertFalse(small.isOpen());
+    }
+
+    public void testGrowAndShrink() throws InterruptedException {
+        Range first = range(0, MAX_REQUEST_SIZE);
+        window.requested(first);
+        Thread.sleep(100);
+        // 1 MB/s
+        window.received(first, 1024 * 1024);
+        long rtt = window.getMinRtt();
+        assertTrue("RTT: " + rtt, rtt >= 100);
+        assertEquals(0, window.getInFlight());
+        // Twice the bandwidth-delay product, at most 12 requests
+        long expected = Math.min(12 * MAX_REQUEST_SIZE,
+            2 * (1024 * 1024 * rtt / 1000));
+        assertEquals(expected, window.getWindow());
+        assertTrue(window.getWindow() > 4 * MAX_REQUEST_SIZE);
+
+        // Source got slow
+        Range second = range(1, MAX_REQUEST_SIZE);
+        window.requested(second);
+        window.received(second, 1024);
+        assertEquals(2 * RequestWindow.MIN_REQUEST_SIZE, window.getWindow());
+        assertTrue(window.getMinRtt() <= rtt);
+    }
+
+    public void testRequestSize() {
+        Range r = range(0, MAX_REQUEST_SIZE);
+        window.requested(r);
+        window.received(r, 1024);
+        assertEquals(RequestWindow.MIN_REQUEST_SIZE, window.getRequestSize());
+
+        window.requested(r);
+        window.received(r, 64 * 1024);
+        // A range in 250ms
+        assertEquals(16 * 1024, window.getRequestSize());
+
+        window.requested(r);
+        window.received(r, 10 * 1024 * 1024);
+        assertEquals(MAX_REQUEST_SIZE, window.getRequestSize());
+    }
+
+    public void testNoRateMeasured() {
+        Range r = range(0, MAX_REQUEST_SIZE);
+        window.requested(r);
+        window.received(r, 0);
+        assertTrue(window.getMinRtt() >= 1);
+        assertEquals(4 * MAX_REQUEST_SIZE, window.getWindow());
+        assertEquals(MAX_REQUEST_SIZE, window.getRequestSize());
+    }
+
+    public void testEndgameDuplicates() {
+        Range r = range(0, MAX_REQUEST_SIZE);
+        window.requested(r);
+        // Requested again from this source
+        window.requested(r);
+        assertEquals(MAX_REQUEST_SIZE, window.getInFlight());
+        window.received(r, 1024 * 1024);
+        assertEquals(0, window.getInFlight());
+        long size = window.getWindow();
+
+        // Late duplicate of a range received from another source
+        window.received(r, 1);
+        window.received(range(1, MAX_REQUEST_SIZE), 1);
+        assertEquals(0, window.getInFlight());
+        assertEquals(size, window.getWindow());
+    }
+
+    public void testStall() throws InterruptedException {
+        assertFalse(window.isStalled());
+        assertFalse(window.reportStall());
+        Range r = range(0, MAX_REQUEST_SIZE);
+        window.requested(r);
+        assertFalse(window.isStalled());
+
+        Thread.sleep(RequestWindow.MIN_STALL_TIME + 500);
+        assertTrue(window.isStalled());
+        assertTrue(window.reportStall());
+        // Reported once only
+        assertFalse(window.reportStall());
+        assertTrue(window.isStalled());
+
+        window.received(r, 1024);
+        assertFalse(window.isStalled());
+        assertFalse(window.reportStall());
+    }
+
+    private static Range range(int i, int length) {
+        return Range.getRangeByLength((long) i * MAX_REQUEST_SIZE, length);
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2004 - 2013 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.transfer;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import de.dal33t.powerfolder.Feature;
+import de.dal33t.powerfolder.Member;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FileInfoFactory;
+import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.light.MemberInfo;
+import de.dal33t.powerfolder.util.IdGenerator;
+import de.dal33t.powerfolder.util.test.ControllerTestCase;
+
+/**
+ * Tests the order of sources by {@link SourceRanking}.
+ */
+public class SourceRankingTest extends ControllerTestCase {
+
+    private SourceRanking ranking;
+    private Member lan;
+    private Member internet;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        Feature.CORRECT_LAN_DETECTION.enable();
+        Feature.CORRECT_INTERNET_DETECTION.enable();
+        ranking = new SourceRanking(getController());
+        lan = createSource("LAN", "127.0.0.1");
+        internet = createSource("Internet", "8.8.8.8");
+    }
+
+    public void testUnknownSources() {
+        assertTrue(lan.isOnLAN());
+        assertFalse(internet.isOnLAN());
+        assertEquals(100 * 1024, ranking.getScore(internet), 0.1);
+        assertEquals(4 * 100 * 1024, ranking.getScore(lan), 0.1);
+        assertEquals(Arrays.asList(lan, internet), ranking.rank(Arrays
+            .asList(internet, lan)));
+    }
+
+    public void testStalls() {
+        double score = ranking.getScore(lan);
+        ranking.stalled(lan);
+        assertEquals(score / 2, ranking.getScore(lan), 0.1);
+        ranking.stalled(lan);
+        assertEquals(score / 4, ranking.getScore(lan), 0.1);
+        // Stalled LAN source ranks behind the internet source
+        ranking.stalled(lan);
+        assertEquals(Arrays.asList(internet, lan), ranking.rank(Arrays
+            .asList(lan, internet)));
+        // Penalty is limited
+        for (int i = 0; i < 10; i++) {
+            ranking.stalled(lan);
+        }
+        assertEquals(score / 16, ranking.getScore(lan), 0.1);
+    }
+
+    public void testObservedRate() throws InterruptedException {
+        Download download = createDownload(internet);
+        // First bytes only start the counter
+        download.getCounter().bytesTransferred(1);
+        Thread.sleep(200);
+        download.getCounter().bytesTransferred(10 * 1024 * 1024);
+        ranking.transferred(download);
+        assertTrue("Score: " + ranking.getScore(internet), ranking
+            .getScore(internet) > ranking.getScore(lan));
+        assertEquals(Arrays.asList(internet, lan), ranking.rank(Arrays
+            .asList(lan, internet)));
+    }
+
+    public void testRankDownloads() {
+        Download fromLan = createDownload(lan);
+        Download fromInternet = createDownload(internet);
+        List<Download> ranked = ranking.rankDownloads(Arrays.asList(
+            fromInternet, fromLan));
+        assertSame(fromLan, ranked.get(0));
+        assertSame(fromInternet, ranked.get(1));
+
+        ranking.stalled(lan);
+        ranking.stalled(lan);
+        ranking.stalled(lan);
+        ranked = ranking.rankDownloads(Arrays.asList(fromLan, fromInternet));
+        assertSame(fromInternet, ranked.get(0));
+        assertSame(fromLan, ranked.get(1));
+    }
+
+    private Member createSource(String nick, String host) {
+        MemberInfo info = new MemberInfo(nick, IdGenerator.makeId(),
+            getController().getNodeManager().getNetworkId());
+        info.setConnectAddress(new InetSocketAddress(host, 1337));
+        return new Member(getController(), info);
+    }
+
+    private Download createDownload(Member source) {
+        FolderInfo foInfo = new FolderInfo("Ranking", IdGenerator.makeId());
+        FileInfo fInfo = FileInfoFactory.unmarshallExistingFile(foInfo,
+            "file.bin", 10 * 1024 * 1024, source.getInfo(), new Date(), 1,
+            false);
+        Download download = new Download(getController().getTransferManager(),
+            fInfo, false);
+        download.setPartner(source);
+        return download;
+    }
+}
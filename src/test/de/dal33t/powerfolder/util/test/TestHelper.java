@@ -556,9 +556,10 @@ public class TestHelper {
         TestHelper.waitForCondition(30, new Condition() {
             public boolean reached() {
                 return folder.getController().getFolderRepository()
-                    .getCurrentlyMaintainingFolder() == null
+                    .getMaintainingFolders().isEmpty()
                     && folder.getController().getFolderRepository()
-                        .getFolderScanner().getCurrentScanningFolder() == null;
+                        .getFolderScanScheduler().getScanningFolders()
+                        .isEmpty();
             }
         });
 